@@ -3,7 +3,51 @@ CREATE TABLE mucextinfo (
     formtypename  VARCHAR(255)  NOT NULL,
     varname       VARCHAR(255)  NULL,
     label         VARCHAR(255)  NULL,
-    varvalue      VARCHAR(1023) NULL
+    varvalue      VARCHAR(1023) NULL,
+    node          VARCHAR(255)  NULL,
+    pos           BIGINT        DEFAULT 0 NOT NULL
 );
+CREATE INDEX mucextinfo_room_idx ON mucextinfo (room);
 
-INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 0);
+CREATE TABLE mucextinfo_rule (
+    room          VARCHAR(306)  NOT NULL,
+    formtypename  VARCHAR(255)  NOT NULL,
+    varname       VARCHAR(255)  NULL,
+    ruletype      VARCHAR(32)   NOT NULL,
+    rulevalue     VARCHAR(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+CREATE TABLE mucextinfo_change (
+    seq           BIGINT         NOT NULL,
+    changed       BIGINT         NOT NULL,
+    changetype    VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    formtypename  VARCHAR(255)   NULL,
+    varname       VARCHAR(255)   NULL,
+    label         VARCHAR(255)   NULL,
+    varvalue      VARCHAR(1023)  NULL,
+    ruletype      VARCHAR(32)    NULL,
+    rulevalue     VARCHAR(1023)  NULL,
+    lang          VARCHAR(35)    NULL,
+    node          VARCHAR(255)   NULL,
+    sourceroom    VARCHAR(306)   NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+CREATE TABLE mucextinfo_changeseq (
+    seq           BIGINT         NOT NULL
+);
+INSERT INTO mucextinfo_changeseq (seq) VALUES (0);
+
+CREATE TABLE mucextinfo_label (
+    room          VARCHAR(306)   NOT NULL,
+    formtypename  VARCHAR(255)   NOT NULL,
+    varname       VARCHAR(255)   NOT NULL,
+    lang          VARCHAR(35)    NOT NULL,
+    label         VARCHAR(255)   NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 7);
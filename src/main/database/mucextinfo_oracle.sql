@@ -3,7 +3,51 @@ CREATE TABLE mucextinfo (
     formtypename  VARCHAR2(255)  NOT NULL,
     varname       VARCHAR2(255)  NULL,
     label         VARCHAR2(255)  NULL,
-    varvalue      VARCHAR2(1023) NULL
+    varvalue      VARCHAR2(1023) NULL,
+    node          VARCHAR2(255)  NULL,
+    pos           INTEGER        DEFAULT 0 NOT NULL
 );
+CREATE INDEX mucextinfo_room_idx ON mucextinfo (room);
 
-INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 0);
+CREATE TABLE mucextinfo_rule (
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NOT NULL,
+    varname       VARCHAR2(255)  NULL,
+    ruletype      VARCHAR2(32)   NOT NULL,
+    rulevalue     VARCHAR2(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+CREATE TABLE mucextinfo_change (
+    seq           INTEGER        NOT NULL,
+    changed       INTEGER        NOT NULL,
+    changetype    VARCHAR2(32)   NOT NULL,
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NULL,
+    varname       VARCHAR2(255)  NULL,
+    label         VARCHAR2(255)  NULL,
+    varvalue      VARCHAR2(1023) NULL,
+    ruletype      VARCHAR2(32)   NULL,
+    rulevalue     VARCHAR2(1023) NULL,
+    lang          VARCHAR2(35)   NULL,
+    node          VARCHAR2(255)  NULL,
+    sourceroom    VARCHAR2(306)  NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+CREATE TABLE mucextinfo_changeseq (
+    seq           INTEGER        NOT NULL
+);
+INSERT INTO mucextinfo_changeseq (seq) VALUES (0);
+
+CREATE TABLE mucextinfo_label (
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NOT NULL,
+    varname       VARCHAR2(255)  NOT NULL,
+    lang          VARCHAR2(35)   NOT NULL,
+    label         VARCHAR2(255)  NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 7);
@@ -3,7 +3,51 @@ CREATE TABLE mucextinfo (
     formtypename  NVARCHAR(255)  NOT NULL,
     varname       NVARCHAR(255)  NULL,
     label         NVARCHAR(255)  NULL,
-    varvalue      NVARCHAR(1023) NULL
+    varvalue      NVARCHAR(1023) NULL,
+    node          NVARCHAR(255)  NULL,
+    pos           BIGINT         DEFAULT 0 NOT NULL
 );
+CREATE INDEX mucextinfo_room_idx ON mucextinfo (room);
 
-INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 0);
+CREATE TABLE mucextinfo_rule (
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NOT NULL,
+    varname       NVARCHAR(255)  NULL,
+    ruletype      NVARCHAR(32)   NOT NULL,
+    rulevalue     NVARCHAR(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+CREATE TABLE mucextinfo_change (
+    seq           BIGINT         NOT NULL,
+    changed       BIGINT         NOT NULL,
+    changetype    NVARCHAR(32)   NOT NULL,
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NULL,
+    varname       NVARCHAR(255)  NULL,
+    label         NVARCHAR(255)  NULL,
+    varvalue      NVARCHAR(1023) NULL,
+    ruletype      NVARCHAR(32)   NULL,
+    rulevalue     NVARCHAR(1023) NULL,
+    lang          NVARCHAR(35)   NULL,
+    node          NVARCHAR(255)  NULL,
+    sourceroom    NVARCHAR(306)  NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+CREATE TABLE mucextinfo_changeseq (
+    seq           BIGINT         NOT NULL
+);
+INSERT INTO mucextinfo_changeseq (seq) VALUES (0);
+
+CREATE TABLE mucextinfo_label (
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NOT NULL,
+    varname       NVARCHAR(255)  NOT NULL,
+    lang          NVARCHAR(35)   NOT NULL,
+    label         NVARCHAR(255)  NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 7);
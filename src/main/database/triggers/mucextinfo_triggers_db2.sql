@@ -0,0 +1,29 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with the DB2 command line processor.
+-- Triggers fire once per statement: each room that is affected by the statement is recorded once in the
+-- mucextinfo_dirty table. Rows are removed by the plugin after the period that is configured by
+-- 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           BIGINT         NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1, NO CACHE),
+    tablename     VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    changed       TIMESTAMP      NOT NULL WITH DEFAULT CURRENT TIMESTAMP,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+
+CREATE TRIGGER mucextinfo_dirty_ins AFTER INSERT ON mucextinfo REFERENCING NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo', room FROM n;
+CREATE TRIGGER mucextinfo_dirty_upd AFTER UPDATE ON mucextinfo REFERENCING OLD TABLE AS o NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo', room FROM o UNION SELECT 'mucextinfo', room FROM n;
+CREATE TRIGGER mucextinfo_dirty_del AFTER DELETE ON mucextinfo REFERENCING OLD TABLE AS o FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo', room FROM o;
+
+CREATE TRIGGER mucextinfo_rule_dirty_ins AFTER INSERT ON mucextinfo_rule REFERENCING NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo_rule', room FROM n;
+CREATE TRIGGER mucextinfo_rule_dirty_upd AFTER UPDATE ON mucextinfo_rule REFERENCING OLD TABLE AS o NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_rule', room FROM o UNION SELECT 'mucextinfo_rule', room FROM n;
+CREATE TRIGGER mucextinfo_rule_dirty_del AFTER DELETE ON mucextinfo_rule REFERENCING OLD TABLE AS o FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo_rule', room FROM o;
+
+CREATE TRIGGER mucextinfo_label_dirty_ins AFTER INSERT ON mucextinfo_label REFERENCING NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo_label', room FROM n;
+CREATE TRIGGER mucextinfo_label_dirty_upd AFTER UPDATE ON mucextinfo_label REFERENCING OLD TABLE AS o NEW TABLE AS n FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_label', room FROM o UNION SELECT 'mucextinfo_label', room FROM n;
+CREATE TRIGGER mucextinfo_label_dirty_del AFTER DELETE ON mucextinfo_label REFERENCING OLD TABLE AS o FOR EACH STATEMENT MODE DB2SQL INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT 'mucextinfo_label', room FROM o;
@@ -0,0 +1,29 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with the SqlTool of HSQLDB.
+-- Each modified row causes a row to be added to the mucextinfo_dirty table: HSQLDB does not provide the rows that are
+-- modified by a statement to triggers that are defined in SQL. An update that does not change the room of a row records
+-- the room once. Rows are removed by the plugin after the period that is configured by 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) NOT NULL,
+    tablename     VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    changed       TIMESTAMP      DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+
+CREATE TRIGGER mucextinfo_dirty_ins AFTER INSERT ON mucextinfo REFERENCING NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo', n.room);
+CREATE TRIGGER mucextinfo_dirty_upd AFTER UPDATE ON mucextinfo REFERENCING OLD ROW AS o NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo', o.room FROM (VALUES (0)) UNION SELECT 'mucextinfo', n.room FROM (VALUES (0));
+CREATE TRIGGER mucextinfo_dirty_del AFTER DELETE ON mucextinfo REFERENCING OLD ROW AS o FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo', o.room);
+
+CREATE TRIGGER mucextinfo_rule_dirty_ins AFTER INSERT ON mucextinfo_rule REFERENCING NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_rule', n.room);
+CREATE TRIGGER mucextinfo_rule_dirty_upd AFTER UPDATE ON mucextinfo_rule REFERENCING OLD ROW AS o NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_rule', o.room FROM (VALUES (0)) UNION SELECT 'mucextinfo_rule', n.room FROM (VALUES (0));
+CREATE TRIGGER mucextinfo_rule_dirty_del AFTER DELETE ON mucextinfo_rule REFERENCING OLD ROW AS o FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_rule', o.room);
+
+CREATE TRIGGER mucextinfo_label_dirty_ins AFTER INSERT ON mucextinfo_label REFERENCING NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_label', n.room);
+CREATE TRIGGER mucextinfo_label_dirty_upd AFTER UPDATE ON mucextinfo_label REFERENCING OLD ROW AS o NEW ROW AS n FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_label', o.room FROM (VALUES (0)) UNION SELECT 'mucextinfo_label', n.room FROM (VALUES (0));
+CREATE TRIGGER mucextinfo_label_dirty_del AFTER DELETE ON mucextinfo_label REFERENCING OLD ROW AS o FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_label', o.room);
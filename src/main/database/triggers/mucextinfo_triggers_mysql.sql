@@ -0,0 +1,29 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with the mysql command line client.
+-- Each modified row causes a row to be added to the mucextinfo_dirty table, as MySQL only supports triggers that fire for
+-- each row. An update that does not change the room of a row records the room once. Rows are removed by the plugin after
+-- the period that is configured by 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           BIGINT         NOT NULL AUTO_INCREMENT,
+    tablename     VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    changed       TIMESTAMP      DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+
+CREATE TRIGGER mucextinfo_dirty_ins AFTER INSERT ON mucextinfo FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo', NEW.room);
+CREATE TRIGGER mucextinfo_dirty_upd AFTER UPDATE ON mucextinfo FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo', OLD.room UNION SELECT 'mucextinfo', NEW.room;
+CREATE TRIGGER mucextinfo_dirty_del AFTER DELETE ON mucextinfo FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo', OLD.room);
+
+CREATE TRIGGER mucextinfo_rule_dirty_ins AFTER INSERT ON mucextinfo_rule FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_rule', NEW.room);
+CREATE TRIGGER mucextinfo_rule_dirty_upd AFTER UPDATE ON mucextinfo_rule FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_rule', OLD.room UNION SELECT 'mucextinfo_rule', NEW.room;
+CREATE TRIGGER mucextinfo_rule_dirty_del AFTER DELETE ON mucextinfo_rule FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_rule', OLD.room);
+
+CREATE TRIGGER mucextinfo_label_dirty_ins AFTER INSERT ON mucextinfo_label FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_label', NEW.room);
+CREATE TRIGGER mucextinfo_label_dirty_upd AFTER UPDATE ON mucextinfo_label FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) SELECT 'mucextinfo_label', OLD.room UNION SELECT 'mucextinfo_label', NEW.room;
+CREATE TRIGGER mucextinfo_label_dirty_del AFTER DELETE ON mucextinfo_label FOR EACH ROW INSERT INTO mucextinfo_dirty (tablename, room) VALUES ('mucextinfo_label', OLD.room);
@@ -0,0 +1,95 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with SQL*Plus.
+-- Compound triggers collect the rooms of the rows that are modified by a statement: each room that is affected by the
+-- statement is recorded once in the mucextinfo_dirty table. Rows are removed by the plugin after the period that is
+-- configured by 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           INTEGER        NOT NULL,
+    tablename     VARCHAR2(32)   NOT NULL,
+    room          VARCHAR2(306)  NOT NULL,
+    changed       TIMESTAMP      DEFAULT SYSTIMESTAMP NOT NULL,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+
+-- Without a cache, sequence numbers are handed out in order, which allows the plugin to detect rows that it missed.
+CREATE SEQUENCE mucextinfo_dirty_seq NOCACHE;
+
+CREATE OR REPLACE TRIGGER mucextinfo_dirty FOR INSERT OR UPDATE OR DELETE ON mucextinfo COMPOUND TRIGGER
+    TYPE room_set IS TABLE OF NUMBER INDEX BY VARCHAR2(306);
+    rooms room_set;
+
+    AFTER EACH ROW IS
+    BEGIN
+        IF UPDATING OR DELETING THEN
+            rooms(:OLD.room) := 1;
+        END IF;
+        IF INSERTING OR UPDATING THEN
+            rooms(:NEW.room) := 1;
+        END IF;
+    END AFTER EACH ROW;
+
+    AFTER STATEMENT IS
+        modified VARCHAR2(306) := rooms.FIRST;
+    BEGIN
+        WHILE modified IS NOT NULL LOOP
+            INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (mucextinfo_dirty_seq.NEXTVAL, 'mucextinfo', modified);
+            modified := rooms.NEXT(modified);
+        END LOOP;
+    END AFTER STATEMENT;
+END mucextinfo_dirty;
+/
+
+CREATE OR REPLACE TRIGGER mucextinfo_rule_dirty FOR INSERT OR UPDATE OR DELETE ON mucextinfo_rule COMPOUND TRIGGER
+    TYPE room_set IS TABLE OF NUMBER INDEX BY VARCHAR2(306);
+    rooms room_set;
+
+    AFTER EACH ROW IS
+    BEGIN
+        IF UPDATING OR DELETING THEN
+            rooms(:OLD.room) := 1;
+        END IF;
+        IF INSERTING OR UPDATING THEN
+            rooms(:NEW.room) := 1;
+        END IF;
+    END AFTER EACH ROW;
+
+    AFTER STATEMENT IS
+        modified VARCHAR2(306) := rooms.FIRST;
+    BEGIN
+        WHILE modified IS NOT NULL LOOP
+            INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (mucextinfo_dirty_seq.NEXTVAL, 'mucextinfo_rule', modified);
+            modified := rooms.NEXT(modified);
+        END LOOP;
+    END AFTER STATEMENT;
+END mucextinfo_rule_dirty;
+/
+
+CREATE OR REPLACE TRIGGER mucextinfo_label_dirty FOR INSERT OR UPDATE OR DELETE ON mucextinfo_label COMPOUND TRIGGER
+    TYPE room_set IS TABLE OF NUMBER INDEX BY VARCHAR2(306);
+    rooms room_set;
+
+    AFTER EACH ROW IS
+    BEGIN
+        IF UPDATING OR DELETING THEN
+            rooms(:OLD.room) := 1;
+        END IF;
+        IF INSERTING OR UPDATING THEN
+            rooms(:NEW.room) := 1;
+        END IF;
+    END AFTER EACH ROW;
+
+    AFTER STATEMENT IS
+        modified VARCHAR2(306) := rooms.FIRST;
+    BEGIN
+        WHILE modified IS NOT NULL LOOP
+            INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (mucextinfo_dirty_seq.NEXTVAL, 'mucextinfo_label', modified);
+            modified := rooms.NEXT(modified);
+        END LOOP;
+    END AFTER STATEMENT;
+END mucextinfo_label_dirty;
+/
@@ -0,0 +1,42 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with psql. It requires PostgreSQL 10 or later.
+-- Triggers fire once per statement: each room that is affected by the statement is recorded once in the
+-- mucextinfo_dirty table. Rows are removed by the plugin after the period that is configured by
+-- 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           BIGSERIAL      NOT NULL,
+    tablename     VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    changed       TIMESTAMP      DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+
+CREATE FUNCTION mucextinfo_record_dirty() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT TG_TABLE_NAME, room FROM new_rows;
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO mucextinfo_dirty (tablename, room) SELECT DISTINCT TG_TABLE_NAME, room FROM old_rows;
+    ELSE
+        INSERT INTO mucextinfo_dirty (tablename, room) SELECT TG_TABLE_NAME, room FROM old_rows UNION SELECT TG_TABLE_NAME, room FROM new_rows;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER mucextinfo_dirty_ins AFTER INSERT ON mucextinfo REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_dirty_upd AFTER UPDATE ON mucextinfo REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_dirty_del AFTER DELETE ON mucextinfo REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+
+CREATE TRIGGER mucextinfo_rule_dirty_ins AFTER INSERT ON mucextinfo_rule REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_rule_dirty_upd AFTER UPDATE ON mucextinfo_rule REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_rule_dirty_del AFTER DELETE ON mucextinfo_rule REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+
+CREATE TRIGGER mucextinfo_label_dirty_ins AFTER INSERT ON mucextinfo_label REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_label_dirty_upd AFTER UPDATE ON mucextinfo_label REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
+CREATE TRIGGER mucextinfo_label_dirty_del AFTER DELETE ON mucextinfo_label REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE mucextinfo_record_dirty();
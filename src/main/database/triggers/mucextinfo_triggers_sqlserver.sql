@@ -0,0 +1,44 @@
+-- Optional: records which rooms have data that is modified, including modifications that are not made by the plugin
+-- (eg: by tooling that modifies the tables directly). When the property 'mucextinfo.external.poll.enabled' is set to
+-- 'true', the plugin periodically reads the recorded rooms, and removes their data from its cache.
+--
+-- This script is not applied automatically. Run it once, for example with sqlcmd.
+-- Each modified row causes a row to be added to the mucextinfo_dirty table. Rows are removed by the plugin after the
+-- period that is configured by 'mucextinfo.external.retention'.
+
+CREATE TABLE mucextinfo_dirty (
+    seq           BIGINT         IDENTITY(1,1) NOT NULL,
+    tablename     NVARCHAR(32)   NOT NULL,
+    room          NVARCHAR(306)  NOT NULL,
+    changed       DATETIME       DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    CONSTRAINT mucextinfo_dirty_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_dirty_changed_idx ON mucextinfo_dirty (changed);
+GO
+
+-- Triggers fire once per statement: each room that is affected by the statement is recorded once.
+CREATE TRIGGER mucextinfo_dirty ON mucextinfo AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    INSERT INTO mucextinfo_dirty (tablename, room)
+        SELECT 'mucextinfo', room FROM inserted UNION SELECT 'mucextinfo', room FROM deleted;
+END;
+GO
+
+-- Triggers fire once per statement: each room that is affected by the statement is recorded once.
+CREATE TRIGGER mucextinfo_rule_dirty ON mucextinfo_rule AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    INSERT INTO mucextinfo_dirty (tablename, room)
+        SELECT 'mucextinfo_rule', room FROM inserted UNION SELECT 'mucextinfo_rule', room FROM deleted;
+END;
+GO
+
+-- Triggers fire once per statement: each room that is affected by the statement is recorded once.
+CREATE TRIGGER mucextinfo_label_dirty ON mucextinfo_label AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    INSERT INTO mucextinfo_dirty (tablename, room)
+        SELECT 'mucextinfo_label', room FROM inserted UNION SELECT 'mucextinfo_label', room FROM deleted;
+END;
+GO
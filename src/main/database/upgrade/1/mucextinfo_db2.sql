@@ -0,0 +1,10 @@
+CREATE TABLE mucextinfo_rule (
+    room          VARCHAR(306)  NOT NULL,
+    formtypename  VARCHAR(255)  NOT NULL,
+    varname       VARCHAR(255)  NULL,
+    ruletype      VARCHAR(32)   NOT NULL,
+    rulevalue     VARCHAR(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'mucextinfo';
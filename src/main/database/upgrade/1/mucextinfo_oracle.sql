@@ -0,0 +1,10 @@
+CREATE TABLE mucextinfo_rule (
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NOT NULL,
+    varname       VARCHAR2(255)  NULL,
+    ruletype      VARCHAR2(32)   NOT NULL,
+    rulevalue     VARCHAR2(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'mucextinfo';
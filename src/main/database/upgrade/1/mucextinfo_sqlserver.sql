@@ -0,0 +1,10 @@
+CREATE TABLE mucextinfo_rule (
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NOT NULL,
+    varname       NVARCHAR(255)  NULL,
+    ruletype      NVARCHAR(32)   NOT NULL,
+    rulevalue     NVARCHAR(1023) NULL
+);
+CREATE INDEX mucextinfo_rule_room_idx ON mucextinfo_rule (room);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'mucextinfo';
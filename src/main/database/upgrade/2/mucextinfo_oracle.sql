@@ -0,0 +1,16 @@
+CREATE TABLE mucextinfo_change (
+    seq           INTEGER        NOT NULL,
+    changed       INTEGER        NOT NULL,
+    changetype    VARCHAR2(32)   NOT NULL,
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NOT NULL,
+    varname       VARCHAR2(255)  NULL,
+    label         VARCHAR2(255)  NULL,
+    varvalue      VARCHAR2(1023) NULL,
+    ruletype      VARCHAR2(32)   NULL,
+    rulevalue     VARCHAR2(1023) NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+UPDATE ofVersion SET version = 2 WHERE name = 'mucextinfo';
@@ -0,0 +1,16 @@
+CREATE TABLE mucextinfo_change (
+    seq           BIGINT         NOT NULL,
+    changed       BIGINT         NOT NULL,
+    changetype    VARCHAR(32)    NOT NULL,
+    room          VARCHAR(306)   NOT NULL,
+    formtypename  VARCHAR(255)   NOT NULL,
+    varname       VARCHAR(255)   NULL,
+    label         VARCHAR(255)   NULL,
+    varvalue      VARCHAR(1023)  NULL,
+    ruletype      VARCHAR(32)    NULL,
+    rulevalue     VARCHAR(1023)  NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+UPDATE ofVersion SET version = 2 WHERE name = 'mucextinfo';
@@ -0,0 +1,16 @@
+CREATE TABLE mucextinfo_change (
+    seq           BIGINT         NOT NULL,
+    changed       BIGINT         NOT NULL,
+    changetype    NVARCHAR(32)   NOT NULL,
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NOT NULL,
+    varname       NVARCHAR(255)  NULL,
+    label         NVARCHAR(255)  NULL,
+    varvalue      NVARCHAR(1023) NULL,
+    ruletype      NVARCHAR(32)   NULL,
+    rulevalue     NVARCHAR(1023) NULL,
+    CONSTRAINT mucextinfo_change_pk PRIMARY KEY (seq)
+);
+CREATE INDEX mucextinfo_change_changed_idx ON mucextinfo_change (changed);
+
+UPDATE ofVersion SET version = 2 WHERE name = 'mucextinfo';
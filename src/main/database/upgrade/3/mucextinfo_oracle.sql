@@ -0,0 +1,12 @@
+CREATE TABLE mucextinfo_label (
+    room          VARCHAR2(306)  NOT NULL,
+    formtypename  VARCHAR2(255)  NOT NULL,
+    varname       VARCHAR2(255)  NOT NULL,
+    lang          VARCHAR2(35)   NOT NULL,
+    label         VARCHAR2(255)  NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+ALTER TABLE mucextinfo_change ADD lang VARCHAR2(35) NULL;
+
+UPDATE ofVersion SET version = 3 WHERE name = 'mucextinfo';
@@ -0,0 +1,12 @@
+CREATE TABLE mucextinfo_label (
+    room          VARCHAR(306)   NOT NULL,
+    formtypename  VARCHAR(255)   NOT NULL,
+    varname       VARCHAR(255)   NOT NULL,
+    lang          VARCHAR(35)    NOT NULL,
+    label         VARCHAR(255)   NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+ALTER TABLE mucextinfo_change ADD COLUMN lang VARCHAR(35) NULL;
+
+UPDATE ofVersion SET version = 3 WHERE name = 'mucextinfo';
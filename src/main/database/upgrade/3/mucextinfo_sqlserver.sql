@@ -0,0 +1,12 @@
+CREATE TABLE mucextinfo_label (
+    room          NVARCHAR(306)  NOT NULL,
+    formtypename  NVARCHAR(255)  NOT NULL,
+    varname       NVARCHAR(255)  NOT NULL,
+    lang          NVARCHAR(35)   NOT NULL,
+    label         NVARCHAR(255)  NOT NULL
+);
+CREATE INDEX mucextinfo_label_room_idx ON mucextinfo_label (room);
+
+ALTER TABLE mucextinfo_change ADD lang NVARCHAR(35) NULL;
+
+UPDATE ofVersion SET version = 3 WHERE name = 'mucextinfo';
@@ -0,0 +1,4 @@
+ALTER TABLE mucextinfo ADD node VARCHAR2(255) NULL;
+ALTER TABLE mucextinfo_change ADD node VARCHAR2(255) NULL;
+
+UPDATE ofVersion SET version = 4 WHERE name = 'mucextinfo';
@@ -0,0 +1,4 @@
+ALTER TABLE mucextinfo ADD COLUMN node VARCHAR(255) NULL;
+ALTER TABLE mucextinfo_change ADD COLUMN node VARCHAR(255) NULL;
+
+UPDATE ofVersion SET version = 4 WHERE name = 'mucextinfo';
@@ -0,0 +1,4 @@
+ALTER TABLE mucextinfo ADD node NVARCHAR(255) NULL;
+ALTER TABLE mucextinfo_change ADD node NVARCHAR(255) NULL;
+
+UPDATE ofVersion SET version = 4 WHERE name = 'mucextinfo';
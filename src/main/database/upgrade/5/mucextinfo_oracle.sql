@@ -0,0 +1,3 @@
+ALTER TABLE mucextinfo ADD pos INTEGER DEFAULT 0 NOT NULL;
+
+UPDATE ofVersion SET version = 5 WHERE name = 'mucextinfo';
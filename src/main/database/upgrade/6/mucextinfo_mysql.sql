@@ -0,0 +1,3 @@
+CREATE INDEX mucextinfo_room_idx ON mucextinfo (room);
+
+UPDATE ofVersion SET version = 6 WHERE name = 'mucextinfo';
@@ -0,0 +1,15 @@
+CREATE TABLE mucextinfo_changeseq (
+    seq           BIGINT         NOT NULL
+);
+
+-- Continue after the sequence numbers that were handed out by Openfire's sequence manager (type 650).
+INSERT INTO mucextinfo_changeseq (seq) SELECT COALESCE(MAX(id), 0) FROM ofID WHERE idType = 650;
+
+ALTER TABLE mucextinfo_change ADD COLUMN sourceroom VARCHAR(306) NULL;
+ALTER TABLE mucextinfo_change ALTER COLUMN formtypename DROP NOT NULL;
+CALL SYSPROC.ADMIN_CMD('REORG TABLE mucextinfo_change');
+
+-- The room from which data was copied or moved used to be recorded as the form type name of the change.
+UPDATE mucextinfo_change SET sourceroom = formtypename, formtypename = NULL WHERE changetype IN ('copyRoom', 'moveRoom');
+
+UPDATE ofVersion SET version = 7 WHERE name = 'mucextinfo';
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Provides a field that holds the amount of distinct entities that are an owner, admin or member of a room.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class AffiliatesFieldProvider implements ComputedFieldProvider
+{
+    public static final String VAR_NAME = "affiliates";
+
+    @Nonnull
+    private final String formTypeName;
+
+    @Nonnull
+    private final Duration refreshInterval;
+
+    public AffiliatesFieldProvider( @Nonnull final String formTypeName, @Nonnull final Duration refreshInterval )
+    {
+        this.formTypeName = formTypeName;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    @Nonnull
+    @Override
+    public Duration getRefreshInterval()
+    {
+        return refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public Collection<Field> compute( @Nonnull final MUCRoom room )
+    {
+        final Set<JID> affiliates = new HashSet<>();
+        affiliates.addAll(room.getOwners());
+        affiliates.addAll(room.getAdmins());
+        affiliates.addAll(room.getMembers());
+        return Collections.singletonList(new Field(VAR_NAME, "Number of affiliated entities", String.valueOf(affiliates.size())));
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Partitions the cache of data forms that is used by {@link DAO} by MUC service, so that the rooms of a busy service
+ * can't evict the cached data of the rooms of another service.
+ *
+ * Each partition is a cache of its own (named after the domain of its service, which also makes its statistics
+ * available on the cache summary page of the admin console), with its own size limit. A partition is created when data
+ * of its service is first cached, and is dropped when its service no longer exists.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class CachePartitions
+{
+    private static final Logger Log = LoggerFactory.getLogger(CachePartitions.class);
+
+    /**
+     * The prefix of the name of every partition. The remainder of the name is the domain of the service.
+     */
+    static final String NAME_PREFIX = "MUC Extended Service Discovery ";
+
+    /**
+     * The prefix of the properties that define the maximum size (in bytes) of the partition of one service. The
+     * remainder of the property name is the domain of the service.
+     */
+    public static final String SERVICE_SIZE_PREFIX = "mucextinfo.cache.size.";
+
+    /**
+     * The maximum size (in bytes) of each partition for which no size is defined for its service. A negative value
+     * keeps the size that Openfire uses for caches by default.
+     */
+    public static final SystemProperty<Integer> DEFAULT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.cache.size")
+        .setDefaultValue(-1)
+        .setMinValue(-1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(size -> getInstance().configure())
+        .build();
+
+    /**
+     * The interval at which partitions are created and dropped for services that were added or removed, and at which
+     * changes to the sizes of the partitions of services are applied.
+     */
+    private static final long RECONCILE_INTERVAL = 60 * 1000;
+
+    private static final CachePartitions INSTANCE = new CachePartitions();
+
+    public static CachePartitions getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The partitions, by the domain of their service.
+     */
+    private final ConcurrentMap<String, Cache<JID, CachedForms>> partitions = new ConcurrentHashMap<>();
+
+    private TimerTask reconcileTask;
+
+    CachePartitions() {}
+
+    /**
+     * Creates a partition for each MUC service, and periodically creates and drops partitions for services that are
+     * added and removed.
+     */
+    public synchronized void start()
+    {
+        if ( reconcileTask != null )
+        {
+            return;
+        }
+
+        reconcileTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final Set<String> domains = new HashSet<>();
+                    for ( final MultiUserChatService service : XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServices() )
+                    {
+                        domains.add(service.getServiceDomain());
+                    }
+                    reconcile(domains);
+                }
+                catch ( Exception e )
+                {
+                    Log.warn("An exception occurred while matching the partitions of the cache with the MUC services.", e);
+                }
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(reconcileTask, 0, RECONCILE_INTERVAL);
+    }
+
+    /**
+     * Stops creating and dropping partitions, and drops all partitions.
+     */
+    public synchronized void stop()
+    {
+        if ( reconcileTask != null )
+        {
+            TaskEngine.getInstance().cancelScheduledTask(reconcileTask);
+            reconcileTask = null;
+        }
+        reconcile(Collections.emptySet());
+    }
+
+    /**
+     * Returns the partition in which data for a cache key is stored, creating it if it does not exist yet.
+     *
+     * @param key The cache key (a room, service or node, see {@link DAO#cacheKey(JID, String)}).
+     * @return The partition of the service of the key.
+     */
+    @Nonnull
+    Cache<JID, CachedForms> get( @Nonnull final JID key )
+    {
+        return partitions.computeIfAbsent(key.getDomain(), this::create);
+    }
+
+    /**
+     * Returns all partitions that currently exist, by the domain of their service.
+     *
+     * @return The partitions (an unmodifiable, sorted map).
+     */
+    @Nonnull
+    public SortedMap<String, Cache<JID, CachedForms>> getPartitions()
+    {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(partitions));
+    }
+
+    /**
+     * Creates a partition for each of the provided service domains, and drops the partitions of all other domains. The
+     * size of each partition is (re)applied.
+     *
+     * @param domains The domains of all MUC services.
+     */
+    synchronized void reconcile( @Nonnull final Collection<String> domains )
+    {
+        for ( final Map.Entry<String, Cache<JID, CachedForms>> entry : partitions.entrySet() )
+        {
+            // The partition is removed from the map before it is destroyed, and only if it was not replaced in the
+            // meantime. Threads that obtained the partition before it was removed detect that it was replaced after
+            // acquiring the lock of a key (see DAO#lockCacheKey).
+            if ( !domains.contains(entry.getKey()) && partitions.remove(entry.getKey(), entry.getValue()) )
+            {
+                Log.debug("Dropping the cache partition of '{}', as that service no longer exists.", entry.getKey());
+                CacheFactory.destroyCache(entry.getValue().getName());
+            }
+        }
+        for ( final String domain : domains )
+        {
+            partitions.computeIfAbsent(domain, this::create);
+        }
+        configure();
+    }
+
+    /**
+     * Applies the configured size to each partition.
+     */
+    synchronized void configure()
+    {
+        for ( final Map.Entry<String, Cache<JID, CachedForms>> entry : partitions.entrySet() )
+        {
+            applySize(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the maximum size (in bytes) that is configured for the partition of a service.
+     *
+     * @param domain The domain of the service.
+     * @return A size in bytes, or a negative value if Openfire's default size is to be used.
+     */
+    static int getConfiguredSize( @Nonnull final String domain )
+    {
+        return JiveGlobals.getIntProperty(SERVICE_SIZE_PREFIX + domain, DEFAULT_SIZE.getValue());
+    }
+
+    /**
+     * Removes all entries from all partitions.
+     */
+    void clear()
+    {
+        partitions.values().forEach(Cache::clear);
+    }
+
+    /**
+     * Returns the total amount of entries over all partitions.
+     *
+     * @return an amount of entries.
+     */
+    int size()
+    {
+        int result = 0;
+        for ( final Cache<JID, CachedForms> partition : partitions.values() )
+        {
+            result += partition.size();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the estimated amount of heap memory that is used by the entries of all partitions.
+     *
+     * @return an amount of bytes.
+     * @see CachedForms#getCachedSize()
+     */
+    public long getWeight()
+    {
+        long result = 0;
+        for ( final Cache<JID, CachedForms> partition : partitions.values() )
+        {
+            for ( final CachedForms entry : partition.values() )
+            {
+                result += entry.getCachedSize();
+            }
+        }
+        return result;
+    }
+
+    @Nonnull
+    private Cache<JID, CachedForms> create( @Nonnull final String domain )
+    {
+        Log.debug("Creating a cache partition for '{}'.", domain);
+        final Cache<JID, CachedForms> result = CacheFactory.createLocalCache(NAME_PREFIX + domain);
+        applySize(domain, result);
+        return result;
+    }
+
+    private static void applySize( @Nonnull final String domain, @Nonnull final Cache<JID, CachedForms> partition )
+    {
+        final int size = getConfiguredSize(domain);
+        if ( size >= 0 && partition.getMaxCacheSize() != size )
+        {
+            Log.debug("Setting the maximum size of the cache partition of '{}' to {} bytes.", domain, size);
+            partition.setMaxCacheSize(size);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCEventListener;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.LocaleUtils;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import javax.annotation.Nonnull;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Loads the data forms of rooms into the cache before they are requested, when rooms are created or occupants join
+ * them. This prevents the first service discovery request for a room from paying for a database round trip.
+ *
+ * Loading takes place asynchronously, on a small, bounded pool of threads. A room for which a load is pending is not
+ * queued again, which prevents a mass rejoin (eg: after a restart) from queueing duplicate loads. When the queue is full,
+ * rooms are not warmed (they will be loaded on demand instead).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class CacheWarmer implements MUCEventListener
+{
+    private static final Logger Log = LoggerFactory.getLogger(CacheWarmer.class);
+
+    /**
+     * Controls whether data is loaded into the cache when rooms are created or joined.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.warmer.enabled")
+        .setDefaultValue(true)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of threads that concurrently load data into the cache. Changes take effect after the plugin
+     * is reloaded.
+     */
+    public static final SystemProperty<Integer> THREADS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.warmer.threads")
+        .setDefaultValue(2)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of rooms that can be queued for loading. Changes take effect after the plugin is reloaded.
+     */
+    public static final SystemProperty<Integer> QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.warmer.queue.size")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(false)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The key under which the share of service discovery requests that were served from a warm cache is registered
+     * with the statistics manager.
+     */
+    public static final String STATISTIC_KEY = "mucextinfo_warm_share";
+
+    private static final CacheWarmer INSTANCE = new CacheWarmer(DAO::isCached, DAO::retrieveExtensionElementsForRoom);
+
+    public static CacheWarmer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final Predicate<JID> isCached;
+
+    private final Consumer<JID> loader;
+
+    /**
+     * Rooms for which a load has been queued, but not yet completed.
+     */
+    private final Set<JID> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong warmRequestCount = new AtomicLong();
+
+    private final AtomicLong coldRequestCount = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+
+    CacheWarmer( @Nonnull final Predicate<JID> isCached, @Nonnull final Consumer<JID> loader )
+    {
+        this.isCached = isCached;
+        this.loader = loader;
+    }
+
+    /**
+     * Starts the threads that load data, and registers the statistic that reports the share of warm requests.
+     */
+    public void start()
+    {
+        start(THREADS.getValue(), QUEUE_SIZE.getValue());
+        StatisticsManager.getInstance().addStatistic(STATISTIC_KEY, new WarmShareStatistic());
+    }
+
+    synchronized void start( final int threads, final int queueSize )
+    {
+        if ( executor != null )
+        {
+            return;
+        }
+        Log.debug("Starting cache warmer with {} thread(s) and a queue size of {}.", threads, queueSize);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), new NamedThreadFactory("mucextinfo-warmer-", true, null, null, null));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops all threads that load data (discarding any queued loads), and unregisters the statistic.
+     */
+    public void stop()
+    {
+        StatisticsManager.getInstance().removeStatistic(STATISTIC_KEY);
+        synchronized ( this )
+        {
+            if ( executor != null )
+            {
+                Log.debug("Stopping cache warmer.");
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Queues the data of a room to be loaded into the cache, unless it is already cached or queued.
+     *
+     * @param room The room for which to load data.
+     */
+    public void warm( @Nonnull JID room )
+    {
+        if ( !ENABLED.getValue() )
+        {
+            return;
+        }
+
+        room = room.asBareJID(); // normalize.
+        if ( isCached.test(room) || !pending.add(room) )
+        {
+            return;
+        }
+
+        final JID toLoad = room;
+        try
+        {
+            final ThreadPoolExecutor executor;
+            synchronized ( this )
+            {
+                executor = this.executor;
+            }
+            if ( executor == null )
+            {
+                pending.remove(toLoad);
+                return;
+            }
+            executor.execute(() -> {
+                try
+                {
+                    loader.accept(toLoad);
+                }
+                catch ( Exception e )
+                {
+                    Log.warn("An exception occurred while loading data for room '{}' into the cache.", toLoad, e);
+                }
+                finally
+                {
+                    pending.remove(toLoad);
+                }
+            });
+        }
+        catch ( RejectedExecutionException e )
+        {
+            Log.debug("Unable to queue room '{}' for its data to be loaded into the cache. It will be loaded on demand.", toLoad);
+            pending.remove(toLoad);
+        }
+    }
+
+    /**
+     * Records if the data of a room was cached at the time that a service discovery request for the room was received.
+     *
+     * @param warm true if the data was cached, otherwise false.
+     */
+    public void recordRequest( final boolean warm )
+    {
+        (warm ? warmRequestCount : coldRequestCount).incrementAndGet();
+    }
+
+    public long getWarmRequestCount()
+    {
+        return warmRequestCount.get();
+    }
+
+    public long getColdRequestCount()
+    {
+        return coldRequestCount.get();
+    }
+
+    /**
+     * Returns the percentage of service discovery requests for which the data of the room was cached.
+     *
+     * @return a percentage (0 if no requests were recorded).
+     */
+    public double getWarmShare()
+    {
+        return share(warmRequestCount.get(), coldRequestCount.get());
+    }
+
+    int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    static double share( final long warm, final long cold )
+    {
+        final long total = warm + cold;
+        return total == 0 ? 0 : warm * 100.0 / total;
+    }
+
+    @Override
+    public void roomCreated( final JID roomJID )
+    {
+        warm(roomJID);
+    }
+
+    @Override
+    public void roomDestroyed( final JID roomJID ) {}
+
+    @Override
+    public void occupantJoined( final JID roomJID, final JID user, final String nickname )
+    {
+        warm(roomJID);
+    }
+
+    @Override
+    public void occupantLeft( final JID roomJID, final JID user ) {}
+
+    @Override
+    public void nicknameChanged( final JID roomJID, final JID user, final String oldNickname, final String newNickname ) {}
+
+    @Override
+    public void messageReceived( final JID roomJID, final JID user, final String nickname, final Message message ) {}
+
+    @Override
+    public void privateMessageRecieved( final JID toJID, final JID fromJID, final Message message ) {}
+
+    @Override
+    public void roomSubjectChanged( final JID roomJID, final JID user, final String newSubject ) {}
+
+    /**
+     * Reports the share of service discovery requests that were served from a warm cache, since the previous sample.
+     */
+    private class WarmShareStatistic implements Statistic
+    {
+        private long lastWarm = warmRequestCount.get();
+
+        private long lastCold = coldRequestCount.get();
+
+        @Override
+        public String getName()
+        {
+            return LocaleUtils.getLocalizedString("mucextinfo.stats.warm-share.name", "mucextinfo");
+        }
+
+        @Override
+        public Type getType()
+        {
+            return Type.count;
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return LocaleUtils.getLocalizedString("mucextinfo.stats.warm-share.description", "mucextinfo");
+        }
+
+        @Override
+        public String getUnits()
+        {
+            return LocaleUtils.getLocalizedString("mucextinfo.stats.warm-share.units", "mucextinfo");
+        }
+
+        @Override
+        public synchronized double sample()
+        {
+            final long warm = warmRequestCount.get();
+            final long cold = coldRequestCount.get();
+            final double result = share(warm - lastWarm, cold - lastCold);
+            lastWarm = warm;
+            lastCold = cold;
+            return result;
+        }
+
+        @Override
+        public boolean isPartialSample()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.cache.Cacheable;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+
+/**
+ * The data forms of a room (or of one of its service discovery nodes) as cached by {@link DAO}, stamped with the
+ * generation of the data of the room at the moment that the data was read from the database.
+ *
+ * An entry is used only while its generation equals the current generation of its room. Modifications that cannot be
+ * applied to the cache while holding the lock of every affected cache key (such as copying all data of a room) advance
+ * the generation of the room. That invalidates all cached entries of the room, including entries for nodes that are
+ * not known to the modification, and entries that are being loaded while the modification takes place.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+final class CachedForms implements Cacheable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long generation;
+
+    @Nonnull
+    private final CacheableOptional<ArrayList<ExtDataForm>> forms;
+
+    /**
+     * The estimated size of this entry, computed on first use (-1 until then).
+     */
+    private transient volatile int cachedSize = -1;
+
+    /**
+     * The value of {@link System#nanoTime()} when this entry was last returned from the cache.
+     */
+    private transient volatile long lastAccessed = System.nanoTime();
+
+    CachedForms( final long generation, @Nonnull final CacheableOptional<ArrayList<ExtDataForm>> forms )
+    {
+        this.generation = generation;
+        this.forms = forms;
+    }
+
+    /**
+     * The generation of the data of the room from which this entry was loaded.
+     *
+     * @return a generation.
+     */
+    long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * The cached data forms (absent for a room without data forms).
+     *
+     * @return data forms.
+     */
+    @Nonnull
+    CacheableOptional<ArrayList<ExtDataForm>> getForms()
+    {
+        return forms;
+    }
+
+    /**
+     * Records that this entry was returned from the cache. Entries that have not been accessed for the longest time
+     * are the first to be removed when memory runs low (see {@link MemoryPressureMonitor}).
+     */
+    void markAccessed()
+    {
+        lastAccessed = System.nanoTime();
+    }
+
+    /**
+     * The value of {@link System#nanoTime()} when this entry was last returned from the cache (or was created).
+     *
+     * @return a time in nanoseconds, only to be compared with that of other entries.
+     */
+    long getLastAccessed()
+    {
+        return lastAccessed;
+    }
+
+    /**
+     * Returns an estimate of the amount of heap memory that is used by this entry (see {@link HeapSize}). Caches use
+     * this as the weight of the entry, so that a room with many fields and values counts for more than a room without
+     * data forms. As entries are immutable, the estimate is computed only once.
+     *
+     * @return an amount of bytes.
+     */
+    @Override
+    public int getCachedSize()
+    {
+        int result = cachedSize;
+        if ( result < 0 )
+        {
+            result = HeapSize.ofObject(6) + HeapSize.ofObject(1);
+            final ArrayList<ExtDataForm> list = forms.get();
+            if ( list != null )
+            {
+                result += HeapSize.ofObject(3) + HeapSize.ofArray(list.size());
+                for ( final ExtDataForm form : list )
+                {
+                    result += form.getCachedSize();
+                }
+            }
+            cachedSize = result;
+        }
+        return result;
+    }
+}
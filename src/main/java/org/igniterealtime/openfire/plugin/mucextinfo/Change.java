@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * A record of one modification of 'extended' service discovery information, as recorded in the change feed.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ * @see ChangeFeed
+ */
+public class Change
+{
+    /**
+     * The kind of modification, which corresponds to the method of {@link DAO} that was used.
+     */
+    public enum Type
+    {
+        addForm,
+        removeForm,
+        addField,
+        removeField,
+        addRule,
+        removeRule,
+        setLabel,
+        removeLabel,
+
+        /**
+         * The label and values of a field were removed, retaining its visibility rules and localized labels. This is
+         * followed by changes of type {@link #addField} that define the new label and values of the field (see
+         * {@link DAO#replaceForms(JID, String, java.util.List)}).
+         */
+        clearField,
+
+        /**
+         * All data of the room was replaced by a copy of the data of another room, which is recorded as the source of
+         * the change.
+         */
+        copyRoom,
+
+        /**
+         * All data of the room was replaced by the data of another room, which no longer has data. That other room is
+         * recorded as the source of the change.
+         */
+        moveRoom
+    }
+
+    private final long sequence;
+
+    @Nonnull
+    private final Instant timestamp;
+
+    @Nonnull
+    private final Type type;
+
+    @Nonnull
+    private final JID room;
+
+    @Nullable
+    private final String node;
+
+    @Nullable
+    private final String formTypeName;
+
+    @Nullable
+    private final String varName;
+
+    @Nullable
+    private final String label;
+
+    @Nullable
+    private final String value;
+
+    @Nullable
+    private final VisibilityRule rule;
+
+    @Nullable
+    private final String language;
+
+    @Nullable
+    private final JID source;
+
+    public Change( final long sequence, @Nonnull final Instant timestamp, @Nonnull final Type type, @Nonnull final JID room, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, @Nullable final VisibilityRule rule )
+    {
+        this(sequence, timestamp, type, room, null, formTypeName, varName, label, value, rule, null);
+    }
+
+    public Change( final long sequence, @Nonnull final Instant timestamp, @Nonnull final Type type, @Nonnull final JID room, @Nullable final String node, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, @Nullable final VisibilityRule rule, @Nullable final String language )
+    {
+        this(sequence, timestamp, type, room, node, formTypeName, varName, label, value, rule, language, null);
+    }
+
+    public Change( final long sequence, @Nonnull final Instant timestamp, @Nonnull final Type type, @Nonnull final JID room, @Nullable final String node, @Nullable final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, @Nullable final VisibilityRule rule, @Nullable final String language, @Nullable final JID source )
+    {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.room = room;
+        this.node = node;
+        this.formTypeName = formTypeName;
+        this.varName = varName;
+        this.label = label;
+        this.value = value;
+        this.rule = rule;
+        this.language = language;
+        this.source = source;
+    }
+
+    /**
+     * The position of this change in the feed. Changes that are recorded later have a higher sequence number, although
+     * sequence numbers are not guaranteed to be consecutive.
+     *
+     * @return a sequence number.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    @Nonnull
+    public Instant getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Nonnull
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * The room that was modified. When this address has no node part, the change applies to the service-level data
+     * forms of a MUC service.
+     *
+     * @return the address of a room or service.
+     */
+    @Nonnull
+    public JID getRoom()
+    {
+        return room;
+    }
+
+    /**
+     * The service discovery node of the data form that was modified, or null when the change applies to the data forms
+     * that are returned for requests without a node.
+     *
+     * @return a node, or null.
+     */
+    @Nullable
+    public String getNode()
+    {
+        return node;
+    }
+
+    /**
+     * The data form that was modified, or null for changes of type {@link Type#copyRoom} and {@link Type#moveRoom},
+     * which apply to all data of a room.
+     *
+     * @return a form type name, or null.
+     */
+    @Nullable
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    /**
+     * The field that was modified, or null for changes that apply to an entire form.
+     *
+     * @return a variable name, or null.
+     */
+    @Nullable
+    public String getVarName()
+    {
+        return varName;
+    }
+
+    @Nullable
+    public String getLabel()
+    {
+        return label;
+    }
+
+    @Nullable
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * The visibility rule that was added or removed, or null for changes that do not apply to rules.
+     *
+     * @return a rule, or null.
+     */
+    @Nullable
+    public VisibilityRule getRule()
+    {
+        return rule;
+    }
+
+    /**
+     * The language of the label that was set or removed, or null for changes that do not apply to localized labels.
+     *
+     * @return a language tag, or null.
+     */
+    @Nullable
+    public String getLanguage()
+    {
+        return language;
+    }
+
+    /**
+     * The room of which the data was copied or moved, for changes of type {@link Type#copyRoom} and
+     * {@link Type#moveRoom}, or null for other changes.
+     *
+     * @return the address of a room, or null.
+     */
+    @Nullable
+    public JID getSource()
+    {
+        return source;
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+        if ( this == o ) { return true; }
+        if ( o == null || getClass() != o.getClass() ) { return false; }
+        final Change change = (Change) o;
+        return sequence == change.sequence;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(sequence);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Change{" +
+            "sequence=" + sequence +
+            ", timestamp=" + timestamp +
+            ", type=" + type +
+            ", room=" + room +
+            ", node='" + node + '\'' +
+            ", formTypeName='" + formTypeName + '\'' +
+            ", varName='" + varName + '\'' +
+            ", rule=" + rule +
+            ", language='" + language + '\'' +
+            ", source=" + source +
+            '}';
+    }
+}
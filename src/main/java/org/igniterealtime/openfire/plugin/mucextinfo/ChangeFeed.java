@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+
+/**
+ * Provides access to the change feed: an append-only record of all modifications of 'extended' service discovery
+ * information, that allows external systems to incrementally follow these modifications.
+ *
+ * Every modification is recorded in the same database transaction as the modification itself, and is identified by a
+ * sequence number that increases monotonically. Sequence numbers are reserved in a range per transaction, from a
+ * counter in the database (see {@link DAO#reserveChangeSequences(java.sql.Connection, int)}). As the counter remains
+ * locked until the transaction ends, transactions become visible in the order of their sequence numbers: a consumer
+ * never sees a change before all changes with a lower sequence number are visible. Consumers keep track of the sequence
+ * number of the last change that they processed (their 'cursor'), and repeatedly ask for changes after that cursor.
+ *
+ * Changes are removed after a configurable retention period. Optionally, changes that are superseded by a later
+ * removal of the same data form are removed earlier. A consumer that applies the remaining changes in order ends up in
+ * the same state as a consumer that applied all changes. A consumer which cursor points at a change that was removed
+ * by the retention policy can no longer catch up incrementally, and is told to re-synchronize.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ * @see Change
+ */
+public class ChangeFeed
+{
+    private static final Logger Log = LoggerFactory.getLogger(ChangeFeed.class);
+
+    /**
+     * The period after which changes are removed from the change feed. A zero duration disables removal.
+     */
+    public static final SystemProperty<Duration> RETENTION = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.changes.retention")
+        .setDefaultValue(Duration.ofDays(7))
+        .setChronoUnit(ChronoUnit.HOURS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * Controls whether changes that are superseded by a later removal of the same data form are removed from the change
+     * feed before their retention period has expired.
+     */
+    public static final SystemProperty<Boolean> COMPACTION_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.changes.compaction.enabled")
+        .setDefaultValue(true)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The interval at which retention and compaction are applied to the change feed.
+     */
+    public static final SystemProperty<Duration> MAINTENANCE_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.changes.maintenance.interval")
+        .setDefaultValue(Duration.ofHours(1))
+        .setChronoUnit(ChronoUnit.MINUTES)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(interval -> getInstance().restart())
+        .build();
+
+    /**
+     * The maximum amount of changes that is returned in one batch.
+     */
+    public static final SystemProperty<Integer> BATCH_MAX = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.changes.batch.max")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The secret that consumers must provide to use the HTTP endpoint of the change feed. When empty, the endpoint is
+     * disabled.
+     */
+    public static final SystemProperty<String> SECRET = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.changes.secret")
+        .setDefaultValue("")
+        .setDynamic(true)
+        .setEncrypted(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The sequence number of the most recent change that was removed by the retention policy. Consumers with a cursor
+     * below this value have missed changes.
+     */
+    static final SystemProperty<Long> PURGED = SystemProperty.Builder.ofType(Long.class)
+        .setKey("mucextinfo.changes.purged")
+        .setDefaultValue(0L)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    private static final ChangeFeed INSTANCE = new ChangeFeed();
+
+    public static ChangeFeed getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private TimerTask maintenanceTask;
+
+    private ChangeFeed() {}
+
+    /**
+     * Schedules the periodic application of retention and compaction.
+     */
+    public synchronized void start()
+    {
+        if ( maintenanceTask != null )
+        {
+            return;
+        }
+
+        maintenanceTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                maintain();
+            }
+        };
+        final long interval = Math.max(1, MAINTENANCE_INTERVAL.getValue().toMillis());
+        TaskEngine.getInstance().scheduleAtFixedRate(maintenanceTask, interval, interval);
+    }
+
+    /**
+     * Cancels the periodic application of retention and compaction.
+     */
+    public synchronized void stop()
+    {
+        if ( maintenanceTask != null )
+        {
+            TaskEngine.getInstance().cancelScheduledTask(maintenanceTask);
+            maintenanceTask = null;
+        }
+    }
+
+    private synchronized void restart()
+    {
+        if ( maintenanceTask != null )
+        {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Removes changes that are older than the retention period and, when enabled, changes that are superseded by a
+     * later removal of the same data form.
+     */
+    public void maintain()
+    {
+        try
+        {
+            final Duration retention = RETENTION.getValue();
+            if ( !retention.isZero() && !retention.isNegative() )
+            {
+                final long purged = DAO.removeChangesBefore(Instant.now().minus(retention));
+                if ( purged > PURGED.getValue() )
+                {
+                    Log.debug("Removed changes up to and including sequence number {} from the change feed.", purged);
+                    PURGED.setValue(purged);
+                }
+            }
+
+            if ( COMPACTION_ENABLED.getValue() )
+            {
+                final int compacted = DAO.compactChanges();
+                Log.trace("Compacted changes of {} removed data forms in the change feed.", compacted);
+            }
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred while trying to apply retention and compaction to the change feed.", e);
+        }
+    }
+
+    /**
+     * Returns changes that were recorded after a cursor.
+     *
+     * @param cursor The sequence number of the last change that was processed by the consumer (zero for a new consumer).
+     * @param max The maximum amount of changes to return (capped by {@link #BATCH_MAX}).
+     * @return A batch of changes.
+     * @throws SQLException on any problem reading from the database.
+     */
+    @Nonnull
+    public Batch getChanges( final long cursor, final int max ) throws SQLException
+    {
+        if ( cursor < PURGED.getValue() )
+        {
+            Log.debug("A consumer asked for changes after sequence number {}, but changes up to {} have been removed.", cursor, PURGED.getValue());
+            return new Batch(Collections.emptyList(), Math.max(PURGED.getValue(), DAO.retrieveLastChangeSequence()), false, true);
+        }
+
+        final int limit = Math.max(1, Math.min(max, BATCH_MAX.getValue()));
+        final List<Change> changes = DAO.retrieveChanges(cursor, limit + 1);
+        return toBatch(changes, cursor, limit);
+    }
+
+    /**
+     * Creates a batch from changes that are retrieved from the database.
+     *
+     * @param changes The changes that were retrieved, in order of their sequence number.
+     * @param cursor The cursor after which the changes were retrieved.
+     * @param max The maximum amount of changes to include.
+     * @return A batch of changes.
+     */
+    @Nonnull
+    static Batch toBatch( @Nonnull final List<Change> changes, final long cursor, final int max )
+    {
+        final List<Change> result = new ArrayList<>();
+        long last = cursor;
+        boolean more = false;
+        for ( final Change change : changes )
+        {
+            if ( result.size() >= max )
+            {
+                more = true;
+                break;
+            }
+            result.add(change);
+            last = change.getSequence();
+        }
+        return new Batch(Collections.unmodifiableList(result), last, more, false);
+    }
+
+    /**
+     * A batch of changes, as returned to a consumer of the change feed.
+     */
+    public static class Batch
+    {
+        @Nonnull
+        private final List<Change> changes;
+
+        private final long cursor;
+
+        private final boolean more;
+
+        private final boolean resyncRequired;
+
+        Batch( @Nonnull final List<Change> changes, final long cursor, final boolean more, final boolean resyncRequired )
+        {
+            this.changes = changes;
+            this.cursor = cursor;
+            this.more = more;
+            this.resyncRequired = resyncRequired;
+        }
+
+        /**
+         * The changes in this batch, in order of their sequence number.
+         */
+        @Nonnull
+        public List<Change> getChanges()
+        {
+            return changes;
+        }
+
+        /**
+         * The cursor that the consumer should use to ask for the next batch.
+         */
+        public long getCursor()
+        {
+            return cursor;
+        }
+
+        /**
+         * Indicates that more changes are available after this batch.
+         */
+        public boolean hasMore()
+        {
+            return more;
+        }
+
+        /**
+         * Indicates that the consumer has missed changes. The consumer should discard its state, retrieve the complete
+         * state from another source, and continue from the cursor of this batch.
+         */
+        public boolean isResyncRequired()
+        {
+            return resyncRequired;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.admin.AuthCheckFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+
+/**
+ * Exposes the {@link ChangeFeed} over HTTP, as a JSON document that contains the changes after a cursor.
+ *
+ * The endpoint is not protected by the authentication of the admin console, as it is intended to be used by other
+ * systems. Instead, these systems must provide the value of {@link ChangeFeed#SECRET} in the 'Authorization' header of
+ * their requests. The endpoint is disabled when no secret is configured.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ChangeFeedServlet extends HttpServlet
+{
+    private static final Logger Log = LoggerFactory.getLogger(ChangeFeedServlet.class);
+
+    /**
+     * The path of this servlet, relative to the context of the admin console, as excluded from its authentication.
+     * This is the exact path to which the servlet is mapped: a wildcard exclusion can be abused (on some versions of
+     * Openfire) to reach other pages of the admin console without authentication, by means of path traversal.
+     */
+    static final String EXCLUDE = "mucextinfo/changes";
+
+    @Override
+    public void init( final ServletConfig config ) throws ServletException
+    {
+        super.init(config);
+        AuthCheckFilter.addExclude(EXCLUDE);
+    }
+
+    @Override
+    public void destroy()
+    {
+        AuthCheckFilter.removeExclude(EXCLUDE);
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet( final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+    {
+        final String secret = ChangeFeed.SECRET.getValue();
+        if ( secret == null || secret.isEmpty() )
+        {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "The change feed is disabled.");
+            return;
+        }
+
+        if ( !isAuthorized(secret, request.getHeader("Authorization")) )
+        {
+            Log.debug("Rejecting unauthorized request for the change feed from {}.", request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        final long cursor;
+        final int max;
+        try
+        {
+            cursor = parseLong(request.getParameter("cursor"), 0);
+            max = parseInt(request.getParameter("max"), ChangeFeed.BATCH_MAX.getValue());
+        }
+        catch ( NumberFormatException e )
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'cursor' and 'max' parameters must be numeric, and within range.");
+            return;
+        }
+
+        final ChangeFeed.Batch batch;
+        try
+        {
+            batch = ChangeFeed.getInstance().getChanges(cursor, max);
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred while trying to retrieve changes after sequence number {}.", cursor, e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(toJson(batch));
+    }
+
+    static boolean isAuthorized( @Nonnull final String secret, @Nullable final String provided )
+    {
+        if ( provided == null )
+        {
+            return false;
+        }
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), provided.trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long parseLong( @Nullable final String value, final long defaultValue )
+    {
+        if ( value == null || value.trim().isEmpty() )
+        {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    static int parseInt( @Nullable final String value, final int defaultValue )
+    {
+        if ( value == null || value.trim().isEmpty() )
+        {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Renders a batch of changes as a JSON document.
+     *
+     * @param batch The batch to render.
+     * @return a JSON document.
+     */
+    @Nonnull
+    static String toJson( @Nonnull final ChangeFeed.Batch batch )
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"cursor\":").append(batch.getCursor());
+        sb.append(",\"more\":").append(batch.hasMore());
+        sb.append(",\"resync\":").append(batch.isResyncRequired());
+        sb.append(",\"changes\":[");
+        boolean first = true;
+        for ( final Change change : batch.getChanges() )
+        {
+            if ( !first )
+            {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"seq\":").append(change.getSequence());
+            sb.append(",\"timestamp\":").append(change.getTimestamp().toEpochMilli());
+            appendString(sb, "type", change.getType().name());
+            appendString(sb, "room", change.getRoom().toBareJID());
+            appendString(sb, "node", change.getNode());
+            appendString(sb, "form", change.getFormTypeName());
+            appendString(sb, "var", change.getVarName());
+            appendString(sb, "label", change.getLabel());
+            appendString(sb, "value", change.getValue());
+            appendString(sb, "lang", change.getLanguage());
+            appendString(sb, "source", change.getSource() == null ? null : change.getSource().toBareJID());
+            if ( change.getRule() != null )
+            {
+                appendString(sb, "ruleType", change.getRule().getType().name());
+                appendString(sb, "ruleValue", change.getRule().getValue());
+            }
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static void appendString( @Nonnull final StringBuilder sb, @Nonnull final String name, @Nullable final String value )
+    {
+        if ( value == null )
+        {
+            return;
+        }
+        sb.append(",\"").append(name).append("\":\"");
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            final char c = value.charAt(i);
+            switch ( c )
+            {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if ( c < 0x20 )
+                    {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of all registered {@link ComputedFieldProvider}s, periodically samples their values for all rooms, and
+ * makes the sampled values available as data forms.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ComputedFieldManager
+{
+    private static final Logger Log = LoggerFactory.getLogger(ComputedFieldManager.class);
+
+    /**
+     * Controls whether the computed fields that are provided by this plugin are added to service discovery responses.
+     */
+    public static final SystemProperty<Boolean> BUILTIN_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.computed.builtin.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().configureBuiltInProviders())
+        .build();
+
+    /**
+     * The identifier of the data form to which the computed fields that are provided by this plugin are added.
+     */
+    public static final SystemProperty<String> BUILTIN_FORM_TYPE = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.computed.builtin.formtype")
+        .setDefaultValue("urn:xmpp:mucextinfo:roommetrics:0")
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(formType -> getInstance().configureBuiltInProviders())
+        .build();
+
+    /**
+     * The interval at which the values of the computed fields that are provided by this plugin are re-computed.
+     */
+    public static final SystemProperty<Duration> BUILTIN_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.computed.builtin.interval")
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(interval -> getInstance().configureBuiltInProviders())
+        .build();
+
+    private static final ComputedFieldManager INSTANCE = new ComputedFieldManager();
+
+    public static ComputedFieldManager getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final ConcurrentMap<ComputedFieldProvider, Registration> registrations = new ConcurrentHashMap<>();
+
+    private final List<ComputedFieldProvider> builtInProviders = new ArrayList<>();
+
+    private ComputedFieldManager() {}
+
+    /**
+     * Registers a provider, and schedules the periodic computation of its values.
+     *
+     * @param provider The provider to register.
+     */
+    public void register( @Nonnull final ComputedFieldProvider provider )
+    {
+        final Registration registration = new Registration(provider);
+        if ( registrations.putIfAbsent(provider, registration) == null )
+        {
+            Log.debug("Registering computed field provider for form '{}', refreshing every {}.", provider.getFormTypeName(), provider.getRefreshInterval());
+            final long interval = Math.max(1, provider.getRefreshInterval().toMillis());
+            TaskEngine.getInstance().scheduleAtFixedRate(registration, 0, interval);
+        }
+    }
+
+    /**
+     * Unregisters a provider, which stops the periodic computation of its values.
+     *
+     * @param provider The provider to unregister.
+     */
+    public void unregister( @Nonnull final ComputedFieldProvider provider )
+    {
+        final Registration registration = registrations.remove(provider);
+        if ( registration != null )
+        {
+            Log.debug("Unregistering computed field provider for form '{}'.", provider.getFormTypeName());
+            TaskEngine.getInstance().cancelScheduledTask(registration);
+        }
+    }
+
+    /**
+     * Unregisters all providers.
+     */
+    public synchronized void unregisterAll()
+    {
+        for ( final ComputedFieldProvider provider : new ArrayList<>(registrations.keySet()) )
+        {
+            unregister(provider);
+        }
+        builtInProviders.clear();
+    }
+
+    /**
+     * Registers or unregisters the providers that are included in this plugin, based on the current configuration.
+     */
+    public synchronized void configureBuiltInProviders()
+    {
+        for ( final ComputedFieldProvider provider : builtInProviders )
+        {
+            unregister(provider);
+        }
+        builtInProviders.clear();
+
+        if ( BUILTIN_ENABLED.getValue() )
+        {
+            final String formTypeName = BUILTIN_FORM_TYPE.getValue();
+            final Duration interval = BUILTIN_INTERVAL.getValue();
+            builtInProviders.add(new OccupantsFieldProvider(formTypeName, interval));
+            builtInProviders.add(new AffiliatesFieldProvider(formTypeName, interval));
+            builtInProviders.add(new LastActivityFieldProvider(formTypeName, interval));
+            for ( final ComputedFieldProvider provider : builtInProviders )
+            {
+                register(provider);
+            }
+        }
+    }
+
+    /**
+     * Returns the most recently sampled values of all providers for a room.
+     *
+     * @param room The room for which to return computed fields.
+     * @return Data forms (possibly empty).
+     */
+    @Nonnull
+    public List<ExtDataForm> getForms( @Nonnull final JID room )
+    {
+        if ( registrations.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        final List<ExtDataForm> result = new ArrayList<>();
+        for ( final Registration registration : registrations.values() )
+        {
+            final ExtDataForm form = registration.samples.get(room);
+            if ( form != null )
+            {
+                result.add(form);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the fields of one provider for a collection of rooms.
+     *
+     * @param provider The provider for which to compute fields.
+     * @param rooms The rooms for which to compute fields.
+     * @return A data form for every room for which the provider computed at least one field.
+     */
+    @Nonnull
+    static Map<JID, ExtDataForm> sample( @Nonnull final ComputedFieldProvider provider, @Nonnull final Collection<MUCRoom> rooms )
+    {
+        final Map<JID, ExtDataForm> result = new HashMap<>();
+        for ( final MUCRoom room : rooms )
+        {
+            try
+            {
+                final Collection<Field> fields = provider.compute(room);
+                if ( !fields.isEmpty() )
+                {
+                    result.put(room.getJID(), new ExtDataForm(provider.getFormTypeName(), fields));
+                }
+            }
+            catch ( Exception e )
+            {
+                Log.warn("An exception occurred while computing fields for form '{}' of room '{}'.", provider.getFormTypeName(), room.getJID(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all rooms that are currently loaded in any of the MUC services.
+     *
+     * @return rooms (possibly empty).
+     */
+    @Nonnull
+    private static Collection<MUCRoom> getAllRooms()
+    {
+        final XMPPServer server = XMPPServer.getInstance();
+        if ( server == null || server.getMultiUserChatManager() == null )
+        {
+            return Collections.emptyList();
+        }
+
+        final List<MUCRoom> result = new ArrayList<>();
+        for ( final MultiUserChatService service : server.getMultiUserChatManager().getMultiUserChatServices() )
+        {
+            result.addAll(service.getChatRooms());
+        }
+        return result;
+    }
+
+    /**
+     * The task that periodically samples the values of a provider, and holds the most recent result.
+     */
+    private static class Registration extends TimerTask
+    {
+        @Nonnull
+        private final ComputedFieldProvider provider;
+
+        @Nonnull
+        private volatile Map<JID, ExtDataForm> samples = Collections.emptyMap();
+
+        Registration( @Nonnull final ComputedFieldProvider provider )
+        {
+            this.provider = provider;
+        }
+
+        @Override
+        public void run()
+        {
+            final long start = System.nanoTime();
+            samples = sample(provider, getAllRooms());
+            Log.trace("Computed fields for form '{}' of {} rooms in {}ms.", provider.getFormTypeName(), samples.size(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Collection;
+
+/**
+ * Provides fields of which the values are computed from the state of a room, rather than being stored in the database.
+ *
+ * Values are not computed when a service discovery request is processed. Instead, the values of all rooms are computed
+ * periodically (at the interval that is defined by the provider), after which the result is used to respond to all
+ * requests until the next computation.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ * @see ComputedFieldManager
+ */
+public interface ComputedFieldProvider
+{
+    /**
+     * The identifier of the data form to which the computed fields are added.
+     *
+     * @return a data form identifier (the value of the FORM_TYPE field).
+     */
+    @Nonnull
+    String getFormTypeName();
+
+    /**
+     * The interval at which the values of this provider are re-computed. This value is read when the provider is
+     * registered.
+     *
+     * @return a positive duration.
+     */
+    @Nonnull
+    Duration getRefreshInterval();
+
+    /**
+     * Computes the fields for a room. This method is invoked periodically, from a background thread.
+     *
+     * @param room The room for which to compute fields.
+     * @return The fields for the room (possibly empty).
+     */
+    @Nonnull
+    Collection<Field> compute( @Nonnull MUCRoom room );
+}
@@ -15,8 +15,10 @@
  */
 package org.igniterealtime.openfire.plugin.mucextinfo;
 
+import org.jivesoftware.database.ConnectionProvider;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -26,11 +28,15 @@ import org.xmpp.packet.JID;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.sql.*;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Data Access Object, responsible for storing and retrieving data in persistent storage.
@@ -39,57 +45,276 @@ import java.util.stream.Collectors;
  */
 public class DAO
 {
-    private final static Cache<JID, CacheableOptional<ArrayList<ExtDataForm>>> EXTENSIONS_BY_ROOM = CacheFactory.createLocalCache("MUC Extended Service Discovery");
+    private final static Cache<JID, Visibility> VISIBILITY_BY_ROOM = CacheFactory.createLocalCache("MUC Extended Service Discovery Visibility");
 
-    private static final String SQL_REMOVE_FORM = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ?";
-    private static final String SQL_ADD_FIELD = "INSERT INTO mucextinfo (room, formtypename, varname, label, varvalue) VALUES (?, ?, ?, ?, ?)";
-    private static final String SQL_REMOVE_FIELD = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ? AND varname = ?";
-    private static final String SQL_GET_ROOM_FORMS = "SELECT formtypename, varname, label, varvalue FROM mucextinfo WHERE room = ? ORDER BY formtypename";
+    private static final String SQL_REMOVE_FORM = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ? AND node IS NULL";
+    private static final String SQL_REMOVE_NODE_FORM = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ? AND node = ?";
+    private static final String SQL_ADD_FIELD = "INSERT INTO mucextinfo (room, formtypename, varname, label, varvalue, node, pos) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_REMOVE_FIELD = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ? AND varname = ? AND node IS NULL";
+    private static final String SQL_REMOVE_NODE_FIELD = "DELETE FROM mucextinfo WHERE room = ? AND formtypename = ? AND varname = ? AND node = ?";
+    private static final String SQL_GET_ROOM_FORMS = "SELECT formtypename, varname, label, varvalue FROM mucextinfo WHERE room = ? AND node IS NULL ORDER BY formtypename, pos, varname, varvalue";
+    private static final String SQL_GET_NODE_FORMS = "SELECT formtypename, varname, label, varvalue FROM mucextinfo WHERE room = ? AND node = ? ORDER BY formtypename, pos, varname, varvalue";
+    private static final String SQL_GET_LAST_POSITION = "SELECT MAX(pos) FROM mucextinfo WHERE room = ?";
+    private static final String SQL_GET_ROOM_NODES = "SELECT DISTINCT node FROM mucextinfo WHERE room = ? AND node IS NOT NULL";
+    private static final String SQL_ADD_RULE = "INSERT INTO mucextinfo_rule (room, formtypename, varname, ruletype, rulevalue) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_REMOVE_FORM_RULE = "DELETE FROM mucextinfo_rule WHERE room = ? AND formtypename = ? AND varname IS NULL AND ruletype = ? AND rulevalue = ?";
+    private static final String SQL_REMOVE_FIELD_RULE = "DELETE FROM mucextinfo_rule WHERE room = ? AND formtypename = ? AND varname = ? AND ruletype = ? AND rulevalue = ?";
+    private static final String SQL_REMOVE_FORM_RULES = "DELETE FROM mucextinfo_rule WHERE room = ? AND formtypename = ?";
+    private static final String SQL_REMOVE_FIELD_RULES = "DELETE FROM mucextinfo_rule WHERE room = ? AND formtypename = ? AND varname = ?";
+    private static final String SQL_GET_ROOM_RULES = "SELECT formtypename, varname, ruletype, rulevalue FROM mucextinfo_rule WHERE room = ?";
+    private static final String SQL_COUNT_RULES = "SELECT COUNT(*) FROM mucextinfo_rule";
+    private static final String SQL_GET_ROOMS_FORMS = "SELECT room, formtypename, varname, label, varvalue FROM mucextinfo WHERE room IN (%s) AND node IS NULL ORDER BY room, formtypename, pos, varname, varvalue";
+    private static final String SQL_ADD_LABEL = "INSERT INTO mucextinfo_label (room, formtypename, varname, lang, label) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_REMOVE_LABEL = "DELETE FROM mucextinfo_label WHERE room = ? AND formtypename = ? AND varname = ? AND lang = ?";
+    private static final String SQL_REMOVE_FORM_LABELS = "DELETE FROM mucextinfo_label WHERE room = ? AND formtypename = ?";
+    private static final String SQL_REMOVE_FIELD_LABELS = "DELETE FROM mucextinfo_label WHERE room = ? AND formtypename = ? AND varname = ?";
+    private static final String SQL_GET_ROOM_LABELS = "SELECT formtypename, varname, lang, label FROM mucextinfo_label WHERE room = ?";
+    private static final String SQL_GET_ROOMS_LABELS = "SELECT room, formtypename, varname, lang, label FROM mucextinfo_label WHERE room IN (%s)";
+    private static final String SQL_COUNT_LABELS = "SELECT COUNT(*) FROM mucextinfo_label";
+    private static final String SQL_COUNT_ROWS_PER_ROOM = "SELECT room, COUNT(*) FROM mucextinfo GROUP BY room";
+    private static final String SQL_GET_ALL_FORMS = "SELECT room, formtypename, varname, label, varvalue FROM mucextinfo WHERE node IS NULL ORDER BY room, formtypename";
+    private static final String SQL_REMOVE_ROOM = "DELETE FROM mucextinfo WHERE room = ?";
+    private static final String SQL_REMOVE_ROOM_RULES = "DELETE FROM mucextinfo_rule WHERE room = ?";
+    private static final String SQL_REMOVE_ROOM_LABELS = "DELETE FROM mucextinfo_label WHERE room = ?";
+    private static final String SQL_REMOVE_ROOMS = "DELETE FROM mucextinfo WHERE room IN (%s)";
+    private static final String SQL_REMOVE_ROOMS_RULES = "DELETE FROM mucextinfo_rule WHERE room IN (%s)";
+    private static final String SQL_REMOVE_ROOMS_LABELS = "DELETE FROM mucextinfo_label WHERE room IN (%s)";
+    private static final String SQL_COPY_ROOM = "INSERT INTO mucextinfo (room, formtypename, varname, label, varvalue, node, pos) SELECT t.room, m.formtypename, m.varname, m.label, m.varvalue, m.node, m.pos FROM mucextinfo m CROSS JOIN (%s) t WHERE m.room = ?";
+    private static final String SQL_COPY_ROOM_RULES = "INSERT INTO mucextinfo_rule (room, formtypename, varname, ruletype, rulevalue) SELECT t.room, m.formtypename, m.varname, m.ruletype, m.rulevalue FROM mucextinfo_rule m CROSS JOIN (%s) t WHERE m.room = ?";
+    private static final String SQL_COPY_ROOM_LABELS = "INSERT INTO mucextinfo_label (room, formtypename, varname, lang, label) SELECT t.room, m.formtypename, m.varname, m.lang, m.label FROM mucextinfo_label m CROSS JOIN (%s) t WHERE m.room = ?";
+    private static final String SQL_MOVE_ROOM = "UPDATE mucextinfo SET room = ? WHERE room = ?";
+    private static final String SQL_MOVE_ROOM_RULES = "UPDATE mucextinfo_rule SET room = ? WHERE room = ?";
+    private static final String SQL_MOVE_ROOM_LABELS = "UPDATE mucextinfo_label SET room = ? WHERE room = ?";
+    private static final String SQL_ADD_CHANGE = "INSERT INTO mucextinfo_change (seq, changed, changetype, room, formtypename, varname, label, varvalue, ruletype, rulevalue, lang, node, sourceroom) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_RESERVE_CHANGES = "UPDATE mucextinfo_changeseq SET seq = seq + ?";
+    private static final String SQL_GET_RESERVED_CHANGES = "SELECT seq FROM mucextinfo_changeseq";
+    private static final String SQL_GET_CHANGES = "SELECT seq, changed, changetype, room, formtypename, varname, label, varvalue, ruletype, rulevalue, lang, node, sourceroom FROM mucextinfo_change WHERE seq > ? ORDER BY seq";
+    private static final String SQL_GET_LAST_CHANGE = "SELECT MAX(seq) FROM mucextinfo_change";
+    private static final String SQL_GET_LAST_EXPIRED_CHANGE = "SELECT MAX(seq) FROM mucextinfo_change WHERE changed < ?";
+    private static final String SQL_REMOVE_CHANGES_UNTIL = "DELETE FROM mucextinfo_change WHERE seq <= ?";
+    private static final String SQL_GET_FORM_REMOVAL_CHANGES = "SELECT room, formtypename, node, MAX(seq) FROM mucextinfo_change WHERE changetype = 'removeForm' GROUP BY room, formtypename, node";
+    private static final String SQL_REMOVE_SUPERSEDED_CHANGES = "DELETE FROM mucextinfo_change WHERE room = ? AND formtypename = ? AND seq < ? AND node IS NULL";
+    private static final String SQL_REMOVE_SUPERSEDED_NODE_CHANGES = "DELETE FROM mucextinfo_change WHERE room = ? AND formtypename = ? AND seq < ? AND node = ?";
+    private static final String SQL_GET_LAST_EXTERNAL_CHANGE = "SELECT MAX(seq) FROM mucextinfo_dirty";
+    private static final String SQL_GET_EXTERNAL_CHANGES = "SELECT seq, tablename, room FROM mucextinfo_dirty WHERE seq > ? AND seq < ? ORDER BY seq";
+    private static final String SQL_REMOVE_EXTERNAL_CHANGES_BEFORE = "DELETE FROM mucextinfo_dirty WHERE changed < ?";
+
+    /**
+     * The maximum amount of rooms for which data is retrieved in one database query. Dialects that impose a lower limit
+     * on the amount of elements in an IN-clause (or on the amount of parameters in a statement) will cap this value.
+     */
+    public static final SystemProperty<Integer> BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.batch.size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
 
     private static final Logger Log = LoggerFactory.getLogger(DAO.class);
 
+    /**
+     * Indicates if any visibility rules exist in the database (null when this has not been determined yet). When no
+     * rules exist, the database is not queried for the rules of individual rooms.
+     */
+    private static volatile Boolean rulesExist = null;
+
+    /**
+     * Indicates if any localized labels exist in the database (null when this has not been determined yet). When no
+     * labels exist, the database is not queried for the labels of individual rooms.
+     */
+    private static volatile Boolean labelsExist = null;
+
+    /**
+     * Guards {@link #flagsGeneration}, and the modification of {@link #rulesExist} and {@link #labelsExist}.
+     */
+    private static final Object flagsMutex = new Object();
+
+    /**
+     * Incremented whenever {@link #rulesExist} or {@link #labelsExist} is set by a modification, or is reset. The
+     * outcome of counting rows is recorded only when this did not change while the rows were counted, as the count might
+     * predate a concurrent modification. Guarded by {@link #flagsMutex}.
+     */
+    private static long flagsGeneration = 0;
+
+    /**
+     * The maximum amount of rooms for which a generation is tracked individually (see {@link CachedForms}). When more
+     * rooms are modified, all of them fall back to a new epoch, which invalidates all cached data once.
+     */
+    public static final SystemProperty<Integer> GENERATIONS_MAX = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.cache.generations.max")
+        .setDefaultValue(50000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The source of all generations. Every generation that is assigned is a value that was not handed out before, which
+     * guarantees that a room never returns to a generation that it had earlier.
+     */
+    private static final AtomicLong generationClock = new AtomicLong();
+
+    /**
+     * The generation of rooms that do not have an entry in {@link #generations}.
+     */
+    private static volatile long generationEpoch = 0;
+
+    /**
+     * The generations of the data of rooms that were modified since the epoch was last advanced, by bare address.
+     */
+    private static final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the advancement of {@link #generationEpoch}.
+     */
+    private static final Object generationMutex = new Object();
+
+    /**
+     * A counter per MUC service domain that is incremented whenever the data forms that are defined for the service
+     * (rather than for one of its rooms) are modified.
+     */
+    private static final ConcurrentMap<String, AtomicLong> serviceDefaultsVersions = new ConcurrentHashMap<>();
+
+    /**
+     * The amount of database queries that were used to retrieve data forms.
+     */
+    private static final AtomicLong retrievalQueryCount = new AtomicLong();
+
+    /**
+     * The amount of rooms for which data forms were retrieved from the database.
+     */
+    private static final AtomicLong retrievedRoomCount = new AtomicLong();
+
+    /**
+     * The first sequence numbers of the ranges that were reserved for changes that are not settled yet (see
+     * {@link #getUnsettledChangeSequence()}), by reservation.
+     */
+    private static final ConcurrentMap<Object, Long> unsettledChanges = new ConcurrentHashMap<>();
+
+    /**
+     * The reservations in {@link #unsettledChanges} that were made by the current thread.
+     */
+    private static final ThreadLocal<List<Object>> reservedChanges = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * When set, provides the database connections that are used by this class instead of {@link DbConnectionManager}.
+     * This allows this class to be used outside of a running Openfire server (eg: in load tests).
+     */
+    static volatile ConnectionProvider connectionProvider;
+
+    /**
+     * Obtains a database connection.
+     *
+     * @return A database connection.
+     * @throws SQLException if a connection could not be obtained.
+     */
+    private static Connection getConnection() throws SQLException
+    {
+        final ConnectionProvider provider = connectionProvider;
+        return provider != null ? provider.getConnection() : DbConnectionManager.getConnection();
+    }
+
+    /**
+     * Obtains a database connection on which a transaction has been started. When connections are obtained from
+     * {@link #connectionProvider}, the connection is returned in its default (auto-commit) mode.
+     *
+     * @return A database connection.
+     * @throws SQLException if a connection could not be obtained.
+     */
+    private static Connection getTransactionConnection() throws SQLException
+    {
+        final ConnectionProvider provider = connectionProvider;
+        return provider != null ? provider.getConnection() : DbConnectionManager.getTransactionConnection();
+    }
+
     /**
      * Adds an (empty) data form for 'extended' service discovery information that relates to a specific room to the
      * database.
      *
      * When the combination of room and data form name does already exist in the database, then the implementation will
-     * not have a functional effect (although previously cached values will be reset and another row is added to the
-     * database).
+     * not have a functional effect (although another row is added to the database).
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @throws QuotaExceededException when the data form would cause the room to exceed the limits of {@link RoomQuota}.
+     */
+    public static void addForm( JID room, String formTypeName ) throws QuotaExceededException
+    {
+        addForm(room, null, formTypeName);
+    }
+
+    /**
+     * Adds an (empty) data form for 'extended' service discovery information that relates to a specific service
+     * discovery node of a room to the database.
      *
      * @param room The address of the room of the data form to be modified.
+     * @param node The service discovery node of the data form, or null for the data forms that are returned for requests without a node.
      * @param formTypeName The identifier of the data form to be modified.
+     * @throws QuotaExceededException when the data form would cause the room to exceed the limits of {@link RoomQuota}.
      */
-    public static void addForm( JID room, String formTypeName )
+    public static void addForm( JID room, @Nullable String node, String formTypeName ) throws QuotaExceededException
     {
         room = room.asBareJID(); // normalize.
-        Log.debug("Add Data Form with name '{}' for room: '{}'", formTypeName, room);
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Add Data Form with name '{}' for room: '{}', node: '{}'", formTypeName, room, normalizedNode);
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(key);
         try
         {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SQL_ADD_FIELD);
-            pstmt.setString(1, room.toBareJID());
-            pstmt.setString(2, formTypeName);
-            pstmt.setNull(3, Types.VARCHAR);
-            pstmt.setNull(4, Types.VARCHAR);
-            pstmt.setNull(5, Types.VARCHAR);
-            pstmt.execute();
-        }
-        catch ( SQLException e )
-        {
-            Log.error("An exception occurred when trying to add a dataform (form type name: '{}') for room '{}' in the database.", formTypeName, room);
+            checkQuota(key, forms -> patchAddForm(forms, formTypeName));
+
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
+            {
+                con = getTransactionConnection();
+
+                // The row is positioned after all existing rows of the room, which retains the order of entry.
+                final long position = queryLastPosition(con, room) + 1;
+                pstmt = con.prepareStatement(SQL_ADD_FIELD);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                pstmt.setNull(3, Types.VARCHAR);
+                pstmt.setNull(4, Types.VARCHAR);
+                pstmt.setNull(5, Types.VARCHAR);
+                setNullableString(pstmt, 6, normalizedNode);
+                pstmt.setLong(7, position);
+                executeUpdate(pstmt, SQL_ADD_FIELD, room);
+
+                recordChange(con, Change.Type.addForm, room, normalizedNode, formTypeName, null, null, null, null, null);
+                written = true;
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to add a dataform (form type name: '{}') for room '{}' in the database.", formTypeName, room);
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(key, forms -> patchAddForm(forms, formTypeName), false);
+            }
+            else
+            {
+                purgeCache(key);
+            }
         }
         finally
         {
-            DbConnectionManager.closeConnection(pstmt, con);
+            settleChanges();
+            lock.unlock();
         }
-
-        // Purge any cached values for this room (to be repopulated when information is retrieved again). Alternatively,
-        // the cache could be 'updated', but that'd introduce code complexity that's probably not worth the minor
-        // performance benefit that it'd bring.
-        purgeCache(room);
     }
 
     /**
@@ -97,39 +322,97 @@ public class DAO
      * specific room. All fields related to the form will be removed from the database.
      *
      * When the combination of room and data form name does not exist in the database, then the implementation will
-     * silently ignore the invocation (although previously cached values will be reset).
+     * silently ignore the invocation.
      *
      * @param room The address of the room of the data form to be modified.
      * @param formTypeName The identifier of the data form to be modified.
      */
     public static void removeForm( @Nonnull JID room, @Nonnull String formTypeName )
+    {
+        removeForm(room, null, formTypeName);
+    }
+
+    /**
+     * Removes one particular data form containing 'extended' service discovery information that relates to a specific
+     * service discovery node of a room. Visibility rules and localized labels of the form, which apply to the form
+     * regardless of its node, are removed only when the form is removed for requests without a node.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param node The service discovery node of the data form, or null for the data forms that are returned for requests without a node.
+     * @param formTypeName The identifier of the data form to be modified.
+     */
+    public static void removeForm( @Nonnull JID room, @Nullable String node, @Nonnull String formTypeName )
     {
         room = room.asBareJID(); // normalize.
-        Log.debug("Remove Data Form with name '{}' for room: '{}'", formTypeName, room);
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Remove Data Form with name '{}' for room: '{}', node: '{}'", formTypeName, room, normalizedNode);
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(key);
         try
         {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SQL_REMOVE_FORM);
-            pstmt.setString(1, room.toBareJID());
-            pstmt.setString(2, formTypeName);
-            pstmt.execute();
-        }
-        catch ( SQLException e )
-        {
-            Log.error("An exception occurred when trying to remove a dataform (form type name: '{}') for room '{}' in the database.", formTypeName, room, e);
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
+            {
+                con = getTransactionConnection();
+                final String sql = normalizedNode == null ? SQL_REMOVE_FORM : SQL_REMOVE_NODE_FORM;
+                pstmt = con.prepareStatement(sql);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                if ( normalizedNode != null )
+                {
+                    pstmt.setString(3, normalizedNode);
+                }
+                executeUpdate(pstmt, sql, room);
+
+                if ( normalizedNode == null )
+                {
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = con.prepareStatement(SQL_REMOVE_FORM_RULES);
+                    pstmt.setString(1, room.toBareJID());
+                    pstmt.setString(2, formTypeName);
+                    executeUpdate(pstmt, SQL_REMOVE_FORM_RULES, room);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+
+                    pstmt = con.prepareStatement(SQL_REMOVE_FORM_LABELS);
+                    pstmt.setString(1, room.toBareJID());
+                    pstmt.setString(2, formTypeName);
+                    executeUpdate(pstmt, SQL_REMOVE_FORM_LABELS, room);
+                }
+
+                recordChange(con, Change.Type.removeForm, room, normalizedNode, formTypeName, null, null, null, null, null);
+                written = true;
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to remove a dataform (form type name: '{}') for room '{}' in the database.", formTypeName, room, e);
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(key, forms -> patchRemoveForm(forms, formTypeName), normalizedNode == null);
+            }
+            else
+            {
+                purgeCache(key);
+            }
         }
         finally
         {
-            DbConnectionManager.closeConnection(pstmt, con);
+            settleChanges();
+            lock.unlock();
         }
-
-        // Purge any cached values for this room (to be repopulated when information is retrieved again). Alternatively,
-        // the cache could be 'updated', but that'd introduce code complexity that's probably not worth the minor
-        // performance benefit that it'd bring.
-        purgeCache(room);
     }
 
     /**
@@ -147,52 +430,110 @@ public class DAO
      * @param varName The identifier of the field to be added.
      * @param label The optional (human readable) label of the field to be added.
      * @param value The optional value of the field to be added.
+     * @throws QuotaExceededException when the field would cause the room to exceed the limits of {@link RoomQuota}.
+     * @throws SchemaViolationException when the field would violate the schema of the data form (see {@link FormSchemaRegistry}).
+     */
+    public static void addField( @Nonnull JID room, @Nonnull String formTypeName, @Nonnull String varName, @Nullable String label, @Nullable String value ) throws QuotaExceededException, SchemaViolationException
+    {
+        addField(room, null, formTypeName, varName, label, value);
+    }
+
+    /**
+     * Adds a field of 'extended' service discovery information to a dataform that relates to a specific service
+     * discovery node of a room. Apart from its scope, this behaves like {@link #addField(JID, String, String, String, String)}.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param node The service discovery node of the data form, or null for the data forms that are returned for requests without a node.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be added.
+     * @param label The optional (human readable) label of the field to be added.
+     * @param value The optional value of the field to be added.
+     * @throws QuotaExceededException when the field would cause the room to exceed the limits of {@link RoomQuota}.
+     * @throws SchemaViolationException when the field would violate the schema of the data form (see {@link FormSchemaRegistry}).
      */
-    public static void addField( @Nonnull JID room, @Nonnull String formTypeName, @Nonnull String varName, @Nullable String label, @Nullable String value )
+    public static void addField( @Nonnull JID room, @Nullable String node, @Nonnull String formTypeName, @Nonnull String varName, @Nullable String label, @Nullable String value ) throws QuotaExceededException, SchemaViolationException
     {
         room = room.asBareJID(); // normalize.
-        Log.debug("Add Data Form with name '{}' for room: '{}'", formTypeName, room);
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Add Data Form with name '{}' for room: '{}', node: '{}'", formTypeName, room, normalizedNode);
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
+        // Blank labels and values are stored as null.
+        final String normalizedLabel = label == null || label.trim().isEmpty() ? null : label;
+        final String normalizedValue = value == null || value.trim().isEmpty() ? null : value;
+
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(key);
         try
         {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SQL_ADD_FIELD);
-            pstmt.setString(1, room.toBareJID());
-            pstmt.setString(2, formTypeName);
-            pstmt.setString(3, varName);
-            if ( label == null || label.trim().isEmpty() )
+            final Field field = new Field(varName, normalizedLabel, normalizedValue);
+            checkSchema(key, formTypeName, varName, forms -> patchAddField(forms, formTypeName, field));
+            checkQuota(key, forms -> patchAddField(forms, formTypeName, field));
+
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
             {
-                pstmt.setNull(4, Types.VARCHAR);
+                con = getTransactionConnection();
+
+                // The row is positioned after all existing rows of the room. As fields and values are loaded in the
+                // order of their rows, this retains the order in which fields and values were entered.
+                final long position = queryLastPosition(con, room) + 1;
+                pstmt = con.prepareStatement(SQL_ADD_FIELD);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                pstmt.setString(3, varName);
+                if ( normalizedLabel == null )
+                {
+                    pstmt.setNull(4, Types.VARCHAR);
+                }
+                else
+                {
+                    pstmt.setString(4, normalizedLabel);
+                }
+                if ( normalizedValue == null )
+                {
+                    pstmt.setNull(5, Types.VARCHAR);
+                }
+                else
+                {
+                    pstmt.setString(5, normalizedValue);
+                }
+                setNullableString(pstmt, 6, normalizedNode);
+                pstmt.setLong(7, position);
+                executeUpdate(pstmt, SQL_ADD_FIELD, room);
+
+                recordChange(con, Change.Type.addField, room, normalizedNode, formTypeName, varName, normalizedLabel, normalizedValue, null, null);
+                written = true;
             }
-            else
+            catch ( SQLException e )
             {
-                pstmt.setString(4, label);
+                Log.error("An exception occurred when trying to add a field (varname: '{}') to a dataform (form type name: '{}') for room '{}' in the database.", varName, formTypeName, room, e);
             }
-            if ( value == null || value.trim().isEmpty() )
+            finally
             {
-                pstmt.setNull(5, Types.VARCHAR);
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(key, forms -> patchAddField(forms, formTypeName, field), false);
             }
             else
             {
-                pstmt.setString(5, value);
+                purgeCache(key);
             }
-            pstmt.execute();
-        }
-        catch ( SQLException e )
-        {
-            Log.error("An exception occurred when trying to add a field (varname: '{}') to a dataform (form type name: '{}') for room '{}' in the database.", varName, formTypeName, room, e);
         }
         finally
         {
-            DbConnectionManager.closeConnection(pstmt, con);
+            settleChanges();
+            lock.unlock();
         }
-
-        // Purge any cached values for this room (to be repopulated when information is retrieved again). Alternatively,
-        // the cache could be 'updated', but that'd introduce code complexity that's probably not worth the minor
-        // performance benefit that it'd bring.
-        purgeCache(room);
     }
 
     /**
@@ -200,7 +541,7 @@ public class DAO
      * specific room.
      *
      * When the combination of room, data form name and field does not exist in the database, then the implementation
-     * will silently ignore the invocation (although previously cached values will be reset).
+     * will silently ignore the invocation.
      *
      * @param room The address of the room of the data form to be modified.
      * @param formTypeName The identifier of the data form to be modified.
@@ -208,178 +549,2754 @@ public class DAO
      */
     public static void removeField( @Nonnull JID room, @Nonnull String formTypeName, @Nonnull String varName )
     {
-        room = room.asBareJID(); // normalize.
-        Log.debug("Remove field '{}' from Data Form with name '{}' for room: '{}'", varName, formTypeName, room);
-
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        try
-        {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SQL_REMOVE_FIELD);
-            pstmt.setString(1, room.toBareJID());
-            pstmt.setString(2, formTypeName);
-            pstmt.setString(3, varName);
-            pstmt.execute();
-        }
-        catch ( SQLException e )
-        {
-            Log.error("An exception occurred when trying to remove a field (varname: '{}') from a dataform (form type name: '{}') for room '{}' in the database.", varName, formTypeName, room, e);
-        }
-        finally
-        {
-            DbConnectionManager.closeConnection(pstmt, con);
-        }
-
-        // Purge any cached values for this room (to be repopulated when information is retrieved again). Alternatively,
-        // the cache could be 'updated', but that'd introduce code complexity that's probably not worth the minor
-        // performance benefit that it'd bring.
-        purgeCache(room);
+        removeField(room, null, formTypeName, varName);
     }
 
     /**
-     * Retrieve data forms (that contain 'extended' service discovery information) for one particular MUC room.
+     * Removes one particular field of 'extended' service discovery information from a dataform that relates to a
+     * specific service discovery node of a room. Visibility rules and localized labels of the field, which apply to the
+     * field regardless of its node, are removed only when the field is removed for requests without a node.
      *
-     * @param room The MUC room for which to return extended service discovery information.
-     * @return The data forms containing the extended service discovery information for the room.
+     * @param room The address of the room of the data form to be modified.
+     * @param node The service discovery node of the data form, or null for the data forms that are returned for requests without a node.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be removed.
      */
-    @Nullable
-    public static List<ExtDataForm> retrieveExtensionElementsForRoom( @Nonnull JID room )
+    public static void removeField( @Nonnull JID room, @Nullable String node, @Nonnull String formTypeName, @Nonnull String varName )
     {
         room = room.asBareJID(); // normalize.
-        Log.debug("Get all data forms for room: '{}'", room);
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Remove field '{}' from Data Form with name '{}' for room: '{}', node: '{}'", varName, formTypeName, room, normalizedNode);
 
-        final Lock lock = EXTENSIONS_BY_ROOM.getLock(room);
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(key);
         try
         {
-            lock.lock();
-
-            // Try to get a result from the cache.
-            final CacheableOptional<ArrayList<ExtDataForm>> optionalResult = EXTENSIONS_BY_ROOM.get(room);
-            if ( optionalResult != null )
-            {
-                Log.trace("Returning value from cache.");
-                return optionalResult.get();
-            }
-
-            // No result in cache? Retrieve a result from the database (and add that to cache for future lookups).
-            final ConcurrentMap<String, ArrayList<Field>> rows = new ConcurrentHashMap<>();
-
+            boolean written = false;
             Connection con = null;
             PreparedStatement pstmt = null;
-            ResultSet rs = null;
             try
             {
-                con = DbConnectionManager.getConnection();
-                pstmt = con.prepareStatement(SQL_GET_ROOM_FORMS);
+                con = getTransactionConnection();
+                final String sql = normalizedNode == null ? SQL_REMOVE_FIELD : SQL_REMOVE_NODE_FIELD;
+                pstmt = con.prepareStatement(sql);
                 pstmt.setString(1, room.toBareJID());
-                rs = pstmt.executeQuery();
-                while ( rs.next() )
+                pstmt.setString(2, formTypeName);
+                pstmt.setString(3, varName);
+                if ( normalizedNode != null )
                 {
-                    // formtypename, varname, label, varvalue
-                    final String formTypeName = rs.getString("formtypename");
-                    final String varName = rs.getString("varname");
-                    final String label = rs.getString("label");
-                    final String value = rs.getString("varvalue");
+                    pstmt.setString(4, normalizedNode);
+                }
+                executeUpdate(pstmt, sql, room);
 
-                    // Ensure that there's a key in 'rows' for this current form. If nothing else, that can be used to
-                    // return an empty form later.
-                    final ArrayList<Field> fieldsForForm = rows.computeIfAbsent(formTypeName, s -> new ArrayList<>());
+                if ( normalizedNode == null )
+                {
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = con.prepareStatement(SQL_REMOVE_FIELD_RULES);
+                    pstmt.setString(1, room.toBareJID());
+                    pstmt.setString(2, formTypeName);
+                    pstmt.setString(3, varName);
+                    executeUpdate(pstmt, SQL_REMOVE_FIELD_RULES, room);
+                    DbConnectionManager.fastcloseStmt(pstmt);
 
-                    // If there's a field in the database, add that to the form.
-                    if ( varName != null )
-                    {
-                        fieldsForForm.add(new Field(varName, label, value));
-                    }
+                    pstmt = con.prepareStatement(SQL_REMOVE_FIELD_LABELS);
+                    pstmt.setString(1, room.toBareJID());
+                    pstmt.setString(2, formTypeName);
+                    pstmt.setString(3, varName);
+                    executeUpdate(pstmt, SQL_REMOVE_FIELD_LABELS, room);
                 }
+
+                recordChange(con, Change.Type.removeField, room, normalizedNode, formTypeName, varName, null, null, null, null);
+                written = true;
             }
             catch ( SQLException e )
             {
-                Log.error("An exception occurred when trying to retrieve all data forms for room '{}' in the database.", room, e);
+                Log.error("An exception occurred when trying to remove a field (varname: '{}') from a dataform (form type name: '{}') for room '{}' in the database.", varName, formTypeName, room, e);
             }
             finally
             {
-                DbConnectionManager.closeConnection(rs, pstmt, con);
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
             }
 
-            // Transform the raw database results into DataForm instances.
-            final ArrayList<ExtDataForm> formsForRoom = rowsToDataForms(rows);
-
-            // Record the end result in the cache.
-            EXTENSIONS_BY_ROOM.put(room, CacheableOptional.of(formsForRoom));
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
 
-            return formsForRoom;
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(key, forms -> patchRemoveField(forms, formTypeName, varName), normalizedNode == null);
+            }
+            else
+            {
+                purgeCache(key);
+            }
         }
         finally
         {
+            settleChanges();
             lock.unlock();
         }
     }
 
     /**
-     * Marshalls raw database results into DataForm instances.
+     * Replaces all data forms of a room (or of one of its service discovery nodes) by a desired set of data forms.
      *
-     * The provided input is expected to relate to exactly one MUC room. The behavior of this class is unspecified if
+     * Rather than removing all existing data and writing the desired data, only the modifications that are needed to
+     * turn the current data into the desired data are applied (see {@link FormsDiff}), in one transaction. Fields that
+     * are unchanged are left alone. Fields that are changed retain their visibility rules and localized labels. Data
+     * forms and fields that are no longer desired are removed, including (for requests without a node) their visibility
+     * rules and localized labels. Each modification is recorded in the change feed. Afterwards, the cached data is
+     * invalidated once.
+     *
+     * @param room The address of the room of the data forms to be replaced.
+     * @param node The service discovery node of the data forms, or null for the data forms that are returned for requests without a node.
+     * @param desired The desired data forms (localized labels are ignored). Form type names must be distinct.
+     * @return true if the data forms were replaced, false if an error occurred (which is logged).
+     * @throws QuotaExceededException when the desired data forms would cause the room to exceed the limits of {@link RoomQuota}.
+     * @throws SchemaViolationException when a desired data form would violate its schema (see {@link FormSchemaRegistry}).
+     */
+    public static boolean replaceForms( @Nonnull JID room, @Nullable String node, @Nonnull final List<ExtDataForm> desired ) throws QuotaExceededException, SchemaViolationException
+    {
+        room = room.asBareJID(); // normalize.
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Replace all {} Data Forms for room: '{}', node: '{}'", desired.size(), room, normalizedNode);
+
+        // Blank labels and values are stored as null.
+        final List<ExtDataForm> normalized = new ArrayList<>(desired.size());
+        for ( final ExtDataForm form : desired )
+        {
+            final List<Field> fields = new ArrayList<>(form.getFields().size());
+            for ( final Field field : form.getFields() )
+            {
+                final String label = field.getLabel() == null || field.getLabel().trim().isEmpty() ? null : field.getLabel();
+                final List<String> values = new ArrayList<>();
+                for ( final String value : field.getValues() )
+                {
+                    if ( !value.trim().isEmpty() )
+                    {
+                        values.add(value);
+                    }
+                }
+                fields.add(new Field(field.getVarName(), label, values.toArray(new String[0])));
+            }
+            normalized.add(new ExtDataForm(form.getFormTypeName(), fields));
+        }
+
+        // The desired data forms are complete: unlike forms that are written one field at a time, required fields are verified.
+        FormSchemaRegistry.getInstance().validate(room, normalized);
+
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the state from before the write.
+        final Lock lock = lockCacheKey(key);
+        try
+        {
+            checkQuota(key, forms -> normalized);
+
+            final Collection<JID> rooms = Collections.singleton(room);
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
+            {
+                con = getTransactionConnection();
+
+                // The current state is read in the same transaction that modifies it.
+                final FormsDiff diff = FormsDiff.compute(rowsToDataForms(queryRoomForms(con, room, normalizedNode)), normalized);
+                Log.trace("Modifications needed to replace the Data Forms of room '{}', node '{}': {}", room, normalizedNode, diff);
+
+                final List<FormsDiff.FieldChange> deletedFields = new ArrayList<>(diff.getRemovedFields());
+                deletedFields.addAll(diff.getClearedFields());
+
+                if ( !diff.getRemovedForms().isEmpty() )
+                {
+                    final String sql = normalizedNode == null ? SQL_REMOVE_FORM : SQL_REMOVE_NODE_FORM;
+                    final List<String> statements = normalizedNode == null ? Arrays.asList(sql, SQL_REMOVE_FORM_RULES, SQL_REMOVE_FORM_LABELS) : Collections.singletonList(sql);
+                    for ( final String statement : statements )
+                    {
+                        pstmt = con.prepareStatement(statement);
+                        for ( final String formTypeName : diff.getRemovedForms() )
+                        {
+                            pstmt.setString(1, room.toBareJID());
+                            pstmt.setString(2, formTypeName);
+                            if ( statement.equals(SQL_REMOVE_NODE_FORM) )
+                            {
+                                pstmt.setString(3, normalizedNode);
+                            }
+                            pstmt.addBatch();
+                        }
+                        executeBatch(pstmt, statement, rooms);
+                        DbConnectionManager.fastcloseStmt(pstmt);
+                        pstmt = null;
+                    }
+                }
+
+                if ( !deletedFields.isEmpty() )
+                {
+                    final String sql = normalizedNode == null ? SQL_REMOVE_FIELD : SQL_REMOVE_NODE_FIELD;
+                    pstmt = con.prepareStatement(sql);
+                    for ( final FormsDiff.FieldChange change : deletedFields )
+                    {
+                        pstmt.setString(1, room.toBareJID());
+                        pstmt.setString(2, change.getFormTypeName());
+                        pstmt.setString(3, change.getField().getVarName());
+                        if ( normalizedNode != null )
+                        {
+                            pstmt.setString(4, normalizedNode);
+                        }
+                        pstmt.addBatch();
+                    }
+                    executeBatch(pstmt, sql, rooms);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = null;
+                }
+
+                // Fields that are changed (rather than removed) retain their visibility rules and localized labels.
+                if ( normalizedNode == null && !diff.getRemovedFields().isEmpty() )
+                {
+                    for ( final String statement : new String[] { SQL_REMOVE_FIELD_RULES, SQL_REMOVE_FIELD_LABELS } )
+                    {
+                        pstmt = con.prepareStatement(statement);
+                        for ( final FormsDiff.FieldChange change : diff.getRemovedFields() )
+                        {
+                            pstmt.setString(1, room.toBareJID());
+                            pstmt.setString(2, change.getFormTypeName());
+                            pstmt.setString(3, change.getField().getVarName());
+                            pstmt.addBatch();
+                        }
+                        executeBatch(pstmt, statement, rooms);
+                        DbConnectionManager.fastcloseStmt(pstmt);
+                        pstmt = null;
+                    }
+                }
+
+                // Added rows are positioned after all remaining rows of the room, in the desired order.
+                if ( !diff.getAddedForms().isEmpty() || !diff.getAddedFields().isEmpty() )
+                {
+                    long position = queryLastPosition(con, room);
+                    pstmt = con.prepareStatement(SQL_ADD_FIELD);
+                    for ( final String formTypeName : diff.getAddedForms() )
+                    {
+                        addRowToBatch(pstmt, room, normalizedNode, formTypeName, null, null, null, ++position);
+                    }
+                    for ( final FormsDiff.FieldChange change : diff.getAddedFields() )
+                    {
+                        final Field field = change.getField();
+                        for ( final String value : valuesOf(field) )
+                        {
+                            addRowToBatch(pstmt, room, normalizedNode, change.getFormTypeName(), field.getVarName(), field.getLabel(), value, ++position);
+                        }
+                    }
+                    executeBatch(pstmt, SQL_ADD_FIELD, rooms);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = null;
+                }
+
+                // Changes are recorded last, in the order in which they are to be applied: removals precede additions.
+                if ( !diff.isEmpty() )
+                {
+                    int count = diff.getRemovedForms().size() + diff.getRemovedFields().size() + diff.getClearedFields().size() + diff.getAddedForms().size();
+                    for ( final FormsDiff.FieldChange change : diff.getAddedFields() )
+                    {
+                        count += valuesOf(change.getField()).size();
+                    }
+                    long sequence = reserveChangeSequences(con, count);
+                    final long now = System.currentTimeMillis();
+                    pstmt = con.prepareStatement(SQL_ADD_CHANGE);
+                    for ( final String formTypeName : diff.getRemovedForms() )
+                    {
+                        addChangeToBatch(pstmt, sequence++, now, Change.Type.removeForm, room, normalizedNode, formTypeName, null, null, null);
+                    }
+                    for ( final FormsDiff.FieldChange change : diff.getRemovedFields() )
+                    {
+                        addChangeToBatch(pstmt, sequence++, now, Change.Type.removeField, room, normalizedNode, change.getFormTypeName(), change.getField().getVarName(), null, null);
+                    }
+                    for ( final FormsDiff.FieldChange change : diff.getClearedFields() )
+                    {
+                        addChangeToBatch(pstmt, sequence++, now, Change.Type.clearField, room, normalizedNode, change.getFormTypeName(), change.getField().getVarName(), null, null);
+                    }
+                    for ( final String formTypeName : diff.getAddedForms() )
+                    {
+                        addChangeToBatch(pstmt, sequence++, now, Change.Type.addForm, room, normalizedNode, formTypeName, null, null, null);
+                    }
+                    for ( final FormsDiff.FieldChange change : diff.getAddedFields() )
+                    {
+                        final Field field = change.getField();
+                        for ( final String value : valuesOf(field) )
+                        {
+                            addChangeToBatch(pstmt, sequence++, now, Change.Type.addField, room, normalizedNode, change.getFormTypeName(), field.getVarName(), field.getLabel(), value);
+                        }
+                    }
+                    executeBatch(pstmt, SQL_ADD_CHANGE, rooms);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = null;
+                }
+                written = true;
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to replace all dataforms for room '{}' (node: '{}') in the database.", room, normalizedNode, e);
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Any number of modifications was applied. Rather than patching the cached data for each of them, it is
+            // reloaded from the database on the next retrieval.
+            purgeCache(key);
+            return written;
+        }
+        finally
+        {
+            settleChanges();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the values of a field as they are stored: one row per value, or one row without a value for a field
+     * that has no values.
+     *
+     * @param field The field.
+     * @return The values of the rows of the field.
+     */
+    @Nonnull
+    private static List<String> valuesOf( @Nonnull final Field field )
+    {
+        return field.getValues().isEmpty() ? Collections.singletonList(null) : field.getValues();
+    }
+
+    /**
+     * Adds a row of the data forms table to a batch of {@link #SQL_ADD_FIELD} statements.
+     *
+     * @param pstmt The statement to add the row to.
+     * @param room The (normalized) room of the row.
+     * @param node The (normalized) service discovery node of the row (if any).
+     * @param formTypeName The identifier of the data form of the row.
+     * @param varName The identifier of the field of the row, or null for a row that only defines a data form.
+     * @param label The label of the field (if any).
+     * @param value The value of the field (if any).
+     * @param position The position of the row.
+     * @throws SQLException on any problem preparing the statement.
+     */
+    private static void addRowToBatch( @Nonnull final PreparedStatement pstmt, @Nonnull final JID room, @Nullable final String node, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, final long position ) throws SQLException
+    {
+        pstmt.setString(1, room.toBareJID());
+        pstmt.setString(2, formTypeName);
+        setNullableString(pstmt, 3, varName);
+        setNullableString(pstmt, 4, label);
+        setNullableString(pstmt, 5, value);
+        setNullableString(pstmt, 6, node);
+        pstmt.setLong(7, position);
+        pstmt.addBatch();
+    }
+
+    /**
+     * Adds a rule that restricts the visibility of a data form (when no variable name is provided) or of one of its
+     * fields, for a specific room. When more than one rule applies to the same form or field, then the form or field is
+     * visible to senders that match any of these rules.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be modified, or null if the rule applies to the entire form.
+     * @param rule The rule to add.
+     */
+    public static void addRule( @Nonnull JID room, @Nonnull String formTypeName, @Nullable String varName, @Nonnull VisibilityRule rule )
+    {
+        room = room.asBareJID(); // normalize.
+        Log.debug("Add visibility rule '{}' to field '{}' of Data Form with name '{}' for room: '{}'", rule, varName, formTypeName, room);
+
+        final String normalizedVarName = varName == null || varName.trim().isEmpty() ? null : varName;
+        boolean written = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            con = getTransactionConnection();
+            pstmt = con.prepareStatement(SQL_ADD_RULE);
+            pstmt.setString(1, room.toBareJID());
+            pstmt.setString(2, formTypeName);
+            if ( normalizedVarName == null )
+            {
+                pstmt.setNull(3, Types.VARCHAR);
+            }
+            else
+            {
+                pstmt.setString(3, normalizedVarName);
+            }
+            pstmt.setString(4, rule.getType().name());
+            pstmt.setString(5, rule.getValue());
+            executeUpdate(pstmt, SQL_ADD_RULE, room);
+
+            recordChange(con, Change.Type.addRule, room, formTypeName, normalizedVarName, null, null, rule);
+            written = true;
+            recordRulesExist();
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to add a visibility rule (rule: '{}') to a field (varname: '{}') of a dataform (form type name: '{}') for room '{}' in the database.", rule, varName, formTypeName, room, e);
+        }
+        finally
+        {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            purgeCache(room);
+            settleChanges();
+        }
+    }
+
+    /**
+     * Removes a rule that restricts the visibility of a data form (when no variable name is provided) or of one of its
+     * fields, for a specific room.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be modified, or null if the rule applies to the entire form.
+     * @param rule The rule to remove.
+     */
+    public static void removeRule( @Nonnull JID room, @Nonnull String formTypeName, @Nullable String varName, @Nonnull VisibilityRule rule )
+    {
+        room = room.asBareJID(); // normalize.
+        Log.debug("Remove visibility rule '{}' from field '{}' of Data Form with name '{}' for room: '{}'", rule, varName, formTypeName, room);
+
+        final boolean formRule = varName == null || varName.trim().isEmpty();
+        boolean written = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            con = getTransactionConnection();
+            pstmt = con.prepareStatement(formRule ? SQL_REMOVE_FORM_RULE : SQL_REMOVE_FIELD_RULE);
+            int i = 1;
+            pstmt.setString(i++, room.toBareJID());
+            pstmt.setString(i++, formTypeName);
+            if ( !formRule )
+            {
+                pstmt.setString(i++, varName);
+            }
+            pstmt.setString(i++, rule.getType().name());
+            pstmt.setString(i, rule.getValue());
+            executeUpdate(pstmt, formRule ? SQL_REMOVE_FORM_RULE : SQL_REMOVE_FIELD_RULE, room);
+
+            recordChange(con, Change.Type.removeRule, room, formTypeName, formRule ? null : varName, null, null, rule);
+            written = true;
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to remove a visibility rule (rule: '{}') from a field (varname: '{}') of a dataform (form type name: '{}') for room '{}' in the database.", rule, varName, formTypeName, room, e);
+        }
+        finally
+        {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            purgeCache(room);
+            settleChanges();
+        }
+    }
+
+    /**
+     * Sets the label of a field of a data form for a specific language, replacing any label that was previously defined
+     * for that language. The label is used in responses to service discovery requests in that language.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be modified.
+     * @param language The language tag of the label (eg: 'nl' or 'pt-BR').
+     * @param label The label in that language.
+     */
+    public static void setLabel( @Nonnull JID room, @Nonnull String formTypeName, @Nonnull String varName, @Nonnull String language, @Nonnull String label )
+    {
+        room = room.asBareJID(); // normalize.
+        final String normalizedLanguage = Localization.normalize(language);
+        Log.debug("Set label for language '{}' of field '{}' of Data Form with name '{}' for room: '{}'", normalizedLanguage, varName, formTypeName, room);
+
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(room);
+        try
+        {
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
+            {
+                con = getTransactionConnection();
+                pstmt = con.prepareStatement(SQL_REMOVE_LABEL);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                pstmt.setString(3, varName);
+                pstmt.setString(4, normalizedLanguage);
+                executeUpdate(pstmt, SQL_REMOVE_LABEL, room);
+                DbConnectionManager.fastcloseStmt(pstmt);
+
+                pstmt = con.prepareStatement(SQL_ADD_LABEL);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                pstmt.setString(3, varName);
+                pstmt.setString(4, normalizedLanguage);
+                pstmt.setString(5, label);
+                executeUpdate(pstmt, SQL_ADD_LABEL, room);
+
+                recordChange(con, Change.Type.setLabel, room, null, formTypeName, varName, label, null, null, normalizedLanguage);
+                written = true;
+                recordLabelsExist();
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to set the label for language '{}' of a field (varname: '{}') of a dataform (form type name: '{}') for room '{}' in the database.", normalizedLanguage, varName, formTypeName, room, e);
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(room, forms -> patchSetLabel(forms, formTypeName, varName, normalizedLanguage, label), false);
+            }
+            else
+            {
+                purgeCache(room);
+            }
+        }
+        finally
+        {
+            settleChanges();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the label of a field of a data form for a specific language. Responses to service discovery requests in
+     * that language will use the default label of the field.
+     *
+     * @param room The address of the room of the data form to be modified.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be modified.
+     * @param language The language tag of the label to remove.
+     */
+    public static void removeLabel( @Nonnull JID room, @Nonnull String formTypeName, @Nonnull String varName, @Nonnull String language )
+    {
+        room = room.asBareJID(); // normalize.
+        final String normalizedLanguage = Localization.normalize(language);
+        Log.debug("Remove label for language '{}' of field '{}' of Data Form with name '{}' for room: '{}'", normalizedLanguage, varName, formTypeName, room);
+
+        // Hold the cache lock while writing, to prevent a concurrent load from caching the new state before it is patched.
+        final Lock lock = lockCacheKey(room);
+        try
+        {
+            boolean written = false;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            try
+            {
+                con = getTransactionConnection();
+                pstmt = con.prepareStatement(SQL_REMOVE_LABEL);
+                pstmt.setString(1, room.toBareJID());
+                pstmt.setString(2, formTypeName);
+                pstmt.setString(3, varName);
+                pstmt.setString(4, normalizedLanguage);
+                executeUpdate(pstmt, SQL_REMOVE_LABEL, room);
+
+                recordChange(con, Change.Type.removeLabel, room, null, formTypeName, varName, null, null, null, normalizedLanguage);
+                written = true;
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to remove the label for language '{}' of a field (varname: '{}') of a dataform (form type name: '{}') for room '{}' in the database.", normalizedLanguage, varName, formTypeName, room, e);
+            }
+            finally
+            {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            }
+
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+
+            // Apply the change to the cached data, rather than forcing a reload from the database on the next retrieval.
+            if ( written )
+            {
+                patchCache(room, forms -> patchSetLabel(forms, formTypeName, varName, normalizedLanguage, null), false);
+            }
+            else
+            {
+                purgeCache(room);
+            }
+        }
+        finally
+        {
+            settleChanges();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies all data of a room (the data forms of all of its service discovery nodes, as well as its visibility rules
+     * and localized labels) to a number of other rooms, replacing any data that those rooms had. This can be used to
+     * create rooms from a template room.
+     *
+     * The targets are processed in chunks of {@link #getEffectiveBatchSize()} rooms. For every chunk, each table is
+     * modified by two set-based statements: a DELETE of the rows of all targets, and an INSERT ... SELECT that joins the
+     * rows of the source room with a derived table of the targets (see {@link #getRoomsTable(int)}), which copies the
+     * rows within the database. All chunks are written in one transaction. Afterwards, the generation
+     * of each target is advanced, which invalidates the cached data of the target and of all of its nodes.
+     *
+     * Copying does not check the limits of {@link RoomQuota}, as every target ends up with the data of the source room.
+     *
+     * @param source The address of the room of which to copy the data.
+     * @param targets The addresses of the rooms to which the data is copied (the source itself is ignored).
+     * @return true if the data was copied, false if an error occurred (which is logged).
+     */
+    public static boolean copyRoom( @Nonnull JID source, @Nonnull final Collection<JID> targets )
+    {
+        source = source.asBareJID(); // normalize.
+        final SortedSet<JID> normalized = new TreeSet<>();
+        for ( final JID target : targets )
+        {
+            normalized.add(target.asBareJID());
+        }
+        normalized.remove(source);
+        Log.debug("Copy all data of room '{}' to {} rooms.", source, normalized.size());
+        if ( normalized.isEmpty() )
+        {
+            return true;
+        }
+
+        boolean written = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            con = getTransactionConnection();
+            for ( final List<JID> chunk : partition(new ArrayList<>(normalized), getEffectiveBatchSize()) )
+            {
+                final String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                for ( final String sql : new String[] { String.format(SQL_REMOVE_ROOMS, placeholders), String.format(SQL_REMOVE_ROOMS_RULES, placeholders), String.format(SQL_REMOVE_ROOMS_LABELS, placeholders) } )
+                {
+                    pstmt = con.prepareStatement(sql);
+                    int i = 1;
+                    for ( final JID target : chunk )
+                    {
+                        pstmt.setString(i++, target.toBareJID());
+                    }
+                    executeBulkUpdate(pstmt, sql, chunk);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = null;
+                }
+
+                final String targetsTable = getRoomsTable(chunk.size());
+                for ( final String sql : new String[] { String.format(SQL_COPY_ROOM, targetsTable), String.format(SQL_COPY_ROOM_RULES, targetsTable), String.format(SQL_COPY_ROOM_LABELS, targetsTable) } )
+                {
+                    pstmt = con.prepareStatement(sql);
+                    int i = 1;
+                    for ( final JID target : chunk )
+                    {
+                        pstmt.setString(i++, target.toBareJID());
+                    }
+                    pstmt.setString(i, source.toBareJID());
+                    executeBulkUpdate(pstmt, sql, chunk);
+                    DbConnectionManager.fastcloseStmt(pstmt);
+                    pstmt = null;
+                }
+            }
+
+            recordRoomChanges(con, Change.Type.copyRoom, source, new ArrayList<>(normalized));
+            written = true;
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to copy all data of room '{}' to {} rooms in the database.", source, normalized.size(), e);
+        }
+        finally
+        {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            purgeRooms(normalized);
+            settleChanges();
+        }
+        return written;
+    }
+
+    /**
+     * Moves all data of a room (the data forms of all of its service discovery nodes, as well as its visibility rules
+     * and localized labels) to another room, replacing any data that room had. This can be used when a room is moved
+     * to another MUC service. Data is moved within the database, by updating its rows, in one transaction.
+     *
+     * @param source The address of the room of which to move the data.
+     * @param target The address of the room to which the data is moved.
+     * @return true if the data was moved, false if an error occurred (which is logged).
+     */
+    public static boolean moveRoom( @Nonnull JID source, @Nonnull JID target )
+    {
+        source = source.asBareJID(); // normalize.
+        target = target.asBareJID(); // normalize.
+        Log.debug("Move all data of room '{}' to room '{}'.", source, target);
+        if ( source.equals(target) )
+        {
+            return true;
+        }
+
+        boolean written = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            con = getTransactionConnection();
+            for ( final String sql : new String[] { SQL_REMOVE_ROOM, SQL_REMOVE_ROOM_RULES, SQL_REMOVE_ROOM_LABELS } )
+            {
+                pstmt = con.prepareStatement(sql);
+                pstmt.setString(1, target.toBareJID());
+                executeUpdate(pstmt, sql, target);
+                DbConnectionManager.fastcloseStmt(pstmt);
+                pstmt = null;
+            }
+
+            for ( final String sql : new String[] { SQL_MOVE_ROOM, SQL_MOVE_ROOM_RULES, SQL_MOVE_ROOM_LABELS } )
+            {
+                pstmt = con.prepareStatement(sql);
+                pstmt.setString(1, target.toBareJID());
+                pstmt.setString(2, source.toBareJID());
+                executeUpdate(pstmt, sql, source);
+                DbConnectionManager.fastcloseStmt(pstmt);
+                pstmt = null;
+            }
+
+            recordRoomChanges(con, Change.Type.moveRoom, source, Collections.singletonList(target));
+            written = true;
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to move all data of room '{}' to room '{}' in the database.", source, target, e);
+        }
+        finally
+        {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, !written);
+            purgeRooms(Arrays.asList(source, target));
+            settleChanges();
+        }
+        return written;
+    }
+
+    /**
+     * Records, for each of a number of rooms, that all data of another room was copied or moved to it.
+     *
+     * @param con The database connection that is used to apply the modification.
+     * @param type The kind of modification.
+     * @param source The (normalized) room from which data was copied or moved.
+     * @param targets The (normalized) rooms that were modified.
+     * @throws SQLException on any problem writing to the database.
+     */
+    private static void recordRoomChanges( @Nonnull final Connection con, @Nonnull final Change.Type type, @Nonnull final JID source, @Nonnull final List<JID> targets ) throws SQLException
+    {
+        long sequence = reserveChangeSequences(con, targets.size());
+        final PreparedStatement pstmt = con.prepareStatement(SQL_ADD_CHANGE);
+        try
+        {
+            final long now = System.currentTimeMillis();
+            for ( final JID target : targets )
+            {
+                pstmt.setLong(1, sequence++);
+                pstmt.setLong(2, now);
+                pstmt.setString(3, type.name());
+                pstmt.setString(4, target.toBareJID());
+                for ( int i = 5; i <= 12; i++ )
+                {
+                    pstmt.setNull(i, Types.VARCHAR);
+                }
+                pstmt.setString(13, source.toBareJID());
+                pstmt.addBatch();
+            }
+            executeBatch(pstmt, SQL_ADD_CHANGE, targets);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(pstmt);
+        }
+    }
+
+    /**
+     * Invalidates the cached data of rooms that were modified in their entirety, including the data of their nodes.
+     *
+     * The nodes of a room are not enumerated: that would miss a node that is created concurrently, after the enumeration
+     * but before the data of the room is replaced. Instead, the generation of each room is advanced, which causes all
+     * cached data of the room that was loaded before the modification to be discarded when it is next used.
+     *
+     * @param rooms The (normalized) rooms that were modified.
+     */
+    private static void purgeRooms( @Nonnull final Collection<JID> rooms )
+    {
+        for ( final JID room : rooms )
+        {
+            // Subsequent reads of this room should not be served by a read-only replica that might lag behind.
+            ReadReplica.getInstance().recordWrite(room);
+            discardCached(room);
+        }
+    }
+
+    /**
+     * Returns the SQL of a derived table with one column, 'room', that has a row for each of a number of parameters. The
+     * rows are combined with UNION ALL, as not all databases support a VALUES list as a table.
+     *
+     * @param count The amount of rows (and parameters).
+     * @return an SQL query.
+     */
+    @Nonnull
+    static String getRoomsTable( final int count )
+    {
+        final String from;
+        switch ( DbConnectionManager.getDatabaseType() )
+        {
+            case mysql:
+            case postgresql:
+            case sqlserver:
+                from = "";
+                break;
+            case oracle:
+                from = " FROM DUAL";
+                break;
+            case db2:
+                from = " FROM SYSIBM.SYSDUMMY1";
+                break;
+            default:
+                // Not every database allows a select statement without a table (eg: HSQLDB).
+                from = " FROM (VALUES(0))";
+                break;
+        }
+        final String row = "SELECT " + getRoomParameter() + " AS room" + from;
+        return String.join(" UNION ALL ", Collections.nCopies(count, row));
+    }
+
+    /**
+     * Returns the SQL expression of a parameter that is used as the value of the room column in the select list of a
+     * query. Some databases cannot derive the type of an untyped parameter in a select list.
+     *
+     * @return an SQL expression.
+     */
+    @Nonnull
+    static String getRoomParameter()
+    {
+        switch ( DbConnectionManager.getDatabaseType() )
+        {
+            case oracle:
+                return "CAST(? AS VARCHAR2(306))";
+            case sqlserver:
+                return "CAST(? AS NVARCHAR(306))";
+            default:
+                return "CAST(? AS VARCHAR(306))";
+        }
+    }
+
+    /**
+     * Verifies that a modification of the data forms of a room does not cause the room to exceed the limits of
+     * {@link RoomQuota}. The usage of the room is computed from its cached data forms, which cache their own size
+     * estimate.
+     *
+     * @param room The (normalized) room that is to be modified.
+     * @param patch A function that applies the modification to the data forms of the room.
+     * @throws QuotaExceededException when the modification would cause the room to exceed a limit.
+     */
+    private static void checkQuota( @Nonnull final JID key, @Nonnull final Function<List<ExtDataForm>, List<ExtDataForm>> patch ) throws QuotaExceededException
+    {
+        final JID room = key.asBareJID();
+        final List<ExtDataForm> current = retrieveExtensionElementsForNode(room, key.getResource());
+        final List<ExtDataForm> forms = current == null ? Collections.emptyList() : current;
+        RoomQuota.check(room, RoomUsage.of(forms), RoomUsage.of(patch.apply(forms)));
+    }
+
+    /**
+     * Verifies that a modification of one field of a data form does not cause the field to violate the schema of the
+     * data form. The field is validated with all of its values (the existing ones, as well as the new ones). The data
+     * forms of the room are retrieved only when a schema is registered for the data form.
+     *
+     * @param key The cache key of the data forms that are to be modified.
+     * @param formTypeName The identifier of the data form that is to be modified.
+     * @param varName The identifier of the field that is to be modified.
+     * @param patch A function that applies the modification to the data forms of the room.
+     * @throws SchemaViolationException when the modification would cause the field to violate the schema.
+     */
+    private static void checkSchema( @Nonnull final JID key, @Nonnull final String formTypeName, @Nonnull final String varName, @Nonnull final Function<List<ExtDataForm>, List<ExtDataForm>> patch ) throws SchemaViolationException
+    {
+        final FormValidator validator = FormSchemaRegistry.getInstance().getValidator(formTypeName);
+        if ( validator == null )
+        {
+            return;
+        }
+        final JID room = key.asBareJID();
+        final List<ExtDataForm> current = retrieveExtensionElementsForNode(room, key.getResource());
+        for ( final ExtDataForm form : patch.apply(current == null ? Collections.emptyList() : current) )
+        {
+            final Field field = form.getFormTypeName().equals(formTypeName) ? form.getField(varName) : null;
+            if ( field != null )
+            {
+                validator.validate(room, field);
+            }
+        }
+    }
+
+    /**
+     * Computes the usage of all rooms for which data forms are defined, and returns the rooms that have the largest
+     * (estimated) service discovery responses. This reads all data forms from the database, and is intended to be used
+     * in an administrative report only. As such a report does not need the most recent data, the data is read from the
+     * read-only replica when one is configured (see {@link ReadReplica}).
+     *
+     * @param max The maximum amount of rooms to return.
+     * @return The usage of the largest rooms, ordered by descending size.
+     */
+    @Nonnull
+    public static LinkedHashMap<JID, RoomUsage> retrieveLargestRooms( final int max )
+    {
+        Collection<Map.Entry<JID, RoomUsage>> largest;
+        try
+        {
+            largest = read(Collections.emptyList(), con -> queryLargestRooms(con, max));
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to compute the usage of all rooms in the database.", e);
+            largest = Collections.emptyList();
+        }
+
+        final List<Map.Entry<JID, RoomUsage>> sorted = new ArrayList<>(largest);
+        sorted.sort(Comparator.comparingLong((Map.Entry<JID, RoomUsage> entry) -> entry.getValue().getBytes()).reversed());
+        final LinkedHashMap<JID, RoomUsage> result = new LinkedHashMap<>();
+        for ( final Map.Entry<JID, RoomUsage> entry : sorted )
+        {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Reads all data forms from the database, and computes the usage of each room, retaining the largest rooms only.
+     *
+     * @param con The database connection to use.
+     * @param max The maximum amount of rooms to retain.
+     * @return The usage of the largest rooms, in no particular order.
+     * @throws SQLException on any problem querying the database.
+     */
+    @Nonnull
+    private static Collection<Map.Entry<JID, RoomUsage>> queryLargestRooms( @Nonnull final Connection con, final int max ) throws SQLException
+    {
+        final PriorityQueue<Map.Entry<JID, RoomUsage>> largest = new PriorityQueue<>(Comparator.comparingLong(entry -> entry.getValue().getBytes()));
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_GET_ALL_FORMS);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+
+            int count = 0;
+            String currentRoom = null;
+            ConcurrentMap<String, ArrayList<Field>> rows = new ConcurrentHashMap<>();
+            while ( true )
+            {
+                final boolean hasNext = rs.next();
+                final String room = hasNext ? rs.getString("room") : null;
+                if ( currentRoom != null && !currentRoom.equals(room) )
+                {
+                    largest.add(new AbstractMap.SimpleImmutableEntry<>(new JID(currentRoom), RoomUsage.of(rowsToDataForms(rows))));
+                    if ( largest.size() > max )
+                    {
+                        largest.poll();
+                    }
+                    rows = new ConcurrentHashMap<>();
+                }
+                if ( !hasNext )
+                {
+                    break;
+                }
+                count++;
+                currentRoom = room;
+                final ArrayList<Field> fields = rows.computeIfAbsent(rs.getString("formtypename"), k -> new ArrayList<>());
+                final String varName = rs.getString("varname");
+                if ( varName != null )
+                {
+                    fields.add(new Field(varName, rs.getString("label"), rs.getString("varvalue")));
+                }
+            }
+            SlowQueryLog.record(SQL_GET_ALL_FORMS, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+        return largest;
+    }
+
+    /**
+     * Computes the distribution of the rows of the database table that holds the data forms over rooms. This reads the
+     * amount of rows of every room, and is intended to be used in an administrative report only. As such a report does
+     * not need the most recent data, the data is read from the read-only replica when one is configured (see
+     * {@link ReadReplica}).
+     *
+     * @param max The maximum amount of rooms with the most rows to include.
+     * @return Statistics, or null if these could not be computed.
+     */
+    @Nullable
+    public static TableStatistics retrieveTableStatistics( final int max )
+    {
+        try
+        {
+            return read(Collections.emptyList(), con -> queryTableStatistics(con, max));
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to compute the distribution of rows over rooms in the database.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the amount of rows of every room from the database.
+     *
+     * @param con The database connection to use.
+     * @param max The maximum amount of rooms with the most rows to include.
+     * @return Statistics.
+     * @throws SQLException on any problem querying the database.
+     */
+    @Nonnull
+    private static TableStatistics queryTableStatistics( @Nonnull final Connection con, final int max ) throws SQLException
+    {
+        final TableStatistics.Builder builder = TableStatistics.builder(max);
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_COUNT_ROWS_PER_ROOM);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            int count = 0;
+            while ( rs.next() )
+            {
+                count++;
+                builder.add(new JID(rs.getString(1)), rs.getLong(2));
+            }
+            SlowQueryLog.record(SQL_COUNT_ROWS_PER_ROOM, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reserves a consecutive range of sequence numbers for changes that are about to be recorded in the change feed,
+     * using the connection (and thus the transaction) that is used to record the changes.
+     *
+     * The counter row remains locked until the transaction ends. A transaction that reserves a range therefore waits
+     * until every transaction that reserved an earlier range has committed or rolled back, which makes changes become
+     * visible in the order of their sequence numbers (and prevents gaps when a transaction is rolled back). To keep
+     * that wait short, and to avoid deadlocks, a range is reserved after all other modifications of the transaction have
+     * been applied.
+     *
+     * @param con The database connection that is used to record the changes.
+     * @param count The amount of sequence numbers to reserve (at least one).
+     * @return The first sequence number of the range.
+     * @throws SQLException on any problem writing to the database.
+     */
+    static long reserveChangeSequences( @Nonnull final Connection con, final int count ) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_RESERVE_CHANGES);
+            pstmt.setInt(1, count);
+            final long start = System.nanoTime();
+            if ( pstmt.executeUpdate() != 1 )
+            {
+                throw new SQLException("The table mucextinfo_changeseq does not contain exactly one row.");
+            }
+            SlowQueryLog.record(SQL_RESERVE_CHANGES, 1, start);
+            DbConnectionManager.fastcloseStmt(pstmt);
+
+            pstmt = con.prepareStatement(SQL_GET_RESERVED_CHANGES);
+            rs = pstmt.executeQuery();
+            if ( !rs.next() )
+            {
+                throw new SQLException("The table mucextinfo_changeseq does not contain exactly one row.");
+            }
+            final long first = rs.getLong(1) - count + 1;
+
+            // Until the modification is applied to the cache, a snapshot of the cache must not claim to cover this range.
+            final Object reservation = new Object();
+            unsettledChanges.put(reservation, first);
+            reservedChanges.get().add(reservation);
+            return first;
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+    }
+
+    /**
+     * Marks the ranges of sequence numbers that were reserved by the current thread as settled: the modifications that
+     * they record have been applied to the cached data (or the cached data was purged). This is to be invoked after
+     * every modification that might have reserved a range, including modifications that failed.
+     */
+    static void settleChanges()
+    {
+        final List<Object> reserved = reservedChanges.get();
+        for ( final Object reservation : reserved )
+        {
+            unsettledChanges.remove(reservation);
+        }
+        reserved.clear();
+    }
+
+    /**
+     * Returns the lowest sequence number of a change of which the modification might not yet be applied to the cached
+     * data of this JVM. Such a change can already be committed (and thus be visible in the change feed) while the cache
+     * still holds the data from before the modification.
+     *
+     * @return a sequence number, or {@link Long#MAX_VALUE} if all changes that were recorded by this JVM are settled.
+     */
+    static long getUnsettledChangeSequence()
+    {
+        long result = Long.MAX_VALUE;
+        for ( final long first : unsettledChanges.values() )
+        {
+            result = Math.min(result, first);
+        }
+        return result;
+    }
+
+    /**
+     * Records a modification of a visibility rule in the change feed.
+     *
+     * @see #recordChange(Connection, Change.Type, JID, String, String, String, String, String, VisibilityRule, String)
+     */
+    private static void recordChange( @Nonnull final Connection con, @Nonnull final Change.Type type, @Nonnull final JID room, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, @Nullable final VisibilityRule rule ) throws SQLException
+    {
+        recordChange(con, type, room, null, formTypeName, varName, label, value, rule, null);
+    }
+
+    /**
+     * Records a modification in the change feed, using the connection (and thus the transaction) that is used to apply
+     * the modification itself.
+     *
+     * @param con The database connection that is used to apply the modification.
+     * @param type The kind of modification.
+     * @param room The (normalized) room that is modified.
+     * @param node The service discovery node of the data form that is modified (if any).
+     * @param formTypeName The identifier of the data form that is modified.
+     * @param varName The identifier of the field that is modified, or null if the change applies to the entire form.
+     * @param label The label of the field that is added or set (if any).
+     * @param value The value of the field that is added (if any).
+     * @param rule The visibility rule that is added or removed (if any).
+     * @param language The language of the label that is set or removed (if any).
+     * @throws SQLException on any problem writing to the database.
+     */
+    private static void recordChange( @Nonnull final Connection con, @Nonnull final Change.Type type, @Nonnull final JID room, @Nullable final String node, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value, @Nullable final VisibilityRule rule, @Nullable final String language ) throws SQLException
+    {
+        final long sequence = reserveChangeSequences(con, 1);
+        final PreparedStatement pstmt = con.prepareStatement(SQL_ADD_CHANGE);
+        try
+        {
+            pstmt.setLong(1, sequence);
+            pstmt.setLong(2, System.currentTimeMillis());
+            pstmt.setString(3, type.name());
+            pstmt.setString(4, room.toBareJID());
+            pstmt.setString(5, formTypeName);
+            setNullableString(pstmt, 6, varName);
+            setNullableString(pstmt, 7, label);
+            setNullableString(pstmt, 8, value);
+            setNullableString(pstmt, 9, rule == null ? null : rule.getType().name());
+            setNullableString(pstmt, 10, rule == null ? null : rule.getValue());
+            setNullableString(pstmt, 11, language);
+            setNullableString(pstmt, 12, node);
+            pstmt.setNull(13, Types.VARCHAR);
+            executeUpdate(pstmt, SQL_ADD_CHANGE, room);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(pstmt);
+        }
+    }
+
+    /**
+     * Adds a modification of a data form or field to a batch of {@link #SQL_ADD_CHANGE} statements, to be recorded in
+     * the change feed.
+     *
+     * @param pstmt The statement to add the change to.
+     * @param sequence The sequence number of the change (see {@link #reserveChangeSequences(Connection, int)}).
+     * @param timestamp The moment of the change (in milliseconds since the epoch).
+     * @param type The kind of modification.
+     * @param room The (normalized) room that is modified.
+     * @param node The service discovery node of the data form that is modified (if any).
+     * @param formTypeName The identifier of the data form that is modified.
+     * @param varName The identifier of the field that is modified, or null if the change applies to the entire form.
+     * @param label The label of the field that is added (if any).
+     * @param value The value of the field that is added (if any).
+     * @throws SQLException on any problem preparing the statement.
+     */
+    private static void addChangeToBatch( @Nonnull final PreparedStatement pstmt, final long sequence, final long timestamp, @Nonnull final Change.Type type, @Nonnull final JID room, @Nullable final String node, @Nonnull final String formTypeName, @Nullable final String varName, @Nullable final String label, @Nullable final String value ) throws SQLException
+    {
+        pstmt.setLong(1, sequence);
+        pstmt.setLong(2, timestamp);
+        pstmt.setString(3, type.name());
+        pstmt.setString(4, room.toBareJID());
+        pstmt.setString(5, formTypeName);
+        setNullableString(pstmt, 6, varName);
+        setNullableString(pstmt, 7, label);
+        setNullableString(pstmt, 8, value);
+        for ( int i = 9; i <= 11; i++ )
+        {
+            pstmt.setNull(i, Types.VARCHAR);
+        }
+        setNullableString(pstmt, 12, node);
+        pstmt.setNull(13, Types.VARCHAR);
+        pstmt.addBatch();
+    }
+
+    /**
+     * Executes a statement that modifies the database, recording its duration in {@link SlowQueryLog}.
+     *
+     * @param pstmt The statement to execute.
+     * @param statement The SQL of the statement.
+     * @param room The (normalized) room that is modified, or null if the statement does not apply to a particular room.
+     * @return The amount of rows that were modified.
+     * @throws SQLException on any problem writing to the database.
+     */
+    private static int executeUpdate( @Nonnull final PreparedStatement pstmt, @Nonnull final String statement, @Nullable final JID room ) throws SQLException
+    {
+        final long start = System.nanoTime();
+        final int rows = pstmt.executeUpdate();
+        if ( room == null )
+        {
+            SlowQueryLog.record(statement, rows, start);
+        }
+        else
+        {
+            SlowQueryLog.record(statement, room, rows, start);
+        }
+        return rows;
+    }
+
+    /**
+     * Executes a statement that modifies the data of a number of rooms, recording its duration in {@link SlowQueryLog}.
+     *
+     * @param pstmt The statement to execute.
+     * @param statement The SQL of the statement.
+     * @param rooms The (normalized) rooms that are modified.
+     * @return The amount of rows that were modified.
+     * @throws SQLException on any problem writing to the database.
+     */
+    private static int executeBulkUpdate( @Nonnull final PreparedStatement pstmt, @Nonnull final String statement, @Nonnull final Collection<JID> rooms ) throws SQLException
+    {
+        final long start = System.nanoTime();
+        final int rows = pstmt.executeUpdate();
+        SlowQueryLog.record(statement, rooms, rows, start);
+        return rows;
+    }
+
+    /**
+     * Executes a batch of statements that modify the database, recording its duration in {@link SlowQueryLog}.
+     *
+     * @param pstmt The statement of which to execute the batch.
+     * @param statement The SQL of the statement.
+     * @param rooms The (normalized) rooms that are modified.
+     * @throws SQLException on any problem writing to the database.
+     */
+    private static void executeBatch( @Nonnull final PreparedStatement pstmt, @Nonnull final String statement, @Nonnull final Collection<JID> rooms ) throws SQLException
+    {
+        final long start = System.nanoTime();
+        DbConnectionManager.executeBatch(pstmt);
+        SlowQueryLog.record(statement, rooms, rooms.size(), start);
+    }
+
+    private static void setNullableString( @Nonnull final PreparedStatement pstmt, final int index, @Nullable final String value ) throws SQLException
+    {
+        if ( value == null )
+        {
+            pstmt.setNull(index, Types.VARCHAR);
+        }
+        else
+        {
+            pstmt.setString(index, value);
+        }
+    }
+
+    /**
+     * Retrieves changes from the change feed, in order of their sequence number.
+     *
+     * @param after The sequence number after which to return changes.
+     * @param max The maximum amount of changes to return.
+     * @return The changes (possibly empty).
+     * @throws SQLException on any problem reading from the database.
+     */
+    @Nonnull
+    static List<Change> retrieveChanges( final long after, final int max ) throws SQLException
+    {
+        final List<Change> result = new ArrayList<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_CHANGES);
+            pstmt.setMaxRows(max);
+            pstmt.setLong(1, after);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            while ( rs.next() && result.size() < max )
+            {
+                final String ruleType = rs.getString("ruletype");
+                final VisibilityRule rule = ruleType == null ? null : new VisibilityRule(VisibilityRule.Type.valueOf(ruleType), rs.getString("rulevalue"));
+                final String source = rs.getString("sourceroom");
+                result.add(new Change(
+                    rs.getLong("seq"),
+                    Instant.ofEpochMilli(rs.getLong("changed")),
+                    Change.Type.valueOf(rs.getString("changetype")),
+                    new JID(rs.getString("room")),
+                    rs.getString("node"),
+                    rs.getString("formtypename"),
+                    rs.getString("varname"),
+                    rs.getString("label"),
+                    rs.getString("varvalue"),
+                    rule,
+                    rs.getString("lang"),
+                    source == null ? null : new JID(source)));
+            }
+            SlowQueryLog.record(SQL_GET_CHANGES, result.size(), start);
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sequence number of the most recent change in the change feed.
+     *
+     * @return a sequence number, or 0 if the change feed is empty.
+     * @throws SQLException on any problem reading from the database.
+     */
+    static long retrieveLastChangeSequence() throws SQLException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_LAST_CHANGE);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final long result = rs.next() ? rs.getLong(1) : 0;
+            SlowQueryLog.record(SQL_GET_LAST_CHANGE, 1, start);
+            return result;
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Removes all changes from the change feed that were recorded before a particular moment.
+     *
+     * @param before The moment before which changes are removed.
+     * @return The sequence number of the most recent change that was removed, or 0 if no changes were removed.
+     * @throws SQLException on any problem writing to the database.
+     */
+    static long removeChangesBefore( @Nonnull final Instant before ) throws SQLException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_LAST_EXPIRED_CHANGE);
+            pstmt.setLong(1, before.toEpochMilli());
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final long until = rs.next() ? rs.getLong(1) : 0;
+            SlowQueryLog.record(SQL_GET_LAST_EXPIRED_CHANGE, 1, start);
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+            rs = null;
+
+            if ( until > 0 )
+            {
+                pstmt = con.prepareStatement(SQL_REMOVE_CHANGES_UNTIL);
+                pstmt.setLong(1, until);
+                executeUpdate(pstmt, SQL_REMOVE_CHANGES_UNTIL, null);
+            }
+            return until;
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Removes changes from the change feed that are superseded by a later removal of the same data form. Consumers that
+     * apply the remaining changes in order end up in the same state as consumers that applied all changes.
+     *
+     * @return The amount of data forms for which superseded changes were removed.
+     * @throws SQLException on any problem writing to the database.
+     */
+    static int compactChanges() throws SQLException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_FORM_REMOVAL_CHANGES);
+            long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final List<Object[]> removals = new ArrayList<>();
+            while ( rs.next() )
+            {
+                removals.add(new Object[] { rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(4) });
+            }
+            SlowQueryLog.record(SQL_GET_FORM_REMOVAL_CHANGES, removals.size(), start);
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+            rs = null;
+
+            // Removal of a form for a node supersedes only the changes of that node, as removal of a form without a node
+            // also removes its visibility rules and labels (which are recorded without a node).
+            for ( final boolean nodeScoped : new boolean[] { false, true } )
+            {
+                final String sql = nodeScoped ? SQL_REMOVE_SUPERSEDED_NODE_CHANGES : SQL_REMOVE_SUPERSEDED_CHANGES;
+                pstmt = con.prepareStatement(sql);
+                int batched = 0;
+                for ( final Object[] removal : removals )
+                {
+                    if ( (removal[2] != null) != nodeScoped )
+                    {
+                        continue;
+                    }
+                    pstmt.setString(1, (String) removal[0]);
+                    pstmt.setString(2, (String) removal[1]);
+                    pstmt.setLong(3, (Long) removal[3]);
+                    if ( nodeScoped )
+                    {
+                        pstmt.setString(4, (String) removal[2]);
+                    }
+                    pstmt.addBatch();
+                    batched++;
+                }
+                if ( batched > 0 )
+                {
+                    start = System.nanoTime();
+                    DbConnectionManager.executeBatch(pstmt);
+                    SlowQueryLog.record(sql, batched, start);
+                }
+                DbConnectionManager.fastcloseStmt(pstmt);
+                pstmt = null;
+            }
+            return removals.size();
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Returns the sequence number of the most recent row of the (optional) mucextinfo_dirty table, in which database
+     * triggers record the rooms of which data is modified (see {@link ExternalChangePoller}).
+     *
+     * @return a sequence number, or 0 if the table is empty.
+     * @throws SQLException on any problem reading from the database (including the absence of the table).
+     */
+    static long retrieveLastExternalChangeSequence() throws SQLException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_LAST_EXTERNAL_CHANGE);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final long result = rs.next() ? rs.getLong(1) : 0;
+            SlowQueryLog.record(SQL_GET_LAST_EXTERNAL_CHANGE, 1, start);
+            return result;
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Retrieves rows of the (optional) mucextinfo_dirty table, in order of their sequence number.
+     *
+     * @param after The sequence number after which to return rows.
+     * @param before The sequence number before which to return rows.
+     * @param max The maximum amount of rows to return.
+     * @return The rows (possibly empty).
+     * @throws SQLException on any problem reading from the database (including the absence of the table).
+     */
+    @Nonnull
+    static List<ExternalChangePoller.Entry> retrieveExternalChanges( final long after, final long before, final int max ) throws SQLException
+    {
+        final List<ExternalChangePoller.Entry> result = new ArrayList<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_EXTERNAL_CHANGES);
+            pstmt.setMaxRows(max);
+            pstmt.setLong(1, after);
+            pstmt.setLong(2, before);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            while ( rs.next() && result.size() < max )
+            {
+                result.add(new ExternalChangePoller.Entry(rs.getLong(1), rs.getString(2), rs.getString(3)));
+            }
+            SlowQueryLog.record(SQL_GET_EXTERNAL_CHANGES, result.size(), start);
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all rows from the (optional) mucextinfo_dirty table that were added before a particular moment.
+     *
+     * @param before The moment before which rows are removed.
+     * @return The amount of rows that were removed.
+     * @throws SQLException on any problem writing to the database.
+     */
+    static int removeExternalChangesBefore( @Nonnull final Instant before ) throws SQLException
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_REMOVE_EXTERNAL_CHANGES_BEFORE);
+            pstmt.setTimestamp(1, Timestamp.from(before));
+            return executeUpdate(pstmt, SQL_REMOVE_EXTERNAL_CHANGES_BEFORE, null);
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+    }
+
+    /**
+     * Retrieve the compiled visibility rules that apply to the data forms of one particular MUC room.
+     *
+     * @param room The MUC room for which to return visibility rules.
+     * @return The visibility rules for the room, or {@link Visibility#HIDDEN} if the rules could not be retrieved.
+     */
+    @Nonnull
+    public static Visibility retrieveVisibilityForRoom( @Nonnull JID room )
+    {
+        room = room.asBareJID(); // normalize.
+
+        if ( Boolean.FALSE.equals(rulesExist) )
+        {
+            return Visibility.UNRESTRICTED;
+        }
+
+        final Lock lock = VISIBILITY_BY_ROOM.getLock(room);
+        try
+        {
+            lock.lock();
+
+            final Visibility cached = VISIBILITY_BY_ROOM.get(room);
+            if ( cached != null )
+            {
+                return cached;
+            }
+
+            if ( rulesExist == null )
+            {
+                final long generation = getFlagsGeneration();
+                final boolean exist = countRules() != 0;
+                recordCountedRules(generation, exist);
+                if ( !exist )
+                {
+                    return Visibility.UNRESTRICTED;
+                }
+            }
+
+            final List<Visibility.Assignment> assignments = new ArrayList<>();
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try
+            {
+                con = getConnection();
+                pstmt = con.prepareStatement(SQL_GET_ROOM_RULES);
+                pstmt.setString(1, room.toBareJID());
+                final long start = System.nanoTime();
+                rs = pstmt.executeQuery();
+                int count = 0;
+                while ( rs.next() )
+                {
+                    count++;
+                    final String formTypeName = rs.getString("formtypename");
+                    final String varName = rs.getString("varname");
+                    final String ruleType = rs.getString("ruletype");
+                    final String ruleValue = rs.getString("rulevalue");
+                    try
+                    {
+                        assignments.add(new Visibility.Assignment(formTypeName, varName, new VisibilityRule(VisibilityRule.Type.valueOf(ruleType), ruleValue)));
+                    }
+                    catch ( IllegalArgumentException | NullPointerException e )
+                    {
+                        Log.warn("Ignoring unrecognized visibility rule (type: '{}', value: '{}') for room '{}'.", ruleType, ruleValue, room, e);
+                    }
+                }
+                SlowQueryLog.record(SQL_GET_ROOM_RULES, room, count, start);
+            }
+            catch ( SQLException e )
+            {
+                // Without the rules, it is unknown what data is restricted. Hide all data (without caching that), rather
+                // than disclosing restricted data until the cache entry expires.
+                Log.error("An exception occurred when trying to retrieve all visibility rules for room '{}' in the database. All data of the room is hidden.", room, e);
+                return Visibility.HIDDEN;
+            }
+            finally
+            {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+
+            final Visibility result = Visibility.compile(assignments);
+            VISIBILITY_BY_ROOM.put(room, result);
+            return result;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts all visibility rules in the database.
+     *
+     * @return the amount of rules, or -1 if the amount could not be determined.
+     */
+    private static long countRules()
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_COUNT_RULES);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final long result = rs.next() ? rs.getLong(1) : 0;
+            SlowQueryLog.record(SQL_COUNT_RULES, 1, start);
+            return result;
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to count all visibility rules in the database.", e);
+            return -1;
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Retrieve data forms (that contain 'extended' service discovery information) for one particular MUC room.
+     *
+     * @param room The MUC room for which to return extended service discovery information.
+     * @return The data forms containing the extended service discovery information for the room.
+     */
+    @Nullable
+    public static List<ExtDataForm> retrieveExtensionElementsForRoom( @Nonnull JID room )
+    {
+        return retrieveExtensionElementsForNode(room, null);
+    }
+
+    /**
+     * Retrieve data forms (that contain 'extended' service discovery information) for one particular service discovery
+     * node of a MUC room.
+     *
+     * @param room The MUC room for which to return extended service discovery information.
+     * @param node The service discovery node, or null for the data forms that are returned for requests without a node.
+     * @return The data forms containing the extended service discovery information for the node of the room.
+     */
+    @Nullable
+    public static List<ExtDataForm> retrieveExtensionElementsForNode( @Nonnull JID room, @Nullable final String node )
+    {
+        room = room.asBareJID(); // normalize.
+        final String normalizedNode = normalizeNode(node);
+        final JID key = cacheKey(room, normalizedNode);
+        Log.debug("Get all data forms for room: '{}', node: '{}'", room, normalizedNode);
+
+        final Lock lock = lockCacheKey(key);
+        try
+        {
+            // Try to get a result from the cache.
+            final CachedForms cached = getCached(key);
+            if ( cached != null )
+            {
+                Log.trace("Returning value from cache.");
+                return cached.getForms().get();
+            }
+
+            // No result in cache? Retrieve a result from the database (and add that to cache for future lookups).
+            final long generation = getGeneration(key);
+            final JID toRead = room;
+            final ConcurrentMap<String, ArrayList<Field>> rows;
+            try
+            {
+                rows = read(Collections.singleton(room), con -> queryRoomForms(con, toRead, normalizedNode));
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to retrieve all data forms for room '{}', node '{}' in the database.", room, normalizedNode, e);
+
+                // Do not cache the failure: the data is retrieved again on the next request.
+                return retrieveFallback(key);
+            }
+
+            // Transform the raw database results into DataForm instances.
+            final ArrayList<ExtDataForm> formsForRoom = rowsToDataForms(rows);
+
+            // Record the end result in the cache.
+            putCached(key, new CachedForms(generation, CacheableOptional.of(formsForRoom)));
+
+            return formsForRoom;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the service discovery nodes for which data forms are defined for a room.
+     *
+     * @param room The MUC room for which to return nodes.
+     * @return The nodes, in alphabetical order (possibly empty).
+     */
+    @Nonnull
+    public static List<String> retrieveNodes( @Nonnull JID room )
+    {
+        room = room.asBareJID(); // normalize.
+        final List<String> result = new ArrayList<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = getConnection();
+            pstmt = con.prepareStatement(SQL_GET_ROOM_NODES);
+            pstmt.setString(1, room.toBareJID());
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            while ( rs.next() )
+            {
+                result.add(rs.getString(1));
+            }
+            SlowQueryLog.record(SQL_GET_ROOM_NODES, room, result.size(), start);
+        }
+        catch ( SQLException e )
+        {
+            Log.error("An exception occurred when trying to retrieve the nodes of room '{}' in the database.", room, e);
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Normalizes a service discovery node, treating blank values as the absence of a node.
+     *
+     * @param node A node (can be null).
+     * @return The node, or null.
+     */
+    @Nullable
+    static String normalizeNode( @Nullable final String node )
+    {
+        return node == null || node.trim().isEmpty() ? null : node;
+    }
+
+    /**
+     * Returns the key under which the data forms of a (normalized) room and service discovery node are cached.
+     *
+     * Data forms of a room for requests without a node are cached under the bare address of the room, which keeps the
+     * lookup for the most common requests unchanged. Data forms of a node are cached under the address of the room of
+     * which the resource part is the node. As the addresses of rooms never have a resource part, these keys cannot
+     * collide.
+     *
+     * @param room The (normalized) room.
+     * @param node The (normalized) node, or null.
+     * @return A cache key.
+     */
+    @Nonnull
+    static JID cacheKey( @Nonnull final JID room, @Nullable final String node )
+    {
+        return node == null ? room : new JID(room.getNode(), room.getDomain(), node, true);
+    }
+
+    /**
+     * Queries the database for the highest position of the rows of a room. Positions only order the rows within a room,
+     * which allows the positions of added rows to be computed from this value, rather than drawn from a shared sequence.
+     *
+     * @param con The database connection to use (which should be the connection that is used to add rows).
+     * @param room The (normalized) room for which to query the position.
+     * @return The highest position, or zero when the room has no rows.
+     * @throws SQLException on any problem querying the database.
+     */
+    private static long queryLastPosition( @Nonnull final Connection con, @Nonnull final JID room ) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_GET_LAST_POSITION);
+            pstmt.setString(1, room.toBareJID());
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final long result = rs.next() ? rs.getLong(1) : 0;
+            SlowQueryLog.record(SQL_GET_LAST_POSITION, room, 1, start);
+            return result;
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+    }
+
+    /**
+     * Queries the database for the data of one room.
+     *
+     * @param con The database connection to use.
+     * @param room The (normalized) room for which to query data.
+     * @param node The (normalized) service discovery node for which to query data, or null for data without a node.
+     * @return The rows for the room, grouped by form type name.
+     * @throws SQLException on any problem querying the database.
+     */
+    @Nonnull
+    private static ConcurrentMap<String, ArrayList<Field>> queryRoomForms( @Nonnull final Connection con, @Nonnull final JID room, @Nullable final String node ) throws SQLException
+    {
+        // Forms are ordered by name, fields and values in the order of their rows (see ExtDataForm).
+        final ConcurrentMap<String, ArrayList<Field>> rows = new ConcurrentSkipListMap<>();
+        final String sql = node == null ? SQL_GET_ROOM_FORMS : SQL_GET_NODE_FORMS;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(sql);
+            pstmt.setString(1, room.toBareJID());
+            if ( node != null )
+            {
+                pstmt.setString(2, node);
+            }
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            retrievalQueryCount.incrementAndGet();
+            retrievedRoomCount.incrementAndGet();
+            int count = 0;
+            while ( rs.next() )
+            {
+                count++;
+                // formtypename, varname, label, varvalue
+                final String formTypeName = rs.getString("formtypename");
+                final String varName = rs.getString("varname");
+                final String label = rs.getString("label");
+                final String value = rs.getString("varvalue");
+
+                // Ensure that there's a key in 'rows' for this current form. If nothing else, that can be used to
+                // return an empty form later.
+                final ArrayList<Field> fieldsForForm = rows.computeIfAbsent(formTypeName, s -> new ArrayList<>());
+
+                // If there's a field in the database, add that to the form.
+                if ( varName != null )
+                {
+                    fieldsForForm.add(new Field(varName, label, value));
+                }
+            }
+            SlowQueryLog.record(sql, room, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+
+        // Localized labels apply to the data forms that are returned for requests without a node.
+        if ( node == null && !rows.isEmpty() && labelsMightExist(con) )
+        {
+            queryRoomLabels(con, room, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Queries the database for the localized labels of one room, and adds these to the rows of that room.
+     *
+     * @param con The database connection to use.
+     * @param room The (normalized) room for which to query labels.
+     * @param rows The rows of the room, grouped by form type name.
+     * @throws SQLException on any problem querying the database.
+     */
+    private static void queryRoomLabels( @Nonnull final Connection con, @Nonnull final JID room, @Nonnull final ConcurrentMap<String, ArrayList<Field>> rows ) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_GET_ROOM_LABELS);
+            pstmt.setString(1, room.toBareJID());
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            retrievalQueryCount.incrementAndGet();
+            int count = 0;
+            while ( rs.next() )
+            {
+                count++;
+                addLabelRow(rows.get(rs.getString("formtypename")), rs.getString("varname"), rs.getString("lang"), rs.getString("label"));
+            }
+            SlowQueryLog.record(SQL_GET_ROOM_LABELS, room, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+    }
+
+    /**
+     * Adds a localized label to the rows of a form, as a field without values that is merged with the field that it
+     * applies to. Labels for fields that do not exist are ignored.
+     *
+     * @param fields The rows of a form (can be null, when the form does not exist).
+     * @param varName The identifier of the field.
+     * @param language The language of the label.
+     * @param label The label.
+     */
+    static void addLabelRow( @Nullable final ArrayList<Field> fields, @Nonnull final String varName, @Nonnull final String language, @Nonnull final String label )
+    {
+        if ( fields != null && fields.stream().anyMatch(field -> field.getVarName().equals(varName)) )
+        {
+            fields.add(Field.builder(varName).localizedLabel(language, label).build());
+        }
+    }
+
+    /**
+     * Determines if localized labels might exist in the database. The result is determined once, and reused until a
+     * label is added or the cache is purged.
+     *
+     * @param con The database connection to use.
+     * @return false if it is certain that no labels exist, otherwise true.
+     * @throws SQLException on any problem querying the database.
+     */
+    private static boolean labelsMightExist( @Nonnull final Connection con ) throws SQLException
+    {
+        final Boolean known = labelsExist;
+        if ( known != null )
+        {
+            return known;
+        }
+
+        final long generation = getFlagsGeneration();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(SQL_COUNT_LABELS);
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            final boolean result = rs.next() && rs.getLong(1) != 0;
+            SlowQueryLog.record(SQL_COUNT_LABELS, 1, start);
+            recordCountedLabels(generation, result);
+            return result;
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+    }
+
+    /**
+     * Queries the database for the data of a number of rooms, in one query.
+     *
+     * @param con The database connection to use.
+     * @param rooms The (normalized) rooms for which to query data.
+     * @return The rows for each room (that has data), grouped by form type name.
+     * @throws SQLException on any problem querying the database.
+     */
+    @Nonnull
+    private static Map<JID, ConcurrentMap<String, ArrayList<Field>>> queryRoomsForms( @Nonnull final Connection con, @Nonnull final List<JID> rooms ) throws SQLException
+    {
+        final Map<JID, ConcurrentMap<String, ArrayList<Field>>> rowsByRoom = new HashMap<>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(String.format(SQL_GET_ROOMS_FORMS, String.join(", ", Collections.nCopies(rooms.size(), "?"))));
+            for ( int i = 0; i < rooms.size(); i++ )
+            {
+                pstmt.setString(i + 1, rooms.get(i).toBareJID());
+            }
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            retrievalQueryCount.incrementAndGet();
+            retrievedRoomCount.addAndGet(rooms.size());
+            int count = 0;
+            while ( rs.next() )
+            {
+                count++;
+                // room, formtypename, varname, label, varvalue
+                final JID room = new JID(rs.getString("room"));
+                final String formTypeName = rs.getString("formtypename");
+                final String varName = rs.getString("varname");
+                final String label = rs.getString("label");
+                final String value = rs.getString("varvalue");
+
+                final ArrayList<Field> fieldsForForm = rowsByRoom.computeIfAbsent(room, r -> new ConcurrentSkipListMap<>()).computeIfAbsent(formTypeName, s -> new ArrayList<>());
+                if ( varName != null )
+                {
+                    fieldsForForm.add(new Field(varName, label, value));
+                }
+            }
+            SlowQueryLog.record(SQL_GET_ROOMS_FORMS, rooms, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+
+        if ( !rowsByRoom.isEmpty() && labelsMightExist(con) )
+        {
+            queryRoomsLabels(con, rooms, rowsByRoom);
+        }
+        return rowsByRoom;
+    }
+
+    /**
+     * Queries the database for the localized labels of a number of rooms (in one query), and adds these to the rows of
+     * those rooms.
+     *
+     * @param con The database connection to use.
+     * @param rooms The (normalized) rooms for which to query labels.
+     * @param rowsByRoom The rows of each room, grouped by form type name.
+     * @throws SQLException on any problem querying the database.
+     */
+    private static void queryRoomsLabels( @Nonnull final Connection con, @Nonnull final List<JID> rooms, @Nonnull final Map<JID, ConcurrentMap<String, ArrayList<Field>>> rowsByRoom ) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            pstmt = con.prepareStatement(String.format(SQL_GET_ROOMS_LABELS, String.join(", ", Collections.nCopies(rooms.size(), "?"))));
+            for ( int i = 0; i < rooms.size(); i++ )
+            {
+                pstmt.setString(i + 1, rooms.get(i).toBareJID());
+            }
+            final long start = System.nanoTime();
+            rs = pstmt.executeQuery();
+            retrievalQueryCount.incrementAndGet();
+            int count = 0;
+            while ( rs.next() )
+            {
+                count++;
+                final ConcurrentMap<String, ArrayList<Field>> rows = rowsByRoom.get(new JID(rs.getString("room")));
+                if ( rows != null )
+                {
+                    addLabelRow(rows.get(rs.getString("formtypename")), rs.getString("varname"), rs.getString("lang"), rs.getString("label"));
+                }
+            }
+            SlowQueryLog.record(SQL_GET_ROOMS_LABELS, rooms, count, start);
+        }
+        finally
+        {
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+        }
+    }
+
+    /**
+     * A database operation that uses a connection.
+     *
+     * @param <T> The type of the result of the operation.
+     */
+    @FunctionalInterface
+    private interface SqlQuery<T>
+    {
+        T execute( @Nonnull Connection con ) throws SQLException;
+    }
+
+    /**
+     * Performs a read-only database operation for a number of rooms. When a read-only replica is configured (see
+     * {@link ReadReplica}) and none of the rooms have recently been modified, the operation is performed on the replica.
+     * When that fails, or when the replica is not used, the operation is performed on the primary database.
+     *
+     * @param rooms The (normalized) rooms for which data is read.
+     * @param query The operation to perform.
+     * @param <T> The type of the result of the operation.
+     * @return The result of the operation.
+     * @throws SQLException on any problem querying the primary database.
+     */
+    private static <T> T read( @Nonnull final Collection<JID> rooms, @Nonnull final SqlQuery<T> query ) throws SQLException
+    {
+        final ReadReplica replica = ReadReplica.getInstance();
+        if ( replica.isEligible(rooms) )
+        {
+            Connection con = null;
+            try
+            {
+                con = replica.getConnection();
+                final T result = query.execute(con);
+                replica.reportSuccess();
+                return result;
+            }
+            catch ( SQLException e )
+            {
+                replica.reportFailure(e);
+            }
+            finally
+            {
+                DbConnectionManager.closeConnection(con);
+            }
+        }
+
+        Connection con = null;
+        try
+        {
+            con = getConnection();
+            return query.execute(con);
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    /**
+     * Retrieve data forms (that contain 'extended' service discovery information) for a collection of MUC rooms.
+     *
+     * Rooms for which data is cached are served from the cache. Data for all other rooms is retrieved from the database
+     * using as few queries as the database dialect allows, after which it is added to the cache. This allows callers
+     * to pre-load data for rooms that are likely to be queried in the near future, saving database round trips.
+     *
+     * @param rooms The MUC rooms for which to return extended service discovery information.
+     * @return The data forms for each of the rooms (a room without data forms is mapped to null).
+     */
+    @Nonnull
+    public static Map<JID, List<ExtDataForm>> retrieveExtensionElementsForRooms( @Nonnull final Collection<JID> rooms )
+    {
+        final Map<JID, List<ExtDataForm>> result = new HashMap<>();
+
+        // Normalize, and sort to ensure that locks are always acquired in the same order (which prevents deadlocks).
+        final SortedSet<JID> toLoad = new TreeSet<>();
+        for ( final JID room : rooms )
+        {
+            final JID bareJID = room.asBareJID();
+            // The off-heap cache is consulted by loadChunk, under the lock of the room.
+            final CachedForms cached = partitionOf(bareJID).get(bareJID);
+            if ( cached != null && cached.getGeneration() == getGeneration(bareJID) )
+            {
+                cached.markAccessed();
+                result.put(bareJID, cached.getForms().get());
+            }
+            else
+            {
+                toLoad.add(bareJID);
+            }
+        }
+        Log.debug("Get all data forms for {} rooms, of which {} are not cached.", rooms.size(), toLoad.size());
+
+        for ( final List<JID> chunk : partition(new ArrayList<>(toLoad), getEffectiveBatchSize()) )
+        {
+            result.putAll(loadChunk(chunk));
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves data from the database for a chunk of rooms (in one query), and adds that to the cache.
+     *
+     * Whilst the database is queried, the cache locks of all rooms are held, to prevent changes that are made
+     * concurrently from being overwritten by stale data.
+     *
+     * @param chunk The (sorted, normalized) rooms for which to load data.
+     * @return The data forms for each of the rooms (a room without data forms is mapped to null).
+     */
+    @Nonnull
+    private static Map<JID, List<ExtDataForm>> loadChunk( @Nonnull final List<JID> chunk )
+    {
+        final Map<JID, List<ExtDataForm>> result = new HashMap<>();
+        final List<Lock> locks = new ArrayList<>(chunk.size());
+        try
+        {
+            for ( final JID room : chunk )
+            {
+                locks.add(lockCacheKey(room));
+            }
+
+            // Another thread might have populated the cache while locks were being acquired.
+            final List<JID> toLoad = new ArrayList<>(chunk.size());
+            final Map<JID, Long> generationsToLoad = new HashMap<>();
+            for ( final JID room : chunk )
+            {
+                final CachedForms cached = getCached(room);
+                if ( cached != null )
+                {
+                    result.put(room, cached.getForms().get());
+                }
+                else
+                {
+                    toLoad.add(room);
+                    generationsToLoad.put(room, getGeneration(room));
+                }
+            }
+
+            if ( toLoad.isEmpty() )
+            {
+                return result;
+            }
+
+            final Map<JID, ConcurrentMap<String, ArrayList<Field>>> rowsByRoom;
+            try
+            {
+                rowsByRoom = read(toLoad, con -> queryRoomsForms(con, toLoad));
+            }
+            catch ( SQLException e )
+            {
+                Log.error("An exception occurred when trying to retrieve all data forms for {} rooms in the database.", toLoad.size(), e);
+
+                // Do not cache the failure: the data is retrieved again on the next request.
+                for ( final JID room : toLoad )
+                {
+                    result.put(room, retrieveFallback(room));
+                }
+                return result;
+            }
+
+            // Record the end result in the cache, including the rooms for which no data exists.
+            for ( final JID room : toLoad )
+            {
+                final ArrayList<ExtDataForm> formsForRoom = rowsToDataForms(rowsByRoom.get(room));
+                putCached(room, new CachedForms(generationsToLoad.get(room), CacheableOptional.of(formsForRoom)));
+                result.put(room, formsForRoom);
+            }
+            return result;
+        }
+        finally
+        {
+            for ( final Lock lock : locks )
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum amount of rooms for which data can be retrieved in one query, taking into account
+     * limitations of the database that is in use.
+     *
+     * @return a positive number.
+     */
+    static int getEffectiveBatchSize()
+    {
+        final int configured = BATCH_SIZE.getValue();
+        switch ( DbConnectionManager.getDatabaseType() )
+        {
+            case oracle:
+                // Oracle does not allow more than 1000 expressions in a list (ORA-01795).
+                return Math.min(configured, 1000);
+            case sqlserver:
+                // SQL Server does not allow more than 2100 parameters in a statement.
+                return Math.min(configured, 2000);
+            default:
+                return configured;
+        }
+    }
+
+    /**
+     * Splits a list into consecutive sublists, each of which (apart from perhaps the last) is of the provided size.
+     *
+     * @param list The list to split.
+     * @param size The maximum size of each sublist.
+     * @return The sublists.
+     */
+    @Nonnull
+    static <E> List<List<E>> partition( @Nonnull final List<E> list, final int size )
+    {
+        if ( size < 1 )
+        {
+            throw new IllegalArgumentException("Argument 'size' must be a positive number, but was: " + size);
+        }
+        final List<List<E>> result = new ArrayList<>();
+        for ( int i = 0; i < list.size(); i += size )
+        {
+            result.add(list.subList(i, Math.min(list.size(), i + size)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a number that changes whenever the data forms that are defined for a MUC service (as opposed to those of
+     * its rooms) are modified. This allows derived data to be kept until the service-level data forms are modified.
+     *
+     * Service-level data forms are stored and retrieved using the address of the service (which, unlike room
+     * addresses, has no node part) in place of the address of a room.
+     *
+     * @param serviceDomain The domain of the MUC service.
+     * @return A version number of the service-level data forms.
+     */
+    public static long getServiceDefaultsVersion( @Nonnull final String serviceDomain )
+    {
+        return serviceDefaultsVersions.computeIfAbsent(serviceDomain, s -> new AtomicLong()).get();
+    }
+
+    /**
+     * Checks if data for a particular room is available in the cache.
+     *
+     * @param room The room for which to check the cache.
+     * @return true if data for the room is cached, otherwise false.
+     */
+    public static boolean isCached( @Nonnull final JID room )
+    {
+        final JID key = room.asBareJID();
+        final CachedForms cached = partitionOf(key).get(key);
+        return ( cached != null && cached.getGeneration() == getGeneration(key) ) || OffHeapCache.getInstance().containsKey(key);
+    }
+
+    /**
+     * Returns the amount of rooms for which data forms are cached.
+     *
+     * @return a room count.
+     */
+    static int getCachedRoomCount()
+    {
+        return CachePartitions.getInstance().size();
+    }
+
+    /**
+     * Returns the amount of database queries that were used to retrieve data forms since the plugin was loaded.
+     *
+     * @return a query count.
+     */
+    public static long getRetrievalQueryCount()
+    {
+        return retrievalQueryCount.get();
+    }
+
+    /**
+     * Returns the amount of rooms for which data forms were retrieved from the database since the plugin was loaded.
+     * When this number is larger than {@link #getRetrievalQueryCount()}, batched retrieval saved database round trips.
+     *
+     * @return a room count.
+     */
+    public static long getRetrievedRoomCount()
+    {
+        return retrievedRoomCount.get();
+    }
+
+    /**
+     * Marshalls raw database results into DataForm instances.
+     *
+     * The provided input is expected to relate to exactly one MUC room. The behavior of this class is unspecified if
      * data for more than one room is provided.
      *
-     * @param rows the database results.
-     * @return The DataForm instances parsed from the database.
+     * @param rows the database results.
+     * @return The DataForm instances parsed from the database.
+     */
+    @Nullable
+    static ArrayList<ExtDataForm> rowsToDataForms( @Nullable final ConcurrentMap<String, ArrayList<Field>> rows )
+    {
+        if ( rows == null || rows.isEmpty() )
+        {
+            return null;
+        }
+
+        // Marshall 'rows' into DataForm instances. Multi-valued fields (rows that share a varName) are condensed into
+        // one field by the ExtDataForm constructor.
+        final ArrayList<ExtDataForm> result = new ArrayList<>(rows.size());
+        for ( final Map.Entry<String, ArrayList<Field>> entry : rows.entrySet() )
+        {
+            result.add(new ExtDataForm(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the partition of the cache of data forms in which data for a key is stored (see {@link CachePartitions}).
+     *
+     * @param key The cache key.
+     * @return The partition of the service of the key.
+     */
+    @Nonnull
+    private static Cache<JID, CachedForms> partitionOf( @Nonnull final JID key )
+    {
+        return CachePartitions.getInstance().get(key);
+    }
+
+    /**
+     * Acquires the cache lock of a key, which must be held while the cached data of the key is modified. A partition of
+     * the cache can be dropped (see {@link CachePartitions#reconcile(Collection)}) while a thread waits for the lock of
+     * one of its keys. The partition is therefore looked up again after the lock has been acquired, and when it was
+     * replaced in the meantime, the lock of the key in the current partition is acquired instead.
+     *
+     * @param key The cache key.
+     * @return The lock, which is held by the calling thread.
+     */
+    @Nonnull
+    static Lock lockCacheKey( @Nonnull final JID key )
+    {
+        while ( true )
+        {
+            final Cache<JID, CachedForms> partition = partitionOf(key);
+            final Lock lock = partition.getLock(key);
+            lock.lock();
+            if ( partitionOf(key) == partition )
+            {
+                return lock;
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the cached data forms for a key. When these are not in the (on-heap) cache, but are in the
+     * {@link OffHeapCache}, they are decoded and added to the on-heap cache. Must be called while holding the cache
+     * lock of the key, to prevent stale data from being promoted while the data is being modified.
+     *
+     * Cached data that was loaded before the generation of its room was advanced is removed, and not returned.
+     *
+     * @param key The cache key.
+     * @return The cached data forms, or null when nothing (current) is cached for the key.
      */
     @Nullable
-    static ArrayList<ExtDataForm> rowsToDataForms( @Nullable final ConcurrentMap<String, ArrayList<Field>> rows )
+    private static CachedForms getCached( @Nonnull final JID key )
     {
-        if ( rows == null || rows.isEmpty() )
+        CachedForms result = partitionOf(key).get(key);
+        final boolean onHeap = result != null;
+        if ( !onHeap )
+        {
+            result = OffHeapCache.getInstance().get(key);
+        }
+        if ( result == null )
+        {
+            return null;
+        }
+        if ( result.getGeneration() != getGeneration(key) )
+        {
+            Log.trace("Discarding cached data of '{}' that was loaded before the room was modified.", key);
+            partitionOf(key).remove(key);
+            OffHeapCache.getInstance().remove(key);
+            return null;
+        }
+        if ( !onHeap )
+        {
+            partitionOf(key).put(key, result);
+        }
+        result.markAccessed();
+        return result;
+    }
+
+    /**
+     * Caches data forms for a key, in the on-heap cache as well as in the {@link OffHeapCache} (when it is in use).
+     *
+     * @param key The cache key.
+     * @param value The data forms to cache.
+     */
+    private static void putCached( @Nonnull final JID key, @Nonnull final CachedForms value )
+    {
+        partitionOf(key).put(key, value);
+        OffHeapCache.getInstance().put(key, value);
+    }
+
+    /**
+     * Returns the last-known data forms for a key, as recorded by the {@link Snapshot}, for use when the data can't be
+     * retrieved from the database.
+     *
+     * @param key The cache key.
+     * @return The data forms, or null when there are none (or when none are known).
+     */
+    @Nullable
+    private static ArrayList<ExtDataForm> retrieveFallback( @Nonnull final JID key )
+    {
+        final CacheableOptional<ArrayList<ExtDataForm>> fallback = Snapshot.getInstance().get(key);
+        if ( fallback == null )
         {
             return null;
         }
+        Log.debug("Returning last-known data forms of '{}' from the snapshot.", key);
+        return fallback.get();
+    }
+
+    /**
+     * Adds data forms (eg: read from a {@link Snapshot}) to the cache, unless data is already cached for the key.
+     *
+     * @param key The cache key.
+     * @param forms The data forms (absent for a room without data forms).
+     * @return true if the data forms were added to the cache, otherwise false.
+     */
+    static boolean restoreCached( @Nonnull final JID key, @Nonnull final CacheableOptional<ArrayList<ExtDataForm>> forms )
+    {
+        final Lock lock = lockCacheKey(key);
+        try
+        {
+            if ( getCached(key) != null )
+            {
+                return false;
+            }
+            putCached(key, new CachedForms(getGeneration(key), forms));
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
 
-        // Marshall 'rows' into DataForm instances.
-        final ConcurrentMap<String, ExtDataForm> result = new ConcurrentHashMap<>();
-        for ( final Map.Entry<String, ArrayList<Field>> entry : rows.entrySet() )
+    /**
+     * Passes each entry of the (on-heap) cache to a consumer, excluding entries that are no longer current.
+     *
+     * @param consumer Receives the cache key and the data forms (null for a room without data forms) of each entry.
+     */
+    static void forEachCached( @Nonnull final BiConsumer<JID, List<ExtDataForm>> consumer )
+    {
+        for ( final Cache<JID, CachedForms> partition : CachePartitions.getInstance().getPartitions().values() )
+        {
+            for ( final Map.Entry<JID, CachedForms> entry : partition.entrySet() )
+            {
+                final CachedForms cached = entry.getValue();
+                if ( cached != null && cached.getGeneration() == getGeneration(entry.getKey()) )
+                {
+                    consumer.accept(entry.getKey(), cached.getForms().get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached data of a room, including that of its nodes.
+     *
+     * @param room The (bare) address of the room.
+     */
+    static void discardCached( @Nonnull final JID room )
+    {
+        advanceGeneration(room);
+        purgeCache(room);
+    }
+
+    /**
+     * Applies a change to the cached data forms of a room, replacing the cached list with a patched copy. When no data
+     * is cached for the room, or when the patch cannot determine the new state, the cache is purged instead (causing
+     * the data to be reloaded from the database when it is next retrieved).
+     *
+     * @param room The room for which to update the cached entry.
+     * @param patch A function that returns a patched copy of the data forms, or null if the new state can't be determined.
+     * @param purgeVisibility true if the cached visibility rules of the room are affected by the change.
+     */
+    private static void patchCache( @Nonnull final JID room, @Nonnull final Function<List<ExtDataForm>, List<ExtDataForm>> patch, final boolean purgeVisibility )
+    {
+        Snapshot.getInstance().invalidate(room);
+        final Lock lock = lockCacheKey(room);
+        try
+        {
+            final CachedForms cached = getCached(room);
+            final List<ExtDataForm> patched = cached == null ? null : patch.apply(cached.getForms().isPresent() ? cached.getForms().get() : Collections.emptyList());
+            if ( patched == null )
+            {
+                Log.trace("Unable to patch cached data for room '{}'. Purging the cache instead.", room);
+                purgeCache(room);
+                return;
+            }
+
+            // Like data that is loaded from the database, a room without data forms is cached as an empty optional. The
+            // patched data retains the generation of the data that it was derived from.
+            putCached(room, new CachedForms(cached.getGeneration(), CacheableOptional.of(patched.isEmpty() ? null : new ArrayList<>(patched))));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( room.getNode() == null && room.getResource() == null )
+        {
+            // Data for the service, rather than for one of its rooms.
+            serviceDefaultsVersions.computeIfAbsent(room.getDomain(), s -> new AtomicLong()).incrementAndGet();
+        }
+
+        if ( purgeVisibility )
+        {
+            purgeVisibilityCache(room.asBareJID());
+        }
+    }
+
+    /**
+     * Returns a copy of the provided data forms, that includes an (empty) data form by the provided name, if such a form
+     * did not exist already. This mirrors the effect of {@link #addForm(JID, String)} on the database, which includes
+     * that data forms are ordered by their name.
+     *
+     * @param forms The data forms to patch (which are not modified).
+     * @param formTypeName The identifier of the data form that is added.
+     * @return The patched data forms.
+     */
+    @Nonnull
+    static List<ExtDataForm> patchAddForm( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms);
+        if ( forms.stream().noneMatch(form -> form.getFormTypeName().equals(formTypeName)) )
+        {
+            result.add(insertionPoint(result, formTypeName), new ExtDataForm(formTypeName));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the provided data forms, from which the data form by the provided name is removed. This mirrors
+     * the effect of {@link #removeForm(JID, String)} on the database.
+     *
+     * @param forms The data forms to patch (which are not modified).
+     * @param formTypeName The identifier of the data form that is removed.
+     * @return The patched data forms.
+     */
+    @Nonnull
+    static List<ExtDataForm> patchRemoveForm( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms);
+        result.removeIf(form -> form.getFormTypeName().equals(formTypeName));
+        return result;
+    }
+
+    /**
+     * Returns a copy of the provided data forms, in which the provided field is added to the data form by the provided
+     * name. When the form does not exist, it is created. When a field by the same name exists, their values are merged.
+     * This mirrors the effect of {@link #addField(JID, String, String, String, String)} on the database: a new field is
+     * added after all existing fields, and a new value after all existing values of the field.
+     *
+     * @param forms The data forms to patch (which are not modified).
+     * @param formTypeName The identifier of the data form to which the field is added.
+     * @param field The field to add (with blank label and value normalized to null).
+     * @return The patched data forms.
+     */
+    @Nonnull
+    static List<ExtDataForm> patchAddField( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName, @Nonnull final Field field )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms);
+        for ( int i = 0; i < result.size(); i++ )
         {
-            final String formTypeName = entry.getKey();
-            final ArrayList<Field> fields = entry.getValue();
+            final ExtDataForm form = result.get(i);
+            if ( form.getFormTypeName().equals(formTypeName) )
+            {
+                result.set(i, ExtDataForm.builder(formTypeName).addFields(form.getFields()).addField(field).build());
+                return result;
+            }
+        }
+        result.add(insertionPoint(result, formTypeName), ExtDataForm.builder(formTypeName).addField(field).build());
+        return result;
+    }
 
-            // Get the data form for this row, create a new one if none exists yet.
-            final ExtDataForm dataForm = result.computeIfAbsent(formTypeName, ExtDataForm::new);
+    /**
+     * Returns the index at which a data form by the provided name is to be inserted in a list of data forms that is
+     * ordered by name, as data forms are when they are loaded from the database.
+     *
+     * @param forms Data forms, ordered by name.
+     * @param formTypeName The identifier of the data form that is to be inserted.
+     * @return an index in the list.
+     */
+    static int insertionPoint( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName )
+    {
+        int index = forms.size();
+        while ( index > 0 && forms.get(index - 1).getFormTypeName().compareTo(formTypeName) > 0 )
+        {
+            index--;
+        }
+        return index;
+    }
 
-            // Group fields by varName. Multi-valued fields will result in a mapped value of more than one element.
-            final Map<String, List<Field>> groupedByVarName = fields.stream().collect(Collectors.groupingBy(Field::getVarName));
+    /**
+     * Returns a copy of the provided data forms, in which the label of a field for a particular language is set (or
+     * removed). This mirrors the effect of {@link #setLabel(JID, String, String, String, String)} and
+     * {@link #removeLabel(JID, String, String, String)} on the cached data. When the field does not exist, the data forms
+     * are returned unchanged, as labels of fields that do not exist are not loaded from the database either.
+     *
+     * @param forms The data forms to patch.
+     * @param formTypeName The identifier of the data form to be modified.
+     * @param varName The identifier of the field to be modified.
+     * @param language The (normalized) language of the label.
+     * @param label The label, or null to remove the label for the language.
+     * @return The patched data forms.
+     */
+    @Nonnull
+    static List<ExtDataForm> patchSetLabel( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName, @Nonnull final String varName, @Nonnull final String language, @Nullable final String label )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms);
+        for ( int i = 0; i < result.size(); i++ )
+        {
+            final ExtDataForm form = result.get(i);
+            if ( form.getFormTypeName().equals(formTypeName) && form.getField(varName) != null )
+            {
+                final List<Field> fields = new ArrayList<>(form.getFields());
+                fields.replaceAll(field -> field.getVarName().equals(varName) ? field.withLocalizedLabel(language, label) : field);
+                result.set(i, new ExtDataForm(formTypeName, fields));
+                break;
+            }
+        }
+        return result;
+    }
 
-            // Merge/condense each multi-valued field into one.
-            for ( final Map.Entry<String, List<Field>> groupedEntry : groupedByVarName.entrySet() )
+    /**
+     * Returns a copy of the provided data forms, in which the field by the provided name is removed from the data form
+     * by the provided name. This mirrors the effect of {@link #removeField(JID, String, String)} on the database.
+     *
+     * When the field is the last field of the form, the new state cannot be determined from the cached data: the form
+     * will continue to exist in the database only if it was explicitly added by {@link #addForm(JID, String)}. In that
+     * case, this method returns null.
+     *
+     * @param forms The data forms to patch (which are not modified).
+     * @param formTypeName The identifier of the data form from which the field is removed.
+     * @param varName The identifier of the field to remove.
+     * @return The patched data forms, or null if the result cannot be determined.
+     */
+    @Nullable
+    static List<ExtDataForm> patchRemoveField( @Nonnull final List<ExtDataForm> forms, @Nonnull final String formTypeName, @Nonnull final String varName )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms);
+        for ( int i = 0; i < result.size(); i++ )
+        {
+            final ExtDataForm form = result.get(i);
+            if ( form.getFormTypeName().equals(formTypeName) && form.getField(varName) != null )
             {
-                final String varName = groupedEntry.getKey();
-                final List<Field> unmergedFields = groupedEntry.getValue();
-                final Field mergedField;
-                if ( unmergedFields == null || unmergedFields.isEmpty() )
+                if ( form.getFields().size() == 1 )
                 {
-                    mergedField = new Field(varName, null);
+                    return null;
                 }
-                else
+                final ExtDataForm.Builder builder = ExtDataForm.builder(formTypeName);
+                for ( final Field field : form.getFields() )
                 {
-                    final List<String> values = new ArrayList<>();
-                    for ( final Field f : unmergedFields )
+                    if ( !field.getVarName().equals(varName) )
                     {
-                        final String[] v = f.getValues();
-                        if ( v != null && v.length > 0 )
-                        {
-                            values.addAll(Arrays.asList(v));
-                        }
+                        builder.addField(field);
                     }
-
-                    // Remove any 'null' values.
-                    values.removeIf(Objects::isNull);
-
-                    mergedField = new Field(varName, unmergedFields.get(0).getLabel(), values.toArray(new String[0]));
                 }
-
-                // Add the condensed field to the data form.
-                dataForm.getFields().add(mergedField);
+                result.set(i, builder.build());
+                return result;
             }
         }
-
-        return new ArrayList<>(result.values());
+        return result;
     }
 
     /**
@@ -389,16 +3306,54 @@ public class DAO
      */
     protected static void purgeCache( @Nonnull JID room )
     {
-        final Lock lock = EXTENSIONS_BY_ROOM.getLock(room);
+        Snapshot.getInstance().invalidate(room);
+        final Lock lock = lockCacheKey(room);
         try
         {
-            lock.lock();
-            EXTENSIONS_BY_ROOM.remove(room);
+            partitionOf(room).remove(room);
+            OffHeapCache.getInstance().remove(room);
         }
         finally
         {
             lock.unlock();
         }
+
+        if ( room.getNode() == null && room.getResource() == null )
+        {
+            // Data for the service, rather than for one of its rooms. The version is changed only after the data has been
+            // removed, as data that is derived from the version must not be derived from the data that is being removed.
+            serviceDefaultsVersions.computeIfAbsent(room.getDomain(), s -> new AtomicLong()).incrementAndGet();
+        }
+
+        purgeVisibilityCache(room.asBareJID());
+    }
+
+    /**
+     * Remove the cached visibility rules for a particular room.
+     *
+     * @param room The room for which to remove the cached visibility rules.
+     */
+    private static void purgeVisibilityCache( @Nonnull JID room )
+    {
+        final Lock visibilityLock = VISIBILITY_BY_ROOM.getLock(room);
+        try
+        {
+            visibilityLock.lock();
+            VISIBILITY_BY_ROOM.remove(room);
+        }
+        finally
+        {
+            visibilityLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all data forms from the on-heap cache, but not from the {@link OffHeapCache}. This has the same effect
+     * as the eviction of entries from the on-heap cache.
+     */
+    static void evictHeapCache()
+    {
+        CachePartitions.getInstance().clear();
     }
 
     /**
@@ -406,6 +3361,155 @@ public class DAO
      */
     static void purgeCache()
     {
-        EXTENSIONS_BY_ROOM.clear();
+        // Data that is being loaded concurrently must not be cached after the cache has been emptied.
+        advanceEpoch();
+        CachePartitions.getInstance().clear();
+        OffHeapCache.getInstance().clear();
+        VISIBILITY_BY_ROOM.clear();
+        synchronized ( flagsMutex )
+        {
+            flagsGeneration++;
+            rulesExist = null;
+            labelsExist = null;
+        }
+        serviceDefaultsVersions.values().forEach(AtomicLong::incrementAndGet);
+    }
+
+    /**
+     * Returns the current generation of the data of a room (see {@link CachedForms}).
+     *
+     * @param key A cache key of the room: the address of the room, or a key of one of its nodes.
+     * @return a generation.
+     */
+    static long getGeneration( @Nonnull final JID key )
+    {
+        // Node keys carry the node as a resource: the bare address is that of the room.
+        final Long result = generations.get(key.toBareJID());
+        return result != null ? result : generationEpoch;
+    }
+
+    /**
+     * Advances the generation of the data of a room, which invalidates all of its cached data, including the data of
+     * its nodes and data that is being loaded concurrently. Must be invoked after the modification is committed.
+     *
+     * @param room The room that was modified.
+     */
+    private static void advanceGeneration( @Nonnull final JID room )
+    {
+        generations.put(room.toBareJID(), generationClock.incrementAndGet());
+        if ( generations.size() > GENERATIONS_MAX.getValue() )
+        {
+            synchronized ( generationMutex )
+            {
+                if ( generations.size() > GENERATIONS_MAX.getValue() )
+                {
+                    Log.debug("The generations of more than {} rooms are tracked. All rooms fall back to a new epoch.", GENERATIONS_MAX.getValue());
+                    advanceEpoch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the generation of the data of all rooms, and stops tracking the generations of individual rooms.
+     */
+    private static void advanceEpoch()
+    {
+        synchronized ( generationMutex )
+        {
+            // The epoch must change before rooms fall back to it, as a room that falls back to the previous epoch could
+            // return to a generation that it had before it was modified.
+            generationEpoch = generationClock.incrementAndGet();
+            generations.clear();
+        }
+    }
+
+    /**
+     * Forgets if visibility rules and localized labels exist, after these might have been modified without using this
+     * class. Their existence is determined again when it is next needed.
+     */
+    static void resetExistenceFlags()
+    {
+        synchronized ( flagsMutex )
+        {
+            flagsGeneration++;
+            rulesExist = null;
+            labelsExist = null;
+        }
+        VISIBILITY_BY_ROOM.clear();
+    }
+
+    /**
+     * Returns the generation of {@link #rulesExist} and {@link #labelsExist}, to be passed to
+     * {@link #recordCountedRules(long, boolean)} or {@link #recordCountedLabels(long, boolean)} after rows were counted.
+     *
+     * @return a generation.
+     */
+    private static long getFlagsGeneration()
+    {
+        synchronized ( flagsMutex )
+        {
+            return flagsGeneration;
+        }
+    }
+
+    /**
+     * Records that visibility rules exist, after one was added.
+     */
+    private static void recordRulesExist()
+    {
+        synchronized ( flagsMutex )
+        {
+            flagsGeneration++;
+            rulesExist = true;
+        }
+    }
+
+    /**
+     * Records that localized labels exist, after one was added.
+     */
+    private static void recordLabelsExist()
+    {
+        synchronized ( flagsMutex )
+        {
+            flagsGeneration++;
+            labelsExist = true;
+        }
+    }
+
+    /**
+     * Records if visibility rules exist, as determined by counting them, unless a rule was added (or the cache was
+     * purged) after counting started.
+     *
+     * @param generation The generation that was obtained before counting started.
+     * @param exist The outcome of counting.
+     */
+    private static void recordCountedRules( final long generation, final boolean exist )
+    {
+        synchronized ( flagsMutex )
+        {
+            if ( flagsGeneration == generation )
+            {
+                rulesExist = exist;
+            }
+        }
+    }
+
+    /**
+     * Records if localized labels exist, as determined by counting them, unless a label was added (or the cache was
+     * purged) after counting started.
+     *
+     * @param generation The generation that was obtained before counting started.
+     * @param exist The outcome of counting.
+     */
+    private static void recordCountedLabels( final long generation, final boolean exist )
+    {
+        synchronized ( flagsMutex )
+        {
+            if ( flagsGeneration == generation )
+            {
+                labelsExist = exist;
+            }
+        }
     }
 }
@@ -16,8 +16,15 @@
 package org.igniterealtime.openfire.plugin.mucextinfo;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.disco.DiscoInfoProvider;
 import org.jivesoftware.openfire.disco.IQDiscoInfoHandler;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.SystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.forms.DataForm;
@@ -26,7 +33,12 @@ import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
  * A DiscoInfoProvider that delegates to another, enriching the data that it receives from the delegate.
@@ -40,12 +52,64 @@ public class DiscoInfoProviderProxy implements DiscoInfoProvider
 {
     private static final Logger Log = LoggerFactory.getLogger(DiscoInfoProviderProxy.class);
 
+    /**
+     * Matches the base64-encoded verification string of an entity capabilities node.
+     */
+    private static final Pattern CAPS_VER = Pattern.compile("[A-Za-z0-9+/]+={0,2}");
+
+    /**
+     * The amount of rooms (including the room that is being queried) for which data is retrieved from the database when
+     * a room that is not in the cache is being queried. Clients that browse a MUC service typically query rooms in the
+     * order in which they are listed, which makes the rooms that follow the queried room likely candidates for a next
+     * query. A value of 1 (or less) disables the prefetching of data.
+     *
+     * Rooms are listed in the order of their address, which is the order in which a service discovery items request
+     * that is paged (XEP-0059) returns them.
+     */
+    public static final SystemProperty<Integer> PREFETCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.prefetch.size")
+        .setDefaultValue(50)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum age of the listing of the rooms of the service that is used to select rooms for prefetching. The
+     * listing is refreshed when data for a room that is not in the cache is queried after this period has elapsed.
+     */
+    public static final SystemProperty<Duration> PREFETCH_LISTING_REFRESH = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.prefetch.listing.refresh")
+        .setDefaultValue(Duration.ofMinutes(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
     @Nonnull
     private final DiscoInfoProvider delegate;
 
     @Nonnull
     private final String serviceDomain;
 
+    /**
+     * The data forms that are defined for the MUC service (rather than for one of its rooms), and that are added to
+     * the response for each room of the service.
+     */
+    @Nullable
+    private volatile ServiceDefaults serviceDefaults;
+
+    /**
+     * The most recent snapshot of the listing of the rooms of the service (null until first used).
+     */
+    @Nullable
+    private volatile RoomListing roomListing;
+
+    /**
+     * Guards against concurrent refreshes of {@link #roomListing}.
+     */
+    private final AtomicBoolean refreshingRoomListing = new AtomicBoolean();
+
     public DiscoInfoProviderProxy( final DiscoInfoProvider delegate, final String serviceDomain ) {
         this.delegate = delegate;
         this.serviceDomain = serviceDomain;
@@ -82,9 +146,153 @@ public class DiscoInfoProviderProxy implements DiscoInfoProvider
         Set<org.xmpp.forms.DataForm> result = delegate.getExtendedInfos(name, node, senderJID);
         Log.trace("... obtained {} data form(s) from the delegate.", result.size());
 
-        final List<ExtDataForm> dataForms = DAO.retrieveExtensionElementsForRoom(new JID(name, serviceDomain, null) );
+        final JID room = new JID(name, serviceDomain, null);
+        final String language = Localization.getRequestLanguage(senderJID, room);
+        Log.trace("... labels will be localized for language '{}'.", language);
+
+        // Requests for an entity capabilities node are answered with the same data as requests without a node.
+        final String scope = isCapsNode(node) ? null : DAO.normalizeNode(node);
+        if ( scope != null )
+        {
+            return getNodeExtendedInfos(result, room, scope, senderJID, language);
+        }
+
+        // When the service itself is queried, the data forms that are defined for the service are retrieved below, as
+        // the data forms of the 'room' that is addressed by the service JID.
+        if ( name != null )
+        {
+            final List<ExtDataForm> serviceForms = getServiceForms();
+            Log.trace("... obtained {} data form(s) defined for the service.", serviceForms.size());
+            for ( final ExtDataForm extensionElement : serviceForms )
+            {
+                result = merge( result, extensionElement.localize(language) );
+            }
+        }
+
+        final boolean warm = DAO.isCached(room);
+        if ( name != null )
+        {
+            CacheWarmer.getInstance().recordRequest(warm);
+        }
+        if ( name != null && PREFETCH_SIZE.getValue() > 1 && !warm )
+        {
+            final List<JID> candidates = selectPrefetchCandidates(getRoomListing(), room, PREFETCH_SIZE.getValue(), DAO::isCached);
+            Log.trace("... room data is not cached. Retrieving data for {} rooms in one batch.", candidates.size());
+            DAO.retrieveExtensionElementsForRooms(candidates);
+        }
+
+        List<ExtDataForm> dataForms = DAO.retrieveExtensionElementsForRoom(room);
         Log.trace("... obtained {} data form(s) from the this plugin.", dataForms == null ? 0 : dataForms.size());
 
+        if ( dataForms != null && !dataForms.isEmpty() )
+        {
+            final Visibility visibility = DAO.retrieveVisibilityForRoom(room);
+            if ( !visibility.isUnrestricted() )
+            {
+                dataForms = visibility.filter(dataForms, visibility.classify(createSenderProfile(room, senderJID)));
+                Log.trace("... of which {} data form(s) are visible to the sender.", dataForms == null ? 0 : dataForms.size());
+            }
+        }
+
+        if ( dataForms != null )
+        {
+            for ( final ExtDataForm extensionElement : dataForms )
+            {
+                result = merge( result, extensionElement.localize(language) );
+            }
+        }
+
+        final List<ExtDataForm> computedForms = ComputedFieldManager.getInstance().getForms(room);
+        Log.trace("... obtained {} data form(s) with computed fields.", computedForms.size());
+        for ( final ExtDataForm extensionElement : computedForms )
+        {
+            result = merge( result, extensionElement.localize(language) );
+        }
+        return result;
+    }
+
+    /**
+     * Adds the data forms that are defined for a specific service discovery node of a room to the data forms obtained
+     * from the delegate. Data forms that are defined for the service, and computed fields, apply to requests without a
+     * node only.
+     *
+     * @param result The data forms obtained from the delegate.
+     * @param room The room that is being queried.
+     * @param node The (normalized) node that is being queried.
+     * @param senderJID The sender of the request (can be null).
+     * @param language The language in which labels are to be returned (can be null).
+     * @return The data forms for the node of the room.
+     */
+    private Set<org.xmpp.forms.DataForm> getNodeExtendedInfos( Set<org.xmpp.forms.DataForm> result, @Nonnull final JID room, @Nonnull final String node, @Nullable final JID senderJID, @Nullable final String language )
+    {
+        List<ExtDataForm> dataForms = DAO.retrieveExtensionElementsForNode(room, node);
+        Log.trace("... obtained {} data form(s) for node '{}' from this plugin.", dataForms == null ? 0 : dataForms.size(), node);
+
+        if ( dataForms != null && !dataForms.isEmpty() )
+        {
+            final Visibility visibility = DAO.retrieveVisibilityForRoom(room);
+            if ( !visibility.isUnrestricted() )
+            {
+                dataForms = visibility.filter(dataForms, visibility.classify(createSenderProfile(room, senderJID)));
+            }
+        }
+
+        if ( dataForms != null )
+        {
+            for ( final ExtDataForm extensionElement : dataForms )
+            {
+                result = merge( result, extensionElement.localize(language) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a service discovery node is an entity capabilities node (XEP-0115), which has the form
+     * <tt>uri#ver</tt>, where 'ver' is a base64-encoded hash.
+     *
+     * @param node The node to check (can be null).
+     * @return true if the node is an entity capabilities node, otherwise false.
+     */
+    static boolean isCapsNode( @Nullable final String node )
+    {
+        if ( node == null )
+        {
+            return false;
+        }
+        final int separator = node.lastIndexOf('#');
+        if ( separator < 0 )
+        {
+            return false;
+        }
+        final String ver = node.substring(separator + 1);
+        return ver.length() >= 24 && ver.length() % 4 == 0 && CAPS_VER.matcher(ver).matches();
+    }
+
+    /**
+     * Returns all data forms for a room, including those that are restricted by visibility rules. This is intended to
+     * be used for administrative purposes only.
+     *
+     * @param name The name of the room.
+     * @param node The node (can be null).
+     * @param senderJID The entity on behalf of which the data is obtained from the delegate.
+     * @return All data forms for the room.
+     */
+    public Set<org.xmpp.forms.DataForm> getUnrestrictedExtendedInfos( final String name, final String node, final JID senderJID )
+    {
+        Set<org.xmpp.forms.DataForm> result = delegate.getExtendedInfos(name, node, senderJID);
+
+        // As in getExtendedInfos: data forms of the service apply to rooms, for requests without a node only.
+        final String scope = isCapsNode(node) ? null : DAO.normalizeNode(node);
+        if ( name != null && scope == null )
+        {
+            for ( final ExtDataForm extensionElement : getServiceForms() )
+            {
+                result = merge( result, extensionElement );
+            }
+        }
+
+        final List<ExtDataForm> dataForms = DAO.retrieveExtensionElementsForNode(new JID(name, serviceDomain, null), scope);
         if ( dataForms != null )
         {
             for ( final ExtDataForm extensionElement : dataForms )
@@ -101,13 +309,194 @@ public class DiscoInfoProviderProxy implements DiscoInfoProvider
         return delegate.hasInfo(name, node, senderJID);
     }
 
+    /**
+     * Returns the data forms that are defined for the MUC service (rather than for one of its rooms). These are
+     * retrieved once, and reused until they are modified.
+     *
+     * @return data forms (possibly empty).
+     */
+    @Nonnull
+    List<ExtDataForm> getServiceForms()
+    {
+        final long version = DAO.getServiceDefaultsVersion(serviceDomain);
+        ServiceDefaults current = serviceDefaults;
+        if ( current == null || current.version != version )
+        {
+            Log.debug("(Re)loading the data forms defined for service '{}'.", serviceDomain);
+            final List<ExtDataForm> forms = DAO.retrieveExtensionElementsForRoom(new JID(null, serviceDomain, null));
+            current = new ServiceDefaults(version, forms == null ? Collections.emptyList() : forms);
+            serviceDefaults = current;
+        }
+        return current.forms;
+    }
+
+    /**
+     * Creates a profile of the sender of a request, that is used to evaluate visibility rules. The characteristics of
+     * the sender are looked up only when a rule requires them.
+     *
+     * @param room The room that is being queried.
+     * @param senderJID The sender of the request (can be null).
+     * @return A profile of the sender.
+     */
+    @Nonnull
+    private SenderProfile createSenderProfile( @Nonnull final JID room, @Nullable final JID senderJID )
+    {
+        if ( senderJID == null )
+        {
+            return new SenderProfile(null, Collections::emptySet, Collections::emptySet);
+        }
+
+        final JID bareJID = senderJID.asBareJID();
+        return new SenderProfile(senderJID,
+            () -> {
+                final Set<VisibilityRule.Affiliation> result = EnumSet.noneOf(VisibilityRule.Affiliation.class);
+                final XMPPServer server = XMPPServer.getInstance();
+                final MultiUserChatService service = server == null ? null : server.getMultiUserChatManager().getMultiUserChatService(room);
+                final MUCRoom mucRoom = service == null ? null : service.getChatRoom(room.getNode());
+                if ( mucRoom == null )
+                {
+                    return result;
+                }
+                if ( mucRoom.getOwners().contains(bareJID) )
+                {
+                    result.add(VisibilityRule.Affiliation.owner);
+                }
+                if ( result.contains(VisibilityRule.Affiliation.owner) || mucRoom.getAdmins().contains(bareJID) )
+                {
+                    result.add(VisibilityRule.Affiliation.admin);
+                }
+                if ( result.contains(VisibilityRule.Affiliation.admin) || mucRoom.getMembers().contains(bareJID) )
+                {
+                    result.add(VisibilityRule.Affiliation.member);
+                }
+                try
+                {
+                    if ( !mucRoom.getOccupantsByBareJID(bareJID).isEmpty() )
+                    {
+                        result.add(VisibilityRule.Affiliation.occupant);
+                    }
+                }
+                catch ( UserNotFoundException e )
+                {
+                    Log.trace("Sender '{}' is not an occupant of room '{}'.", bareJID, room);
+                }
+                return result;
+            },
+            () -> {
+                final Set<String> result = new HashSet<>();
+                for ( final Group group : GroupManager.getInstance().getGroups(bareJID) )
+                {
+                    result.add(group.getName());
+                }
+                return result;
+            });
+    }
+
+    /**
+     * Returns a snapshot of the listing of the rooms of the MUC service. A snapshot that is older than
+     * {@link #PREFETCH_LISTING_REFRESH} is replaced by a new one. While one thread creates that, other threads continue
+     * to use the previous snapshot.
+     *
+     * @return A listing of rooms.
+     */
+    @Nonnull
+    private RoomListing getRoomListing()
+    {
+        final RoomListing current = roomListing;
+        if ( current != null && !current.isOlderThan(PREFETCH_LISTING_REFRESH.getValue()) )
+        {
+            return current;
+        }
+        if ( !refreshingRoomListing.compareAndSet(false, true) )
+        {
+            return current == null ? RoomListing.EMPTY : current;
+        }
+        try
+        {
+            final RoomListing result = RoomListing.of(listRooms());
+            Log.trace("Refreshed the listing of the {} rooms of service '{}'.", result.getRooms().size(), serviceDomain);
+            roomListing = result;
+            return result;
+        }
+        finally
+        {
+            refreshingRoomListing.set(false);
+        }
+    }
+
+    /**
+     * Returns the addresses of the public rooms of the MUC service, ordered by address.
+     *
+     * @return Room addresses (possibly empty).
+     */
+    @Nonnull
+    private List<JID> listRooms()
+    {
+        final XMPPServer server = XMPPServer.getInstance();
+        if ( server == null || server.getMultiUserChatManager() == null )
+        {
+            return Collections.emptyList();
+        }
+
+        final MultiUserChatService service = server.getMultiUserChatManager().getMultiUserChatService(new JID(serviceDomain));
+        if ( service == null )
+        {
+            return Collections.emptyList();
+        }
+
+        final List<MUCRoom> rooms = service.getChatRooms();
+        final List<JID> result = new ArrayList<>(rooms.size());
+        for ( final MUCRoom mucRoom : rooms )
+        {
+            if ( mucRoom.isPublicRoom() )
+            {
+                result.add(mucRoom.getJID());
+            }
+        }
+        result.sort(Comparator.comparing(JID::toString));
+        return result;
+    }
+
+    /**
+     * Selects the rooms for which data is to be retrieved when data for a particular room is requested, but not
+     * available in the cache. The selection consists of the requested room, followed by the rooms that directly follow
+     * it in the room listing.
+     *
+     * @param listing The rooms of the service, in the order in which they are listed.
+     * @param room The room for which data is requested.
+     * @param maxSize The maximum amount of rooms to select (including the requested room).
+     * @param isCached Determines if data for a room is already cached (such rooms are not selected).
+     * @return The selected rooms, starting with the requested room.
+     */
+    @Nonnull
+    static List<JID> selectPrefetchCandidates( @Nonnull final RoomListing listing, @Nonnull final JID room, final int maxSize, @Nonnull final Predicate<JID> isCached )
+    {
+        final List<JID> result = new ArrayList<>();
+        result.add(room);
+
+        final List<JID> rooms = listing.getRooms();
+        final int index = listing.indexOf(room);
+        if ( index >= 0 )
+        {
+            for ( int i = index + 1; i < rooms.size() && result.size() < maxSize; i++ )
+            {
+                final JID candidate = rooms.get(i);
+                if ( !isCached.test(candidate) )
+                {
+                    result.add(candidate);
+                }
+            }
+        }
+        return result;
+    }
+
     @Nonnull
     static Set<org.xmpp.forms.DataForm> merge( @Nullable Set<org.xmpp.forms.DataForm> dataForms, @Nullable ExtDataForm extensionElement) {
         Set<org.xmpp.forms.DataForm> result;
         if ( dataForms == null ) {
-            result = new HashSet<>();
+            result = new LinkedHashSet<>();
         } else {
-            result = new HashSet<>(dataForms);
+            result = new LinkedHashSet<>(dataForms);
         }
 
         if ( extensionElement == null ) {
@@ -126,12 +515,15 @@ public class DiscoInfoProviderProxy implements DiscoInfoProvider
             .findAny()
             .orElse( newDataForm );
 
+        // The declared types of the fields, if a schema is registered for the form (see FormSchemaRegistry).
+        final FormValidator schema = FormSchemaRegistry.getInstance().getValidator(extensionElement.getFormTypeName());
+
         // Now, add or merge fields from the extension data into the result.
         for ( final Field extensionFields : extensionElement.getFields() )
         {
             FormField formField = dataForm.getField(extensionFields.getVarName());
             if ( formField == null ) {
-                formField = dataForm.addField( extensionFields.getVarName(), extensionFields.getLabel(), null);
+                formField = dataForm.addField( extensionFields.getVarName(), extensionFields.getLabel(), schema == null ? null : schema.getType(extensionFields.getVarName()));
             }
 
             for ( final String value : extensionFields.getValues() )
@@ -144,4 +536,21 @@ public class DiscoInfoProviderProxy implements DiscoInfoProvider
 
         return result;
     }
+
+    /**
+     * The data forms that are defined for a MUC service, and the version of these data forms.
+     */
+    private static class ServiceDefaults
+    {
+        private final long version;
+
+        @Nonnull
+        private final List<ExtDataForm> forms;
+
+        ServiceDefaults( final long version, @Nonnull final List<ExtDataForm> forms )
+        {
+            this.version = version;
+            this.forms = forms;
+        }
+    }
 }
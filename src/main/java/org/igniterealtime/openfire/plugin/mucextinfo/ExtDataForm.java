@@ -15,31 +15,363 @@
  */
 package org.igniterealtime.openfire.plugin.mucextinfo;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
+import org.jivesoftware.util.cache.Cacheable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Representation of a data form, which is used as an extension element to information returned in response to service
  * discovery request.
  *
+ * Instances are immutable, which allows them to be shared (eg: through caches) without defensive copies. Fields are
+ * indexed by their variable name. A data form never contains more than one field with the same variable name.
+ * Instances are serialized through a proxy (see {@link SerializedForm}), that uses the compact binary representation
+ * of {@link #writeTo(DataOutput)}.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
-public class ExtDataForm implements Serializable
+public final class ExtDataForm implements Cacheable
 {
+    private static final long serialVersionUID = 1L;
+
     private final String formTypeName;
 
-    private final ArrayList<Field> fields = new ArrayList<>();
+    @Nonnull
+    private final Map<String, Field> fieldsByVarName;
+
+    @Nonnull
+    private final List<Field> fields;
+
+    /**
+     * The estimated size of this form in a service discovery response, computed on first use (-1 until then).
+     */
+    private transient volatile int estimatedSize = -1;
 
-    public ExtDataForm( final String formTypeName ) {this.formTypeName = formTypeName;}
+    /**
+     * Variants of this form in which the labels of fields are localized, keyed by language (created on first use).
+     */
+    private transient volatile ConcurrentMap<String, ExtDataForm> localizedVariants;
+
+    /**
+     * Creates a data form that has no fields.
+     *
+     * @param formTypeName The identifier of the data form.
+     */
+    public ExtDataForm( final String formTypeName )
+    {
+        this(formTypeName, Collections.emptyList());
+    }
+
+    /**
+     * Creates a data form. When more than one of the provided fields share the same variable name, they are merged into
+     * one field (see {@link Field#withValuesOf(Field)}).
+     *
+     * @param formTypeName The identifier of the data form.
+     * @param fields The fields of the data form.
+     */
+    public ExtDataForm( final String formTypeName, @Nonnull final Collection<Field> fields )
+    {
+        final Map<String, Field> result = new LinkedHashMap<>();
+        for ( final Field field : fields )
+        {
+            result.merge(field.getVarName(), field, Field::withValuesOf);
+        }
+        this.formTypeName = formTypeName;
+        this.fieldsByVarName = result.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(result);
+        this.fields = result.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(result.values()));
+    }
+
+    /**
+     * Creates a builder for a data form.
+     *
+     * @param formTypeName The identifier of the data form.
+     * @return A builder.
+     */
+    @Nonnull
+    public static Builder builder( @Nonnull final String formTypeName )
+    {
+        return new Builder(formTypeName);
+    }
 
     public String getFormTypeName()
     {
         return formTypeName;
     }
 
+    /**
+     * Returns the fields of this data form.
+     *
+     * @return An unmodifiable list of fields (possibly empty).
+     */
+    @Nonnull
     public List<Field> getFields()
     {
         return fields;
     }
+
+    /**
+     * Returns the field that has a particular variable name.
+     *
+     * @param varName The variable name of the field.
+     * @return The field, or null if this form does not have a field by that name.
+     */
+    @Nullable
+    public Field getField( @Nonnull final String varName )
+    {
+        return fieldsByVarName.get(varName);
+    }
+
+    /**
+     * Returns an estimate of the amount of bytes that this data form adds to a service discovery response. As instances
+     * are immutable, the estimate is computed only once.
+     *
+     * @return an amount of bytes.
+     * @see RoomUsage#estimateSize(ExtDataForm)
+     */
+    public int getEstimatedSize()
+    {
+        int result = estimatedSize;
+        if ( result < 0 )
+        {
+            result = RoomUsage.estimateSize(this);
+            estimatedSize = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a variant of this data form in which each field has the label that best matches a particular language
+     * (see {@link Field#getLabel(String)}).
+     *
+     * When none of the fields have a label for the language, this instance is returned. Otherwise, the variant is
+     * computed on first use, and cached with this (immutable) instance for up to {@link Localization#MAX_VARIANTS}
+     * languages. Variants for additional languages are computed on every invocation.
+     *
+     * @param language A language tag (can be null).
+     * @return A data form with localized labels.
+     */
+    @Nonnull
+    public ExtDataForm localize( @Nullable final String language )
+    {
+        if ( language == null || fields.stream().noneMatch(Field::hasLocalizedLabels) )
+        {
+            return this;
+        }
+
+        ConcurrentMap<String, ExtDataForm> variants = localizedVariants;
+        if ( variants != null )
+        {
+            final ExtDataForm cached = variants.get(language);
+            if ( cached != null )
+            {
+                return cached;
+            }
+        }
+
+        final List<Field> localized = new ArrayList<>(fields.size());
+        boolean differs = false;
+        for ( final Field field : fields )
+        {
+            final Field localizedField = field.localize(language);
+            differs |= !Objects.equals(localizedField.getLabel(), field.getLabel());
+            localized.add(localizedField);
+        }
+        if ( !differs )
+        {
+            // No need to hold on to a copy for languages that do not have any labels.
+            return this;
+        }
+
+        final ExtDataForm result = new ExtDataForm(formTypeName, localized);
+        if ( variants == null )
+        {
+            synchronized ( this )
+            {
+                if ( localizedVariants == null )
+                {
+                    localizedVariants = new ConcurrentHashMap<>();
+                }
+                variants = localizedVariants;
+            }
+        }
+        if ( variants.size() < Localization.MAX_VARIANTS.getValue() )
+        {
+            final ExtDataForm existing = variants.putIfAbsent(language, result);
+            if ( existing != null )
+            {
+                return existing;
+            }
+        }
+        return result;
+    }
+
+    private Object writeReplace()
+    {
+        return new SerializedForm(this);
+    }
+
+    private void readObject( final ObjectInputStream in ) throws InvalidObjectException
+    {
+        throw new InvalidObjectException("Data forms are deserialized through their serialized form.");
+    }
+
+    /**
+     * Writes a compact binary representation of this data form.
+     *
+     * @param out The destination.
+     * @throws IOException on any problem writing the data.
+     */
+    void writeTo( @Nonnull final DataOutput out ) throws IOException
+    {
+        Field.writeNullableUTF(out, formTypeName);
+        out.writeInt(fields.size());
+        for ( final Field field : fields )
+        {
+            field.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a data form from the binary representation written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in The source.
+     * @return The data form that was read.
+     * @throws IOException on any problem reading the data.
+     */
+    @Nonnull
+    static ExtDataForm readFrom( @Nonnull final DataInput in ) throws IOException
+    {
+        final String formTypeName = Field.readNullableUTF(in);
+        final int size = in.readInt();
+        final List<Field> fields = new ArrayList<>(size);
+        for ( int i = 0; i < size; i++ )
+        {
+            fields.add(Field.readFrom(in));
+        }
+        return new ExtDataForm(formTypeName, fields);
+    }
+
+    /**
+     * Returns an estimate of the amount of heap memory that is used by this data form, including its fields (see
+     * {@link HeapSize}). Localized variants, which are created after the form is cached, are not included.
+     *
+     * @return an amount of bytes.
+     */
+    @Override
+    public int getCachedSize()
+    {
+        int result = HeapSize.ofObject(5) + HeapSize.ofString(formTypeName) + HeapSize.ofList(fields.size()) + HeapSize.ofMap(fields.size());
+        for ( final Field field : fields )
+        {
+            result += field.getCachedSize();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+        if ( this == o ) { return true; }
+        if ( o == null || getClass() != o.getClass() ) { return false; }
+        final ExtDataForm that = (ExtDataForm) o;
+        return Objects.equals(formTypeName, that.formTypeName) &&
+            fields.equals(that.fields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(formTypeName, fields);
+    }
+
+    @Override
+    public String toString()
+    {
+        return formTypeName + ": " + fields;
+    }
+
+    /**
+     * The serialized form of a data form, which (unlike the data form itself) can be constructed before its data is
+     * read.
+     */
+    private static final class SerializedForm implements Externalizable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private ExtDataForm form;
+
+        public SerializedForm()
+        {
+        }
+
+        SerializedForm( @Nonnull final ExtDataForm form )
+        {
+            this.form = form;
+        }
+
+        @Override
+        public void writeExternal( final ObjectOutput out ) throws IOException
+        {
+            form.writeTo(out);
+        }
+
+        @Override
+        public void readExternal( final ObjectInput in ) throws IOException
+        {
+            form = readFrom(in);
+        }
+
+        private Object readResolve()
+        {
+            return form;
+        }
+    }
+
+    /**
+     * Builder of {@link ExtDataForm} instances.
+     */
+    public static final class Builder
+    {
+        @Nonnull
+        private final String formTypeName;
+
+        @Nonnull
+        private final List<Field> fields = new ArrayList<>();
+
+        private Builder( @Nonnull final String formTypeName )
+        {
+            this.formTypeName = formTypeName;
+        }
+
+        /**
+         * Adds a field. When a field by the same variable name was added before, the values of both are merged.
+         *
+         * @param field The field to add.
+         * @return This builder.
+         */
+        @Nonnull
+        public Builder addField( @Nonnull final Field field )
+        {
+            fields.add(field);
+            return this;
+        }
+
+        @Nonnull
+        public Builder addFields( @Nonnull final Collection<Field> fields )
+        {
+            this.fields.addAll(fields);
+            return this;
+        }
+
+        @Nonnull
+        public ExtDataForm build()
+        {
+            return new ExtDataForm(formTypeName, fields);
+        }
+    }
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes data from the cache of {@link DAO} that was modified in the database without using {@link DAO} (eg: by
+ * tooling that modifies the tables directly).
+ *
+ * This depends on database triggers, that are not installed by default (see the scripts in the 'database/triggers'
+ * directory of the plugin). The triggers record the address of each room of which data is modified in the
+ * mucextinfo_dirty table, together with an ascending sequence number. This class periodically reads the rows that were
+ * added since the previous poll, and removes the data of their rooms (including that of the nodes of the rooms) from the
+ * cache. Each poll starts with a query for the highest sequence number, so that a poll without changes is cheap.
+ *
+ * Sequence numbers are assigned before the transaction that adds a row is committed, which means that rows can become
+ * visible out of order. A sequence number that was skipped is looked for again in subsequent polls, until it is older
+ * than {@link #GAP_TIMEOUT} (after which it is assumed to belong to a transaction that was rolled back).
+ *
+ * Modifications that are made by {@link DAO} are recorded by the triggers too. These cause the (already up-to-date)
+ * data of the room to be reloaded once.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ExternalChangePoller
+{
+    private static final Logger Log = LoggerFactory.getLogger(ExternalChangePoller.class);
+
+    /**
+     * Enables polling for modifications that are recorded by the (optional) database triggers.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.external.poll.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().restart())
+        .build();
+
+    /**
+     * The interval at which the database is polled for modifications.
+     */
+    public static final SystemProperty<Duration> INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.external.poll.interval")
+        .setDefaultValue(Duration.ofSeconds(10))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(interval -> getInstance().restart())
+        .build();
+
+    /**
+     * The maximum amount of rows that is read in one query.
+     */
+    public static final SystemProperty<Integer> BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.external.poll.batch")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The period after which rows are removed from the mucextinfo_dirty table. A zero duration disables removal.
+     */
+    public static final SystemProperty<Duration> RETENTION = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.external.retention")
+        .setDefaultValue(Duration.ofDays(1))
+        .setChronoUnit(ChronoUnit.MINUTES)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The period during which a skipped sequence number is looked for again, before it is assumed to belong to a
+     * transaction that was rolled back. This should exceed the duration of the longest transaction that modifies the
+     * tables. A skipped sequence number is always looked for during at least three poll intervals.
+     */
+    public static final SystemProperty<Duration> GAP_TIMEOUT = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.external.poll.gap.timeout")
+        .setDefaultValue(Duration.ofMinutes(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of skipped sequence numbers that is looked for again. Larger jumps (eg: caused by the cache of
+     * a database sequence) are not looked for.
+     */
+    static final int MAX_GAPS = 1000;
+
+    private static final ExternalChangePoller INSTANCE = new ExternalChangePoller();
+
+    public static ExternalChangePoller getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The sequence number of the last row that was processed, or -1 if it has not been determined yet.
+     */
+    private long cursor = -1;
+
+    /**
+     * Sequence numbers below the cursor that were skipped, mapped to the moment that they were first skipped.
+     */
+    private final NavigableMap<Long, Instant> gaps = new TreeMap<>();
+
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    private TimerTask pollTask;
+
+    ExternalChangePoller() {}
+
+    /**
+     * Schedules the periodic polling for modifications, if enabled. The first poll takes place immediately.
+     */
+    public synchronized void start()
+    {
+        if ( !ENABLED.getValue() || pollTask != null )
+        {
+            return;
+        }
+
+        pollTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    poll();
+                }
+                catch ( SQLException e )
+                {
+                    Log.error("An exception occurred while polling for modifications of data forms that were made without using this plugin. Are the database triggers installed?", e);
+                }
+            }
+        };
+        final long interval = Math.max(1000, INTERVAL.getValue().toMillis());
+        TaskEngine.getInstance().scheduleAtFixedRate(pollTask, 0, interval);
+    }
+
+    /**
+     * Cancels the periodic polling for modifications.
+     */
+    public synchronized void stop()
+    {
+        if ( pollTask != null )
+        {
+            TaskEngine.getInstance().cancelScheduledTask(pollTask);
+            pollTask = null;
+        }
+    }
+
+    private synchronized void restart()
+    {
+        stop();
+        start();
+    }
+
+    /**
+     * Sets the position from which the next poll reads rows, for example to process all rows that were added after
+     * cached data was persisted (see {@link Snapshot}).
+     *
+     * @param sequence The sequence number of the last row that does not need to be processed.
+     */
+    synchronized void resumeFrom( final long sequence )
+    {
+        cursor = sequence;
+        gaps.clear();
+    }
+
+    /**
+     * Returns the sequence number up to which all rows have been processed, or -1 if that has not been determined yet.
+     *
+     * @return a sequence number.
+     */
+    synchronized long getProcessedSequence()
+    {
+        return gaps.isEmpty() ? cursor : gaps.firstKey() - 1;
+    }
+
+    /**
+     * Reads the rows that were added since the previous poll, and removes the data of their rooms from the cache.
+     *
+     * @return the amount of rows that were processed.
+     * @throws SQLException on any problem reading from the database.
+     */
+    synchronized int poll() throws SQLException
+    {
+        final long last = DAO.retrieveLastExternalChangeSequence();
+        if ( cursor < 0 )
+        {
+            // Data that is cached was loaded after earlier modifications.
+            Log.debug("Start polling for modifications after sequence number {}.", last);
+            cursor = last;
+        }
+
+        final Set<JID> rooms = new HashSet<>();
+        boolean flagsAffected = false;
+        int processed = 0;
+        if ( last > cursor )
+        {
+            final int batchSize = BATCH_SIZE.getValue();
+            List<Entry> entries;
+            do
+            {
+                entries = DAO.retrieveExternalChanges(cursor, Long.MAX_VALUE, batchSize);
+                for ( final Entry entry : entries )
+                {
+                    recordGaps(cursor + 1, entry.getSequence());
+                    cursor = entry.getSequence();
+                    flagsAffected |= collect(entry, rooms);
+                    processed++;
+                }
+            }
+            while ( entries.size() == batchSize );
+        }
+
+        if ( !gaps.isEmpty() )
+        {
+            // Rows of which the sequence number was skipped might have become visible since.
+            for ( final Entry entry : DAO.retrieveExternalChanges(gaps.firstKey() - 1, gaps.lastKey() + 1, Integer.MAX_VALUE) )
+            {
+                if ( gaps.remove(entry.getSequence()) != null )
+                {
+                    flagsAffected |= collect(entry, rooms);
+                    processed++;
+                }
+            }
+            final Instant expired = Instant.now().minus(getGapTimeout());
+            gaps.values().removeIf(skipped -> skipped.isBefore(expired));
+        }
+
+        for ( final JID room : rooms )
+        {
+            DAO.discardCached(room);
+        }
+        if ( flagsAffected )
+        {
+            DAO.resetExistenceFlags();
+        }
+        if ( !rooms.isEmpty() )
+        {
+            invalidatedCount.addAndGet(rooms.size());
+            Log.debug("Removed data of {} rooms that were modified in the database from the cache.", rooms.size());
+        }
+
+        final Duration retention = RETENTION.getValue();
+        if ( processed > 0 && !retention.isZero() && !retention.isNegative() )
+        {
+            DAO.removeExternalChangesBefore(Instant.now().minus(retention));
+        }
+        return processed;
+    }
+
+    /**
+     * Returns the amount of rooms of which data was removed from the cache, as it was modified in the database.
+     *
+     * @return an amount of rooms.
+     */
+    public long getInvalidatedCount()
+    {
+        return invalidatedCount.get();
+    }
+
+    /**
+     * Returns the period during which a skipped sequence number is looked for again, which spans at least three poll
+     * intervals.
+     *
+     * @return a period.
+     */
+    @Nonnull
+    static Duration getGapTimeout()
+    {
+        final Duration minimum = Duration.ofMillis(Math.max(1000, INTERVAL.getValue().toMillis())).multipliedBy(3);
+        final Duration timeout = GAP_TIMEOUT.getValue();
+        return timeout.compareTo(minimum) < 0 ? minimum : timeout;
+    }
+
+    private void recordGaps( final long from, final long to )
+    {
+        if ( to - from > MAX_GAPS )
+        {
+            Log.debug("Not looking for {} skipped sequence numbers ({} up to {}).", to - from, from, to);
+            return;
+        }
+        final Instant now = Instant.now();
+        for ( long sequence = from; sequence < to; sequence++ )
+        {
+            gaps.put(sequence, now);
+        }
+    }
+
+    /**
+     * Adds the room of a row to a collection of rooms.
+     *
+     * @param entry The row.
+     * @param rooms The collection to add the room to.
+     * @return true if the row relates to visibility rules or localized labels, otherwise false.
+     */
+    private static boolean collect( @Nonnull final Entry entry, @Nonnull final Set<JID> rooms )
+    {
+        try
+        {
+            rooms.add(new JID(entry.getRoom()).asBareJID());
+        }
+        catch ( IllegalArgumentException e )
+        {
+            Log.warn("Ignoring a modification of data of '{}', which is not a valid address.", entry.getRoom());
+        }
+        return !"mucextinfo".equals(entry.getTableName());
+    }
+
+    /**
+     * A row of the mucextinfo_dirty table, that records that data of a room was modified.
+     */
+    static final class Entry
+    {
+        private final long sequence;
+
+        @Nonnull
+        private final String tableName;
+
+        @Nonnull
+        private final String room;
+
+        Entry( final long sequence, @Nonnull final String tableName, @Nonnull final String room )
+        {
+            this.sequence = sequence;
+            this.tableName = tableName;
+            this.room = room;
+        }
+
+        long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * The table that was modified.
+         *
+         * @return a table name.
+         */
+        @Nonnull
+        String getTableName()
+        {
+            return tableName;
+        }
+
+        /**
+         * The address of the room (or service) of which data was modified, as stored in the database.
+         *
+         * @return an address.
+         */
+        @Nonnull
+        String getRoom()
+        {
+            return room;
+        }
+    }
+}
@@ -15,28 +15,86 @@
  */
 package org.igniterealtime.openfire.plugin.mucextinfo;
 
-import java.io.Serializable;
-import java.util.Arrays;
-import java.util.Objects;
+import org.jivesoftware.util.cache.Cacheable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
 
 /**
  * Representation of a field, as used in data forms.
  *
+ * Instances are immutable, which allows them to be shared (eg: through caches) without defensive copies. The values of
+ * a field never contain null. Instances are serialized through a proxy (see {@link SerializedForm}), that uses the
+ * compact binary representation of {@link #writeTo(DataOutput)}.
+ *
+ * Next to its (default) label, a field can have labels in specific languages. These are stored in a compact table of
+ * language tags and labels, ordered by language tag.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
-public class Field implements Serializable
+public final class Field implements Cacheable
 {
+    private static final long serialVersionUID = 1L;
+
     private final String varName;
 
     private final String label;
 
-    private final String[] values;
+    @Nonnull
+    private final List<String> values;
+
+    /**
+     * Localized labels, as alternating (normalized) language tags and labels, ordered by language tag.
+     */
+    @Nonnull
+    private final String[] localizedLabels;
+
+    private static final String[] NO_LABELS = new String[0];
 
     public Field( final String varName, final String label, String... values )
+    {
+        this(varName, label, values == null ? Collections.emptyList() : Arrays.asList(values));
+    }
+
+    private Field( final String varName, final String label, final Collection<String> values )
+    {
+        this(varName, label, values, NO_LABELS);
+    }
+
+    private Field( final String varName, final String label, final Collection<String> values, @Nonnull final String[] localizedLabels )
     {
         this.varName = varName;
         this.label = label;
-        this.values = values;
+        this.values = toValueList(values);
+        this.localizedLabels = localizedLabels;
+    }
+
+    @Nonnull
+    private static List<String> toValueList( @Nonnull final Collection<String> values )
+    {
+        final List<String> result = new ArrayList<>(values.size());
+        for ( final String value : values )
+        {
+            if ( value != null )
+            {
+                result.add(value);
+            }
+        }
+        return result.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Creates a builder for a field.
+     *
+     * @param varName The identifier of the field.
+     * @return A builder.
+     */
+    @Nonnull
+    public static Builder builder( @Nonnull final String varName )
+    {
+        return new Builder(varName);
     }
 
     public String getVarName()
@@ -49,11 +107,268 @@ public class Field implements Serializable
         return label;
     }
 
-    public String[] getValues()
+    /**
+     * Returns the values of this field.
+     *
+     * @return An unmodifiable list of values (possibly empty).
+     */
+    @Nonnull
+    public List<String> getValues()
     {
         return values;
     }
 
+    /**
+     * Returns a field that has the values of this field, followed by the provided values. The label of this field is
+     * retained, unless it is null, in which case the label of the other field is used. The same applies to the labels
+     * for specific languages.
+     *
+     * @param other The field of which the values are to be added.
+     * @return A new field.
+     */
+    @Nonnull
+    public Field withValuesOf( @Nonnull final Field other )
+    {
+        final List<String> merged = new ArrayList<>(values.size() + other.values.size());
+        merged.addAll(values);
+        merged.addAll(other.values);
+
+        String[] labels = localizedLabels;
+        if ( other.localizedLabels.length > 0 )
+        {
+            final SortedMap<String, String> combined = new TreeMap<>(other.getLocalizedLabels());
+            combined.putAll(getLocalizedLabels());
+            labels = toLabelTable(combined);
+        }
+        return new Field(varName, label != null ? label : other.label, merged, labels);
+    }
+
+    /**
+     * Returns the label of this field in a particular language. When no label is defined for the language, the label of
+     * its primary language (eg: 'nl' for 'nl-BE') is used. When that is not defined either, the default label is
+     * returned.
+     *
+     * @param language A language tag, as used in the xml:lang attribute (can be null).
+     * @return The label that best matches the language (possibly null).
+     */
+    @Nullable
+    public String getLabel( @Nullable final String language )
+    {
+        if ( language == null || localizedLabels.length == 0 )
+        {
+            return label;
+        }
+
+        String tag = Localization.normalize(language);
+        while ( tag != null )
+        {
+            final int index = indexOf(localizedLabels, tag);
+            if ( index >= 0 )
+            {
+                return localizedLabels[index + 1];
+            }
+            final int separator = tag.lastIndexOf('-');
+            tag = separator > 0 ? tag.substring(0, separator) : null;
+        }
+        return label;
+    }
+
+    /**
+     * Returns the labels of this field that are defined for specific languages.
+     *
+     * @return An unmodifiable map of labels keyed by language tag, ordered by language tag (possibly empty).
+     */
+    @Nonnull
+    public Map<String, String> getLocalizedLabels()
+    {
+        if ( localizedLabels.length == 0 )
+        {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> result = new LinkedHashMap<>();
+        for ( int i = 0; i < localizedLabels.length; i += 2 )
+        {
+            result.put(localizedLabels[i], localizedLabels[i + 1]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Indicates if this field has labels that are defined for specific languages.
+     *
+     * @return true if localized labels exist, otherwise false.
+     */
+    public boolean hasLocalizedLabels()
+    {
+        return localizedLabels.length > 0;
+    }
+
+    /**
+     * Returns a field that is equal to this field, apart from the label for a specific language.
+     *
+     * @param language The language tag of the label.
+     * @param localizedLabel The label for the language, or null to remove the label for the language.
+     * @return A new field.
+     */
+    @Nonnull
+    public Field withLocalizedLabel( @Nonnull final String language, @Nullable final String localizedLabel )
+    {
+        final SortedMap<String, String> labels = new TreeMap<>(getLocalizedLabels());
+        if ( localizedLabel == null )
+        {
+            labels.remove(Localization.normalize(language));
+        }
+        else
+        {
+            labels.put(Localization.normalize(language), localizedLabel);
+        }
+        return new Field(varName, label, values, toLabelTable(labels));
+    }
+
+    /**
+     * Returns a field that only has the label that best matches a particular language (see {@link #getLabel(String)}),
+     * as its default label.
+     *
+     * @param language A language tag (can be null).
+     * @return A field (which is this instance if it has no localized labels).
+     */
+    @Nonnull
+    Field localize( @Nullable final String language )
+    {
+        if ( localizedLabels.length == 0 )
+        {
+            return this;
+        }
+        return new Field(varName, getLabel(language), values, NO_LABELS);
+    }
+
+    private static int indexOf( @Nonnull final String[] table, @Nonnull final String language )
+    {
+        for ( int i = 0; i < table.length; i += 2 )
+        {
+            if ( table[i].equals(language) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Nonnull
+    private static String[] toLabelTable( @Nonnull final SortedMap<String, String> labels )
+    {
+        if ( labels.isEmpty() )
+        {
+            return NO_LABELS;
+        }
+        final String[] result = new String[labels.size() * 2];
+        int i = 0;
+        for ( final Map.Entry<String, String> entry : labels.entrySet() )
+        {
+            result[i++] = entry.getKey();
+            result[i++] = entry.getValue();
+        }
+        return result;
+    }
+
+    private Object writeReplace()
+    {
+        return new SerializedForm(this);
+    }
+
+    private void readObject( final ObjectInputStream in ) throws InvalidObjectException
+    {
+        throw new InvalidObjectException("Fields are deserialized through their serialized form.");
+    }
+
+    /**
+     * Writes a compact binary representation of this field.
+     *
+     * @param out The destination.
+     * @throws IOException on any problem writing the data.
+     */
+    void writeTo( @Nonnull final DataOutput out ) throws IOException
+    {
+        writeNullableUTF(out, varName);
+        writeNullableUTF(out, label);
+        out.writeInt(values.size());
+        for ( final String value : values )
+        {
+            out.writeUTF(value);
+        }
+        out.writeInt(localizedLabels.length);
+        for ( final String text : localizedLabels )
+        {
+            out.writeUTF(text);
+        }
+    }
+
+    /**
+     * Reads a field from the binary representation written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in The source.
+     * @return The field that was read.
+     * @throws IOException on any problem reading the data.
+     */
+    @Nonnull
+    static Field readFrom( @Nonnull final DataInput in ) throws IOException
+    {
+        final String varName = readNullableUTF(in);
+        final String label = readNullableUTF(in);
+        final int size = in.readInt();
+        final List<String> values = new ArrayList<>(size);
+        for ( int i = 0; i < size; i++ )
+        {
+            values.add(in.readUTF());
+        }
+        final int labelsSize = in.readInt();
+        final String[] localizedLabels = labelsSize == 0 ? NO_LABELS : new String[labelsSize];
+        for ( int i = 0; i < labelsSize; i++ )
+        {
+            localizedLabels[i] = in.readUTF();
+        }
+        return new Field(varName, label, values, localizedLabels);
+    }
+
+    static void writeNullableUTF( @Nonnull final DataOutput out, @Nullable final String value ) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if ( value != null )
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    static String readNullableUTF( @Nonnull final DataInput in ) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Returns an estimate of the amount of heap memory that is used by this field (see {@link HeapSize}).
+     *
+     * @return an amount of bytes.
+     */
+    @Override
+    public int getCachedSize()
+    {
+        int result = HeapSize.ofObject(4) + HeapSize.ofString(varName) + HeapSize.ofString(label) + HeapSize.ofList(values.size());
+        for ( final String value : values )
+        {
+            result += HeapSize.ofString(value);
+        }
+        if ( localizedLabels.length > 0 )
+        {
+            result += HeapSize.ofArray(localizedLabels.length);
+            for ( final String localizedLabel : localizedLabels )
+            {
+                result += HeapSize.ofString(localizedLabel);
+            }
+        }
+        return result;
+    }
+
     @Override
     public boolean equals( final Object o )
     {
@@ -62,14 +377,118 @@ public class Field implements Serializable
         final Field field = (Field) o;
         return Objects.equals(varName, field.varName) &&
             Objects.equals(label, field.label) &&
-            Arrays.equals(values, field.values);
+            Objects.equals(values, field.values) &&
+            Arrays.equals(localizedLabels, field.localizedLabels);
     }
 
     @Override
     public int hashCode()
     {
-        int result = Objects.hash(varName, label);
-        result = 31 * result + Arrays.hashCode(values);
-        return result;
+        return Objects.hash(varName, label, values) * 31 + Arrays.hashCode(localizedLabels);
+    }
+
+    @Override
+    public String toString()
+    {
+        return varName + " (" + label + "): " + values;
+    }
+
+    /**
+     * Builder of {@link Field} instances.
+     */
+    public static final class Builder
+    {
+        @Nonnull
+        private final String varName;
+
+        @Nullable
+        private String label;
+
+        @Nonnull
+        private final List<String> values = new ArrayList<>();
+
+        @Nonnull
+        private final SortedMap<String, String> localizedLabels = new TreeMap<>();
+
+        private Builder( @Nonnull final String varName )
+        {
+            this.varName = varName;
+        }
+
+        @Nonnull
+        public Builder label( @Nullable final String label )
+        {
+            this.label = label;
+            return this;
+        }
+
+        @Nonnull
+        public Builder localizedLabel( @Nonnull final String language, @Nonnull final String localizedLabel )
+        {
+            localizedLabels.put(Localization.normalize(language), localizedLabel);
+            return this;
+        }
+
+        @Nonnull
+        public Builder addValue( @Nullable final String value )
+        {
+            if ( value != null )
+            {
+                values.add(value);
+            }
+            return this;
+        }
+
+        @Nonnull
+        public Builder addValues( @Nonnull final Collection<String> values )
+        {
+            for ( final String value : values )
+            {
+                addValue(value);
+            }
+            return this;
+        }
+
+        @Nonnull
+        public Field build()
+        {
+            return new Field(varName, label, values, toLabelTable(localizedLabels));
+        }
+    }
+
+    /**
+     * The serialized form of a field, which (unlike the field itself) can be constructed before its data is read.
+     */
+    private static final class SerializedForm implements Externalizable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Field field;
+
+        public SerializedForm()
+        {
+        }
+
+        SerializedForm( @Nonnull final Field field )
+        {
+            this.field = field;
+        }
+
+        @Override
+        public void writeExternal( final ObjectOutput out ) throws IOException
+        {
+            field.writeTo(out);
+        }
+
+        @Override
+        public void readExternal( final ObjectInput in ) throws IOException
+        {
+            field = readFrom(in);
+        }
+
+        private Object readResolve()
+        {
+            return field;
+        }
     }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.forms.FormField;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Declares the fields of a data form that is identified by a particular FORM_TYPE, in the spirit of the field
+ * standardization of XEP-0068: the name, type and cardinality of each field, and constraints on its values.
+ *
+ * Schemas are registered with the {@link FormSchemaRegistry}, which uses them to validate data forms that are written,
+ * and to add the declared type of each field to service discovery responses.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public final class FormSchema
+{
+    @Nonnull
+    private final String formTypeName;
+
+    private final boolean closed;
+
+    @Nonnull
+    private final List<FieldSchema> fields;
+
+    private FormSchema( @Nonnull final String formTypeName, final boolean closed, @Nonnull final List<FieldSchema> fields )
+    {
+        this.formTypeName = formTypeName;
+        this.closed = closed;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+    }
+
+    /**
+     * Creates a builder for a schema.
+     *
+     * @param formTypeName The FORM_TYPE of the data forms to which the schema applies.
+     * @return A builder.
+     */
+    @Nonnull
+    public static Builder builder( @Nonnull final String formTypeName )
+    {
+        return new Builder(formTypeName);
+    }
+
+    @Nonnull
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    /**
+     * Checks if fields that are not declared are rejected. As defined by XEP-0068 for registered FORM_TYPEs, fields of
+     * which the name starts with 'x-' are accepted regardless.
+     *
+     * @return true if fields that are not declared are rejected.
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    @Nonnull
+    public List<FieldSchema> getFields()
+    {
+        return fields;
+    }
+
+    @Override
+    public String toString()
+    {
+        return formTypeName + ( closed ? " (closed): " : ": " ) + fields;
+    }
+
+    /**
+     * Declares one field of a data form.
+     */
+    public static final class FieldSchema
+    {
+        /**
+         * The maximum amount of values of a field that can have any amount of values.
+         */
+        public static final int UNLIMITED = -1;
+
+        @Nonnull
+        private final String varName;
+
+        @Nonnull
+        private final FormField.Type type;
+
+        private final boolean required;
+
+        private final int maxValues;
+
+        @Nullable
+        private final String pattern;
+
+        @Nonnull
+        private final Set<String> options;
+
+        private FieldSchema( @Nonnull final String varName, @Nonnull final FormField.Type type, final boolean required, final int maxValues, @Nullable final String pattern, @Nonnull final Set<String> options )
+        {
+            this.varName = varName;
+            this.type = type;
+            this.required = required;
+            this.maxValues = maxValues;
+            this.pattern = pattern;
+            this.options = Collections.unmodifiableSet(new LinkedHashSet<>(options));
+        }
+
+        /**
+         * Creates a builder for the declaration of a field. Unless defined otherwise, fields of a type that is
+         * multi-valued (or 'fixed') can have any amount of values, while other fields can have one value at most.
+         *
+         * @param varName The identifier of the field.
+         * @param type The type of the field.
+         * @return A builder.
+         */
+        @Nonnull
+        public static Builder builder( @Nonnull final String varName, @Nonnull final FormField.Type type )
+        {
+            return new Builder(varName, type);
+        }
+
+        @Nonnull
+        public String getVarName()
+        {
+            return varName;
+        }
+
+        @Nonnull
+        public FormField.Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * Checks if a data form must contain this field (with at least one value).
+         *
+         * @return true if the field is required.
+         */
+        public boolean isRequired()
+        {
+            return required;
+        }
+
+        /**
+         * The maximum amount of values of the field.
+         *
+         * @return an amount, or {@link #UNLIMITED}.
+         */
+        public int getMaxValues()
+        {
+            return maxValues;
+        }
+
+        /**
+         * A regular expression that each value must match entirely.
+         *
+         * @return a regular expression, or null if values are not restricted by one.
+         */
+        @Nullable
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        /**
+         * The values that are allowed for the field.
+         *
+         * @return the values (an empty set if values are not restricted to options).
+         */
+        @Nonnull
+        public Set<String> getOptions()
+        {
+            return options;
+        }
+
+        @Override
+        public String toString()
+        {
+            return varName + " (" + type.toXMPP() + ( required ? ", required" : "" ) + ")";
+        }
+
+        /**
+         * Builder of {@link FieldSchema} instances.
+         */
+        public static final class Builder
+        {
+            @Nonnull
+            private final String varName;
+
+            @Nonnull
+            private final FormField.Type type;
+
+            private boolean required;
+
+            private int maxValues;
+
+            @Nullable
+            private String pattern;
+
+            @Nonnull
+            private final Set<String> options = new LinkedHashSet<>();
+
+            private Builder( @Nonnull final String varName, @Nonnull final FormField.Type type )
+            {
+                this.varName = varName;
+                this.type = type;
+                switch ( type )
+                {
+                    case fixed:
+                    case jid_multi:
+                    case list_multi:
+                    case text_multi:
+                        this.maxValues = UNLIMITED;
+                        break;
+                    default:
+                        this.maxValues = 1;
+                }
+            }
+
+            @Nonnull
+            public Builder required()
+            {
+                this.required = true;
+                return this;
+            }
+
+            @Nonnull
+            public Builder maxValues( final int maxValues )
+            {
+                this.maxValues = maxValues;
+                return this;
+            }
+
+            @Nonnull
+            public Builder pattern( @Nullable final String pattern )
+            {
+                this.pattern = pattern;
+                return this;
+            }
+
+            @Nonnull
+            public Builder options( @Nonnull final String... options )
+            {
+                this.options.addAll(Arrays.asList(options));
+                return this;
+            }
+
+            @Nonnull
+            public FieldSchema build()
+            {
+                return new FieldSchema(varName, type, required, maxValues, pattern, options);
+            }
+        }
+    }
+
+    /**
+     * Builder of {@link FormSchema} instances.
+     */
+    public static final class Builder
+    {
+        @Nonnull
+        private final String formTypeName;
+
+        private boolean closed;
+
+        @Nonnull
+        private final List<FieldSchema> fields = new ArrayList<>();
+
+        private Builder( @Nonnull final String formTypeName )
+        {
+            this.formTypeName = formTypeName;
+        }
+
+        /**
+         * Causes fields that are not declared (and of which the name does not start with 'x-') to be rejected.
+         *
+         * @param closed true to reject fields that are not declared.
+         * @return This builder.
+         */
+        @Nonnull
+        public Builder closed( final boolean closed )
+        {
+            this.closed = closed;
+            return this;
+        }
+
+        @Nonnull
+        public Builder field( @Nonnull final FieldSchema field )
+        {
+            fields.add(field);
+            return this;
+        }
+
+        @Nonnull
+        public FormSchema build()
+        {
+            return new FormSchema(formTypeName, closed, fields);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Keeps track of the {@link FormSchema}s of known FORM_TYPEs.
+ *
+ * Each schema is compiled into a {@link FormValidator} when it is registered. The compiled validators are kept in an
+ * immutable map that is replaced as a whole when the registry changes, so that looking up a validator (when data forms
+ * are written, and when service discovery responses are composed) requires no locking.
+ *
+ * A schema for the fields of the 'muc#roominfo' FORM_TYPE that are registered by XEP-0045 is included in this plugin.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class FormSchemaRegistry
+{
+    private static final Logger Log = LoggerFactory.getLogger(FormSchemaRegistry.class);
+
+    /**
+     * The FORM_TYPE of the data form that provides additional information about a room (see XEP-0045).
+     */
+    public static final String ROOMINFO_FORM_TYPE = "http://jabber.org/protocol/muc#roominfo";
+
+    /**
+     * Controls whether the schema that is included in this plugin (for the 'muc#roominfo' FORM_TYPE) is registered.
+     */
+    public static final SystemProperty<Boolean> BUILTIN_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.schema.builtin.enabled")
+        .setDefaultValue(true)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().configureBuiltInSchemas())
+        .build();
+
+    /**
+     * Controls whether the schema that is included in this plugin rejects fields that are not registered by XEP-0045
+     * (other than fields of which the name starts with 'x-').
+     */
+    public static final SystemProperty<Boolean> BUILTIN_CLOSED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.schema.builtin.closed")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(closed -> getInstance().configureBuiltInSchemas())
+        .build();
+
+    private static final FormSchemaRegistry INSTANCE = new FormSchemaRegistry();
+
+    public static FormSchemaRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The compiled schemas, by FORM_TYPE. This map is never modified: it is replaced when the registry changes.
+     */
+    private volatile Map<String, FormValidator> validators = Collections.emptyMap();
+
+    FormSchemaRegistry() {}
+
+    /**
+     * Registers a schema, replacing any schema that was registered for the same FORM_TYPE. Data forms that were written
+     * before the schema was registered are not affected, but are validated when they are next modified.
+     *
+     * @param schema The schema to register.
+     */
+    public synchronized void register( @Nonnull final FormSchema schema )
+    {
+        Log.debug("Registering schema for form '{}'.", schema.getFormTypeName());
+        final Map<String, FormValidator> result = new HashMap<>(validators);
+        result.put(schema.getFormTypeName(), new FormValidator(schema));
+        validators = Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Unregisters the schema of a FORM_TYPE.
+     *
+     * @param formTypeName The FORM_TYPE of which to unregister the schema.
+     */
+    public synchronized void unregister( @Nonnull final String formTypeName )
+    {
+        if ( validators.containsKey(formTypeName) )
+        {
+            Log.debug("Unregistering schema for form '{}'.", formTypeName);
+            final Map<String, FormValidator> result = new HashMap<>(validators);
+            result.remove(formTypeName);
+            validators = Collections.unmodifiableMap(result);
+        }
+    }
+
+    /**
+     * Unregisters all schemas.
+     */
+    public synchronized void unregisterAll()
+    {
+        validators = Collections.emptyMap();
+    }
+
+    /**
+     * Registers or unregisters the schema that is included in this plugin, based on the current configuration.
+     */
+    public synchronized void configureBuiltInSchemas()
+    {
+        if ( BUILTIN_ENABLED.getValue() )
+        {
+            register(getRoomInfoSchema(BUILTIN_CLOSED.getValue()));
+        }
+        else
+        {
+            unregister(ROOMINFO_FORM_TYPE);
+        }
+    }
+
+    /**
+     * Returns all registered schemas.
+     *
+     * @return the schemas, ordered by FORM_TYPE.
+     */
+    @Nonnull
+    public List<FormSchema> getSchemas()
+    {
+        final List<FormSchema> result = new ArrayList<>();
+        for ( final FormValidator validator : validators.values() )
+        {
+            result.add(validator.getSchema());
+        }
+        result.sort(Comparator.comparing(FormSchema::getFormTypeName));
+        return result;
+    }
+
+    /**
+     * Returns the compiled schema of a FORM_TYPE.
+     *
+     * @param formTypeName The FORM_TYPE.
+     * @return The compiled schema, or null if no schema is registered for the FORM_TYPE.
+     */
+    @Nullable
+    FormValidator getValidator( @Nonnull final String formTypeName )
+    {
+        return validators.get(formTypeName);
+    }
+
+    /**
+     * Validates complete data forms, for which schemas are registered.
+     *
+     * @param room The room of the data forms (used to report violations).
+     * @param forms The data forms to validate.
+     * @throws SchemaViolationException when a data form violates its schema.
+     */
+    public void validate( @Nonnull final JID room, @Nonnull final Collection<ExtDataForm> forms ) throws SchemaViolationException
+    {
+        final Map<String, FormValidator> current = validators;
+        if ( current.isEmpty() )
+        {
+            return;
+        }
+        for ( final ExtDataForm form : forms )
+        {
+            final FormValidator validator = current.get(form.getFormTypeName());
+            if ( validator != null )
+            {
+                validator.validate(room, form);
+            }
+        }
+    }
+
+    /**
+     * Returns a schema for the fields of the 'muc#roominfo' FORM_TYPE that are registered by XEP-0045.
+     *
+     * @param closed true if fields that are not registered are to be rejected.
+     * @return A schema.
+     */
+    @Nonnull
+    static FormSchema getRoomInfoSchema( final boolean closed )
+    {
+        return FormSchema.builder(ROOMINFO_FORM_TYPE)
+            .closed(closed)
+            .field(FormSchema.FieldSchema.builder("muc#maxhistoryfetch", FormField.Type.text_single).pattern("\\d+").build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_contactjid", FormField.Type.jid_multi).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_description", FormField.Type.text_single).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_lang", FormField.Type.text_single).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_ldapgroup", FormField.Type.text_single).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_logs", FormField.Type.text_single).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_occupants", FormField.Type.text_single).pattern("\\d+").build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_subject", FormField.Type.text_single).build())
+            .field(FormSchema.FieldSchema.builder("muc#roominfo_subjectmod", FormField.Type.boolean_type).build())
+            .build();
+    }
+}
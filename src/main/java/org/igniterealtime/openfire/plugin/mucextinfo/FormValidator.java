@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link FormSchema} that is compiled for validation: regular expressions are compiled, and the constraints on the
+ * values of each field are combined into one predicate, when the schema is registered. Validating a data form then
+ * involves no more than a lookup and a predicate per field value.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+final class FormValidator
+{
+    private static final Set<String> BOOLEAN_VALUES = new HashSet<>(Arrays.asList("0", "1", "false", "true"));
+
+    @Nonnull
+    private final FormSchema schema;
+
+    @Nonnull
+    private final Map<String, FieldValidator> fields;
+
+    FormValidator( @Nonnull final FormSchema schema )
+    {
+        this.schema = schema;
+        final Map<String, FieldValidator> compiled = new LinkedHashMap<>();
+        for ( final FormSchema.FieldSchema field : schema.getFields() )
+        {
+            compiled.put(field.getVarName(), new FieldValidator(field));
+        }
+        this.fields = Collections.unmodifiableMap(compiled);
+    }
+
+    @Nonnull
+    FormSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Returns the declared type of a field.
+     *
+     * @param varName The identifier of the field.
+     * @return the type of the field, or null if the field is not declared.
+     */
+    @Nullable
+    FormField.Type getType( @Nonnull final String varName )
+    {
+        final FieldValidator field = fields.get(varName);
+        return field == null ? null : field.schema.getType();
+    }
+
+    /**
+     * Validates a complete data form: each of its fields, and the presence of all required fields.
+     *
+     * @param room The room of the data form (used to report violations).
+     * @param form The data form to validate.
+     * @throws SchemaViolationException when the data form violates the schema.
+     */
+    void validate( @Nonnull final JID room, @Nonnull final ExtDataForm form ) throws SchemaViolationException
+    {
+        for ( final Field field : form.getFields() )
+        {
+            validate(room, field);
+        }
+        for ( final FieldValidator field : fields.values() )
+        {
+            if ( field.schema.isRequired() )
+            {
+                final Field present = form.getField(field.schema.getVarName());
+                if ( present == null || present.getValues().isEmpty() )
+                {
+                    throw new SchemaViolationException(room, schema.getFormTypeName(), field.schema.getVarName(), "this field is required.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Validates one field (with all of its values) of a data form. Required fields are not verified, as a data form that
+     * is defined one field at a time necessarily lacks fields while it is being defined.
+     *
+     * @param room The room of the data form (used to report violations).
+     * @param field The field to validate.
+     * @throws SchemaViolationException when the field violates the schema.
+     */
+    void validate( @Nonnull final JID room, @Nonnull final Field field ) throws SchemaViolationException
+    {
+        final FieldValidator validator = fields.get(field.getVarName());
+        if ( validator == null )
+        {
+            if ( schema.isClosed() && !field.getVarName().startsWith("x-") )
+            {
+                throw new SchemaViolationException(room, schema.getFormTypeName(), field.getVarName(), "this field is not defined for this form (the names of custom fields must start with 'x-').");
+            }
+            return;
+        }
+
+        final int maxValues = validator.schema.getMaxValues();
+        if ( maxValues != FormSchema.FieldSchema.UNLIMITED && field.getValues().size() > maxValues )
+        {
+            throw new SchemaViolationException(room, schema.getFormTypeName(), field.getVarName(), "this field can have at most " + maxValues + " value(s), but has " + field.getValues().size() + ".");
+        }
+        for ( final String value : field.getValues() )
+        {
+            if ( !validator.accepts.test(value) )
+            {
+                throw new SchemaViolationException(room, schema.getFormTypeName(), field.getVarName(), "the value '" + value + "' is not valid for a field of type '" + validator.schema.getType().toXMPP() + "'" + ( validator.schema.getPattern() == null ? "" : " that matches '" + validator.schema.getPattern() + "'" ) + ( validator.schema.getOptions().isEmpty() ? "" : " with options " + validator.schema.getOptions() ) + ".");
+            }
+        }
+    }
+
+    /**
+     * A declared field, with a predicate that combines all constraints on its values.
+     */
+    private static final class FieldValidator
+    {
+        @Nonnull
+        private final FormSchema.FieldSchema schema;
+
+        @Nonnull
+        private final Predicate<String> accepts;
+
+        FieldValidator( @Nonnull final FormSchema.FieldSchema schema )
+        {
+            this.schema = schema;
+
+            Predicate<String> predicate;
+            switch ( schema.getType() )
+            {
+                case boolean_type:
+                    predicate = BOOLEAN_VALUES::contains;
+                    break;
+                case jid_single:
+                case jid_multi:
+                    predicate = FieldValidator::isJID;
+                    break;
+                default:
+                    predicate = value -> true;
+            }
+            if ( !schema.getOptions().isEmpty() )
+            {
+                predicate = predicate.and(schema.getOptions()::contains);
+            }
+            if ( schema.getPattern() != null )
+            {
+                final Pattern pattern = Pattern.compile(schema.getPattern());
+                predicate = predicate.and(value -> pattern.matcher(value).matches());
+            }
+            this.accepts = predicate;
+        }
+
+        private static boolean isJID( @Nonnull final String value )
+        {
+            try
+            {
+                new JID(value);
+                return true;
+            }
+            catch ( IllegalArgumentException e )
+            {
+                return false;
+            }
+        }
+    }
+}
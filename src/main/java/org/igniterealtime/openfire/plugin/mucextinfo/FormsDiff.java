@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * The modifications that turn the data forms of a room (or of one of its nodes) into a desired set of data forms, as
+ * used by {@link DAO#replaceForms(org.xmpp.packet.JID, String, List)}.
+ *
+ * Fields are compared by their variable name, label and values (localized labels, which are not part of the desired
+ * state, are ignored). Fields that are unchanged are left alone, provided that their order is retained. As the rows of
+ * fields that are added are positioned after all existing rows, a field that is added (or changed) causes the fields
+ * that follow it in the desired form to be rewritten too. Appending fields, or changing the last fields of a form,
+ * therefore affects only those fields.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+final class FormsDiff
+{
+    /**
+     * Data forms that are removed entirely, including their visibility rules and localized labels.
+     */
+    @Nonnull
+    private final List<String> removedForms = new ArrayList<>();
+
+    /**
+     * Fields that are removed entirely, including their visibility rules and localized labels.
+     */
+    @Nonnull
+    private final List<FieldChange> removedFields = new ArrayList<>();
+
+    /**
+     * Fields of which the label and values are removed, to be added again (with their new label and values) as part of
+     * {@link #addedFields}. Their visibility rules and localized labels are retained.
+     */
+    @Nonnull
+    private final List<FieldChange> clearedFields = new ArrayList<>();
+
+    /**
+     * Data forms that are added without fields (or that lose all of their fields, but are to be retained).
+     */
+    @Nonnull
+    private final List<String> addedForms = new ArrayList<>();
+
+    /**
+     * Fields that are added, in the order in which they are to appear.
+     */
+    @Nonnull
+    private final List<FieldChange> addedFields = new ArrayList<>();
+
+    private FormsDiff() {}
+
+    /**
+     * Computes the modifications that turn one set of data forms into another.
+     *
+     * @param current The current data forms (null if there are none).
+     * @param desired The desired data forms, each with a distinct form type name.
+     * @return The modifications (possibly none).
+     */
+    @Nonnull
+    static FormsDiff compute( @Nullable final List<ExtDataForm> current, @Nonnull final List<ExtDataForm> desired )
+    {
+        final FormsDiff result = new FormsDiff();
+
+        final Map<String, ExtDataForm> currentByName = new LinkedHashMap<>();
+        if ( current != null )
+        {
+            for ( final ExtDataForm form : current )
+            {
+                currentByName.put(form.getFormTypeName(), form);
+            }
+        }
+        final Set<String> desiredNames = new HashSet<>();
+        for ( final ExtDataForm form : desired )
+        {
+            desiredNames.add(form.getFormTypeName());
+        }
+
+        for ( final String formTypeName : currentByName.keySet() )
+        {
+            if ( !desiredNames.contains(formTypeName) )
+            {
+                result.removedForms.add(formTypeName);
+            }
+        }
+
+        for ( final ExtDataForm form : desired )
+        {
+            final String formTypeName = form.getFormTypeName();
+            final ExtDataForm existing = currentByName.get(formTypeName);
+            if ( existing == null )
+            {
+                if ( form.getFields().isEmpty() )
+                {
+                    result.addedForms.add(formTypeName);
+                }
+                for ( final Field field : form.getFields() )
+                {
+                    result.addedFields.add(new FieldChange(formTypeName, field));
+                }
+                continue;
+            }
+
+            // Fields that are no longer desired.
+            final Map<String, Integer> existingIndex = new HashMap<>();
+            for ( int i = 0; i < existing.getFields().size(); i++ )
+            {
+                final Field field = existing.getFields().get(i);
+                existingIndex.put(field.getVarName(), i);
+                if ( form.getField(field.getVarName()) == null )
+                {
+                    result.removedFields.add(new FieldChange(formTypeName, field));
+                }
+            }
+
+            // Fields that are retained keep their rows, as long as they are in the same order as before, and no field
+            // that precedes them had to be written.
+            int lastRetained = -1;
+            boolean rewriting = false;
+            for ( final Field field : form.getFields() )
+            {
+                final Integer index = existingIndex.get(field.getVarName());
+                if ( !rewriting && index != null && index > lastRetained && hasSameContent(existing.getFields().get(index), field) )
+                {
+                    lastRetained = index;
+                    continue;
+                }
+                rewriting = true;
+                if ( index != null )
+                {
+                    result.clearedFields.add(new FieldChange(formTypeName, existing.getFields().get(index)));
+                }
+                result.addedFields.add(new FieldChange(formTypeName, field));
+            }
+
+            if ( form.getFields().isEmpty() && !existing.getFields().isEmpty() )
+            {
+                // Without any rows, the form would no longer exist.
+                result.addedForms.add(formTypeName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if two fields have the same variable name, label and values (in the same order).
+     *
+     * @param a A field.
+     * @param b Another field.
+     * @return true if the fields are equal, disregarding any localized labels.
+     */
+    static boolean hasSameContent( @Nonnull final Field a, @Nonnull final Field b )
+    {
+        return Objects.equals(a.getVarName(), b.getVarName())
+            && Objects.equals(a.getLabel(), b.getLabel())
+            && a.getValues().equals(b.getValues());
+    }
+
+    @Nonnull
+    List<String> getRemovedForms()
+    {
+        return removedForms;
+    }
+
+    @Nonnull
+    List<FieldChange> getRemovedFields()
+    {
+        return removedFields;
+    }
+
+    @Nonnull
+    List<FieldChange> getClearedFields()
+    {
+        return clearedFields;
+    }
+
+    @Nonnull
+    List<String> getAddedForms()
+    {
+        return addedForms;
+    }
+
+    @Nonnull
+    List<FieldChange> getAddedFields()
+    {
+        return addedFields;
+    }
+
+    /**
+     * Checks if no modifications are needed.
+     *
+     * @return true if the current data forms are equal to the desired data forms.
+     */
+    boolean isEmpty()
+    {
+        return removedForms.isEmpty() && removedFields.isEmpty() && clearedFields.isEmpty() && addedForms.isEmpty() && addedFields.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FormsDiff{" +
+            "removedForms=" + removedForms.size() +
+            ", removedFields=" + removedFields.size() +
+            ", clearedFields=" + clearedFields.size() +
+            ", addedForms=" + addedForms.size() +
+            ", addedFields=" + addedFields.size() +
+            '}';
+    }
+
+    /**
+     * A field of a particular data form that is affected by a modification.
+     */
+    static final class FieldChange
+    {
+        @Nonnull
+        private final String formTypeName;
+
+        @Nonnull
+        private final Field field;
+
+        FieldChange( @Nonnull final String formTypeName, @Nonnull final Field field )
+        {
+            this.formTypeName = formTypeName;
+            this.field = field;
+        }
+
+        @Nonnull
+        String getFormTypeName()
+        {
+            return formTypeName;
+        }
+
+        @Nonnull
+        Field getField()
+        {
+            return field;
+        }
+    }
+}
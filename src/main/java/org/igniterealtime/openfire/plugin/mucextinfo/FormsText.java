@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * A plain-text representation of data forms, used to edit all data forms of a room at once in the admin console.
+ *
+ * Each data form starts with a line that holds its form type name between square brackets. Each field of the form is
+ * defined by a line that holds its variable name, label and value, separated by a vertical bar (label and value are
+ * optional). A multi-valued field is defined by one line for each of its values. Vertical bars, backslashes and line
+ * breaks in names, labels and values are escaped by a backslash. Empty lines, and lines that start with '#', are
+ * ignored.
+ *
+ * <pre>
+ * [urn:xmpp:example]
+ * color|Colour|red
+ * size|Size|S
+ * size|Size|M
+ * </pre>
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public final class FormsText
+{
+    private FormsText() {}
+
+    /**
+     * Formats data forms (disregarding localized labels) as text.
+     *
+     * @param forms The data forms (can be null).
+     * @return The text representation of the forms.
+     */
+    @Nonnull
+    public static String format( @Nullable final Collection<ExtDataForm> forms )
+    {
+        final StringBuilder sb = new StringBuilder();
+        if ( forms == null )
+        {
+            return sb.toString();
+        }
+        for ( final ExtDataForm form : forms )
+        {
+            sb.append('[').append(escape(form.getFormTypeName())).append("]\n");
+            for ( final Field field : form.getFields() )
+            {
+                final List<String> values = field.getValues().isEmpty() ? Collections.singletonList(null) : field.getValues();
+                for ( final String value : values )
+                {
+                    sb.append(escape(field.getVarName())).append('|').append(escape(field.getLabel())).append('|').append(escape(value)).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses the text representation of data forms.
+     *
+     * @param text The text to parse.
+     * @return The data forms, in the order in which they are defined.
+     * @throws IllegalArgumentException when the text is not a valid representation of data forms (the message identifies the offending line).
+     */
+    @Nonnull
+    public static List<ExtDataForm> parse( @Nonnull final String text )
+    {
+        final Map<String, List<Field>> fieldsByForm = new LinkedHashMap<>();
+        List<Field> fields = null;
+        final String[] lines = text.split("\r?\n|\r");
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            final String line = lines[i].trim();
+            if ( line.isEmpty() || line.startsWith("#") )
+            {
+                continue;
+            }
+
+            if ( line.startsWith("[") && line.endsWith("]") )
+            {
+                final String formTypeName = unescape(line.substring(1, line.length() - 1).trim());
+                if ( formTypeName.isEmpty() )
+                {
+                    throw new IllegalArgumentException("Line " + (i + 1) + ": missing form name.");
+                }
+                if ( fieldsByForm.containsKey(formTypeName) )
+                {
+                    throw new IllegalArgumentException("Line " + (i + 1) + ": the form '" + formTypeName + "' is defined more than once.");
+                }
+                fields = new ArrayList<>();
+                fieldsByForm.put(formTypeName, fields);
+                continue;
+            }
+
+            if ( fields == null )
+            {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": a field must follow a form name (between square brackets).");
+            }
+            final List<String> parts = split(line);
+            if ( parts.size() > 3 )
+            {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": expected a variable name, label and value, separated by '|'.");
+            }
+            final String varName = parts.get(0).trim();
+            if ( varName.isEmpty() )
+            {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": missing variable name.");
+            }
+            final String label = parts.size() > 1 && !parts.get(1).isEmpty() ? parts.get(1) : null;
+            final String value = parts.size() > 2 && !parts.get(2).isEmpty() ? parts.get(2) : null;
+
+            // Lines that share a variable name are condensed into one multi-valued field by the ExtDataForm constructor.
+            fields.add(new Field(varName, label, value));
+        }
+
+        final List<ExtDataForm> result = new ArrayList<>(fieldsByForm.size());
+        for ( final Map.Entry<String, List<Field>> entry : fieldsByForm.entrySet() )
+        {
+            result.add(new ExtDataForm(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    @Nonnull
+    private static String escape( @Nullable final String value )
+    {
+        if ( value == null )
+        {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("|", "\\|").replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    @Nonnull
+    private static String unescape( @Nonnull final String value )
+    {
+        // Vertical bars that are not escaped have no special meaning here.
+        return String.join("|", split(value));
+    }
+
+    /**
+     * Splits a line on the vertical bars that are not escaped, unescaping each part.
+     */
+    @Nonnull
+    private static List<String> split( @Nonnull final String line )
+    {
+        final List<String> result = new ArrayList<>(3);
+        final StringBuilder part = new StringBuilder();
+        for ( int i = 0; i < line.length(); i++ )
+        {
+            final char c = line.charAt(i);
+            if ( c == '\\' && i + 1 < line.length() )
+            {
+                final char next = line.charAt(++i);
+                part.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else if ( c == '|' )
+            {
+                result.add(part.toString());
+                part.setLength(0);
+            }
+            else
+            {
+                part.append(c);
+            }
+        }
+        result.add(part.toString());
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nullable;
+
+/**
+ * Estimates of the amount of heap memory that is used by cached objects, assuming a 64-bit JVM that uses compressed
+ * object references (the default for heaps smaller than 32 GB).
+ *
+ * These estimates are used to weigh cache entries (see {@link org.jivesoftware.util.cache.Cacheable}). They are meant to
+ * be proportional to the actual memory usage, rather than exact, and are cheap to compute.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+final class HeapSize
+{
+    /**
+     * The size of an object header.
+     */
+    static final int OBJECT = 12;
+
+    /**
+     * The size of a reference to an object.
+     */
+    static final int REFERENCE = 4;
+
+    /**
+     * The size of an array header (an object header and the length of the array).
+     */
+    static final int ARRAY = 16;
+
+    private HeapSize() {}
+
+    /**
+     * Rounds an amount of bytes up to the alignment of objects in memory (8 bytes).
+     *
+     * @param bytes An amount of bytes.
+     * @return The aligned amount of bytes.
+     */
+    static int align( final int bytes )
+    {
+        return ( bytes + 7 ) & ~7;
+    }
+
+    /**
+     * Estimates the size of an object with a number of fields that are references, or ints.
+     *
+     * @param fields The amount of fields.
+     * @return an amount of bytes.
+     */
+    static int ofObject( final int fields )
+    {
+        return align(OBJECT + fields * REFERENCE);
+    }
+
+    /**
+     * Estimates the size of a string (including its character array).
+     *
+     * @param value The string (can be null).
+     * @return an amount of bytes (zero for null).
+     */
+    static int ofString( @Nullable final String value )
+    {
+        if ( value == null )
+        {
+            return 0;
+        }
+        return ofObject(3) + align(ARRAY + 2 * value.length());
+    }
+
+    /**
+     * Estimates the size of an array of references, such as the one that backs an ArrayList.
+     *
+     * @param length The length of the array.
+     * @return an amount of bytes.
+     */
+    static int ofArray( final int length )
+    {
+        return align(ARRAY + length * REFERENCE);
+    }
+
+    /**
+     * Estimates the size of an unmodifiable list that wraps an ArrayList, excluding the elements of the list. Empty
+     * lists are assumed to be shared instances.
+     *
+     * @param size The amount of elements in the list.
+     * @return an amount of bytes.
+     */
+    static int ofList( final int size )
+    {
+        if ( size == 0 )
+        {
+            return 0;
+        }
+        return ofObject(2) + ofObject(3) + ofArray(size);
+    }
+
+    /**
+     * Estimates the size of an unmodifiable map that wraps a LinkedHashMap, excluding the keys and values of the map.
+     * Empty maps are assumed to be shared instances.
+     *
+     * @param size The amount of entries in the map.
+     * @return an amount of bytes.
+     */
+    static int ofMap( final int size )
+    {
+        if ( size == 0 )
+        {
+            return 0;
+        }
+        final int capacity = Integer.highestOneBit(Math.max(1, size * 4 / 3)) << 1;
+        return ofObject(6) + ofObject(9) + ofArray(capacity) + size * ofObject(6);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Provides a field that holds the moment of the last activity in a room (as recorded by {@link RoomActivityTracker}),
+ * formatted as defined in XEP-0082.
+ *
+ * No field is provided for rooms in which no activity was recorded since the plugin was loaded.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ * @see <a href="https://xmpp.org/extensions/xep-0082.html">XEP-0082: XMPP Date and Time Profiles</a>
+ */
+public class LastActivityFieldProvider implements ComputedFieldProvider
+{
+    public static final String VAR_NAME = "lastactivity";
+
+    @Nonnull
+    private final String formTypeName;
+
+    @Nonnull
+    private final Duration refreshInterval;
+
+    public LastActivityFieldProvider( @Nonnull final String formTypeName, @Nonnull final Duration refreshInterval )
+    {
+        this.formTypeName = formTypeName;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    @Nonnull
+    @Override
+    public Duration getRefreshInterval()
+    {
+        return refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public Collection<Field> compute( @Nonnull final MUCRoom room )
+    {
+        final Instant lastActivity = RoomActivityTracker.getInstance().getLastActivity(room.getJID());
+        if ( lastActivity == null )
+        {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new Field(VAR_NAME, "Last activity", DateTimeFormatter.ISO_INSTANT.format(lastActivity.truncatedTo(ChronoUnit.SECONDS))));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.jivesoftware.openfire.interceptor.PacketInterceptor;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.SystemProperty;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Determines the language of service discovery requests, which is used to select the labels of fields.
+ *
+ * The {@link org.jivesoftware.openfire.disco.DiscoInfoProvider} API does not expose the request that is being
+ * processed. This interceptor records the language of an incoming disco#info request (its xml:lang attribute, or the
+ * language of the session of the sender) for the thread that processes the request, and removes it when processing has
+ * finished. The recorded language is used only when the sender and addressee match those of the request that is being
+ * processed. In all other cases, the default labels are used.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class Localization implements PacketInterceptor
+{
+    public static final String NAMESPACE_DISCO_INFO = "http://jabber.org/protocol/disco#info";
+
+    /**
+     * The maximum amount of languages for which a variant of a data form with localized labels is cached. Variants for
+     * additional languages are computed for each request.
+     */
+    public static final SystemProperty<Integer> MAX_VARIANTS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.labels.variants.max")
+        .setDefaultValue(8)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    private static final ThreadLocal<Request> CURRENT = new ThreadLocal<>();
+
+    private static final Localization INSTANCE = new Localization();
+
+    public static Localization getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private Localization() {}
+
+    @Override
+    public void interceptPacket( final Packet packet, final Session session, final boolean incoming, final boolean processed )
+    {
+        if ( !incoming || !(packet instanceof IQ) || ((IQ) packet).getType() != IQ.Type.get )
+        {
+            return;
+        }
+
+        final Element childElement = ((IQ) packet).getChildElement();
+        if ( childElement == null || !NAMESPACE_DISCO_INFO.equals(childElement.getNamespaceURI()) )
+        {
+            return;
+        }
+
+        if ( processed )
+        {
+            end();
+            return;
+        }
+
+        String language = packet.getElement().attributeValue(QName.get("lang", Namespace.XML_NAMESPACE));
+        if ( (language == null || language.trim().isEmpty()) && session != null && session.getLanguage() != null )
+        {
+            language = session.getLanguage().toLanguageTag();
+        }
+        begin(packet.getFrom(), packet.getTo(), language);
+    }
+
+    /**
+     * Records the language of a request that is about to be processed by the current thread.
+     *
+     * @param sender The sender of the request.
+     * @param addressee The addressee of the request.
+     * @param language The language of the request (can be null).
+     */
+    static void begin( @Nullable final JID sender, @Nullable final JID addressee, @Nullable final String language )
+    {
+        if ( language == null || language.trim().isEmpty() || addressee == null )
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set(new Request(sender, addressee.asBareJID(), normalize(language)));
+        }
+    }
+
+    /**
+     * Removes the language of the request that was processed by the current thread.
+     */
+    static void end()
+    {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the language of the service discovery request that is being processed by the current thread.
+     *
+     * @param sender The sender of the request.
+     * @param addressee The room (or service) that is being queried.
+     * @return A normalized language tag, or null if the language is not known.
+     */
+    @Nullable
+    public static String getRequestLanguage( @Nullable final JID sender, @Nonnull final JID addressee )
+    {
+        final Request request = CURRENT.get();
+        if ( request == null || !Objects.equals(request.sender, sender) || !request.addressee.equals(addressee.asBareJID()) )
+        {
+            return null;
+        }
+        return request.language;
+    }
+
+    /**
+     * Normalizes a language tag, so that tags that differ only in case or separator are considered equal.
+     *
+     * @param language A language tag (eg: 'en', 'nl-BE' or 'pt_BR').
+     * @return The normalized tag (eg: 'en', 'nl-be' or 'pt-br').
+     */
+    @Nonnull
+    public static String normalize( @Nonnull final String language )
+    {
+        return language.trim().replace('_', '-').toLowerCase(Locale.ROOT);
+    }
+
+    private static class Request
+    {
+        @Nullable
+        private final JID sender;
+
+        @Nonnull
+        private final JID addressee;
+
+        @Nonnull
+        private final String language;
+
+        Request( @Nullable final JID sender, @Nonnull final JID addressee, @Nonnull final String language )
+        {
+            this.sender = sender;
+            this.addressee = addressee;
+            this.language = language;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.cache.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Removes data forms from the (on-heap) cache when the Java heap runs low on memory, before the JVM runs out of it.
+ *
+ * The heap memory pools of the JVM are given a collection usage threshold: a percentage of their maximum size. When the
+ * usage of a pool still exceeds that threshold after a garbage collection, a part of the cached data is removed. As
+ * these thresholds are shared by everything that runs in the JVM, this is disabled by default, pools that already have
+ * a threshold are left alone, and the original thresholds are restored when the monitor is stopped. The entries that
+ * have not been accessed for the longest time are removed first (as far as that can be determined without sorting the
+ * entries, see {@link #shed(double)}), until the estimated size of the removed entries (see
+ * {@link CachedForms#getCachedSize()}) amounts to a configured percentage of the estimated size of the cache. This has the same effect as the eviction of these entries (data in the {@link OffHeapCache} is retained).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class MemoryPressureMonitor implements NotificationListener
+{
+    private static final Logger Log = LoggerFactory.getLogger(MemoryPressureMonitor.class);
+
+    /**
+     * Enables the removal of cached data when the Java heap runs low on memory. This sets the collection usage threshold
+     * of the heap memory pools of the JVM (unless Openfire or another plugin already did so).
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.memory.shedding.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().restart())
+        .build();
+
+    /**
+     * The usage (as a percentage of its maximum size) of a heap memory pool after a garbage collection, above which
+     * cached data is removed.
+     */
+    public static final SystemProperty<Integer> THRESHOLD = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.memory.shedding.threshold")
+        .setDefaultValue(85)
+        .setMinValue(1)
+        .setMaxValue(99)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(threshold -> getInstance().restart())
+        .build();
+
+    /**
+     * The percentage of the estimated size of the cache that is removed each time that the threshold is exceeded.
+     */
+    public static final SystemProperty<Integer> PERCENTAGE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.memory.shedding.percentage")
+        .setDefaultValue(25)
+        .setMinValue(1)
+        .setMaxValue(100)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The amount of intervals in which the moments at which cached entries were last accessed are grouped, to determine
+     * which entries to remove without sorting them.
+     */
+    private static final int BUCKETS = 256;
+
+    private static final MemoryPressureMonitor INSTANCE = new MemoryPressureMonitor();
+
+    public static MemoryPressureMonitor getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The collection usage thresholds that the memory pools had before they were changed by this instance.
+     */
+    private final Map<MemoryPoolMXBean, Long> originalThresholds = new HashMap<>();
+
+    /**
+     * The collection usage thresholds that this instance applied to the memory pools.
+     */
+    private final Map<MemoryPoolMXBean, Long> appliedThresholds = new HashMap<>();
+
+    private final AtomicBoolean shedding = new AtomicBoolean();
+
+    private final AtomicLong shedCount = new AtomicLong();
+
+    private final AtomicLong shedEntries = new AtomicLong();
+
+    private final AtomicLong shedBytes = new AtomicLong();
+
+    MemoryPressureMonitor() {}
+
+    /**
+     * Sets the collection usage threshold of each heap memory pool that supports one, and that does not have one yet,
+     * and starts listening for notifications of these thresholds being exceeded.
+     */
+    public synchronized void start()
+    {
+        if ( !ENABLED.getValue() || !originalThresholds.isEmpty() )
+        {
+            return;
+        }
+
+        final int threshold = THRESHOLD.getValue();
+        for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            final long max = pool.getUsage() == null ? -1 : pool.getUsage().getMax();
+            if ( pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || max <= 0 )
+            {
+                continue;
+            }
+            final long original = pool.getCollectionUsageThreshold();
+            if ( original > 0 )
+            {
+                Log.debug("Not changing the collection usage threshold of memory pool '{}', as it is already set to {} bytes.", pool.getName(), original);
+                continue;
+            }
+            final long applied = max / 100 * threshold;
+            pool.setCollectionUsageThreshold(applied);
+            originalThresholds.put(pool, original);
+            appliedThresholds.put(pool, applied);
+            Log.debug("Removing cached data when the usage of memory pool '{}' exceeds {}% after garbage collection.", pool.getName(), threshold);
+        }
+        if ( originalThresholds.isEmpty() )
+        {
+            Log.info("None of the heap memory pools of this JVM support a collection usage threshold that is not already in use. Cached data will not be removed when memory runs low.");
+            return;
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    /**
+     * Stops listening for notifications, and restores the original collection usage thresholds of the memory pools
+     * (unless a threshold was changed by something else in the meantime).
+     */
+    public synchronized void stop()
+    {
+        if ( originalThresholds.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        }
+        catch ( ListenerNotFoundException e )
+        {
+            Log.debug("The memory notification listener was not registered.", e);
+        }
+        for ( final Map.Entry<MemoryPoolMXBean, Long> entry : originalThresholds.entrySet() )
+        {
+            final MemoryPoolMXBean pool = entry.getKey();
+            if ( pool.getCollectionUsageThreshold() == appliedThresholds.get(pool) )
+            {
+                pool.setCollectionUsageThreshold(entry.getValue());
+            }
+        }
+        originalThresholds.clear();
+        appliedThresholds.clear();
+    }
+
+    private synchronized void restart()
+    {
+        stop();
+        start();
+    }
+
+    @Override
+    public void handleNotification( final Notification notification, final Object handback )
+    {
+        if ( !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()) )
+        {
+            return;
+        }
+
+        // Notifications are delivered by a thread of the JVM, that should not be held up. While data is being removed,
+        // additional notifications are ignored.
+        if ( shedding.compareAndSet(false, true) )
+        {
+            TaskEngine.getInstance().submit(() -> {
+                try
+                {
+                    shed(PERCENTAGE.getValue() / 100.0);
+                }
+                finally
+                {
+                    shedding.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the entries from the (on-heap) cache that have not been accessed for the longest time, until the
+     * estimated size of the removed entries amounts to a part of the estimated size of all entries.
+     *
+     * As memory is scarce when this is invoked, the entries are not collected or sorted. Instead, the cache is inspected
+     * three times: to determine the range of the moments at which entries were last accessed, to count the estimated
+     * size of the entries per interval of that range (see {@link #BUCKETS}), and to remove the entries of the oldest
+     * intervals. Within the last interval that is removed, entries are removed in no particular order.
+     *
+     * @param fraction The part of the estimated size of the cache to remove (0.0 to 1.0).
+     * @return The estimated amount of bytes that was removed.
+     */
+    long shed( final double fraction )
+    {
+        final Collection<Cache<JID, CachedForms>> partitions = CachePartitions.getInstance().getPartitions().values();
+
+        long total = 0;
+        int entries = 0;
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        for ( final Cache<JID, CachedForms> partition : partitions )
+        {
+            for ( final CachedForms value : partition.values() )
+            {
+                total += value.getCachedSize();
+                entries++;
+                oldest = Math.min(oldest, value.getLastAccessed());
+                newest = Math.max(newest, value.getLastAccessed());
+            }
+        }
+
+        final long span = Math.max(1, newest - oldest);
+        final long[] histogram = new long[BUCKETS];
+        for ( final Cache<JID, CachedForms> partition : partitions )
+        {
+            for ( final CachedForms value : partition.values() )
+            {
+                histogram[bucketOf(value.getLastAccessed(), oldest, span)] += value.getCachedSize();
+            }
+        }
+
+        // Entries in intervals before the cutoff are all removed. Entries in the cutoff interval are removed until enough
+        // has been removed.
+        final long target = (long) ( total * fraction );
+        int cutoff = 0;
+        long belowCutoff = 0;
+        while ( cutoff < BUCKETS - 1 && belowCutoff + histogram[cutoff] < target )
+        {
+            belowCutoff += histogram[cutoff];
+            cutoff++;
+        }
+
+        long removed = 0;
+        long removedAtCutoff = 0;
+        int count = 0;
+        for ( final Cache<JID, CachedForms> partition : partitions )
+        {
+            for ( final Map.Entry<JID, CachedForms> entry : partition.entrySet() )
+            {
+                // An entry that was accessed since it was inspected has moved to a later interval, and is retained.
+                final int bucket = bucketOf(entry.getValue().getLastAccessed(), oldest, span);
+                if ( bucket > cutoff || ( bucket == cutoff && removedAtCutoff >= target - belowCutoff ) )
+                {
+                    continue;
+                }
+
+                // The DAO modifies cached entries only while holding the lock of their key. Under that lock, an entry
+                // that was replaced by current data since it was inspected is put back. Entries are not read with get(),
+                // as that would count as a cache hit.
+                final Lock lock = partition.getLock(entry.getKey());
+                lock.lock();
+                try
+                {
+                    final CachedForms current = partition.remove(entry.getKey());
+                    if ( current == null )
+                    {
+                        continue;
+                    }
+                    if ( current != entry.getValue() && current.getGeneration() == DAO.getGeneration(entry.getKey()) )
+                    {
+                        partition.put(entry.getKey(), current);
+                        continue;
+                    }
+                    removed += current.getCachedSize();
+                    if ( bucket == cutoff )
+                    {
+                        removedAtCutoff += current.getCachedSize();
+                    }
+                    count++;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        shedCount.incrementAndGet();
+        shedEntries.addAndGet(count);
+        shedBytes.addAndGet(removed);
+        Log.info("The Java heap is running low on memory. Removed {} of {} cached entries ({} of {} KB, estimated) that were least recently used.", count, entries, removed / 1024, total / 1024);
+        return removed;
+    }
+
+    /**
+     * Returns the interval of the moments at which cached entries were last accessed that a moment falls into.
+     *
+     * @param lastAccessed The moment at which an entry was last accessed (see {@link CachedForms#getLastAccessed()}).
+     * @param oldest The moment at which the entry that was accessed longest ago was last accessed.
+     * @param span The amount of time between that moment and the moment at which the most recently accessed entry was
+     *             last accessed (at least one).
+     * @return an interval, from 0 (oldest) to {@link #BUCKETS} - 1 (most recent).
+     */
+    private static int bucketOf( final long lastAccessed, final long oldest, final long span )
+    {
+        final long offset = Math.max(0, Math.min(span, lastAccessed - oldest));
+        return (int) ( (double) offset / span * ( BUCKETS - 1 ) );
+    }
+
+    /**
+     * Returns the amount of times that cached data was removed because the Java heap was running low on memory.
+     *
+     * @return an amount.
+     */
+    public long getShedCount()
+    {
+        return shedCount.get();
+    }
+
+    /**
+     * Returns the amount of entries that were removed from the cache because the Java heap was running low on memory.
+     *
+     * @return an amount of entries.
+     */
+    public long getShedEntries()
+    {
+        return shedEntries.get();
+    }
+
+    /**
+     * Returns the estimated amount of bytes that was removed from the cache because the Java heap was running low on
+     * memory.
+     *
+     * @return an amount of bytes.
+     */
+    public long getShedBytes()
+    {
+        return shedBytes.get();
+    }
+}
@@ -20,6 +20,8 @@ import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.disco.DiscoInfoProvider;
 import org.jivesoftware.openfire.disco.IQDiscoInfoHandler;
+import org.jivesoftware.openfire.interceptor.InterceptorManager;
+import org.jivesoftware.openfire.muc.MUCEventDispatcher;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +57,20 @@ public class MucExtInfoPlugin implements Plugin
         {
             Log.error("An exception occurred while trying to replace MUC Service Disco Info Providers.", e);
         }
+
+        FormSchemaRegistry.getInstance().configureBuiltInSchemas();
+        ReadReplica.getInstance().configure();
+        OffHeapCache.getInstance().configure();
+        CachePartitions.getInstance().start();
+        MemoryPressureMonitor.getInstance().start();
+        Snapshot.getInstance().start();
+        ExternalChangePoller.getInstance().start();
+        ChangeFeed.getInstance().start();
+        InterceptorManager.getInstance().addInterceptor(Localization.getInstance());
+        MUCEventDispatcher.addListener(RoomActivityTracker.getInstance());
+        CacheWarmer.getInstance().start();
+        MUCEventDispatcher.addListener(CacheWarmer.getInstance());
+        ComputedFieldManager.getInstance().configureBuiltInProviders();
     }
 
     @Override
@@ -69,7 +85,21 @@ public class MucExtInfoPlugin implements Plugin
             Log.error("An exception occurred while trying to restore MUC Service Disco Info Providers.", e);
         }
 
+        ComputedFieldManager.getInstance().unregisterAll();
+        FormSchemaRegistry.getInstance().unregisterAll();
+        InterceptorManager.getInstance().removeInterceptor(Localization.getInstance());
+        MUCEventDispatcher.removeListener(RoomActivityTracker.getInstance());
+        MUCEventDispatcher.removeListener(CacheWarmer.getInstance());
+        CacheWarmer.getInstance().stop();
+        RoomActivityTracker.getInstance().clear();
+        ChangeFeed.getInstance().stop();
+        ExternalChangePoller.getInstance().stop();
+        Snapshot.getInstance().close();
+        ReadReplica.getInstance().close();
+        MemoryPressureMonitor.getInstance().stop();
         DAO.purgeCache();
+        CachePartitions.getInstance().stop();
+        OffHeapCache.getInstance().close();
     }
 
     public static DiscoInfoProvider getProvider( final MultiUserChatService service ) throws InvocationTargetException, IllegalAccessException, NoSuchMethodException
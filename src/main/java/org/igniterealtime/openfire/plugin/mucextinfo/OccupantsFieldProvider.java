@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Provides a field that holds the amount of occupants that are currently in a room.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class OccupantsFieldProvider implements ComputedFieldProvider
+{
+    public static final String VAR_NAME = "occupants";
+
+    @Nonnull
+    private final String formTypeName;
+
+    @Nonnull
+    private final Duration refreshInterval;
+
+    public OccupantsFieldProvider( @Nonnull final String formTypeName, @Nonnull final Duration refreshInterval )
+    {
+        this.formTypeName = formTypeName;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    @Nonnull
+    @Override
+    public Duration getRefreshInterval()
+    {
+        return refreshInterval;
+    }
+
+    @Nonnull
+    @Override
+    public Collection<Field> compute( @Nonnull final MUCRoom room )
+    {
+        return Collections.singletonList(new Field(VAR_NAME, "Number of occupants", String.valueOf(room.getOccupantsCount())));
+    }
+}
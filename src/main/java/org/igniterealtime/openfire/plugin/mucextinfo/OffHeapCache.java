@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional second-level cache for the data forms of rooms, that keeps data outside of the Java heap.
+ *
+ * The (on-heap) cache that is used by {@link DAO} holds data forms as objects, which, for millions of rooms, causes
+ * long garbage collection pauses. When this second level is enabled, every entry of the on-heap cache is also written
+ * to this cache, in the compact binary encoding of {@link ExtDataForm#writeTo(DataOutput)}. Entries that are evicted
+ * from the on-heap cache are decoded from this cache when they are next needed, rather than being reloaded from the
+ * database. This allows the on-heap cache to be configured as a small tier of frequently requested rooms.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class OffHeapCache
+{
+    private static final Logger Log = LoggerFactory.getLogger(OffHeapCache.class);
+
+    /**
+     * Enables the off-heap cache.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.offheap.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().configure())
+        .build();
+
+    /**
+     * The maximum amount of memory, in megabytes, that is used outside of the Java heap. Memory is allocated as it is
+     * needed. The JVM limits the total amount of such memory with its <tt>-XX:MaxDirectMemorySize</tt> option.
+     */
+    public static final SystemProperty<Integer> CAPACITY = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.offheap.capacity")
+        .setDefaultValue(256)
+        .setMinValue(1)
+        .setMaxValue(OffHeapStore.MAX_SEGMENTS * 1024)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(capacity -> getInstance().configure())
+        .build();
+
+    /**
+     * The size of each of the segments in which memory is allocated. Memory is reused one segment at a time.
+     */
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final OffHeapCache INSTANCE = new OffHeapCache();
+
+    public static OffHeapCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private volatile OffHeapStore store;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    OffHeapCache() {}
+
+    /**
+     * (Re)creates the store based on the current configuration. Any previously cached data is discarded.
+     */
+    public synchronized void configure()
+    {
+        close();
+        if ( !ENABLED.getValue() )
+        {
+            return;
+        }
+
+        final long capacity = CAPACITY.getValue() * 1024L * 1024L;
+        final int segmentSize = (int) Math.min(SEGMENT_SIZE, Math.max(1024 * 1024, capacity / 2));
+        final int segmentCount = (int) Math.max(2, Math.min(OffHeapStore.MAX_SEGMENTS, capacity / segmentSize));
+        Log.info("Using an off-heap cache of {} segments of {} bytes.", segmentCount, segmentSize);
+        store = new OffHeapStore(segmentSize, segmentCount);
+    }
+
+    /**
+     * Discards the store and all data in it. The memory that it used is released when the store is garbage collected.
+     */
+    public synchronized void close()
+    {
+        store = null;
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Checks if the off-heap cache is in use.
+     *
+     * @return true if the cache is in use, otherwise false.
+     */
+    public boolean isEnabled()
+    {
+        return store != null;
+    }
+
+    /**
+     * Returns the cached data forms for a key.
+     *
+     * @param key The cache key (as used by {@link DAO}).
+     * @return The cached data forms, or null when nothing is cached for the key (or the cache is not in use).
+     */
+    @Nullable
+    CachedForms get( @Nonnull final JID key )
+    {
+        final OffHeapStore store = this.store;
+        if ( store == null )
+        {
+            return null;
+        }
+
+        final byte[] value = store.get(encodeKey(key));
+        if ( value == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        try
+        {
+            return decode(value);
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Unable to decode data forms for '{}' from the off-heap cache.", key, e);
+            store.remove(encodeKey(key));
+            return null;
+        }
+    }
+
+    /**
+     * Caches data forms for a key, replacing any data that was cached for the key.
+     *
+     * @param key The cache key (as used by {@link DAO}).
+     * @param value The data forms to cache.
+     */
+    void put( @Nonnull final JID key, @Nonnull final CachedForms value )
+    {
+        final OffHeapStore store = this.store;
+        if ( store == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( !store.put(encodeKey(key), encode(value.getGeneration(), value.getForms().isPresent() ? value.getForms().get() : null)) )
+            {
+                Log.debug("Data forms for '{}' are too large for the off-heap cache.", key);
+            }
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Unable to encode data forms for '{}' for the off-heap cache.", key, e);
+            store.remove(encodeKey(key));
+        }
+    }
+
+    /**
+     * Removes the data forms that are cached for a key.
+     *
+     * @param key The cache key (as used by {@link DAO}).
+     */
+    void remove( @Nonnull final JID key )
+    {
+        final OffHeapStore store = this.store;
+        if ( store != null )
+        {
+            store.remove(encodeKey(key));
+        }
+    }
+
+    /**
+     * Checks if data forms are cached for a key.
+     *
+     * @param key The cache key (as used by {@link DAO}).
+     * @return true if data forms are cached for the key, otherwise false.
+     */
+    boolean containsKey( @Nonnull final JID key )
+    {
+        final OffHeapStore store = this.store;
+        return store != null && store.containsKey(encodeKey(key));
+    }
+
+    /**
+     * Removes all cached data.
+     */
+    void clear()
+    {
+        final OffHeapStore store = this.store;
+        if ( store != null )
+        {
+            store.clear();
+        }
+    }
+
+    /**
+     * Returns the amount of keys for which data forms are cached.
+     *
+     * @return an amount of entries.
+     */
+    public int getSize()
+    {
+        final OffHeapStore store = this.store;
+        return store == null ? 0 : store.size();
+    }
+
+    /**
+     * Returns the amount of memory that has been allocated outside of the heap.
+     *
+     * @return an amount of bytes.
+     */
+    public long getAllocatedBytes()
+    {
+        final OffHeapStore store = this.store;
+        return store == null ? 0 : store.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the amount of memory that the index of the off-heap cache occupies on the heap.
+     *
+     * @return an amount of bytes.
+     */
+    public long getIndexBytes()
+    {
+        final OffHeapStore store = this.store;
+        return store == null ? 0 : store.getIndexBytes();
+    }
+
+    /**
+     * Returns the amount of lookups that were answered by this cache.
+     *
+     * @return an amount of lookups.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the amount of lookups that could not be answered by this cache.
+     *
+     * @return an amount of lookups.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @Nonnull
+    static byte[] encodeKey( @Nonnull final JID key )
+    {
+        return key.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes data forms, preceded by the generation with which they are stamped (see {@link CachedForms}). An absent
+     * value (a room without data forms) is encoded as an empty list.
+     *
+     * @param generation The generation of the data forms.
+     * @param forms The data forms (can be null).
+     * @return The binary representation of the data forms.
+     * @throws IOException on any problem encoding the data.
+     */
+    @Nonnull
+    static byte[] encode( final long generation, @Nullable final List<ExtDataForm> forms ) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( final DataOutputStream out = new DataOutputStream(bytes) )
+        {
+            out.writeLong(generation);
+            out.writeInt(forms == null ? 0 : forms.size());
+            if ( forms != null )
+            {
+                for ( final ExtDataForm form : forms )
+                {
+                    form.writeTo(out);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes data forms from the representation written by {@link #encode(long, List)}.
+     *
+     * @param value The binary representation of the data forms.
+     * @return The data forms (absent when there are none), stamped with their generation.
+     * @throws IOException on any problem decoding the data.
+     */
+    @Nonnull
+    static CachedForms decode( @Nonnull final byte[] value ) throws IOException
+    {
+        try ( final DataInputStream in = new DataInputStream(new ByteArrayInputStream(value)) )
+        {
+            final long generation = in.readLong();
+            final int size = in.readInt();
+            if ( size == 0 )
+            {
+                return new CachedForms(generation, CacheableOptional.of(null));
+            }
+            final ArrayList<ExtDataForm> result = new ArrayList<>(size);
+            for ( int i = 0; i < size; i++ )
+            {
+                result.add(ExtDataForm.readFrom(in));
+            }
+            return new CachedForms(generation, CacheableOptional.of(result));
+        }
+    }
+}
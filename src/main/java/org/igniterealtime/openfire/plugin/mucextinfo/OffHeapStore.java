@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A map of binary keys to binary values, of which the keys and values are stored outside of the Java heap, in direct
+ * byte buffers. Only a compact index (two arrays of primitives) lives on the heap, so that the amount of entries does
+ * not affect garbage collection.
+ *
+ * Memory is divided in segments, that are filled one after the other. Every entry is appended to the segment that is
+ * currently being filled, also when it replaces an existing entry. When all segments are full, the oldest segment is
+ * reused, which evicts all entries that were written to it (in other words: entries are evicted in the order in which
+ * they were written).
+ *
+ * The index is an open-addressing hash table with linear probing. Each slot holds the hash of a key and the address
+ * of its entry. An address identifies the segment, the offset in that segment and the generation of the segment at the
+ * time of writing. When a segment is reused, its generation is incremented, which makes all addresses that point to
+ * its previous content stale without having to visit them.
+ *
+ * This class is thread-safe. Lookups can be performed concurrently; modifications are exclusive.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+class OffHeapStore
+{
+    /**
+     * The address of an empty slot.
+     */
+    private static final long EMPTY = 0;
+
+    /**
+     * The address of a slot of which the entry was removed.
+     */
+    private static final long REMOVED = -1;
+
+    /**
+     * The maximum generation of a segment (23 bits, which keeps addresses positive).
+     */
+    private static final int MAX_GENERATION = 0x7FFFFF;
+
+    /**
+     * The maximum amount of segments (8 bits).
+     */
+    static final int MAX_SEGMENTS = 256;
+
+    /**
+     * The minimum amount of slots in the index.
+     */
+    private static final int MIN_SLOTS = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final int segmentSize;
+
+    /**
+     * The segments, which are allocated when they are first written to.
+     */
+    private final ByteBuffer[] segments;
+
+    private final int[] generations;
+
+    /**
+     * The index of the segment that is currently being filled.
+     */
+    private int current;
+
+    /**
+     * The position in the current segment at which the next entry is written.
+     */
+    private int position;
+
+    private int[] hashes;
+
+    private long[] addresses;
+
+    /**
+     * The amount of slots that are not empty (this includes removed and stale entries).
+     */
+    private int occupied;
+
+    /**
+     * Creates a new store.
+     *
+     * @param segmentSize The size, in bytes, of each segment. This also limits the size of an individual entry.
+     * @param segmentCount The amount of segments (at least two, at most {@link #MAX_SEGMENTS}).
+     */
+    OffHeapStore( final int segmentSize, final int segmentCount )
+    {
+        if ( segmentSize < 16 )
+        {
+            throw new IllegalArgumentException("Argument 'segmentSize' must be at least 16, but was: " + segmentSize);
+        }
+        if ( segmentCount < 2 || segmentCount > MAX_SEGMENTS )
+        {
+            throw new IllegalArgumentException("Argument 'segmentCount' must be between 2 and " + MAX_SEGMENTS + ", but was: " + segmentCount);
+        }
+        this.segmentSize = segmentSize;
+        this.segments = new ByteBuffer[segmentCount];
+        this.generations = new int[segmentCount];
+        Arrays.fill(generations, 1);
+        this.hashes = new int[MIN_SLOTS];
+        this.addresses = new long[MIN_SLOTS];
+    }
+
+    /**
+     * Returns the value that is stored for a key.
+     *
+     * @param key The key.
+     * @return The value, or null when no value is stored for the key.
+     */
+    @Nullable
+    byte[] get( @Nonnull final byte[] key )
+    {
+        final int hash = hash(key);
+        lock.readLock().lock();
+        try
+        {
+            final int slot = find(key, hash);
+            if ( slot < 0 )
+            {
+                return null;
+            }
+            final long address = addresses[slot];
+            final ByteBuffer segment = segments[segmentOf(address)];
+            final int offset = offsetOf(address);
+            final int keyLength = segment.getInt(offset);
+            final int valueOffset = offset + 4 + keyLength;
+            final byte[] result = new byte[segment.getInt(valueOffset)];
+            final ByteBuffer view = segment.duplicate();
+            view.position(valueOffset + 4);
+            view.get(result);
+            return result;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a value for a key, replacing any value that was stored for the key.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return false if the entry is too large to be stored (any value that was stored for the key is removed).
+     */
+    boolean put( @Nonnull final byte[] key, @Nonnull final byte[] value )
+    {
+        final int hash = hash(key);
+        final int length = 8 + key.length + value.length;
+        lock.writeLock().lock();
+        try
+        {
+            if ( length > segmentSize )
+            {
+                removeLocked(key, hash);
+                return false;
+            }
+
+            if ( position + length > segmentSize )
+            {
+                // Continue in the next segment, evicting all entries that were previously written to it.
+                current = (current + 1) % segments.length;
+                generations[current] = generations[current] == MAX_GENERATION ? 1 : generations[current] + 1;
+                position = 0;
+            }
+            if ( segments[current] == null )
+            {
+                segments[current] = ByteBuffer.allocateDirect(segmentSize);
+            }
+
+            final ByteBuffer segment = segments[current];
+            final int offset = position;
+            segment.putInt(offset, key.length);
+            for ( int i = 0; i < key.length; i++ )
+            {
+                segment.put(offset + 4 + i, key[i]);
+            }
+            segment.putInt(offset + 4 + key.length, value.length);
+            final ByteBuffer view = segment.duplicate();
+            view.position(offset + 8 + key.length);
+            view.put(value);
+            position += length;
+
+            final long address = addressOf(generations[current], current, offset);
+            final int existing = find(key, hash);
+            if ( existing >= 0 )
+            {
+                addresses[existing] = address;
+                return true;
+            }
+
+            if ( (occupied + 1) * 2 > addresses.length )
+            {
+                rebuild();
+            }
+            int slot = hash & (addresses.length - 1);
+            while ( addresses[slot] != EMPTY && addresses[slot] != REMOVED && !isStale(addresses[slot]) )
+            {
+                slot = (slot + 1) & (addresses.length - 1);
+            }
+            if ( addresses[slot] == EMPTY )
+            {
+                occupied++;
+            }
+            hashes[slot] = hash;
+            addresses[slot] = address;
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the value that is stored for a key (if any).
+     *
+     * @param key The key.
+     */
+    void remove( @Nonnull final byte[] key )
+    {
+        final int hash = hash(key);
+        lock.writeLock().lock();
+        try
+        {
+            removeLocked(key, hash);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if a value is stored for a key.
+     *
+     * @param key The key.
+     * @return true if a value is stored for the key, otherwise false.
+     */
+    boolean containsKey( @Nonnull final byte[] key )
+    {
+        final int hash = hash(key);
+        lock.readLock().lock();
+        try
+        {
+            return find(key, hash) >= 0;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all entries. Memory that has been allocated is retained, to be reused.
+     */
+    void clear()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            for ( int i = 0; i < generations.length; i++ )
+            {
+                generations[i] = generations[i] == MAX_GENERATION ? 1 : generations[i] + 1;
+            }
+            current = 0;
+            position = 0;
+            hashes = new int[MIN_SLOTS];
+            addresses = new long[MIN_SLOTS];
+            occupied = 0;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of entries that are stored.
+     *
+     * @return an amount of entries.
+     */
+    int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            int result = 0;
+            for ( final long address : addresses )
+            {
+                if ( isLive(address) )
+                {
+                    result++;
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of memory that has been allocated outside of the heap.
+     *
+     * @return an amount of bytes.
+     */
+    long getAllocatedBytes()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return Arrays.stream(segments).filter(segment -> segment != null).count() * segmentSize;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of memory that the index occupies on the heap.
+     *
+     * @return an amount of bytes.
+     */
+    long getIndexBytes()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return (long) addresses.length * (Integer.BYTES + Long.BYTES);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeLocked( @Nonnull final byte[] key, final int hash )
+    {
+        final int slot = find(key, hash);
+        if ( slot >= 0 )
+        {
+            addresses[slot] = REMOVED;
+        }
+    }
+
+    /**
+     * Finds the slot of the live entry for a key. Must be called while holding (at least) the read lock.
+     *
+     * @return the index of the slot, or -1 when there is no live entry for the key.
+     */
+    private int find( @Nonnull final byte[] key, final int hash )
+    {
+        final int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while ( addresses[slot] != EMPTY )
+        {
+            if ( hashes[slot] == hash && isLive(addresses[slot]) && keyEquals(addresses[slot], key) )
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the index by one that holds only the live entries, and that is large enough to have at least as many
+     * free slots as live entries. Must be called while holding the write lock.
+     */
+    private void rebuild()
+    {
+        int live = 0;
+        for ( final long address : addresses )
+        {
+            if ( isLive(address) )
+            {
+                live++;
+            }
+        }
+        int capacity = MIN_SLOTS;
+        while ( capacity < (live + 1) * 4 )
+        {
+            capacity <<= 1;
+        }
+
+        final int[] oldHashes = hashes;
+        final long[] oldAddresses = addresses;
+        hashes = new int[capacity];
+        addresses = new long[capacity];
+        occupied = 0;
+        for ( int i = 0; i < oldAddresses.length; i++ )
+        {
+            if ( isLive(oldAddresses[i]) )
+            {
+                int slot = oldHashes[i] & (capacity - 1);
+                while ( addresses[slot] != EMPTY )
+                {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                hashes[slot] = oldHashes[i];
+                addresses[slot] = oldAddresses[i];
+                occupied++;
+            }
+        }
+    }
+
+    private boolean keyEquals( final long address, @Nonnull final byte[] key )
+    {
+        final ByteBuffer segment = segments[segmentOf(address)];
+        final int offset = offsetOf(address);
+        if ( segment.getInt(offset) != key.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < key.length; i++ )
+        {
+            if ( segment.get(offset + 4 + i) != key[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLive( final long address )
+    {
+        return address != EMPTY && address != REMOVED && !isStale(address);
+    }
+
+    private boolean isStale( final long address )
+    {
+        return generationOf(address) != generations[segmentOf(address)];
+    }
+
+    static long addressOf( final int generation, final int segment, final int offset )
+    {
+        return ((long) generation << 40) | ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    static int generationOf( final long address )
+    {
+        return (int) (address >>> 40);
+    }
+
+    static int segmentOf( final long address )
+    {
+        return (int) ((address >>> 32) & 0xFF);
+    }
+
+    static int offsetOf( final long address )
+    {
+        return (int) address;
+    }
+
+    /**
+     * Computes the hash of a key, spreading its bits so that keys that share a common prefix (like the addresses of
+     * rooms of the same service) are distributed evenly over the index.
+     */
+    static int hash( @Nonnull final byte[] key )
+    {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
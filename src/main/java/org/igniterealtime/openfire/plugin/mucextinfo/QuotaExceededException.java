@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thrown when a modification would cause the data forms of a room to exceed one of the limits of {@link RoomQuota}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class QuotaExceededException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    @Nonnull
+    private final JID room;
+
+    @Nonnull
+    private final String quota;
+
+    private final long limit;
+
+    private final long requested;
+
+    public QuotaExceededException( @Nonnull final JID room, @Nonnull final String quota, final long limit, final long requested )
+    {
+        super("The " + quota + " of room '" + room + "' would exceed its limit of " + limit + " (requested: " + requested + ").");
+        this.room = room;
+        this.quota = quota;
+        this.limit = limit;
+        this.requested = requested;
+    }
+
+    /**
+     * The room of which the data forms would exceed the limit.
+     */
+    @Nonnull
+    public JID getRoom()
+    {
+        return room;
+    }
+
+    /**
+     * A description of the quantity that would exceed the limit (eg: 'amount of fields').
+     */
+    @Nonnull
+    public String getQuota()
+    {
+        return quota;
+    }
+
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * The value that the quantity would have after the modification.
+     */
+    public long getRequested()
+    {
+        return requested;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Routes database reads of data forms to an (optional) read-only replica of the database, to take load off the primary
+ * database that is shared with the rest of Openfire. Writes always go to the primary database.
+ *
+ * After a room is modified on this server, its data is read from the primary database for a short period, to prevent
+ * replication lag from causing stale data to be cached. When the replica fails, reads fall back to the primary database
+ * for a while, after which the replica is tried again.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ReadReplica
+{
+    private static final Logger Log = LoggerFactory.getLogger(ReadReplica.class);
+
+    /**
+     * The JDBC URL of the read-only replica. When empty, all reads are performed on the primary database.
+     */
+    public static final SystemProperty<String> URL = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.replica.url")
+        .setDefaultValue("")
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(url -> getInstance().configure())
+        .build();
+
+    /**
+     * The class name of the JDBC driver for the read-only replica. Can be left empty for JDBC 4 drivers.
+     */
+    public static final SystemProperty<String> DRIVER = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.replica.driver")
+        .setDefaultValue("")
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(driver -> getInstance().configure())
+        .build();
+
+    public static final SystemProperty<String> USERNAME = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.replica.username")
+        .setDefaultValue("")
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(username -> getInstance().configure())
+        .build();
+
+    /**
+     * The password for the read-only replica. This is stored encrypted, and its value is not shown in the admin console.
+     */
+    public static final SystemProperty<String> PASSWORD = SystemProperty.Builder.ofType(String.class)
+        .setKey("mucextinfo.replica.password")
+        .setDefaultValue("")
+        .setEncrypted(true)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(password -> getInstance().configure())
+        .build();
+
+    /**
+     * The maximum amount of connections in the pool of connections to the read-only replica.
+     */
+    public static final SystemProperty<Integer> MAX_CONNECTIONS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.replica.connections.max")
+        .setDefaultValue(10)
+        .setMinValue(1)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(max -> getInstance().configure())
+        .build();
+
+    /**
+     * The period after a modification of a room during which its data is read from the primary database.
+     */
+    public static final SystemProperty<Duration> READ_YOUR_WRITES_WINDOW = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.replica.read-your-writes")
+        .setDefaultValue(Duration.ofSeconds(5))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The period after a failure of the replica during which all reads are performed on the primary database.
+     */
+    public static final SystemProperty<Duration> RETRY_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.replica.retry")
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * Matches password parameters in a JDBC URL, as used by {@link #maskCredentials(String)}.
+     */
+    private static final Pattern CREDENTIALS = Pattern.compile("(?i)\\b(password|pwd)=[^;&]*");
+
+    /**
+     * The amount of recently modified rooms at which expired entries are removed.
+     */
+    private static final int PRUNE_THRESHOLD = 1000;
+
+    private static final ReadReplica INSTANCE = new ReadReplica();
+
+    public static ReadReplica getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Rooms that were recently modified, mapped to the moment (in terms of {@link System#nanoTime()}) at which their
+     * data can again be read from the replica.
+     */
+    private final ConcurrentMap<JID, Long> pinnedUntil = new ConcurrentHashMap<>();
+
+    private final AtomicLong replicaReadCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private volatile DataSource dataSource;
+
+    /**
+     * The moment (in terms of {@link System#nanoTime()}) until which the replica is considered to be unhealthy, or null
+     * if the replica is healthy.
+     */
+    private volatile Long unhealthyUntil;
+
+    ReadReplica() {}
+
+    /**
+     * (Re)creates the pool of connections to the replica, based on the current configuration.
+     */
+    public synchronized void configure()
+    {
+        close();
+
+        final String url = URL.getValue();
+        if ( url == null || url.trim().isEmpty() )
+        {
+            Log.debug("No read-only replica configured. All reads are performed on the primary database.");
+            return;
+        }
+
+        Log.info("Routing reads of data forms to read-only replica at '{}'.", maskCredentials(url));
+        final BasicDataSource pool = new BasicDataSource();
+        final String driver = DRIVER.getValue();
+        if ( driver != null && !driver.trim().isEmpty() )
+        {
+            pool.setDriverClassName(driver.trim());
+        }
+        pool.setUrl(url.trim());
+        pool.setUsername(USERNAME.getValue());
+        pool.setPassword(PASSWORD.getValue());
+        pool.setMaxTotal(MAX_CONNECTIONS.getValue());
+        pool.setMaxWaitMillis(Duration.ofSeconds(5).toMillis());
+        pool.setDefaultReadOnly(true);
+        setDataSource(pool);
+    }
+
+    /**
+     * Replaces the values of password parameters in a JDBC URL (eg: <tt>password=secret</tt>), so that the URL can be
+     * logged.
+     *
+     * @param url A JDBC URL.
+     * @return The URL, without passwords.
+     */
+    @Nonnull
+    static String maskCredentials( @Nonnull final String url )
+    {
+        return CREDENTIALS.matcher(url).replaceAll("$1=***");
+    }
+
+    /**
+     * Closes the pool of connections to the replica, after which all reads are performed on the primary database.
+     */
+    public synchronized void close()
+    {
+        final DataSource old = dataSource;
+        dataSource = null;
+        unhealthyUntil = null;
+        pinnedUntil.clear();
+        if ( old instanceof AutoCloseable )
+        {
+            try
+            {
+                ((AutoCloseable) old).close();
+            }
+            catch ( Exception e )
+            {
+                Log.warn("An exception occurred while closing the pool of connections to the read-only replica.", e);
+            }
+        }
+    }
+
+    void setDataSource( @Nullable final DataSource dataSource )
+    {
+        this.dataSource = dataSource;
+        this.unhealthyUntil = null;
+    }
+
+    /**
+     * Records that a room was modified, causing its data to be read from the primary database for a while.
+     *
+     * @param room The room that was modified.
+     */
+    public void recordWrite( @Nonnull final JID room )
+    {
+        recordWrite(room, System.nanoTime());
+    }
+
+    void recordWrite( @Nonnull final JID room, final long now )
+    {
+        if ( dataSource == null )
+        {
+            return;
+        }
+        if ( pinnedUntil.size() > PRUNE_THRESHOLD )
+        {
+            pinnedUntil.values().removeIf(until -> until - now <= 0);
+        }
+        pinnedUntil.put(room.asBareJID(), now + READ_YOUR_WRITES_WINDOW.getValue().toNanos());
+    }
+
+    /**
+     * Checks if data of the provided rooms can be read from the replica. This is the case when a replica is configured,
+     * is deemed healthy, and none of the rooms have recently been modified.
+     *
+     * @param rooms The (normalized) rooms for which data is to be read.
+     * @return true if the data should be read from the replica, otherwise false.
+     */
+    public boolean isEligible( @Nonnull final Collection<JID> rooms )
+    {
+        return isEligible(rooms, System.nanoTime());
+    }
+
+    boolean isEligible( @Nonnull final Collection<JID> rooms, final long now )
+    {
+        if ( dataSource == null )
+        {
+            return false;
+        }
+
+        final Long until = unhealthyUntil;
+        if ( until != null && until - now > 0 )
+        {
+            return false;
+        }
+
+        for ( final JID room : rooms )
+        {
+            final Long pinned = pinnedUntil.get(room);
+            if ( pinned != null )
+            {
+                if ( pinned - now > 0 )
+                {
+                    return false;
+                }
+                pinnedUntil.remove(room, pinned);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Obtains a connection to the replica.
+     *
+     * @return A read-only database connection.
+     * @throws SQLException if no connection could be obtained.
+     */
+    @Nonnull
+    public Connection getConnection() throws SQLException
+    {
+        final DataSource source = dataSource;
+        if ( source == null )
+        {
+            throw new SQLException("No read-only replica is configured.");
+        }
+        return source.getConnection();
+    }
+
+    /**
+     * Records that data was successfully read from the replica.
+     */
+    public void reportSuccess()
+    {
+        replicaReadCount.incrementAndGet();
+        if ( unhealthyUntil != null )
+        {
+            Log.info("The read-only replica has recovered. Reads of data forms are routed to the replica again.");
+            unhealthyUntil = null;
+        }
+    }
+
+    /**
+     * Records that reading data from the replica failed, causing reads to be performed on the primary database for a
+     * while.
+     *
+     * @param e The cause of the failure.
+     */
+    public void reportFailure( @Nonnull final SQLException e )
+    {
+        reportFailure(e, System.nanoTime());
+    }
+
+    void reportFailure( @Nonnull final SQLException e, final long now )
+    {
+        failureCount.incrementAndGet();
+        if ( unhealthyUntil == null )
+        {
+            Log.warn("Unable to read from the read-only replica. Falling back to the primary database for {}.", RETRY_INTERVAL.getValue(), e);
+        }
+        else
+        {
+            Log.debug("Unable to read from the read-only replica.", e);
+        }
+        unhealthyUntil = now + RETRY_INTERVAL.getValue().toNanos();
+    }
+
+    /**
+     * Returns the amount of successful reads from the replica.
+     *
+     * @return a read count.
+     */
+    public long getReplicaReadCount()
+    {
+        return replicaReadCount.get();
+    }
+
+    /**
+     * Returns the amount of reads from the replica that failed (and were performed on the primary database instead).
+     *
+     * @return a failure count.
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+}
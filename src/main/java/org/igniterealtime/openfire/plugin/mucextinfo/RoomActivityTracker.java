@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCEventListener;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the moment of the last activity (joins, departures, messages and subject changes) in each room.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class RoomActivityTracker implements MUCEventListener
+{
+    private static final RoomActivityTracker INSTANCE = new RoomActivityTracker();
+
+    public static RoomActivityTracker getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final ConcurrentMap<JID, Instant> lastActivityByRoom = new ConcurrentHashMap<>();
+
+    private RoomActivityTracker() {}
+
+    /**
+     * Returns the moment of the last recorded activity in a room.
+     *
+     * @param room The room for which to return the last activity.
+     * @return The moment of the last activity, or null if no activity was recorded.
+     */
+    @Nullable
+    public Instant getLastActivity( @Nonnull final JID room )
+    {
+        return lastActivityByRoom.get(room.asBareJID());
+    }
+
+    /**
+     * Removes all recorded activity.
+     */
+    public void clear()
+    {
+        lastActivityByRoom.clear();
+    }
+
+    private void touch( @Nonnull final JID room )
+    {
+        lastActivityByRoom.put(room.asBareJID(), Instant.now());
+    }
+
+    @Override
+    public void roomCreated( final JID roomJID )
+    {
+        touch(roomJID);
+    }
+
+    @Override
+    public void roomDestroyed( final JID roomJID )
+    {
+        lastActivityByRoom.remove(roomJID.asBareJID());
+    }
+
+    @Override
+    public void occupantJoined( final JID roomJID, final JID user, final String nickname )
+    {
+        touch(roomJID);
+    }
+
+    @Override
+    public void occupantLeft( final JID roomJID, final JID user )
+    {
+        touch(roomJID);
+    }
+
+    @Override
+    public void nicknameChanged( final JID roomJID, final JID user, final String oldNickname, final String newNickname )
+    {
+        touch(roomJID);
+    }
+
+    @Override
+    public void messageReceived( final JID roomJID, final JID user, final String nickname, final Message message )
+    {
+        touch(roomJID);
+    }
+
+    @Override
+    public void privateMessageRecieved( final JID toJID, final JID fromJID, final Message message ) {}
+
+    @Override
+    public void roomSubjectChanged( final JID roomJID, final JID user, final String newSubject )
+    {
+        touch(roomJID);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * A snapshot of the rooms of a MUC service, in the order in which they are listed, that is used to select the rooms
+ * for which data is prefetched (see {@link DiscoInfoProviderProxy#PREFETCH_SIZE}). The position of each room is
+ * indexed, so that finding the rooms that follow a particular room does not require a scan of the listing.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+final class RoomListing
+{
+    /**
+     * A listing without rooms.
+     */
+    static final RoomListing EMPTY = new RoomListing(Collections.emptyList());
+
+    @Nonnull
+    private final List<JID> rooms;
+
+    @Nonnull
+    private final Map<JID, Integer> positions;
+
+    /**
+     * The value of {@link System#nanoTime()} when this snapshot was created.
+     */
+    private final long created = System.nanoTime();
+
+    private RoomListing( @Nonnull final List<JID> rooms )
+    {
+        this.rooms = rooms;
+        final Map<JID, Integer> result = new HashMap<>(rooms.size() * 4 / 3 + 1);
+        for ( int i = 0; i < rooms.size(); i++ )
+        {
+            result.putIfAbsent(rooms.get(i), i);
+        }
+        this.positions = result;
+    }
+
+    /**
+     * Creates a snapshot of a listing.
+     *
+     * @param rooms The addresses of rooms, in the order in which they are listed.
+     * @return A snapshot.
+     */
+    @Nonnull
+    static RoomListing of( @Nonnull final Collection<JID> rooms )
+    {
+        return new RoomListing(Collections.unmodifiableList(new ArrayList<>(rooms)));
+    }
+
+    /**
+     * Returns the addresses of the rooms in the listing.
+     *
+     * @return an unmodifiable list of room addresses.
+     */
+    @Nonnull
+    List<JID> getRooms()
+    {
+        return rooms;
+    }
+
+    /**
+     * Returns the position of a room in the listing.
+     *
+     * @param room The address of a room.
+     * @return the position of the room, or -1 if the room is not in the listing.
+     */
+    int indexOf( @Nonnull final JID room )
+    {
+        final Integer result = positions.get(room);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Checks if this snapshot was created longer ago than a particular duration.
+     *
+     * @param age The duration.
+     * @return true if this snapshot is older.
+     */
+    boolean isOlderThan( @Nonnull final Duration age )
+    {
+        return System.nanoTime() - created > age.toNanos();
+    }
+}
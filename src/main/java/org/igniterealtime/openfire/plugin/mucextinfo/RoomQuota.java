@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Limits the amount of data that can be defined for one room, to keep service discovery responses of a reasonable size.
+ *
+ * Limits are enforced only when data is added. A room that exceeds a limit (eg: because the limit was lowered) can
+ * still be reduced, but not expanded. A limit of zero disables that limit.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class RoomQuota
+{
+    /**
+     * The maximum amount of data forms of a room.
+     */
+    public static final SystemProperty<Integer> MAX_FORMS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.quota.forms")
+        .setDefaultValue(25)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of fields, over all data forms of a room.
+     */
+    public static final SystemProperty<Integer> MAX_FIELDS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.quota.fields")
+        .setDefaultValue(250)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of values, over all fields of all data forms of a room.
+     */
+    public static final SystemProperty<Integer> MAX_VALUES = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.quota.values")
+        .setDefaultValue(1000)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum estimated amount of bytes that the data forms of a room add to a service discovery response.
+     */
+    public static final SystemProperty<Integer> MAX_BYTES = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.quota.bytes")
+        .setDefaultValue(64 * 1024)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    private RoomQuota() {}
+
+    /**
+     * Verifies that a modification does not cause the data of a room to exceed any of the configured limits. Quantities
+     * that do not grow as a result of the modification are not checked.
+     *
+     * @param room The room that is modified.
+     * @param before The usage of the room before the modification.
+     * @param after The usage of the room after the modification.
+     * @throws QuotaExceededException when a quantity that grows exceeds its limit.
+     */
+    public static void check( @Nonnull final JID room, @Nonnull final RoomUsage before, @Nonnull final RoomUsage after ) throws QuotaExceededException
+    {
+        check(room, "amount of data forms", MAX_FORMS.getValue(), before.getForms(), after.getForms());
+        check(room, "amount of fields", MAX_FIELDS.getValue(), before.getFields(), after.getFields());
+        check(room, "amount of values", MAX_VALUES.getValue(), before.getValues(), after.getValues());
+        check(room, "size of the service discovery response (in bytes)", MAX_BYTES.getValue(), before.getBytes(), after.getBytes());
+    }
+
+    private static void check( @Nonnull final JID room, @Nonnull final String quota, final long limit, final long before, final long after ) throws QuotaExceededException
+    {
+        if ( limit > 0 && after > limit && after > before )
+        {
+            throw new QuotaExceededException(room, quota, limit, after);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * The amount of data forms, fields and values that are defined for a room, and an estimate of the amount of bytes that
+ * these add to a service discovery response.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ * @see RoomQuota
+ */
+public final class RoomUsage
+{
+    /**
+     * Usage of a room for which no data forms are defined.
+     */
+    public static final RoomUsage EMPTY = new RoomUsage(0, 0, 0, 0);
+
+    // Overhead of the XML that wraps a data form, including its hidden FORM_TYPE field:
+    // <x xmlns="jabber:x:data" type="result"><field var="FORM_TYPE" type="hidden"><value></value></field></x>
+    private static final int FORM_OVERHEAD = 103;
+
+    // Overhead of the XML of a field, excluding its label: <field var=""></field>
+    private static final int FIELD_OVERHEAD = 22;
+
+    // Overhead of the label attribute of a field, including the preceding space: label=""
+    private static final int LABEL_OVERHEAD = 9;
+
+    // Overhead of the XML of a value: <value></value>
+    private static final int VALUE_OVERHEAD = 15;
+
+    private final int forms;
+
+    private final int fields;
+
+    private final int values;
+
+    private final long bytes;
+
+    public RoomUsage( final int forms, final int fields, final int values, final long bytes )
+    {
+        this.forms = forms;
+        this.fields = fields;
+        this.values = values;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Computes the usage of a collection of data forms.
+     *
+     * @param dataForms The data forms of a room (can be null).
+     * @return The usage of the data forms.
+     */
+    @Nonnull
+    public static RoomUsage of( @Nullable final Collection<ExtDataForm> dataForms )
+    {
+        if ( dataForms == null || dataForms.isEmpty() )
+        {
+            return EMPTY;
+        }
+
+        int fields = 0;
+        int values = 0;
+        long bytes = 0;
+        for ( final ExtDataForm dataForm : dataForms )
+        {
+            fields += dataForm.getFields().size();
+            for ( final Field field : dataForm.getFields() )
+            {
+                values += field.getValues().size();
+            }
+            bytes += dataForm.getEstimatedSize();
+        }
+        return new RoomUsage(dataForms.size(), fields, values, bytes);
+    }
+
+    /**
+     * Estimates the amount of bytes that a data form adds to a service discovery response, based on the (escaped, UTF-8
+     * encoded) XML representation of the form.
+     *
+     * @param dataForm The data form for which to estimate the size.
+     * @return an amount of bytes.
+     */
+    static int estimateSize( @Nonnull final ExtDataForm dataForm )
+    {
+        int result = FORM_OVERHEAD + escapedLength(dataForm.getFormTypeName());
+        for ( final Field field : dataForm.getFields() )
+        {
+            result += FIELD_OVERHEAD + escapedLength(field.getVarName());
+            if ( field.getLabel() != null )
+            {
+                result += LABEL_OVERHEAD + escapedLength(field.getLabel());
+            }
+            for ( final String value : field.getValues() )
+            {
+                result += VALUE_OVERHEAD + escapedLength(value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the amount of bytes of the UTF-8 encoded, XML-escaped representation of a text.
+     */
+    static int escapedLength( @Nullable final String text )
+    {
+        if ( text == null )
+        {
+            return 0;
+        }
+
+        int result = 0;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            final char c = text.charAt(i);
+            switch ( c )
+            {
+                case '&':  result += 5; break; // &amp;
+                case '<':
+                case '>':  result += 4; break; // &lt; &gt;
+                case '"':
+                case '\'': result += 6; break; // &quot; &apos;
+                default:
+                    if ( c < 0x80 )
+                    {
+                        result += 1;
+                    }
+                    else if ( c < 0x800 )
+                    {
+                        result += 2;
+                    }
+                    else if ( Character.isHighSurrogate(c) )
+                    {
+                        result += 4;
+                        i++; // the low surrogate is part of the same code point.
+                    }
+                    else
+                    {
+                        result += 3;
+                    }
+            }
+        }
+        return result;
+    }
+
+    public int getForms()
+    {
+        return forms;
+    }
+
+    public int getFields()
+    {
+        return fields;
+    }
+
+    public int getValues()
+    {
+        return values;
+    }
+
+    /**
+     * The estimated amount of bytes that the data forms add to a service discovery response.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RoomUsage{" +
+            "forms=" + forms +
+            ", fields=" + fields +
+            ", values=" + values +
+            ", bytes=" + bytes +
+            '}';
+    }
+}
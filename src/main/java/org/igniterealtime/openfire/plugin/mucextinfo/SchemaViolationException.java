@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Thrown when a modification would cause a data form of a room to violate the {@link FormSchema} that is registered
+ * for its FORM_TYPE.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class SchemaViolationException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    @Nonnull
+    private final JID room;
+
+    @Nonnull
+    private final String formTypeName;
+
+    @Nullable
+    private final String varName;
+
+    public SchemaViolationException( @Nonnull final JID room, @Nonnull final String formTypeName, @Nullable final String varName, @Nonnull final String reason )
+    {
+        super("Data form '" + formTypeName + "' of room '" + room + "'" + ( varName == null ? "" : ", field '" + varName + "'" ) + ": " + reason);
+        this.room = room;
+        this.formTypeName = formTypeName;
+        this.varName = varName;
+    }
+
+    /**
+     * The room of which the data form would violate its schema.
+     */
+    @Nonnull
+    public JID getRoom()
+    {
+        return room;
+    }
+
+    /**
+     * The FORM_TYPE of the data form that would violate its schema.
+     */
+    @Nonnull
+    public String getFormTypeName()
+    {
+        return formTypeName;
+    }
+
+    /**
+     * The field that would violate the schema, or null if the violation applies to the entire data form.
+     */
+    @Nullable
+    public String getVarName()
+    {
+        return varName;
+    }
+}
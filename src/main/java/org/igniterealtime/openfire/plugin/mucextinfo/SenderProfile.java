@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The characteristics of the sender of a service discovery request that are used to evaluate {@link VisibilityRule}s.
+ *
+ * Characteristics that are costly to obtain are looked up only when first needed, and at most once per instance.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class SenderProfile
+{
+    @Nullable
+    private final JID address;
+
+    @Nonnull
+    private final Supplier<Set<VisibilityRule.Affiliation>> affiliationsSupplier;
+
+    @Nonnull
+    private final Supplier<Collection<String>> groupNamesSupplier;
+
+    private Set<VisibilityRule.Affiliation> affiliations;
+
+    private Collection<String> groupNames;
+
+    /**
+     * Creates a new profile.
+     *
+     * @param address The address of the sender (null if unknown).
+     * @param affiliationsSupplier Provides the relationships of the sender with the room, including implied ones (an owner also is an admin and a member).
+     * @param groupNamesSupplier Provides the names of the groups that the sender is a member of.
+     */
+    public SenderProfile( @Nullable final JID address, @Nonnull final Supplier<Set<VisibilityRule.Affiliation>> affiliationsSupplier, @Nonnull final Supplier<Collection<String>> groupNamesSupplier )
+    {
+        this.address = address;
+        this.affiliationsSupplier = affiliationsSupplier;
+        this.groupNamesSupplier = groupNamesSupplier;
+    }
+
+    @Nullable
+    public JID getAddress()
+    {
+        return address;
+    }
+
+    @Nonnull
+    public Set<VisibilityRule.Affiliation> getAffiliations()
+    {
+        if ( affiliations == null )
+        {
+            affiliations = affiliationsSupplier.get();
+        }
+        return affiliations;
+    }
+
+    @Nonnull
+    public Collection<String> getGroupNames()
+    {
+        if ( groupNames == null )
+        {
+            groupNames = groupNamesSupplier.get();
+        }
+        return groupNames;
+    }
+}
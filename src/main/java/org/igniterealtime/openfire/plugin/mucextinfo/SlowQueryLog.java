@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the database statements that are executed by {@link DAO}. Statements that take longer than a configurable
+ * threshold are logged, and the most recent of these are kept in memory, to be shown in the admin console.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class SlowQueryLog
+{
+    private static final Logger Log = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    /**
+     * The duration after which the execution of a database statement is considered to be slow.
+     */
+    public static final SystemProperty<Duration> THRESHOLD = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.diagnostics.slowquery.threshold")
+        .setDefaultValue(Duration.ofMillis(500))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The maximum amount of slow database statements that are kept in memory.
+     */
+    public static final SystemProperty<Integer> CAPACITY = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("mucextinfo.diagnostics.slowquery.capacity")
+        .setDefaultValue(50)
+        .setMinValue(0)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .build();
+
+    /**
+     * The most recent slow statements, oldest first. Guarded by itself.
+     */
+    private static final Deque<Entry> recent = new ArrayDeque<>();
+
+    private static final AtomicLong statementCount = new AtomicLong();
+
+    private static final AtomicLong slowStatementCount = new AtomicLong();
+
+    private SlowQueryLog() {}
+
+    /**
+     * Records the execution of a database statement that relates to one room (or to no room in particular).
+     *
+     * @param statement The SQL statement that was executed.
+     * @param room The room to which the statement relates (can be null).
+     * @param rows The amount of rows that were read or modified.
+     * @param startNanos The value of {@link System#nanoTime()} before the statement was executed.
+     */
+    static void record( @Nonnull final String statement, @Nullable final JID room, final int rows, final long startNanos )
+    {
+        recordElapsed(statement, room == null ? null : room.toBareJID(), rows, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the execution of a database statement that does not relate to a particular room.
+     *
+     * @param statement The SQL statement that was executed.
+     * @param rows The amount of rows that were read or modified.
+     * @param startNanos The value of {@link System#nanoTime()} before the statement was executed.
+     */
+    static void record( @Nonnull final String statement, final int rows, final long startNanos )
+    {
+        recordElapsed(statement, null, rows, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the execution of a database statement that relates to a number of rooms.
+     *
+     * @param statement The SQL statement that was executed.
+     * @param rooms The rooms to which the statement relates.
+     * @param rows The amount of rows that were read or modified.
+     * @param startNanos The value of {@link System#nanoTime()} before the statement was executed.
+     */
+    static void record( @Nonnull final String statement, @Nonnull final Collection<JID> rooms, final int rows, final long startNanos )
+    {
+        final String subject;
+        if ( rooms.isEmpty() )
+        {
+            subject = null;
+        }
+        else if ( rooms.size() == 1 )
+        {
+            subject = rooms.iterator().next().toBareJID();
+        }
+        else
+        {
+            subject = rooms.iterator().next().toBareJID() + " (and " + (rooms.size() - 1) + " more)";
+        }
+        recordElapsed(statement, subject, rows, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the execution of a database statement. When its duration exceeds {@link #THRESHOLD}, it is logged and
+     * kept in memory.
+     *
+     * @param statement The SQL statement that was executed.
+     * @param room A description of the room(s) to which the statement relates (can be null).
+     * @param rows The amount of rows that were read or modified.
+     * @param elapsedNanos The duration of the execution, in nanoseconds.
+     */
+    static void recordElapsed( @Nonnull final String statement, @Nullable final String room, final int rows, final long elapsedNanos )
+    {
+        statementCount.incrementAndGet();
+        if ( elapsedNanos < THRESHOLD.getValue().toNanos() )
+        {
+            return;
+        }
+
+        slowStatementCount.incrementAndGet();
+        final Entry entry = new Entry(Instant.now(), statement, room, rows, elapsedNanos / 1_000_000);
+        Log.warn("Slow database statement ({}ms, {} rows, room: {}): {}", entry.getMillis(), rows, room, statement);
+
+        final int capacity = CAPACITY.getValue();
+        synchronized ( recent )
+        {
+            recent.addLast(entry);
+            while ( recent.size() > capacity )
+            {
+                recent.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent slow statements.
+     *
+     * @return Slow statements, most recent first (possibly empty).
+     */
+    @Nonnull
+    public static List<Entry> getRecent()
+    {
+        final List<Entry> result;
+        synchronized ( recent )
+        {
+            result = new ArrayList<>(recent);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Returns the amount of database statements that have been timed.
+     *
+     * @return an amount of statements.
+     */
+    public static long getStatementCount()
+    {
+        return statementCount.get();
+    }
+
+    /**
+     * Returns the amount of database statements that exceeded {@link #THRESHOLD}.
+     *
+     * @return an amount of statements.
+     */
+    public static long getSlowStatementCount()
+    {
+        return slowStatementCount.get();
+    }
+
+    /**
+     * Removes all slow statements that are kept in memory, and resets the counters.
+     */
+    public static void clear()
+    {
+        synchronized ( recent )
+        {
+            recent.clear();
+        }
+        statementCount.set(0);
+        slowStatementCount.set(0);
+    }
+
+    /**
+     * The execution of a database statement that exceeded the threshold.
+     */
+    public static final class Entry
+    {
+        @Nonnull
+        private final Instant timestamp;
+
+        @Nonnull
+        private final String statement;
+
+        @Nullable
+        private final String room;
+
+        private final int rows;
+
+        private final long millis;
+
+        Entry( @Nonnull final Instant timestamp, @Nonnull final String statement, @Nullable final String room, final int rows, final long millis )
+        {
+            this.timestamp = timestamp;
+            this.statement = statement;
+            this.room = room;
+            this.rows = rows;
+            this.millis = millis;
+        }
+
+        @Nonnull
+        public Instant getTimestamp()
+        {
+            return timestamp;
+        }
+
+        @Nonnull
+        public Date getDate()
+        {
+            return Date.from(timestamp);
+        }
+
+        @Nonnull
+        public String getStatement()
+        {
+            return statement;
+        }
+
+        @Nullable
+        public String getRoom()
+        {
+            return room;
+        }
+
+        public int getRows()
+        {
+            return rows;
+        }
+
+        public long getMillis()
+        {
+            return millis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{" +
+                "timestamp=" + timestamp +
+                ", statement='" + statement + '\'' +
+                ", room='" + room + '\'' +
+                ", rows=" + rows +
+                ", millis=" + millis +
+                '}';
+        }
+    }
+}
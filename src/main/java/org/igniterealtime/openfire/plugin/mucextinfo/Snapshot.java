@@ -0,0 +1,668 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A persistent, local copy of the data forms that are cached by {@link DAO}, that allows the cache to be warm directly
+ * after a restart, and that provides the last-known data of rooms when the database cannot be read.
+ *
+ * When enabled, the cached data is periodically written to a file in the Openfire home directory. When the plugin is
+ * initialized, that file is read into direct (off-heap) memory, and its content is added to the cache. Rooms that were modified after the
+ * file was written (as recorded in the {@link ChangeFeed}, and by the {@link ExternalChangePoller} when it is enabled)
+ * are discarded from the cache again. When that can't be determined (eg: because the database is not available), all
+ * restored data is discarded from the cache.
+ *
+ * Independent of the cache, the data of the file remains available for as long as it is loaded. When data of a room
+ * can't be loaded from the database, that data is served (without being cached) instead. Data of rooms that are
+ * modified on this server is no longer served from the file.
+ *
+ * The file consists of a header, a sequence of entries that each hold a cache key and the data forms in the encoding of
+ * {@link OffHeapCache#encode(long, List)}, and a trailer that holds the amount of entries and a CRC-32 checksum of the
+ * rest of the file. A file that is not intact is ignored.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class Snapshot
+{
+    private static final Logger Log = LoggerFactory.getLogger(Snapshot.class);
+
+    /**
+     * Enables the snapshot.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("mucextinfo.snapshot.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(enabled -> getInstance().restart())
+        .build();
+
+    /**
+     * The interval at which the cached data is written to the snapshot.
+     */
+    public static final SystemProperty<Duration> INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("mucextinfo.snapshot.interval")
+        .setDefaultValue(Duration.ofMinutes(5))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(true)
+        .setPlugin("mucextinfo")
+        .addListener(interval -> getInstance().restart())
+        .build();
+
+    /**
+     * Identifies a snapshot file ('MXIS').
+     */
+    static final int MAGIC = 0x4D584953;
+
+    /**
+     * The version of the format of the snapshot file.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The size of the header: magic, version, the moment of writing, the change feed cursor and the sequence number up to
+     * which modifications recorded by database triggers were processed (see {@link ExternalChangePoller}).
+     */
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES * 3;
+
+    /**
+     * The size of the trailer: the amount of entries and the checksum.
+     */
+    private static final int TRAILER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private static final Snapshot INSTANCE = new Snapshot();
+
+    public static Snapshot getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The content of the snapshot file that is loaded, or null when no file is loaded.
+     */
+    private volatile ByteBuffer content;
+
+    /**
+     * The location of the data forms in {@link #content}, by (bare) room address and by service discovery node (a null
+     * key for the data forms without a node). Rooms are removed when they are modified.
+     */
+    private final ConcurrentMap<JID, Map<String, Location>> index = new ConcurrentHashMap<>();
+
+    private final AtomicLong restoredCount = new AtomicLong();
+
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    private volatile Instant lastWritten;
+
+    private volatile int lastWrittenCount;
+
+    private TimerTask writeTask;
+
+    Snapshot() {}
+
+    /**
+     * Returns the location of the snapshot file.
+     *
+     * @return a path.
+     */
+    @Nonnull
+    static Path getDefaultFile()
+    {
+        return Paths.get(JiveGlobals.getHomeDirectory(), "mucextinfo", "snapshot.bin");
+    }
+
+    /**
+     * Loads the snapshot file into the cache, and schedules the periodic writing of the snapshot, if enabled.
+     */
+    public synchronized void start()
+    {
+        if ( !ENABLED.getValue() || writeTask != null )
+        {
+            return;
+        }
+
+        final Path file = getDefaultFile();
+        if ( content == null && Files.exists(file) )
+        {
+            load(file);
+        }
+
+        writeTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                write(file);
+            }
+        };
+        final long interval = Math.max(1000, INTERVAL.getValue().toMillis());
+        TaskEngine.getInstance().scheduleAtFixedRate(writeTask, interval, interval);
+    }
+
+    /**
+     * Cancels the periodic writing of the snapshot.
+     */
+    public synchronized void stop()
+    {
+        if ( writeTask != null )
+        {
+            TaskEngine.getInstance().cancelScheduledTask(writeTask);
+            writeTask = null;
+        }
+    }
+
+    /**
+     * Writes the snapshot one last time (if enabled), cancels the periodic writing of the snapshot and discards the
+     * loaded snapshot. Its memory is released when it is garbage collected.
+     */
+    public synchronized void close()
+    {
+        final boolean running = writeTask != null;
+        stop();
+        if ( running && ENABLED.getValue() )
+        {
+            write(getDefaultFile());
+        }
+        content = null;
+        index.clear();
+        restoredCount.set(0);
+        fallbackCount.set(0);
+    }
+
+    private synchronized void restart()
+    {
+        if ( ENABLED.getValue() )
+        {
+            stop();
+            start();
+        }
+        else
+        {
+            close();
+        }
+    }
+
+    /**
+     * Writes all data that is cached by {@link DAO} to a snapshot file. The file is replaced atomically: it is first
+     * written under another name.
+     *
+     * @param file The snapshot file.
+     * @return true if the snapshot was written, otherwise false.
+     */
+    synchronized boolean write( @Nonnull final Path file )
+    {
+        // Changes after the cursor can have been missed by the cached data (see load). Changes become visible in order,
+        // but a committed change might not yet have been applied to the cache: the cursor is kept below such changes.
+        // As the unsettled changes are inspected after the last change is read, any change that is reserved later has a
+        // sequence number that is higher than the cursor.
+        final long cursor;
+        try
+        {
+            final long last = DAO.retrieveLastChangeSequence();
+            cursor = Math.min(last, DAO.getUnsettledChangeSequence() - 1);
+        }
+        catch ( SQLException e )
+        {
+            Log.warn("Unable to write a snapshot, as the change feed could not be read.", e);
+            return false;
+        }
+        final long externalCursor = ExternalChangePoller.ENABLED.getValue() ? ExternalChangePoller.getInstance().getProcessedSequence() : -1;
+
+        final long start = System.nanoTime();
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try
+        {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            final int count;
+            try ( final FileOutputStream stream = new FileOutputStream(temporary.toFile()) )
+            {
+                final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream), new CRC32());
+                final DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeLong(cursor);
+                out.writeLong(externalCursor);
+
+                final int[] written = { 0 };
+                final IOException[] failure = { null };
+                DAO.forEachCached(( key, forms ) -> {
+                    if ( failure[0] != null )
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        final byte[] encodedKey = OffHeapCache.encodeKey(key);
+                        final byte[] value = OffHeapCache.encode(0, forms);
+                        out.writeInt(encodedKey.length);
+                        out.write(encodedKey);
+                        out.writeInt(value.length);
+                        out.write(value);
+                        written[0]++;
+                    }
+                    catch ( IOException e )
+                    {
+                        failure[0] = e;
+                    }
+                });
+                if ( failure[0] != null )
+                {
+                    throw failure[0];
+                }
+                count = written[0];
+                out.writeInt(count);
+                out.flush();
+
+                // The checksum itself is not part of the checksummed data.
+                final DataOutputStream trailer = new DataOutputStream(stream);
+                trailer.writeLong(checked.getChecksum().getValue());
+                trailer.flush();
+                stream.getChannel().force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastWritten = Instant.now();
+            lastWrittenCount = count;
+            Log.debug("Wrote a snapshot of the data of {} rooms (or nodes) in {} ms.", count, (System.nanoTime() - start) / 1_000_000);
+            return true;
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Unable to write a snapshot to '{}'.", file, e);
+            try
+            {
+                Files.deleteIfExists(temporary);
+            }
+            catch ( IOException ex )
+            {
+                Log.debug("Unable to remove incomplete snapshot '{}'.", temporary, ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reads a snapshot file, adds its data to the cache of {@link DAO}, and discards data of rooms that were modified
+     * after the snapshot was written from the cache again.
+     *
+     * @param file The snapshot file.
+     * @return true if the snapshot was loaded, otherwise false (when the file can't be read, or is not intact).
+     */
+    synchronized boolean load( @Nonnull final Path file )
+    {
+        final long start = System.nanoTime();
+        final ByteBuffer buffer;
+        final Map<JID, Map<String, Location>> locations;
+        try ( final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) )
+        {
+            if ( channel.size() > Integer.MAX_VALUE )
+            {
+                Log.warn("Ignoring snapshot '{}', as it is too large to be loaded.", file);
+                return false;
+            }
+
+            // The content is copied rather than mapped: on some platforms (eg: Windows), a file can't be replaced while it
+            // is mapped, which would prevent the next snapshot from being written.
+            buffer = ByteBuffer.allocateDirect((int) channel.size());
+            while ( buffer.hasRemaining() && channel.read(buffer) >= 0 )
+            {
+                // Keep reading until the buffer is full, or the end of the file is reached.
+            }
+            buffer.flip();
+            locations = verify(buffer);
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Ignoring snapshot '{}', as it can't be read.", file, e);
+            return false;
+        }
+
+        if ( locations == null )
+        {
+            Log.warn("Ignoring snapshot '{}', as it is not intact.", file);
+            return false;
+        }
+
+        content = buffer;
+        index.clear();
+        index.putAll(locations);
+
+        // Add the data to the cache, before determining what was modified: modifications that take place concurrently
+        // are either recorded in the change feed before it is read, or purge the cache after the data was added.
+        int restored = 0;
+        for ( final Map.Entry<JID, Map<String, Location>> room : locations.entrySet() )
+        {
+            for ( final Map.Entry<String, Location> node : room.getValue().entrySet() )
+            {
+                final CacheableOptional<ArrayList<ExtDataForm>> forms = decode(room.getKey(), node.getValue());
+                if ( forms != null && DAO.restoreCached(DAO.cacheKey(room.getKey(), node.getKey()), forms) )
+                {
+                    restored++;
+                }
+            }
+        }
+
+        final long cursor = buffer.getLong(Integer.BYTES * 2 + Long.BYTES);
+        final long externalCursor = buffer.getLong(Integer.BYTES * 2 + Long.BYTES * 2);
+        if ( ExternalChangePoller.ENABLED.getValue() && externalCursor < 0 )
+        {
+            Log.info("Snapshot '{}' was written while modifications made without using this plugin were not being detected. It is used only when data can't be loaded from the database.", file);
+            DAO.purgeCache();
+            return true;
+        }
+        final Set<JID> modified;
+        try
+        {
+            modified = retrieveModifiedRooms(cursor);
+        }
+        catch ( SQLException e )
+        {
+            Log.warn("Unable to determine which rooms were modified after snapshot '{}' was written. It is used only when data can't be loaded from the database.", file, e);
+            DAO.purgeCache();
+            return true;
+        }
+
+        if ( modified == null )
+        {
+            Log.info("Changes made after snapshot '{}' was written are no longer in the change feed. It is used only when data can't be loaded from the database.", file);
+            DAO.purgeCache();
+            return true;
+        }
+
+        for ( final JID room : modified )
+        {
+            DAO.discardCached(room);
+        }
+        if ( ExternalChangePoller.ENABLED.getValue() )
+        {
+            // Modifications made without using this plugin are discarded by the first poll.
+            ExternalChangePoller.getInstance().resumeFrom(externalCursor);
+        }
+        restoredCount.set(restored);
+        Log.info("Restored the data of {} rooms (or nodes) from snapshot '{}' in {} ms, discarding the data of {} rooms that were modified since.", restored, file, (System.nanoTime() - start) / 1_000_000, modified.size());
+        return true;
+    }
+
+    /**
+     * Returns the data forms for a cache key, as recorded in the snapshot. This is intended to be used only when the
+     * data can't be loaded from the database.
+     *
+     * @param key The cache key (as used by {@link DAO}).
+     * @return The data forms (absent for a room without data forms), or null when the snapshot holds no data for the key.
+     */
+    @Nullable
+    CacheableOptional<ArrayList<ExtDataForm>> get( @Nonnull final JID key )
+    {
+        final Map<String, Location> nodes = index.get(key.asBareJID());
+        if ( nodes == null )
+        {
+            return null;
+        }
+        final Location location = nodes.get(key.getResource());
+        if ( location == null )
+        {
+            return null;
+        }
+        final CacheableOptional<ArrayList<ExtDataForm>> result = decode(key, location);
+        if ( result != null )
+        {
+            fallbackCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Stops serving data of a room (including that of its nodes) from the snapshot, after the room was modified.
+     *
+     * @param room The address of the room (or a cache key of one of its nodes).
+     */
+    void invalidate( @Nonnull final JID room )
+    {
+        if ( !index.isEmpty() )
+        {
+            index.remove(room.asBareJID());
+        }
+    }
+
+    /**
+     * Checks if a snapshot file is loaded.
+     *
+     * @return true if a snapshot is loaded, otherwise false.
+     */
+    public boolean isLoaded()
+    {
+        return content != null;
+    }
+
+    /**
+     * Returns the amount of rooms (or nodes) of which data is held by the loaded snapshot, excluding those that were
+     * modified since.
+     *
+     * @return an amount of rooms.
+     */
+    public int getSize()
+    {
+        int result = 0;
+        for ( final Map<String, Location> nodes : index.values() )
+        {
+            result += nodes.size();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the amount of rooms (or nodes) of which the data was added to the cache from the snapshot.
+     *
+     * @return an amount of rooms.
+     */
+    public long getRestoredCount()
+    {
+        return restoredCount.get();
+    }
+
+    /**
+     * Returns the amount of lookups that were answered by the snapshot, as data could not be loaded from the database.
+     *
+     * @return an amount of lookups.
+     */
+    public long getFallbackCount()
+    {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Returns the moment at which the snapshot was last written.
+     *
+     * @return a moment, or null if no snapshot was written since the plugin was initialized.
+     */
+    @Nullable
+    public Date getLastWritten()
+    {
+        final Instant result = lastWritten;
+        return result == null ? null : Date.from(result);
+    }
+
+    /**
+     * Returns the amount of rooms (or nodes) of which the data was included in the last snapshot that was written.
+     *
+     * @return an amount of rooms.
+     */
+    public int getLastWrittenCount()
+    {
+        return lastWrittenCount;
+    }
+
+    /**
+     * Verifies the header and checksum of the content of a snapshot file, and determines the location of each entry.
+     *
+     * @param buffer The content of the file.
+     * @return The locations of the entries, or null if the content is not intact.
+     */
+    @Nullable
+    static Map<JID, Map<String, Location>> verify( @Nonnull final ByteBuffer buffer )
+    {
+        final int limit = buffer.limit();
+        if ( limit < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION )
+        {
+            return null;
+        }
+
+        final ByteBuffer content = buffer.duplicate();
+        content.position(0).limit(limit - Long.BYTES);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        if ( crc.getValue() != buffer.getLong(limit - Long.BYTES) )
+        {
+            return null;
+        }
+
+        final Map<JID, Map<String, Location>> result = new HashMap<>();
+        final int end = limit - TRAILER_SIZE;
+        int position = HEADER_SIZE;
+        int count = 0;
+        try
+        {
+            while ( position < end )
+            {
+                final int keyLength = buffer.getInt(position);
+                if ( keyLength < 0 || position + Integer.BYTES + keyLength > end )
+                {
+                    return null;
+                }
+                final byte[] key = new byte[keyLength];
+                final ByteBuffer keyBuffer = buffer.duplicate();
+                keyBuffer.position(position + Integer.BYTES);
+                keyBuffer.get(key);
+                position += Integer.BYTES + keyLength;
+
+                final int valueLength = buffer.getInt(position);
+                position += Integer.BYTES;
+                if ( valueLength < 0 || position + valueLength > end )
+                {
+                    return null;
+                }
+
+                final JID jid = new JID(new String(key, StandardCharsets.UTF_8));
+                result.computeIfAbsent(jid.asBareJID(), k -> new HashMap<>()).put(jid.getResource(), new Location(position, valueLength));
+                position += valueLength;
+                count++;
+            }
+        }
+        catch ( IndexOutOfBoundsException | IllegalArgumentException e )
+        {
+            return null;
+        }
+        return position == end && count == buffer.getInt(end) ? result : null;
+    }
+
+    /**
+     * Determines what rooms were modified after a snapshot was written.
+     *
+     * @param cursor The change feed cursor that was recorded in the snapshot.
+     * @return The (bare) addresses of the modified rooms (or services), or null when not all changes are available.
+     * @throws SQLException on any problem reading from the database.
+     */
+    @Nullable
+    private static Set<JID> retrieveModifiedRooms( final long cursor ) throws SQLException
+    {
+        if ( ChangeFeed.PURGED.getValue() > cursor )
+        {
+            return null;
+        }
+
+        final Set<JID> result = new HashSet<>();
+        final int max = ChangeFeed.BATCH_MAX.getValue();
+        long after = cursor;
+        List<Change> changes;
+        do
+        {
+            changes = DAO.retrieveChanges(after, max);
+            for ( final Change change : changes )
+            {
+                result.add(change.getRoom().asBareJID());
+                after = change.getSequence();
+            }
+        }
+        while ( changes.size() == max );
+        return result;
+    }
+
+    @Nullable
+    private CacheableOptional<ArrayList<ExtDataForm>> decode( @Nonnull final JID key, @Nonnull final Location location )
+    {
+        final ByteBuffer buffer = content;
+        if ( buffer == null )
+        {
+            return null;
+        }
+        final byte[] value = new byte[location.length];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(location.offset);
+        source.get(value);
+        try
+        {
+            // The generation of the entry is meaningless after a restart.
+            return OffHeapCache.decode(value).getForms();
+        }
+        catch ( IOException e )
+        {
+            Log.warn("Unable to decode data forms for '{}' from the snapshot.", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * The location of an entry in the snapshot file.
+     */
+    static final class Location
+    {
+        final int offset;
+
+        final int length;
+
+        Location( final int offset, final int length )
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * Describes the distribution of the rows of the database table that holds the data forms over rooms. This is used to
+ * identify rooms that have an unusual amount of data.
+ *
+ * The distribution is approximated by a histogram of which the bounds of each bucket are four times those of the
+ * previous bucket (1, 2-4, 5-16, 17-64, and so on).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public final class TableStatistics
+{
+    /**
+     * The amount of buckets of the histogram. The last bucket holds all rooms with more than 4^(BUCKETS-2) rows.
+     */
+    static final int BUCKETS = 8;
+
+    private final long rows;
+
+    private final long rooms;
+
+    @Nonnull
+    private final List<Bucket> distribution;
+
+    @Nonnull
+    private final LinkedHashMap<JID, Long> largestRooms;
+
+    private TableStatistics( final long rows, final long rooms, @Nonnull final List<Bucket> distribution, @Nonnull final LinkedHashMap<JID, Long> largestRooms )
+    {
+        this.rows = rows;
+        this.rooms = rooms;
+        this.distribution = distribution;
+        this.largestRooms = largestRooms;
+    }
+
+    /**
+     * Returns the total amount of rows.
+     *
+     * @return an amount of rows.
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Returns the amount of distinct rooms (or services) that have rows.
+     *
+     * @return an amount of rooms.
+     */
+    public long getRooms()
+    {
+        return rooms;
+    }
+
+    /**
+     * Returns the average amount of rows per room.
+     *
+     * @return an amount of rows (zero when there are no rooms).
+     */
+    public double getAverage()
+    {
+        return rooms == 0 ? 0 : (double) rows / rooms;
+    }
+
+    /**
+     * Returns the amount of rooms, grouped by the amount of rows that they have.
+     *
+     * @return buckets, ordered by increasing amount of rows.
+     */
+    @Nonnull
+    public List<Bucket> getDistribution()
+    {
+        return distribution;
+    }
+
+    /**
+     * Returns the rooms that have the most rows.
+     *
+     * @return The amount of rows per room, ordered by descending amount of rows.
+     */
+    @Nonnull
+    public Map<JID, Long> getLargestRooms()
+    {
+        return Collections.unmodifiableMap(largestRooms);
+    }
+
+    /**
+     * Returns the index of the bucket that holds rooms with a particular amount of rows.
+     *
+     * @param rows a (positive) amount of rows.
+     * @return a bucket index.
+     */
+    static int bucketOf( final long rows )
+    {
+        int bucket = 0;
+        long upper = 1;
+        while ( rows > upper && bucket < BUCKETS - 1 )
+        {
+            upper *= 4;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public static Builder builder( final int maxLargestRooms )
+    {
+        return new Builder(maxLargestRooms);
+    }
+
+    /**
+     * A group of rooms that have a similar amount of rows.
+     */
+    public static final class Bucket
+    {
+        private final long lowerBound;
+
+        private final long upperBound;
+
+        private final long rooms;
+
+        Bucket( final long lowerBound, final long upperBound, final long rooms )
+        {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.rooms = rooms;
+        }
+
+        /**
+         * The lowest amount of rows (inclusive) of rooms in this bucket.
+         *
+         * @return an amount of rows.
+         */
+        public long getLowerBound()
+        {
+            return lowerBound;
+        }
+
+        /**
+         * The highest amount of rows (inclusive) of rooms in this bucket, or -1 if the bucket is unbounded.
+         *
+         * @return an amount of rows.
+         */
+        public long getUpperBound()
+        {
+            return upperBound;
+        }
+
+        /**
+         * The amount of rooms in this bucket.
+         *
+         * @return an amount of rooms.
+         */
+        public long getRooms()
+        {
+            return rooms;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Bucket{" +
+                "lowerBound=" + lowerBound +
+                ", upperBound=" + upperBound +
+                ", rooms=" + rooms +
+                '}';
+        }
+    }
+
+    /**
+     * Accumulates the amount of rows of rooms, one room at a time.
+     */
+    public static final class Builder
+    {
+        private final int maxLargestRooms;
+
+        private final long[] counts = new long[BUCKETS];
+
+        private final PriorityQueue<Map.Entry<JID, Long>> largest = new PriorityQueue<>(Map.Entry.comparingByValue());
+
+        private long rows;
+
+        private long rooms;
+
+        private Builder( final int maxLargestRooms )
+        {
+            this.maxLargestRooms = maxLargestRooms;
+        }
+
+        public Builder add( @Nonnull final JID room, final long roomRows )
+        {
+            rows += roomRows;
+            rooms++;
+            counts[bucketOf(roomRows)]++;
+            if ( maxLargestRooms > 0 )
+            {
+                largest.add(new AbstractMap.SimpleImmutableEntry<>(room, roomRows));
+                if ( largest.size() > maxLargestRooms )
+                {
+                    largest.poll();
+                }
+            }
+            return this;
+        }
+
+        public TableStatistics build()
+        {
+            final List<Bucket> distribution = new ArrayList<>(BUCKETS);
+            long lower = 1;
+            long upper = 1;
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                distribution.add(new Bucket(lower, i == BUCKETS - 1 ? -1 : upper, counts[i]));
+                lower = upper + 1;
+                upper *= 4;
+            }
+
+            final List<Map.Entry<JID, Long>> sorted = new ArrayList<>(largest);
+            sorted.sort(Map.Entry.<JID, Long>comparingByValue().reversed());
+            final LinkedHashMap<JID, Long> largestRooms = new LinkedHashMap<>();
+            for ( final Map.Entry<JID, Long> entry : sorted )
+            {
+                largestRooms.put(entry.getKey(), entry.getValue());
+            }
+            return new TableStatistics(rows, rooms, Collections.unmodifiableList(distribution), largestRooms);
+        }
+    }
+}
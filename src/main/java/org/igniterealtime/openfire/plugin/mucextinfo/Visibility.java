@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The compiled representation of all {@link VisibilityRule}s that apply to the data forms of one room.
+ *
+ * Every distinct rule of the room is assigned an index. Data forms and fields that are restricted are associated with
+ * the set of indices of the rules that grant visibility. To determine what a sender is allowed to see, each distinct rule
+ * is evaluated once, resulting in a 'visibility class': the set of indices of the rules that match the sender. Senders
+ * of the same visibility class see the same data, which allows the filtered data to be computed once per class, and
+ * reused for every subsequent request of a sender in that class.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class Visibility implements Serializable
+{
+    /**
+     * The maximum amount of filtered views that are retained per room.
+     */
+    static final int MAX_VIEWS = 64;
+
+    /**
+     * An instance that does not restrict visibility of any data.
+     */
+    public static final Visibility UNRESTRICTED = new Visibility(Collections.emptyList(), false);
+
+    /**
+     * An instance that hides all data. This is used when the rules of a room could not be retrieved, in which case it
+     * is unknown what data is restricted.
+     */
+    public static final Visibility HIDDEN = new Visibility(Collections.emptyList(), true);
+
+    @Nonnull
+    private final List<Assignment> assignments;
+
+    @Nonnull
+    private final VisibilityRule[] rules;
+
+    @Nonnull
+    private final Map<String, BitSet> formMasks = new HashMap<>();
+
+    @Nonnull
+    private final Map<String, Map<String, BitSet>> fieldMasks = new HashMap<>();
+
+    private final boolean hidesAll;
+
+    private transient ConcurrentMap<BitSet, List<ExtDataForm>> views;
+
+    private transient List<ExtDataForm> viewSource;
+
+    private Visibility( @Nonnull final List<Assignment> assignments, final boolean hidesAll )
+    {
+        this.assignments = Collections.unmodifiableList(new ArrayList<>(assignments));
+        this.hidesAll = hidesAll;
+
+        final List<VisibilityRule> distinct = new ArrayList<>();
+        for ( final Assignment assignment : assignments )
+        {
+            int index = distinct.indexOf(assignment.getRule());
+            if ( index < 0 )
+            {
+                distinct.add(assignment.getRule());
+                index = distinct.size() - 1;
+            }
+
+            final BitSet mask;
+            if ( assignment.getVarName() == null )
+            {
+                mask = formMasks.computeIfAbsent(assignment.getFormTypeName(), k -> new BitSet());
+            }
+            else
+            {
+                mask = fieldMasks.computeIfAbsent(assignment.getFormTypeName(), k -> new HashMap<>()).computeIfAbsent(assignment.getVarName(), k -> new BitSet());
+            }
+            mask.set(index);
+        }
+        this.rules = distinct.toArray(new VisibilityRule[0]);
+    }
+
+    /**
+     * Compiles rule assignments into an instance that can efficiently be evaluated.
+     *
+     * @param assignments The rule assignments of one room.
+     * @return The compiled rules.
+     */
+    @Nonnull
+    public static Visibility compile( @Nullable final Collection<Assignment> assignments )
+    {
+        if ( assignments == null || assignments.isEmpty() )
+        {
+            return UNRESTRICTED;
+        }
+        return new Visibility(new ArrayList<>(assignments), false);
+    }
+
+    /**
+     * Checks if this instance restricts the visibility of any data. When it does not, evaluating senders is pointless.
+     *
+     * @return true if no data is restricted.
+     */
+    public boolean isUnrestricted()
+    {
+        return !hidesAll && rules.length == 0;
+    }
+
+    /**
+     * Returns the rule assignments from which this instance was compiled.
+     *
+     * @return rule assignments (possibly empty).
+     */
+    @Nonnull
+    public List<Assignment> getAssignments()
+    {
+        return assignments;
+    }
+
+    /**
+     * Determines the visibility class of a sender, by evaluating each distinct rule exactly once.
+     *
+     * @param sender The sender of a service discovery request.
+     * @return The indices of the rules that match the sender.
+     */
+    @Nonnull
+    public BitSet classify( @Nonnull final SenderProfile sender )
+    {
+        final BitSet result = new BitSet(rules.length);
+        for ( int i = 0; i < rules.length; i++ )
+        {
+            if ( rules[i].matches(sender) )
+            {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the data forms that can be seen by senders of a particular visibility class.
+     *
+     * Results are cached per visibility class. The cached results are discarded when a different collection of data
+     * forms is provided (which occurs after the data forms of the room have been modified).
+     *
+     * @param forms The unfiltered data forms of the room.
+     * @param visibilityClass The visibility class of the sender, as obtained from {@link #classify(SenderProfile)}.
+     * @return The data forms that are visible to the sender (possibly null).
+     */
+    @Nullable
+    public List<ExtDataForm> filter( @Nullable final List<ExtDataForm> forms, @Nonnull final BitSet visibilityClass )
+    {
+        if ( forms == null || isUnrestricted() )
+        {
+            return forms;
+        }
+        if ( hidesAll )
+        {
+            return Collections.emptyList();
+        }
+
+        ConcurrentMap<BitSet, List<ExtDataForm>> cached;
+        synchronized ( this )
+        {
+            if ( views == null || viewSource != forms )
+            {
+                views = new ConcurrentHashMap<>();
+                viewSource = forms;
+            }
+            cached = views;
+        }
+
+        final List<ExtDataForm> view = cached.get(visibilityClass);
+        if ( view != null )
+        {
+            return view;
+        }
+
+        final List<ExtDataForm> result = computeView(forms, visibilityClass);
+        if ( cached.size() < MAX_VIEWS )
+        {
+            cached.putIfAbsent((BitSet) visibilityClass.clone(), result);
+        }
+        return result;
+    }
+
+    @Nonnull
+    private List<ExtDataForm> computeView( @Nonnull final List<ExtDataForm> forms, @Nonnull final BitSet visibilityClass )
+    {
+        final List<ExtDataForm> result = new ArrayList<>(forms.size());
+        for ( final ExtDataForm form : forms )
+        {
+            final BitSet formMask = formMasks.get(form.getFormTypeName());
+            if ( formMask != null && !formMask.intersects(visibilityClass) )
+            {
+                continue;
+            }
+
+            final Map<String, BitSet> masksForFields = fieldMasks.get(form.getFormTypeName());
+            if ( masksForFields == null )
+            {
+                result.add(form);
+                continue;
+            }
+
+            final ExtDataForm.Builder filtered = ExtDataForm.builder(form.getFormTypeName());
+            for ( final Field field : form.getFields() )
+            {
+                final BitSet fieldMask = masksForFields.get(field.getVarName());
+                if ( fieldMask == null || fieldMask.intersects(visibilityClass) )
+                {
+                    filtered.addField(field);
+                }
+            }
+            result.add(filtered.build());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * The assignment of a rule to a data form (when no variable name is defined) or to one of its fields.
+     */
+    public static class Assignment implements Serializable
+    {
+        @Nonnull
+        private final String formTypeName;
+
+        @Nullable
+        private final String varName;
+
+        @Nonnull
+        private final VisibilityRule rule;
+
+        public Assignment( @Nonnull final String formTypeName, @Nullable final String varName, @Nonnull final VisibilityRule rule )
+        {
+            this.formTypeName = formTypeName;
+            this.varName = varName;
+            this.rule = rule;
+        }
+
+        @Nonnull
+        public String getFormTypeName()
+        {
+            return formTypeName;
+        }
+
+        @Nullable
+        public String getVarName()
+        {
+            return varName;
+        }
+
+        @Nonnull
+        public VisibilityRule getRule()
+        {
+            return rule;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( this == o ) { return true; }
+            if ( o == null || getClass() != o.getClass() ) { return false; }
+            final Assignment that = (Assignment) o;
+            return formTypeName.equals(that.formTypeName) &&
+                Objects.equals(varName, that.varName) &&
+                rule.equals(that.rule);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(formTypeName, varName, rule);
+        }
+    }
+}
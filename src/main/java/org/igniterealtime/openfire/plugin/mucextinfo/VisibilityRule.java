@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A rule that restricts the visibility of a data form, or of one of its fields, to senders that match the rule.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class VisibilityRule implements Serializable
+{
+    /**
+     * The characteristic of the sender of a service discovery request that is evaluated by a rule.
+     */
+    public enum Type
+    {
+        /**
+         * Matches senders that have (at least) a particular affiliation with the room, or that are an occupant of it.
+         * The rule value is the name of an {@link Affiliation}.
+         */
+        affiliation,
+
+        /**
+         * Matches senders of which the domain part of the address equals the rule value.
+         */
+        domain,
+
+        /**
+         * Matches senders that are a member of the group that is identified by the rule value.
+         */
+        group
+    }
+
+    /**
+     * The relationship between a sender and a room that can be used by rules of type {@link Type#affiliation}.
+     */
+    public enum Affiliation
+    {
+        /**
+         * Matches owners of the room.
+         */
+        owner,
+
+        /**
+         * Matches owners and admins of the room.
+         */
+        admin,
+
+        /**
+         * Matches owners, admins and members of the room.
+         */
+        member,
+
+        /**
+         * Matches senders that currently are an occupant of the room.
+         */
+        occupant
+    }
+
+    @Nonnull
+    private final Type type;
+
+    @Nullable
+    private final String value;
+
+    public VisibilityRule( @Nonnull final Type type, @Nullable final String value )
+    {
+        if ( type == Type.affiliation )
+        {
+            // Fail fast on unrecognized values.
+            Affiliation.valueOf(value);
+        }
+        this.type = type;
+        this.value = value;
+    }
+
+    @Nonnull
+    public Type getType()
+    {
+        return type;
+    }
+
+    @Nullable
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Evaluates this rule against the sender of a service discovery request.
+     *
+     * @param sender The sender of the request.
+     * @return true if the sender matches this rule, otherwise false.
+     */
+    public boolean matches( @Nonnull final SenderProfile sender )
+    {
+        switch ( type )
+        {
+            case affiliation:
+                return sender.getAffiliations().contains(Affiliation.valueOf(value));
+            case domain:
+                return sender.getAddress() != null && sender.getAddress().getDomain().equalsIgnoreCase(value);
+            case group:
+                return sender.getGroupNames().contains(value);
+            default:
+                throw new IllegalStateException("Unsupported rule type: " + type);
+        }
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+        if ( this == o ) { return true; }
+        if ( o == null || getClass() != o.getClass() ) { return false; }
+        final VisibilityRule that = (VisibilityRule) o;
+        return type == that.type &&
+            Objects.equals(value, that.value);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(type, value);
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + ": " + value;
+    }
+}
@@ -0,0 +1,290 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<!--
+- Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+-
+- Licensed under the Apache License, Version 2.0 (the "License");
+- you may not use this file except in compliance with the License.
+- You may obtain a copy of the License at
+-
+- http://www.apache.org/licenses/LICENSE-2.0
+-
+- Unless required by applicable law or agreed to in writing, software
+- distributed under the License is distributed on an "AS IS" BASIS,
+- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+- See the License for the specific language governing permissions and
+- limitations under the License.
+-->
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.CachePartitions" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.DAO" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.MemoryPressureMonitor" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.OffHeapCache" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.Snapshot" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.SlowQueryLog" %>
+<%@ page import="org.jivesoftware.util.CookieUtils" %>
+<%@ page import="org.jivesoftware.util.ParamUtils" %>
+<%@ page import="org.jivesoftware.util.StringUtils" %>
+<%@ page errorPage="error.jsp" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<%@ taglib uri="admin" prefix="admin" %>
+
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+<%
+    final int max = Math.max(1, Math.min(500, ParamUtils.getIntParameter(request, "max", 10)));
+
+    final Cookie csrfCookie = CookieUtils.getCookie(request, "csrf");
+    String csrfParam = ParamUtils.getParameter(request, "csrf");
+    if ( request.getParameter("clear") != null && csrfCookie != null && csrfParam != null && csrfCookie.getValue().equals(csrfParam) )
+    {
+        SlowQueryLog.clear();
+        webManager.logEvent( "MUC External Info, slow statement log cleared.", null );
+        response.sendRedirect( "muc-extinfo-diagnostics.jsp" );
+        return;
+    }
+
+    csrfParam = StringUtils.randomString(15);
+    CookieUtils.setCookie(request, response, "csrf", csrfParam, -1);
+    pageContext.setAttribute( "csrf", csrfParam );
+    pageContext.setAttribute( "max", max );
+    pageContext.setAttribute( "statistics", DAO.retrieveTableStatistics(max) );
+    pageContext.setAttribute( "slowStatements", SlowQueryLog.getRecent() );
+    pageContext.setAttribute( "statementCount", SlowQueryLog.getStatementCount() );
+    pageContext.setAttribute( "slowStatementCount", SlowQueryLog.getSlowStatementCount() );
+    pageContext.setAttribute( "threshold", SlowQueryLog.THRESHOLD.getValue().toMillis() );
+    pageContext.setAttribute( "partitions", CachePartitions.getInstance().getPartitions() );
+    pageContext.setAttribute( "weight", CachePartitions.getInstance().getWeight() );
+    pageContext.setAttribute( "memory", MemoryPressureMonitor.getInstance() );
+    pageContext.setAttribute( "offHeap", OffHeapCache.getInstance() );
+    pageContext.setAttribute( "snapshotEnabled", Snapshot.ENABLED.getValue() );
+    pageContext.setAttribute( "snapshot", Snapshot.getInstance() );
+%>
+<html>
+<head>
+    <title><fmt:message key="mucextinfo.diagnostics.title"/></title>
+    <meta name="pageID" content="muc-extinfo-diagnostics"/>
+</head>
+<body>
+
+<p><fmt:message key="mucextinfo.diagnostics.description"/></p>
+
+<div class="jive-contentBoxHeader"><fmt:message key="mucextinfo.diagnostics.table.header"/></div>
+<div class="jive-contentBox">
+    <c:choose>
+        <c:when test="${empty statistics}">
+            <p><fmt:message key="mucextinfo.diagnostics.table.unavailable"/></p>
+        </c:when>
+        <c:otherwise>
+            <p>
+                <fmt:message key="mucextinfo.diagnostics.table.summary">
+                    <fmt:param value="${statistics.rows}"/>
+                    <fmt:param value="${statistics.rooms}"/>
+                    <fmt:param><fmt:formatNumber value="${statistics.average}" maxFractionDigits="1"/></fmt:param>
+                </fmt:message>
+            </p>
+
+            <div class="jive-table">
+                <table cellpadding="0" cellspacing="0" border="0" width="100%">
+                    <thead>
+                        <tr>
+                            <th nowrap><fmt:message key="mucextinfo.diagnostics.distribution.rows" /></th>
+                            <th nowrap><fmt:message key="mucextinfo.diagnostics.distribution.rooms" /></th>
+                        </tr>
+                    </thead>
+                    <tbody>
+                    <c:forEach var="bucket" items="${statistics.distribution}" varStatus="status">
+                        <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                            <td>
+                                <c:choose>
+                                    <c:when test="${bucket.upperBound lt 0}"><c:out value="${bucket.lowerBound}"/>+</c:when>
+                                    <c:when test="${bucket.upperBound eq bucket.lowerBound}"><c:out value="${bucket.lowerBound}"/></c:when>
+                                    <c:otherwise><c:out value="${bucket.lowerBound}"/> - <c:out value="${bucket.upperBound}"/></c:otherwise>
+                                </c:choose>
+                            </td>
+                            <td><c:out value="${bucket.rooms}"/></td>
+                        </tr>
+                    </c:forEach>
+                    </tbody>
+                </table>
+            </div>
+
+            <br/>
+            <p>
+                <fmt:message key="mucextinfo.diagnostics.largest.description">
+                    <fmt:param value="${max}"/>
+                </fmt:message>
+            </p>
+            <div class="jive-table">
+                <table cellpadding="0" cellspacing="0" border="0" width="100%">
+                    <thead>
+                        <tr>
+                            <th>&nbsp;</th>
+                            <th nowrap><fmt:message key="mucextinfo.usage.room" /></th>
+                            <th nowrap><fmt:message key="mucextinfo.diagnostics.distribution.rows" /></th>
+                        </tr>
+                    </thead>
+                    <tbody>
+                    <c:choose>
+                        <c:when test="${empty statistics.largestRooms}">
+                            <tr>
+                                <td align="center" colspan="3"><fmt:message key="mucextinfo.usage.no-rooms" /></td>
+                            </tr>
+                        </c:when>
+                        <c:otherwise>
+                            <c:forEach var="entry" items="${statistics.largestRooms}" varStatus="status">
+                                <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                                    <td width="1%"><c:out value="${status.index + 1}"/></td>
+                                    <td><a href="muc-room-extinfo-edit-form.jsp?roomJID=${admin:urlEncode(entry.key)}"><c:out value="${entry.key}"/></a></td>
+                                    <td><c:out value="${entry.value}"/></td>
+                                </tr>
+                            </c:forEach>
+                        </c:otherwise>
+                    </c:choose>
+                    </tbody>
+                </table>
+            </div>
+        </c:otherwise>
+    </c:choose>
+</div>
+
+<div class="jive-contentBoxHeader"><fmt:message key="mucextinfo.diagnostics.slow.header"/></div>
+<div class="jive-contentBox">
+    <p>
+        <fmt:message key="mucextinfo.diagnostics.slow.description">
+            <fmt:param value="${threshold}"/>
+            <fmt:param value="${slowStatementCount}"/>
+            <fmt:param value="${statementCount}"/>
+        </fmt:message>
+    </p>
+
+    <div class="jive-table">
+        <table cellpadding="0" cellspacing="0" border="0" width="100%">
+            <thead>
+                <tr>
+                    <th nowrap><fmt:message key="mucextinfo.diagnostics.slow.time" /></th>
+                    <th nowrap><fmt:message key="mucextinfo.diagnostics.slow.duration" /></th>
+                    <th nowrap><fmt:message key="mucextinfo.usage.room" /></th>
+                    <th nowrap><fmt:message key="mucextinfo.diagnostics.distribution.rows" /></th>
+                    <th nowrap><fmt:message key="mucextinfo.diagnostics.slow.statement" /></th>
+                </tr>
+            </thead>
+            <tbody>
+            <c:choose>
+                <c:when test="${empty slowStatements}">
+                    <tr>
+                        <td align="center" colspan="5"><fmt:message key="mucextinfo.diagnostics.slow.none" /></td>
+                    </tr>
+                </c:when>
+                <c:otherwise>
+                    <c:forEach var="entry" items="${slowStatements}" varStatus="status">
+                        <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                            <td nowrap><fmt:formatDate value="${entry.date}" type="both" dateStyle="short" timeStyle="medium"/></td>
+                            <td nowrap><c:out value="${entry.millis}"/> ms</td>
+                            <td><c:out value="${entry.room}"/></td>
+                            <td><c:out value="${entry.rows}"/></td>
+                            <td><code><c:out value="${entry.statement}"/></code></td>
+                        </tr>
+                    </c:forEach>
+                </c:otherwise>
+            </c:choose>
+            </tbody>
+        </table>
+    </div>
+
+    <form action="muc-extinfo-diagnostics.jsp" method="post">
+        <input type="hidden" name="csrf" value="${csrf}">
+        <p><input type="submit" name="clear" value="<fmt:message key="mucextinfo.diagnostics.slow.clear" />" /></p>
+    </form>
+</div>
+
+<div class="jive-contentBoxHeader"><fmt:message key="mucextinfo.diagnostics.partitions.header"/></div>
+<div class="jive-contentBox">
+    <p><fmt:message key="mucextinfo.diagnostics.partitions.description"/></p>
+    <p>
+        <fmt:message key="mucextinfo.diagnostics.partitions.weight">
+            <fmt:param><fmt:formatNumber value="${weight div 1024}" maxFractionDigits="0"/></fmt:param>
+            <fmt:param value="${memory.shedCount}"/>
+            <fmt:param value="${memory.shedEntries}"/>
+            <fmt:param><fmt:formatNumber value="${memory.shedBytes div 1024}" maxFractionDigits="0"/></fmt:param>
+        </fmt:message>
+    </p>
+    <div class="jive-table">
+        <table cellpadding="0" cellspacing="0" border="0" width="100%">
+            <thead>
+            <tr>
+                <th nowrap><fmt:message key="mucextinfo.diagnostics.partitions.service" /></th>
+                <th nowrap><fmt:message key="mucextinfo.diagnostics.partitions.entries" /></th>
+                <th nowrap><fmt:message key="mucextinfo.diagnostics.partitions.size" /></th>
+                <th nowrap><fmt:message key="mucextinfo.diagnostics.partitions.hits" /></th>
+                <th nowrap><fmt:message key="mucextinfo.diagnostics.partitions.misses" /></th>
+            </tr>
+            </thead>
+            <tbody>
+            <c:if test="${empty partitions}">
+                <tr>
+                    <td align="center" colspan="5"><fmt:message key="mucextinfo.diagnostics.partitions.none" /></td>
+                </tr>
+            </c:if>
+            <c:forEach var="partition" items="${partitions}" varStatus="status">
+                <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                    <td><c:out value="${partition.key}"/></td>
+                    <td><c:out value="${partition.value.size()}"/></td>
+                    <td>
+                        <fmt:formatNumber value="${partition.value.cacheSize div 1024}" maxFractionDigits="0"/> KB /
+                        <c:choose>
+                            <c:when test="${partition.value.maxCacheSize lt 0}"><fmt:message key="mucextinfo.diagnostics.partitions.unlimited" /></c:when>
+                            <c:otherwise><fmt:formatNumber value="${partition.value.maxCacheSize div 1024}" maxFractionDigits="0"/> KB</c:otherwise>
+                        </c:choose>
+                    </td>
+                    <td><c:out value="${partition.value.cacheHits}"/></td>
+                    <td><c:out value="${partition.value.cacheMisses}"/></td>
+                </tr>
+            </c:forEach>
+            </tbody>
+        </table>
+    </div>
+</div>
+
+<c:if test="${offHeap.enabled}">
+<div class="jive-contentBoxHeader"><fmt:message key="mucextinfo.diagnostics.offheap.header"/></div>
+<div class="jive-contentBox">
+    <p>
+        <fmt:message key="mucextinfo.diagnostics.offheap.description">
+            <fmt:param value="${offHeap.size}"/>
+            <fmt:param><fmt:formatNumber value="${offHeap.allocatedBytes div (1024 * 1024)}" maxFractionDigits="0"/></fmt:param>
+            <fmt:param><fmt:formatNumber value="${offHeap.indexBytes div 1024}" maxFractionDigits="0"/></fmt:param>
+            <fmt:param value="${offHeap.hits}"/>
+            <fmt:param value="${offHeap.hits + offHeap.misses}"/>
+        </fmt:message>
+    </p>
+</div>
+</c:if>
+
+<c:if test="${snapshotEnabled}">
+<div class="jive-contentBoxHeader"><fmt:message key="mucextinfo.diagnostics.snapshot.header"/></div>
+<div class="jive-contentBox">
+    <p>
+        <fmt:message key="mucextinfo.diagnostics.snapshot.description">
+            <fmt:param value="${snapshot.restoredCount}"/>
+            <fmt:param value="${snapshot.size}"/>
+            <fmt:param value="${snapshot.fallbackCount}"/>
+        </fmt:message>
+    </p>
+    <p>
+        <c:choose>
+            <c:when test="${not empty snapshot.lastWritten}">
+                <fmt:message key="mucextinfo.diagnostics.snapshot.written">
+                    <fmt:param><fmt:formatDate value="${snapshot.lastWritten}" type="both" dateStyle="short" timeStyle="medium"/></fmt:param>
+                    <fmt:param value="${snapshot.lastWrittenCount}"/>
+                </fmt:message>
+            </c:when>
+            <c:otherwise>
+                <fmt:message key="mucextinfo.diagnostics.snapshot.not-written"/>
+            </c:otherwise>
+        </c:choose>
+    </p>
+</div>
+</c:if>
+
+</body>
+</html>
@@ -0,0 +1,87 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<!--
+- Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+-
+- Licensed under the Apache License, Version 2.0 (the "License");
+- you may not use this file except in compliance with the License.
+- You may obtain a copy of the License at
+-
+- http://www.apache.org/licenses/LICENSE-2.0
+-
+- Unless required by applicable law or agreed to in writing, software
+- distributed under the License is distributed on an "AS IS" BASIS,
+- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+- See the License for the specific language governing permissions and
+- limitations under the License.
+-->
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.DAO" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.RoomQuota" %>
+<%@ page import="org.jivesoftware.util.ParamUtils" %>
+<%@ page errorPage="error.jsp" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<%@ taglib uri="admin" prefix="admin" %>
+
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+<%
+    final int max = Math.max(1, Math.min(500, ParamUtils.getIntParameter(request, "max", 25)));
+
+    pageContext.setAttribute( "max", max );
+    pageContext.setAttribute( "usage", DAO.retrieveLargestRooms(max) );
+    pageContext.setAttribute( "maxForms", RoomQuota.MAX_FORMS.getValue() );
+    pageContext.setAttribute( "maxFields", RoomQuota.MAX_FIELDS.getValue() );
+    pageContext.setAttribute( "maxValues", RoomQuota.MAX_VALUES.getValue() );
+    pageContext.setAttribute( "maxBytes", RoomQuota.MAX_BYTES.getValue() );
+%>
+<html>
+<head>
+    <title><fmt:message key="mucextinfo.usage.title"/></title>
+    <meta name="pageID" content="muc-extinfo-usage"/>
+</head>
+<body>
+
+<p>
+    <fmt:message key="mucextinfo.usage.description">
+        <fmt:param value="${max}"/>
+    </fmt:message>
+</p>
+
+<div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+        <thead>
+            <tr>
+                <th>&nbsp;</th>
+                <th nowrap><fmt:message key="mucextinfo.usage.room" /></th>
+                <th nowrap><fmt:message key="mucextinfo.usage.forms"><fmt:param value="${maxForms}"/></fmt:message></th>
+                <th nowrap><fmt:message key="mucextinfo.usage.fields"><fmt:param value="${maxFields}"/></fmt:message></th>
+                <th nowrap><fmt:message key="mucextinfo.usage.values"><fmt:param value="${maxValues}"/></fmt:message></th>
+                <th nowrap><fmt:message key="mucextinfo.usage.bytes"><fmt:param value="${maxBytes}"/></fmt:message></th>
+            </tr>
+        </thead>
+        <tbody>
+        <c:choose>
+            <c:when test="${empty usage}">
+                <tr>
+                    <td align="center" colspan="6"><fmt:message key="mucextinfo.usage.no-rooms" /></td>
+                </tr>
+            </c:when>
+            <c:otherwise>
+                <c:forEach var="entry" items="${usage}" varStatus="status">
+                    <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                        <td width="1%"><c:out value="${status.index + 1}"/></td>
+                        <td><a href="muc-room-extinfo-edit-form.jsp?roomJID=${admin:urlEncode(entry.key)}"><c:out value="${entry.key}"/></a></td>
+                        <td><c:out value="${entry.value.forms}"/></td>
+                        <td><c:out value="${entry.value.fields}"/></td>
+                        <td><c:out value="${entry.value.values}"/></td>
+                        <td><c:out value="${entry.value.bytes}"/></td>
+                    </tr>
+                </c:forEach>
+            </c:otherwise>
+        </c:choose>
+        </tbody>
+    </table>
+</div>
+
+</body>
+</html>
@@ -16,7 +16,9 @@
 -->
 <%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.DAO" %>
 <%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.ExtDataForm" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.FormsText" %>
 <%@ page import="org.jivesoftware.openfire.muc.MUCRoom" %>
+<%@ page import="org.jivesoftware.openfire.muc.MultiUserChatService" %>
 <%@ page import="org.jivesoftware.util.CookieUtils" %>
 <%@ page import="org.jivesoftware.util.ParamUtils" %>
 <%@ page import="org.jivesoftware.util.StringUtils" %>
@@ -29,6 +31,12 @@
 <%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.Field" %>
 <%@ page import="java.util.stream.Collectors" %>
 <%@ page import="java.util.function.Function" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.DiscoInfoProviderProxy" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.Visibility" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.VisibilityRule" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.QuotaExceededException" %>
+<%@ page import="org.igniterealtime.openfire.plugin.mucextinfo.SchemaViolationException" %>
+<%@ page import="org.jivesoftware.openfire.disco.DiscoInfoProvider" %>
 <%@ page errorPage="error.jsp" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
@@ -44,14 +52,39 @@
     boolean deleteForm = request.getParameter("deleteForm") != null;
     boolean addField = request.getParameter("addField") != null;
     boolean deleteField = request.getParameter("deleteField") != null;
+    boolean addRule = request.getParameter("addRule") != null;
+    boolean deleteRule = request.getParameter("deleteRule") != null;
+    boolean setLabel = request.getParameter("setLabel") != null;
+    boolean deleteLabel = request.getParameter("deleteLabel") != null;
+    boolean copyRoom = request.getParameter("copyRoom") != null;
+    boolean moveRoom = request.getParameter("moveRoom") != null;
+    boolean replaceForms = request.getParameter("replaceForms") != null;
     String formTypeName = request.getParameter("formTypeName");
     String varName = request.getParameter("varName");
     String label = request.getParameter("label");
     String value = request.getParameter("value");
+    String ruleVarName = request.getParameter("ruleVarName");
+    String ruleType = request.getParameter("ruleType");
+    String ruleValue = request.getParameter("ruleValue");
+    String labelVarName = request.getParameter("labelVarName");
+    String labelLang = request.getParameter("labelLang");
+    String localizedLabel = request.getParameter("localizedLabel");
+    String copyTargets = request.getParameter("copyTargets");
+    String moveTarget = request.getParameter("moveTarget");
+    String formsText = request.getParameter("formsText");
+
+    // When the address has no node part, this page manages the data forms that are defined for the entire service.
+    final boolean serviceLevel = roomJID.getNode() == null;
+
+    // When a (service discovery) node is provided, this page manages the data forms of the room for that node. Data forms
+    // that are defined for the service are not returned for requests that specify a node.
+    final String node = serviceLevel ? null : ParamUtils.getParameter(request, "node");
+    final String nodeParam = node == null ? "" : "&node=" + URLEncoder.encode(node, "UTF-8");
 
     // Load the room object
-    MUCRoom room = webManager.getMultiUserChatManager().getMultiUserChatService(roomJID).getChatRoom(roomJID.getNode());
-    if ( room == null ) {
+    MultiUserChatService service = webManager.getMultiUserChatManager().getMultiUserChatService(roomJID);
+    MUCRoom room = service == null || serviceLevel ? null : service.getChatRoom(roomJID.getNode());
+    if ( service == null || ( room == null && !serviceLevel ) ) {
         response.sendError(404);
         return;
     }
@@ -62,8 +95,66 @@
     String csrfParam = ParamUtils.getParameter(request, "csrf");
 
     // Validation.
-    final List<ExtDataForm> extensionsOnly = DAO.retrieveExtensionElementsForRoom(roomJID);
-    if (addForm || deleteForm || addField || deleteField)
+    final List<ExtDataForm> extensionsOnly = DAO.retrieveExtensionElementsForNode(roomJID, node);
+    VisibilityRule rule = null;
+    final List<JID> targets = new ArrayList<>();
+    if ( copyRoom || moveRoom )
+    {
+        if ( csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals( csrfParam ) )
+        {
+            errors.put("csrf", "CSRF Error. Please reload the page and try again.");
+            copyRoom = false;
+            moveRoom = false;
+        }
+        else if ( serviceLevel || node != null )
+        {
+            errors.put("targets", "Only the data of an entire room can be copied or moved.");
+        }
+        else
+        {
+            final String input = copyRoom ? copyTargets : moveTarget;
+            for ( final String address : input == null ? new String[0] : input.trim().split("[\\s,]+") ) {
+                if ( address.isEmpty() ) {
+                    continue;
+                }
+                try {
+                    final JID target = new JID( address );
+                    if ( target.getNode() == null || target.asBareJID().equals( roomJID.asBareJID() ) ) {
+                        throw new IllegalArgumentException();
+                    }
+                    targets.add( target.asBareJID() );
+                } catch ( IllegalArgumentException e ) {
+                    errors.put("targets", "Invalid room address: " + address);
+                }
+            }
+            if ( targets.isEmpty() && !errors.containsKey("targets") ) {
+                errors.put("targets", "Missing room address.");
+            }
+            if ( moveRoom && targets.size() > 1 ) {
+                errors.put("targets", "Data can be moved to one room only.");
+            }
+        }
+    }
+
+    List<ExtDataForm> desiredForms = null;
+    if ( replaceForms )
+    {
+        if ( csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals( csrfParam ) )
+        {
+            errors.put("csrf", "CSRF Error. Please reload the page and try again.");
+            replaceForms = false;
+        }
+        else
+        {
+            try {
+                desiredForms = FormsText.parse( formsText == null ? "" : formsText );
+            } catch ( IllegalArgumentException e ) {
+                errors.put("formsText", e.getMessage());
+            }
+        }
+    }
+
+    if (addForm || deleteForm || addField || deleteField || addRule || deleteRule || setLabel || deleteLabel)
     {
         if ( csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals( csrfParam ) )
         {
@@ -72,6 +163,10 @@
             deleteForm = false;
             addField = false;
             deleteField = false;
+            addRule = false;
+            deleteRule = false;
+            setLabel = false;
+            deleteLabel = false;
         }
 
         if ( formTypeName == null || formTypeName.trim().isEmpty() ) {
@@ -103,42 +198,130 @@
                 errors.put("varName", "Missing variable name.");
             } else {
                 List<ExtDataForm> existing = extensionsOnly;
-                if ( existing == null || existing.stream().noneMatch(dataForm -> dataForm.getFields().stream().anyMatch(field -> field.getVarName().equals(varName)) ) )
+                if ( existing == null || existing.stream().noneMatch(dataForm -> dataForm.getField(varName) != null ) )
                 {
                     errors.put("does not exist", "A field with this name does not exist in the form!");
                 }
             }
         }
+
+        if ( addRule || deleteRule ) {
+            if ( ruleValue == null || ruleValue.trim().isEmpty() ) {
+                errors.put("ruleValue", "Missing rule value.");
+            } else {
+                try {
+                    rule = new VisibilityRule( VisibilityRule.Type.valueOf( ruleType ), ruleValue.trim() );
+                } catch ( IllegalArgumentException | NullPointerException e ) {
+                    errors.put("ruleType", "Invalid rule.");
+                }
+            }
+        }
+
+        if ( setLabel || deleteLabel ) {
+            if ( labelLang == null || labelLang.trim().isEmpty() ) {
+                errors.put("labelLang", "Missing language.");
+            }
+            if ( setLabel && ( localizedLabel == null || localizedLabel.trim().isEmpty() ) ) {
+                errors.put("localizedLabel", "Missing label.");
+            }
+            List<ExtDataForm> existing = extensionsOnly;
+            if ( labelVarName == null || existing == null || existing.stream().noneMatch(dataForm -> dataForm.getFormTypeName().equals(formTypeName) && dataForm.getField(labelVarName) != null ) ) {
+                errors.put("labelVarName", "A field with this name does not exist in the form!");
+            }
+        }
     }
 
     // Apply changes
     if ( errors.isEmpty() ) {
         if ( addForm ) {
-            DAO.addForm( roomJID, formTypeName );
-
-            webManager.logEvent( "MUC External Info, new form added.", "form name: " + formTypeName );
-            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
-            return;
+            try {
+                DAO.addForm( roomJID, node, formTypeName );
+
+                webManager.logEvent( "MUC External Info, new form added.", "form name: " + formTypeName + ( node == null ? "" : ", node: " + node ) );
+                response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+                return;
+            } catch ( QuotaExceededException e ) {
+                errors.put( "quota", e.getMessage() );
+            }
         } else if ( deleteForm ) {
-            DAO.removeForm( roomJID, formTypeName );
+            DAO.removeForm( roomJID, node, formTypeName );
 
-            webManager.logEvent( "MUC External Info, form deleted.", "form name: " + formTypeName );
-            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
+            webManager.logEvent( "MUC External Info, form deleted.", "form name: " + formTypeName + ( node == null ? "" : ", node: " + node ) );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
             return;
         } else if ( addField ) {
-            DAO.addField( roomJID, formTypeName, varName, label, value );
+            try {
+                DAO.addField( roomJID, node, formTypeName, varName, label, value );
+
+                webManager.logEvent( "MUC External Info, new field added.", "form name: " + formTypeName + ( node == null ? "" : ", node: " + node ) + ", field varName: " + varName );
+                response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+                return;
+            } catch ( QuotaExceededException e ) {
+                errors.put( "quota", e.getMessage() );
+            } catch ( SchemaViolationException e ) {
+                errors.put( "schema", e.getMessage() );
+            }
+        } else if ( deleteField ) {
+            DAO.removeField( roomJID, node, formTypeName, varName );
 
-            webManager.logEvent( "MUC External Info, new field added.", "form name: " + formTypeName + ", field varName: " + varName );
-            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
+            webManager.logEvent( "MUC External Info, field deleted.", "form name: " + formTypeName + ( node == null ? "" : ", node: " + node ) + ", field varName: " + varName );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
             return;
-        } else if ( deleteField ) {
-            DAO.removeField( roomJID, formTypeName, varName );
+        } else if ( addRule ) {
+            DAO.addRule( roomJID, formTypeName, ruleVarName, rule );
+
+            webManager.logEvent( "MUC External Info, visibility rule added.", "form name: " + formTypeName + ", field varName: " + ruleVarName + ", rule: " + rule );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+            return;
+        } else if ( deleteRule ) {
+            DAO.removeRule( roomJID, formTypeName, ruleVarName, rule );
+
+            webManager.logEvent( "MUC External Info, visibility rule deleted.", "form name: " + formTypeName + ", field varName: " + ruleVarName + ", rule: " + rule );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+            return;
+        } else if ( setLabel ) {
+            DAO.setLabel( roomJID, formTypeName, labelVarName, labelLang.trim(), localizedLabel.trim() );
+
+            webManager.logEvent( "MUC External Info, localized label set.", "form name: " + formTypeName + ", field varName: " + labelVarName + ", language: " + labelLang.trim() );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+            return;
+        } else if ( deleteLabel ) {
+            DAO.removeLabel( roomJID, formTypeName, labelVarName, labelLang.trim() );
 
-            webManager.logEvent( "MUC External Info, field deleted.", "form name: " + formTypeName + ", field varName: " + varName );
-            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
+            webManager.logEvent( "MUC External Info, localized label deleted.", "form name: " + formTypeName + ", field varName: " + labelVarName + ", language: " + labelLang.trim() );
+            response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
             return;
+        } else if ( replaceForms ) {
+            try {
+                if ( DAO.replaceForms( roomJID, node, desiredForms ) ) {
+                    webManager.logEvent( "MUC External Info, all forms replaced.", "forms: " + desiredForms.size() + ( node == null ? "" : ", node: " + node ) );
+                    response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam + "&success=true" );
+                    return;
+                }
+                errors.put("formsText", "The data forms could not be replaced. Please refer to the logs for details.");
+            } catch ( QuotaExceededException e ) {
+                errors.put( "quota", e.getMessage() );
+            } catch ( SchemaViolationException e ) {
+                errors.put( "formsText", e.getMessage() );
+            }
+        } else if ( copyRoom ) {
+            if ( DAO.copyRoom( roomJID, targets ) ) {
+                webManager.logEvent( "MUC External Info, data copied.", "from room: " + roomJID.toBareJID() + ", to rooms: " + targets.size() );
+                response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
+                return;
+            }
+            errors.put("targets", "The data could not be copied. Please refer to the logs for details.");
+        } else if ( moveRoom ) {
+            if ( DAO.moveRoom( roomJID, targets.get(0) ) ) {
+                webManager.logEvent( "MUC External Info, data moved.", "from room: " + roomJID.toBareJID() + ", to room: " + targets.get(0) );
+                response.sendRedirect( "muc-room-extinfo-edit-form.jsp?roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + "&success=true" );
+                return;
+            }
+            errors.put("targets", "The data could not be moved. Please refer to the logs for details.");
         }
-    } else {
+    }
+
+    if ( !errors.isEmpty() ) {
         // Repopulate input fields with potentially erroneous data, to be corrected by the end user.
         if ( addField )
         {
@@ -150,6 +333,28 @@
         if ( addForm ) {
             pageContext.setAttribute("formTypeName", formTypeName);
         }
+
+        if ( copyRoom ) {
+            pageContext.setAttribute("copyTargets", copyTargets);
+        }
+
+        if ( moveRoom ) {
+            pageContext.setAttribute("moveTarget", moveTarget);
+        }
+
+        if ( setLabel ) {
+            pageContext.setAttribute("labelLang", labelLang);
+            pageContext.setAttribute("localizedLabel", localizedLabel);
+        }
+
+        if ( replaceForms ) {
+            pageContext.setAttribute("formsText", formsText);
+        }
+    }
+
+    // The whole-form editor shows the current data forms, unless submitted data is to be corrected.
+    if ( pageContext.getAttribute("formsText") == null ) {
+        pageContext.setAttribute("formsText", FormsText.format(extensionsOnly));
     }
 
     csrfParam = StringUtils.randomString(15);
@@ -157,21 +362,40 @@
     pageContext.setAttribute( "csrf", csrfParam) ;
     pageContext.setAttribute( "errors", errors );
     pageContext.setAttribute( "roomJID", roomJID );
+    pageContext.setAttribute( "serviceJID", new JID( null, roomJID.getDomain(), null ) );
+    pageContext.setAttribute( "serviceLevel", serviceLevel );
+    pageContext.setAttribute( "node", node );
+    pageContext.setAttribute( "nodeParam", nodeParam );
+    pageContext.setAttribute( "nodes", serviceLevel ? Collections.emptyList() : DAO.retrieveNodes(roomJID) );
     pageContext.setAttribute( "success", success != null && errors.isEmpty() );
 
-    // All of the dataforms (including the extensions provided by this implementation).
-    final Set<DataForm> originalForms = MucExtInfoPlugin.getProvider(webManager.getMultiUserChatManager().getMultiUserChatService(roomJID)).getExtendedInfos(roomJID.getNode(), null, roomJID);
+    // All of the dataforms (including the extensions provided by this implementation). For a service, only the
+    // extensions provided by this implementation are applicable.
+    final Set<DataForm> originalForms;
+    if ( serviceLevel ) {
+        originalForms = Collections.emptySet();
+    } else {
+        final DiscoInfoProvider provider = MucExtInfoPlugin.getProvider(service);
+        if ( provider instanceof DiscoInfoProviderProxy ) {
+            originalForms = ((DiscoInfoProviderProxy) provider).getUnrestrictedExtendedInfos(roomJID.getNode(), node, roomJID);
+        } else {
+            originalForms = provider.getExtendedInfos(roomJID.getNode(), node, roomJID);
+        }
+    }
     final List<ExtDataForm> extDataForms = new ArrayList<>();
+    if ( serviceLevel && extensionsOnly != null ) {
+        extDataForms.addAll( extensionsOnly );
+    }
     for ( final DataForm originalForm : originalForms ) {
-        final ExtDataForm extDataForm = new ExtDataForm( originalForm.getField("FORM_TYPE").getFirstValue() );
+        final ExtDataForm.Builder extDataForm = ExtDataForm.builder( originalForm.getField("FORM_TYPE").getFirstValue() );
         for ( final FormField formField : originalForm.getFields() ) {
             // Exclude the 'form type' field.
             if ( !formField.getVariable().equals("FORM_TYPE") )
             {
-                extDataForm.getFields().add(new Field(formField.getVariable(), formField.getLabel(), formField.getValues().toArray(new String[0])));
+                extDataForm.addField(new Field(formField.getVariable(), formField.getLabel(), formField.getValues().toArray(new String[0])));
             }
         }
-        extDataForms.add(extDataForm);
+        extDataForms.add(extDataForm.build());
     }
 
     // This collection is used for presentation purposes. Apply a consistent ordering, otherwise page reloads yield confusing results.
@@ -186,12 +410,18 @@
         extensionsMappedByName = extensionsOnly.stream().collect(Collectors.toMap(ExtDataForm::getFormTypeName, Function.identity()));
     }
     pageContext.setAttribute( "extensionsOnly", extensionsMappedByName );
+
+    // The visibility rules that apply to the extensions, mapped by their form type name.
+    final Map<String, List<Visibility.Assignment>> rulesMappedByName = DAO.retrieveVisibilityForRoom(roomJID).getAssignments().stream()
+        .collect(Collectors.groupingBy(Visibility.Assignment::getFormTypeName));
+    pageContext.setAttribute( "rules", rulesMappedByName );
+    pageContext.setAttribute( "ruleTypes", VisibilityRule.Type.values() );
 %>
 <html>
 <head>
     <title><fmt:message key="mucextinfo.page.title"/></title>
     <meta name="subPageID" content="muc-room-extinfo-edit-form"/>
-    <meta name="extraParams" content="<%= "roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") %>"/>
+    <meta name="extraParams" content="<%= "roomJID="+URLEncoder.encode(roomJID.toBareJID(), "UTF-8") + nodeParam %>"/>
 </head>
 <body>
 
@@ -215,9 +445,52 @@
     </admin:infoBox>
 </c:if>
 
-<p>
-    <fmt:message key="mucextinfo.page.description"/>
-</p>
+<c:choose>
+    <c:when test="${serviceLevel}">
+        <p>
+            <fmt:message key="mucextinfo.page.service.description">
+                <fmt:param value="${roomJID.domain}"/>
+            </fmt:message>
+        </p>
+    </c:when>
+    <c:otherwise>
+        <p>
+            <fmt:message key="mucextinfo.page.description"/>
+        </p>
+        <p>
+            <fmt:message key="mucextinfo.page.service.link-description"/>
+            <a href="muc-room-extinfo-edit-form.jsp?roomJID=${admin:urlEncode(serviceJID)}"><fmt:message key="mucextinfo.page.service.link"/></a>
+        </p>
+        <c:if test="${not empty node}">
+            <p>
+                <fmt:message key="mucextinfo.page.node.description">
+                    <fmt:param value="${node}"/>
+                </fmt:message>
+            </p>
+        </c:if>
+        <form action="muc-room-extinfo-edit-form.jsp" method="get">
+            <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
+            <p>
+                <fmt:message key="mucextinfo.page.nodes.description"/>
+                <c:choose>
+                    <c:when test="${empty node}"><b><fmt:message key="mucextinfo.page.nodes.none"/></b></c:when>
+                    <c:otherwise><a href="muc-room-extinfo-edit-form.jsp?roomJID=${admin:urlEncode(roomJID)}"><fmt:message key="mucextinfo.page.nodes.none"/></a></c:otherwise>
+                </c:choose>
+                <c:forEach var="existingNode" items="${nodes}">
+                    |
+                    <c:choose>
+                        <c:when test="${existingNode eq node}"><b><c:out value="${existingNode}"/></b></c:when>
+                        <c:otherwise><a href="muc-room-extinfo-edit-form.jsp?roomJID=${admin:urlEncode(roomJID)}&node=${admin:urlEncode(existingNode)}"><c:out value="${existingNode}"/></a></c:otherwise>
+                    </c:choose>
+                </c:forEach>
+                <br/>
+                <label for="node"><fmt:message key="mucextinfo.page.nodes.other"/></label>
+                <input type="text" size="40" id="node" name="node"/>
+                <input type="submit" value="<fmt:message key="mucextinfo.page.nodes.open"/>" />
+            </p>
+        </form>
+    </c:otherwise>
+</c:choose>
 
 <br>
 
@@ -229,6 +502,7 @@
         <input type="hidden" name="csrf" value="${csrf}">
         <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
         <input type="hidden" name="formTypeName" value="${fn:escapeXml(extendedForm.formTypeName)}">
+        <c:if test="${not empty node}"><input type="hidden" name="node" value="${fn:escapeXml(node)}"></c:if>
 
         <fieldset>
             <legend>
@@ -266,7 +540,19 @@
                                     <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
                                         <td width="1%">&nbsp;</td>
                                         <td><c:out value="${field.varName}"/></td>
-                                        <td><c:out value="${field.label}"/></td>
+                                        <td>
+                                            <c:out value="${field.label}"/>
+                                            <c:if test="${not empty extensionsOnly[extendedForm.formTypeName] and not empty extensionsOnly[extendedForm.formTypeName].getField(field.varName)}">
+                                                <c:forEach var="localized" items="${extensionsOnly[extendedForm.formTypeName].getField(field.varName).localizedLabels}">
+                                                    <br/><small>[<c:out value="${localized.key}"/>] <c:out value="${localized.value}"/></small>
+                                                    <a href="muc-room-extinfo-edit-form.jsp?deleteLabel=true&csrf=${csrf}&roomJID=${admin:urlEncode(roomJID)}&formTypeName=${admin:urlEncode(extendedForm.formTypeName)}&labelVarName=${admin:urlEncode(field.varName)}&labelLang=${admin:urlEncode(localized.key)}"
+                                                       title="<fmt:message key="mucextinfo.page.click-to-delete" />"
+                                                       onclick="return confirm('<fmt:message key="mucextinfo.page.label-delete-confirm"/>');">
+                                                        <img src="../../images/delete-16x16.gif" width="12" height="12" border="0" alt="<fmt:message key="mucextinfo.page.click-to-delete" />">
+                                                    </a>
+                                                </c:forEach>
+                                            </c:if>
+                                        </td>
                                         <td>
                                             <c:forEach var="val" items="${field.values}">
                                                 <c:out value="${val}"/> <br/>
@@ -274,8 +560,8 @@
                                         </td>
                                         <td width="1%">
                                             <c:choose>
-                                                <c:when test="${not empty extensionsOnly[extendedForm.formTypeName] and extensionsOnly[extendedForm.formTypeName].fields.contains(field) }">
-                                                    <a href="muc-room-extinfo-edit-form.jsp?deleteField=true&csrf=${csrf}&roomJID=${admin:urlEncode(roomJID)}&formTypeName=${admin:urlEncode(extendedForm.formTypeName)}&varName=${admin:urlEncode(field.varName)}"
+                                                <c:when test="${not empty extensionsOnly[extendedForm.formTypeName] and not empty extensionsOnly[extendedForm.formTypeName].getField(field.varName) }">
+                                                    <a href="muc-room-extinfo-edit-form.jsp?deleteField=true&csrf=${csrf}&roomJID=${admin:urlEncode(roomJID)}${nodeParam}&formTypeName=${admin:urlEncode(extendedForm.formTypeName)}&varName=${admin:urlEncode(field.varName)}"
                                                        title="<fmt:message key="mucextinfo.page.click-to-delete" />"
                                                        onclick="return confirm('<fmt:message key="mucextinfo.page.field-delete-confirm"/>');">
                                                         <img src="../../images/delete-16x16.gif" width="16" height="16" border="0" alt="<fmt:message key="mucextinfo.page.click-to-delete" />">
@@ -296,6 +582,126 @@
 
                 </div>
 
+                <c:if test="${not serviceLevel and empty node and not empty extensionsOnly[extendedForm.formTypeName]}">
+                    <br/>
+                    <p><fmt:message key="mucextinfo.page.form.rules.description" /></p>
+
+                    <div class="jive-table">
+                        <table cellpadding="0" cellspacing="0" border="0" width="100%">
+                            <thead>
+                                <tr>
+                                    <th>&nbsp;</th>
+                                    <th nowrap><fmt:message key="mucextinfo.page.form.rules.varname" /></th>
+                                    <th nowrap><fmt:message key="mucextinfo.page.form.rules.type" /></th>
+                                    <th nowrap><fmt:message key="mucextinfo.page.form.rules.value" /></th>
+                                    <th nowrap><fmt:message key="mucextinfo.page.form.fields.delete" /></th>
+                                </tr>
+                            </thead>
+                            <tbody>
+                            <c:choose>
+                                <c:when test="${empty rules[extendedForm.formTypeName]}">
+                                    <tr>
+                                        <td align="center" colspan="5">
+                                            <fmt:message key="mucextinfo.page.form.rules.no-rules" />
+                                        </td>
+                                    </tr>
+                                </c:when>
+                                <c:otherwise>
+                                    <c:forEach var="assignment" items="${rules[extendedForm.formTypeName]}" varStatus="status">
+                                        <tr class="jive-${status.index%2 == 0 ? 'even' : 'odd'}">
+                                            <td width="1%">&nbsp;</td>
+                                            <td>
+                                                <c:choose>
+                                                    <c:when test="${empty assignment.varName}"><i><fmt:message key="mucextinfo.page.form.rules.entire-form" /></i></c:when>
+                                                    <c:otherwise><c:out value="${assignment.varName}"/></c:otherwise>
+                                                </c:choose>
+                                            </td>
+                                            <td><c:out value="${assignment.rule.type}"/></td>
+                                            <td><c:out value="${assignment.rule.value}"/></td>
+                                            <td width="1%">
+                                                <a href="muc-room-extinfo-edit-form.jsp?deleteRule=true&csrf=${csrf}&roomJID=${admin:urlEncode(roomJID)}&formTypeName=${admin:urlEncode(extendedForm.formTypeName)}&ruleVarName=${admin:urlEncode(assignment.varName)}&ruleType=${admin:urlEncode(assignment.rule.type)}&ruleValue=${admin:urlEncode(assignment.rule.value)}"
+                                                   title="<fmt:message key="mucextinfo.page.click-to-delete" />"
+                                                   onclick="return confirm('<fmt:message key="mucextinfo.page.rule-delete-confirm"/>');">
+                                                    <img src="../../images/delete-16x16.gif" width="16" height="16" border="0" alt="<fmt:message key="mucextinfo.page.click-to-delete" />">
+                                                </a>
+                                            </td>
+                                        </tr>
+                                    </c:forEach>
+                                </c:otherwise>
+                            </c:choose>
+                            </tbody>
+                        </table>
+                    </div>
+
+                    <br/>
+                    <table border="0">
+                        <tr>
+                            <td><label for="ruleVarName"><fmt:message key="mucextinfo.page.add.rule.varname" /></label></td>
+                            <td><select name="ruleVarName" id="ruleVarName">
+                                    <option value=""><fmt:message key="mucextinfo.page.form.rules.entire-form" /></option>
+                                    <c:forEach var="field" items="${extensionsOnly[extendedForm.formTypeName].fields}">
+                                        <option value="${fn:escapeXml(field.varName)}"><c:out value="${field.varName}"/></option>
+                                    </c:forEach>
+                                </select>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td><label for="ruleType"><fmt:message key="mucextinfo.page.add.rule.type" /></label></td>
+                            <td><select name="ruleType" id="ruleType">
+                                    <c:forEach var="ruleType" items="${ruleTypes}">
+                                        <option value="${ruleType}"><c:out value="${ruleType}"/></option>
+                                    </c:forEach>
+                                </select>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td><label for="ruleValue"><fmt:message key="mucextinfo.page.add.rule.value" /></label></td>
+                            <td><input name="ruleValue" id="ruleValue" type="text" size="30"/>
+                                <c:if test="${not empty param.addRule && (not empty errors['ruleValue'] || not empty errors['ruleType'])}">
+                                    <span style="color:red"><c:out value="${not empty errors['ruleValue'] ? errors['ruleValue'] : errors['ruleType']}"/></span>
+                                </c:if>
+                            </td>
+                        </tr>
+                    </table>
+                    <input type="submit" name="addRule" value="<fmt:message key="mucextinfo.page.add-rule" />" />
+                </c:if>
+
+                <c:if test="${empty node and not empty extensionsOnly[extendedForm.formTypeName].fields}">
+                    <br/>
+                    <p><fmt:message key="mucextinfo.page.form.labels.description" /></p>
+                    <table border="0">
+                        <tr>
+                            <td><label for="labelVarName"><fmt:message key="mucextinfo.page.add.label.varname" /></label></td>
+                            <td><select name="labelVarName" id="labelVarName">
+                                    <c:forEach var="field" items="${extensionsOnly[extendedForm.formTypeName].fields}">
+                                        <option value="${fn:escapeXml(field.varName)}"><c:out value="${field.varName}"/></option>
+                                    </c:forEach>
+                                </select>
+                                <c:if test="${not empty param.setLabel && not empty errors['labelVarName']}">
+                                    <span style="color:red"><c:out value="${errors['labelVarName']}"/></span>
+                                </c:if>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td><label for="labelLang"><fmt:message key="mucextinfo.page.add.label.lang" /></label></td>
+                            <td><input name="labelLang" id="labelLang" type="text" size="10" value="${labelLang != null ? admin:escapeHTMLTags(labelLang) : ''}"/>
+                                <c:if test="${not empty param.setLabel && not empty errors['labelLang']}">
+                                    <span style="color:red"><c:out value="${errors['labelLang']}"/></span>
+                                </c:if>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td><label for="localizedLabel"><fmt:message key="mucextinfo.page.add.label.label" /></label></td>
+                            <td><input name="localizedLabel" id="localizedLabel" type="text" size="30" value="${localizedLabel != null ? admin:escapeHTMLTags(localizedLabel) : ''}"/>
+                                <c:if test="${not empty param.setLabel && not empty errors['localizedLabel']}">
+                                    <span style="color:red"><c:out value="${errors['localizedLabel']}"/></span>
+                                </c:if>
+                            </td>
+                        </tr>
+                    </table>
+                    <input type="submit" name="setLabel" value="<fmt:message key="mucextinfo.page.set-label" />" />
+                </c:if>
+
                 <br/>
                 <p><b><fmt:message key="mucextinfo.page.add.header"/></b></p>
                 <table border="0">
@@ -353,6 +759,7 @@
 <form action="muc-room-extinfo-edit-form.jsp?addForm" method="post">
     <input type="hidden" name="csrf" value="${csrf}">
     <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
+    <c:if test="${not empty node}"><input type="hidden" name="node" value="${fn:escapeXml(node)}"></c:if>
 
     <p>
         <label for="formTypeName"><fmt:message key="mucextinfo.page.new.form-name" /></label>
@@ -364,5 +771,63 @@
     </p>
 </form>
 
+<br/>
+<fieldset>
+    <legend><fmt:message key="mucextinfo.page.replace.legend" /></legend>
+    <div style="width: unset">
+        <p><fmt:message key="mucextinfo.page.replace.description" /></p>
+
+        <form action="muc-room-extinfo-edit-form.jsp?replaceForms" method="post">
+            <input type="hidden" name="csrf" value="${csrf}">
+            <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
+            <c:if test="${not empty node}"><input type="hidden" name="node" value="${fn:escapeXml(node)}"></c:if>
+            <p>
+                <label for="formsText"><fmt:message key="mucextinfo.page.replace.forms" /></label><br/>
+                <textarea id="formsText" name="formsText" rows="12" cols="80" style="font-family: monospace"><c:out value="${formsText}"/></textarea><br/>
+                <input type="submit" name="replace" value="<fmt:message key="mucextinfo.page.replace" />"/>
+                <c:if test="${not empty param.replaceForms and not empty errors['formsText']}">
+                    <span style="color:red"><c:out value="${errors['formsText']}"/></span>
+                </c:if>
+            </p>
+        </form>
+    </div>
+</fieldset>
+
+<c:if test="${not serviceLevel and empty node}">
+<br/>
+<fieldset>
+    <legend><fmt:message key="mucextinfo.page.copy.legend" /></legend>
+    <div style="width: unset">
+        <p><fmt:message key="mucextinfo.page.copy.description" /></p>
+
+        <form action="muc-room-extinfo-edit-form.jsp?copyRoom" method="post">
+            <input type="hidden" name="csrf" value="${csrf}">
+            <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
+            <p>
+                <label for="copyTargets"><fmt:message key="mucextinfo.page.copy.targets" /></label><br/>
+                <textarea id="copyTargets" name="copyTargets" rows="4" cols="60"><c:out value="${copyTargets}"/></textarea><br/>
+                <input type="submit" name="copy" value="<fmt:message key="mucextinfo.page.copy" />" onclick="return confirm('<fmt:message key="mucextinfo.page.copy-confirm" />');"/>
+                <c:if test="${not empty param.copyRoom and not empty errors['targets']}">
+                    <span style="color:red"><c:out value="${errors['targets']}"/></span>
+                </c:if>
+            </p>
+        </form>
+
+        <form action="muc-room-extinfo-edit-form.jsp?moveRoom" method="post">
+            <input type="hidden" name="csrf" value="${csrf}">
+            <input type="hidden" name="roomJID" value="${fn:escapeXml(roomJID.toBareJID())}">
+            <p>
+                <label for="moveTarget"><fmt:message key="mucextinfo.page.move.target" /></label>
+                <input type="text" size="60" id="moveTarget" name="moveTarget" value="<c:out value="${moveTarget}"/>"/>
+                <input type="submit" name="move" value="<fmt:message key="mucextinfo.page.move" />" onclick="return confirm('<fmt:message key="mucextinfo.page.move-confirm" />');"/>
+                <c:if test="${not empty param.moveRoom and not empty errors['targets']}">
+                    <span style="color:red"><c:out value="${errors['targets']}"/></span>
+                </c:if>
+            </p>
+        </form>
+    </div>
+</fieldset>
+</c:if>
+
 </body>
 </html>
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link CachePartitions} keeps the cached data of each MUC service in a partition of its own.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class CachePartitionsTest
+{
+    private static final String SERVICE_A = "a.example.org";
+    private static final String SERVICE_B = "b.example.org";
+
+    private CachePartitions partitions;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        partitions = new CachePartitions();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        partitions.stop();
+        JiveGlobals.deleteProperty(CachePartitions.SERVICE_SIZE_PREFIX + SERVICE_A);
+    }
+
+    /**
+     * Verifies that the data of a service, its rooms and their nodes is kept in the same partition, and that the data
+     * of another service is kept in a different partition.
+     */
+    @Test
+    public void testPartitionPerService() throws Exception
+    {
+        // Setup test fixture.
+        final JID service = new JID(null, SERVICE_A, null);
+        final JID room = new JID("room", SERVICE_A, null);
+        final JID node = DAO.cacheKey(room, "node");
+        final JID other = new JID("room", SERVICE_B, null);
+
+        // Execute system under test.
+        final Cache<JID, CachedForms> result = partitions.get(room);
+
+        // Verify results.
+        assertSame( result, partitions.get(service) );
+        assertSame( result, partitions.get(node) );
+        assertNotSame( result, partitions.get(other) );
+        assertEquals( 2, partitions.getPartitions().size() );
+    }
+
+    /**
+     * Verifies that removing the data of one service does not affect the data of another service.
+     */
+    @Test
+    public void testPartitionsAreIndependent() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomA = new JID("room", SERVICE_A, null);
+        final JID roomB = new JID("room", SERVICE_B, null);
+        partitions.get(roomA).put(roomA, new CachedForms(0, CacheableOptional.of(null)));
+        partitions.get(roomB).put(roomB, new CachedForms(0, CacheableOptional.of(null)));
+
+        // Execute system under test.
+        partitions.get(roomA).clear();
+
+        // Verify results.
+        assertFalse( partitions.get(roomA).containsKey(roomA) );
+        assertTrue( partitions.get(roomB).containsKey(roomB) );
+        assertEquals( 1, partitions.size() );
+    }
+
+    /**
+     * Verifies that the maximum size that is configured for a service is applied to its partition only.
+     */
+    @Test
+    public void testSizePerService() throws Exception
+    {
+        // Setup test fixture.
+        final long defaultSize = partitions.get(new JID(null, SERVICE_B, null)).getMaxCacheSize();
+        JiveGlobals.setProperty(CachePartitions.SERVICE_SIZE_PREFIX + SERVICE_A, "4096");
+
+        // Execute system under test.
+        partitions.reconcile(Arrays.asList(SERVICE_A, SERVICE_B));
+
+        // Verify results.
+        assertEquals( 4096, partitions.getPartitions().get(SERVICE_A).getMaxCacheSize() );
+        assertEquals( defaultSize, partitions.getPartitions().get(SERVICE_B).getMaxCacheSize() );
+    }
+
+    /**
+     * Verifies that a partition is created for a service that is added, and that the partition of a service that was
+     * removed is dropped.
+     */
+    @Test
+    public void testReconcile() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomA = new JID("room", SERVICE_A, null);
+        partitions.get(roomA).put(roomA, new CachedForms(0, CacheableOptional.of(null)));
+
+        // Execute system under test.
+        partitions.reconcile(Collections.singleton(SERVICE_B));
+
+        // Verify results.
+        assertEquals( Collections.singleton(SERVICE_B), partitions.getPartitions().keySet() );
+        assertFalse( partitions.get(roomA).containsKey(roomA) );
+    }
+
+    /**
+     * Verifies that a thread that waits for the lock of a key while the partition of the key is dropped ends up holding
+     * the lock of the key in the partition that replaces it, so that threads continue to exclude each other.
+     */
+    @Test
+    public void testLockFollowsReplacedPartition() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("room", SERVICE_A, null);
+        final CachePartitions instance = CachePartitions.getInstance();
+        final Lock oldLock = instance.get(room).getLock(room);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Cache<JID, CachedForms>> locked = new AtomicReference<>();
+        oldLock.lock();
+        final Thread waiter = new Thread(() -> {
+            final Lock lock = DAO.lockCacheKey(room);
+            try
+            {
+                locked.set(instance.get(room));
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        });
+
+        try
+        {
+            // Execute system under test.
+            waiter.start();
+            while ( waiter.getState() != Thread.State.WAITING )
+            {
+                Thread.sleep(1);
+            }
+            instance.reconcile(Collections.emptySet());
+            oldLock.unlock();
+            while ( locked.get() == null )
+            {
+                Thread.sleep(1);
+            }
+
+            // Verify results.
+            final Lock current = locked.get().getLock(room);
+            final boolean acquired = current.tryLock();
+            if ( acquired )
+            {
+                current.unlock();
+            }
+            assertFalse( "The lock of the key in the current partition should be held by the waiting thread.", acquired );
+        }
+        finally
+        {
+            release.countDown();
+            waiter.join();
+            instance.stop();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link CacheWarmer}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class CacheWarmerTest
+{
+    private CacheWarmer warmer;
+
+    @After
+    public void tearDown()
+    {
+        if ( warmer != null )
+        {
+            warmer.stop();
+        }
+    }
+
+    /**
+     * Verifies that many consecutive events for the same room (as caused by a mass rejoin) result in one load only.
+     */
+    @Test
+    public void testConsecutiveEventsAreDeduplicated() throws Exception
+    {
+        // Setup test fixture.
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Set<JID> cached = ConcurrentHashMap.newKeySet();
+        warmer = new CacheWarmer(cached::contains, room -> {
+            loads.incrementAndGet();
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            cached.add(room);
+        });
+        warmer.start(2, 10);
+        final JID room = new JID("room", "conference.example.org", null);
+
+        // Execute system under test.
+        for ( int i = 0; i < 100; i++ )
+        {
+            warmer.occupantJoined(room, new JID("user" + i, "example.org", "resource"), "nick" + i);
+        }
+        release.countDown();
+        waitUntilIdle();
+        warmer.occupantJoined(room, new JID("late", "example.org", "resource"), "late");
+
+        // Verify results.
+        assertEquals( 1, loads.get() );
+    }
+
+    /**
+     * Verifies that rooms are not queued when the queue is full, and that such rooms can be queued again later.
+     */
+    @Test
+    public void testQueueIsBounded() throws Exception
+    {
+        // Setup test fixture.
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        warmer = new CacheWarmer(room -> false, room -> {
+            loads.incrementAndGet();
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        warmer.start(1, 2);
+
+        // Execute system under test.
+        for ( int i = 0; i < 10; i++ )
+        {
+            warmer.roomCreated(new JID("room" + i, "conference.example.org", null));
+        }
+        final int pendingWhenFull = warmer.getPendingCount();
+        release.countDown();
+        waitUntilIdle();
+
+        // Verify results.
+        assertTrue( "Expected at most one running and two queued loads, but found " + pendingWhenFull, pendingWhenFull <= 3 );
+        assertEquals( pendingWhenFull, loads.get() );
+    }
+
+    /**
+     * Verifies the computation of the share of warm requests.
+     */
+    @Test
+    public void testWarmShare()
+    {
+        // Setup test fixture.
+        warmer = new CacheWarmer(room -> false, room -> {});
+
+        // Execute system under test.
+        warmer.recordRequest(true);
+        warmer.recordRequest(true);
+        warmer.recordRequest(true);
+        warmer.recordRequest(false);
+
+        // Verify results.
+        assertEquals( 75.0, warmer.getWarmShare(), 0.001 );
+        assertEquals( 0.0, CacheWarmer.share(0, 0), 0.001 );
+    }
+
+    private void waitUntilIdle() throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ( warmer.getPendingCount() > 0 && System.nanoTime() < deadline )
+        {
+            Thread.sleep(10);
+        }
+        assertEquals( 0, warmer.getPendingCount() );
+    }
+}
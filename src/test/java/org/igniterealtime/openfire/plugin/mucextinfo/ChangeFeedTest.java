@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link ChangeFeed} and {@link ChangeFeedServlet}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ChangeFeedTest
+{
+    private static final Instant NOW = Instant.parse("2019-06-01T12:00:00Z");
+
+    /**
+     * Verifies that all changes are returned, and that the cursor points at the last returned change.
+     */
+    @Test
+    public void testChangesAreReturned()
+    {
+        // Setup test fixture.
+        final List<Change> changes = Arrays.asList(createChange(3, NOW.minusSeconds(10)), createChange(4, NOW.minusSeconds(9)));
+
+        // Execute system under test.
+        final ChangeFeed.Batch result = ChangeFeed.toBatch(changes, 2, 10);
+
+        // Verify results.
+        assertEquals( changes, result.getChanges() );
+        assertEquals( 4, result.getCursor() );
+        assertFalse( result.hasMore() );
+        assertFalse( result.isResyncRequired() );
+    }
+
+    /**
+     * Verifies that a batch does not exceed the maximum size, and that the consumer is told that more changes exist.
+     */
+    @Test
+    public void testBatchIsLimited()
+    {
+        // Setup test fixture.
+        final List<Change> changes = Arrays.asList(createChange(1, NOW.minusSeconds(10)), createChange(2, NOW.minusSeconds(10)), createChange(3, NOW.minusSeconds(10)));
+
+        // Execute system under test.
+        final ChangeFeed.Batch result = ChangeFeed.toBatch(changes, 0, 2);
+
+        // Verify results.
+        assertEquals( 2, result.getChanges().size() );
+        assertEquals( 2, result.getCursor() );
+        assertTrue( result.hasMore() );
+    }
+
+    /**
+     * Verifies that the cursor does not move when no changes are available.
+     */
+    @Test
+    public void testEmptyBatchKeepsCursor()
+    {
+        // Execute system under test.
+        final ChangeFeed.Batch result = ChangeFeed.toBatch(Collections.emptyList(), 42, 10);
+
+        // Verify results.
+        assertTrue( result.getChanges().isEmpty() );
+        assertEquals( 42, result.getCursor() );
+        assertFalse( result.hasMore() );
+    }
+
+    /**
+     * Verifies that the JSON representation of a batch escapes values and omits absent values.
+     */
+    @Test
+    public void testJsonEscapesValues()
+    {
+        // Setup test fixture.
+        final Change change = new Change(7, Instant.ofEpochMilli(1000), Change.Type.addField, new JID("room@conference.example.org"), "urn:example", "var", null, "say \"hi\"\\\n", null);
+        final ChangeFeed.Batch batch = ChangeFeed.toBatch(Collections.singletonList(change), 6, 10);
+
+        // Execute system under test.
+        final String result = ChangeFeedServlet.toJson(batch);
+
+        // Verify results.
+        assertEquals( "{\"cursor\":7,\"more\":false,\"resync\":false,\"changes\":[{\"seq\":7,\"timestamp\":1000,\"type\":\"addField\",\"room\":\"room@conference.example.org\",\"form\":\"urn:example\",\"var\":\"var\",\"value\":\"say \\\"hi\\\"\\\\\\n\"}]}", result );
+    }
+
+    /**
+     * Verifies that the JSON representation of a change includes the service discovery node of the data form.
+     */
+    @Test
+    public void testJsonIncludesNode()
+    {
+        // Setup test fixture.
+        final Change change = new Change(7, Instant.ofEpochMilli(1000), Change.Type.addForm, new JID("room@conference.example.org"), "urn:example:node", "urn:example", null, null, null, null, null);
+        final ChangeFeed.Batch batch = ChangeFeed.toBatch(Collections.singletonList(change), 6, 10);
+
+        // Execute system under test.
+        final String result = ChangeFeedServlet.toJson(batch);
+
+        // Verify results.
+        assertEquals( "{\"cursor\":7,\"more\":false,\"resync\":false,\"changes\":[{\"seq\":7,\"timestamp\":1000,\"type\":\"addForm\",\"room\":\"room@conference.example.org\",\"node\":\"urn:example:node\",\"form\":\"urn:example\"}]}", result );
+    }
+
+    /**
+     * Verifies that the JSON representation of a copy of a room includes the room that was copied, without a data form.
+     */
+    @Test
+    public void testJsonIncludesSource()
+    {
+        // Setup test fixture.
+        final Change change = new Change(7, Instant.ofEpochMilli(1000), Change.Type.copyRoom, new JID("room@conference.example.org"), null, null, null, null, null, null, null, new JID("template@conference.example.org"));
+        final ChangeFeed.Batch batch = ChangeFeed.toBatch(Collections.singletonList(change), 6, 10);
+
+        // Execute system under test.
+        final String result = ChangeFeedServlet.toJson(batch);
+
+        // Verify results.
+        assertEquals( "{\"cursor\":7,\"more\":false,\"resync\":false,\"changes\":[{\"seq\":7,\"timestamp\":1000,\"type\":\"copyRoom\",\"room\":\"room@conference.example.org\",\"source\":\"template@conference.example.org\"}]}", result );
+    }
+
+    /**
+     * Verifies that requests for the change feed are authorized only when they provide the configured secret.
+     */
+    @Test
+    public void testAuthorization()
+    {
+        // Execute system under test & Verify results.
+        assertTrue( ChangeFeedServlet.isAuthorized("s3cret", "s3cret") );
+        assertFalse( ChangeFeedServlet.isAuthorized("s3cret", "secret") );
+        assertFalse( ChangeFeedServlet.isAuthorized("s3cret", "") );
+        assertFalse( ChangeFeedServlet.isAuthorized("s3cret", null) );
+    }
+
+    /**
+     * Verifies that a maximum batch size that does not fit in an integer is rejected, rather than wrapped around.
+     */
+    @Test(expected = NumberFormatException.class)
+    public void testMaxOutOfRangeIsRejected()
+    {
+        // Execute system under test.
+        ChangeFeedServlet.parseInt("4294967297", 10);
+    }
+
+    /**
+     * Verifies that the default maximum batch size is used when the request does not define one.
+     */
+    @Test
+    public void testMaxDefaultsWhenAbsent()
+    {
+        // Execute system under test & Verify results.
+        assertEquals( 10, ChangeFeedServlet.parseInt(null, 10) );
+        assertEquals( 10, ChangeFeedServlet.parseInt(" ", 10) );
+        assertEquals( 25, ChangeFeedServlet.parseInt(" 25 ", 10) );
+    }
+
+    private static Change createChange( final long sequence, final Instant timestamp )
+    {
+        return new Change(sequence, timestamp, Change.Type.addForm, new JID("room@conference.example.org"), "urn:example", null, null, null, null);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link ComputedFieldManager#sample(ComputedFieldProvider, Collection)}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ComputedFieldManagerTest
+{
+    /**
+     * Verifies that the fields computed by a provider are wrapped in a data form for each room.
+     */
+    @Test
+    public void testSampleCreatesFormPerRoom()
+    {
+        // Setup test fixture.
+        final MUCRoom roomA = createRoom(new JID("a", "conference.example.org", null), 3);
+        final MUCRoom roomB = createRoom(new JID("b", "conference.example.org", null), 0);
+        final ComputedFieldProvider provider = new OccupantsFieldProvider("urn:test", Duration.ofSeconds(1));
+
+        // Execute system under test.
+        final Map<JID, ExtDataForm> result = ComputedFieldManager.sample(provider, Arrays.asList(roomA, roomB));
+
+        // Verify results.
+        assertEquals( 2, result.size() );
+        final ExtDataForm formA = result.get(roomA.getJID());
+        assertNotNull( formA );
+        assertEquals( "urn:test", formA.getFormTypeName() );
+        assertEquals( 1, formA.getFields().size() );
+        assertEquals( OccupantsFieldProvider.VAR_NAME, formA.getFields().get(0).getVarName() );
+        assertEquals( "3", formA.getFields().get(0).getValues().get(0) );
+        assertEquals( "0", result.get(roomB.getJID()).getFields().get(0).getValues().get(0) );
+    }
+
+    /**
+     * Verifies that no data form is created for rooms for which a provider does not compute any field, and that an
+     * exception for one room does not prevent fields from being computed for other rooms.
+     */
+    @Test
+    public void testSampleSkipsEmptyAndFailingRooms()
+    {
+        // Setup test fixture.
+        final MUCRoom empty = createRoom(new JID("empty", "conference.example.org", null), 0);
+        final MUCRoom failing = createRoom(new JID("failing", "conference.example.org", null), 0);
+        final MUCRoom ok = createRoom(new JID("ok", "conference.example.org", null), 0);
+        final ComputedFieldProvider provider = new ComputedFieldProvider() {
+            @Nonnull @Override public String getFormTypeName() { return "urn:test"; }
+            @Nonnull @Override public Duration getRefreshInterval() { return Duration.ofSeconds(1); }
+            @Nonnull @Override public Collection<Field> compute( @Nonnull final MUCRoom room ) {
+                switch ( room.getJID().getNode() ) {
+                    case "empty": return Collections.emptyList();
+                    case "failing": throw new IllegalStateException("test");
+                    default: return Collections.singletonList(new Field("var", null, "value"));
+                }
+            }
+        };
+
+        // Execute system under test.
+        final Map<JID, ExtDataForm> result = ComputedFieldManager.sample(provider, Arrays.asList(empty, failing, ok));
+
+        // Verify results.
+        assertEquals( 1, result.size() );
+        assertTrue( result.containsKey(ok.getJID()) );
+    }
+
+    /**
+     * Creates a room implementation that supports only the methods that are used by these tests.
+     */
+    private static MUCRoom createRoom( final JID jid, final int occupants )
+    {
+        return (MUCRoom) Proxy.newProxyInstance(MUCRoom.class.getClassLoader(), new Class[] { MUCRoom.class }, (proxy, method, args) -> {
+            switch ( method.getName() ) {
+                case "getJID": return jid;
+                case "getOccupantsCount": return occupants;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
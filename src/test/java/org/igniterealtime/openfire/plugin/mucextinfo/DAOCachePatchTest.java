@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property-based tests that verify that patching cached data forms (as done by {@link DAO} after each mutation) yields
+ * the same result as reloading the data from the database, including the order of forms, fields and values.
+ *
+ * The database is modelled as a list of rows, that are converted into data forms by the same code that is used when
+ * loading data from the database.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DAOCachePatchTest
+{
+    private static final String[] FORM_NAMES = { "urn:example:a", "urn:example:b", "urn:example:c" };
+    private static final String[] VAR_NAMES = { "x", "y", "z" };
+    private static final String[] LABELS = { null, "", "Label", "Other label" };
+    private static final String[] VALUES = { null, " ", "1", "2", "3" };
+
+    /**
+     * Applies many random sequences of mutations, and verifies that after each step the patched data is equal to data
+     * that is freshly loaded from the (modelled) database.
+     */
+    @Test
+    public void testRandomMutationSequences()
+    {
+        for ( long seed = 0; seed < 500; seed++ )
+        {
+            // Setup test fixture.
+            final Random random = new Random(seed);
+            final List<Row> database = new ArrayList<>();
+            List<ExtDataForm> cache = load(database);
+
+            for ( int step = 0; step < 40; step++ )
+            {
+                // Execute system under test.
+                final String formTypeName = pick(random, FORM_NAMES);
+                final String varName = pick(random, VAR_NAMES);
+                final String description;
+                final List<ExtDataForm> patched;
+                switch ( random.nextInt(4) )
+                {
+                    case 0:
+                        description = "addForm " + formTypeName;
+                        database.add(new Row(formTypeName, null, null, null));
+                        patched = DAO.patchAddForm(cache, formTypeName);
+                        break;
+
+                    case 1:
+                        description = "removeForm " + formTypeName;
+                        database.removeIf(row -> row.formTypeName.equals(formTypeName));
+                        patched = DAO.patchRemoveForm(cache, formTypeName);
+                        break;
+
+                    case 2:
+                        final String label = normalize(pick(random, LABELS));
+                        final String value = normalize(pick(random, VALUES));
+                        description = "addField " + formTypeName + " " + varName + " " + label + " " + value;
+                        database.add(new Row(formTypeName, varName, label, value));
+                        patched = DAO.patchAddField(cache, formTypeName, new Field(varName, label, value));
+                        break;
+
+                    default:
+                        description = "removeField " + formTypeName + " " + varName;
+                        database.removeIf(row -> row.formTypeName.equals(formTypeName) && varName.equals(row.varName));
+                        patched = DAO.patchRemoveField(cache, formTypeName, varName);
+                        break;
+                }
+
+                // When a patch can't be determined, the DAO purges the cache, causing a reload.
+                cache = patched == null ? load(database) : patched;
+
+                // Verify results.
+                assertEquals( "Seed " + seed + ", step " + step + " (" + description + ")", load(database), cache );
+            }
+        }
+    }
+
+    /**
+     * Verifies that patching does not modify the list that is being patched (which might be shared by other threads).
+     */
+    @Test
+    public void testPatchIsCopyOnWrite()
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> original = Collections.unmodifiableList(Collections.singletonList(ExtDataForm.builder("form").addField(new Field("x", null, "1")).addField(new Field("y", null, "2")).build()));
+
+        // Execute system under test.
+        final List<ExtDataForm> added = DAO.patchAddField(original, "form", new Field("x", null, "3"));
+        final List<ExtDataForm> removed = DAO.patchRemoveField(original, "form", "y");
+
+        // Verify results.
+        assertEquals( Arrays.asList("1"), original.get(0).getField("x").getValues() );
+        assertNotNull( original.get(0).getField("y") );
+        assertEquals( Arrays.asList("1", "3"), added.get(0).getField("x").getValues() );
+        assertNull( removed.get(0).getField("y") );
+    }
+
+    /**
+     * Verifies that removing the last field of a form yields an undetermined result, as the form may or may not
+     * continue to exist in the database.
+     */
+    @Test
+    public void testRemoveLastFieldIsUndetermined()
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> original = Collections.singletonList(ExtDataForm.builder("form").addField(new Field("x", null, "1")).build());
+
+        // Execute system under test.
+        final List<ExtDataForm> result = DAO.patchRemoveField(original, "form", "x");
+
+        // Verify results.
+        assertNull( result );
+    }
+
+    private static String pick( final Random random, final String[] options )
+    {
+        return options[random.nextInt(options.length)];
+    }
+
+    /**
+     * Blank labels and values are stored as null.
+     */
+    private static String normalize( final String value )
+    {
+        return value == null || value.trim().isEmpty() ? null : value;
+    }
+
+    /**
+     * Converts rows in the same way as the DAO does when loading data from the database. Rows are kept in the order in
+     * which they were added, which is the order in which the database returns them.
+     */
+    private static List<ExtDataForm> load( final List<Row> database )
+    {
+        final ConcurrentMap<String, ArrayList<Field>> rows = new ConcurrentSkipListMap<>();
+        for ( final Row row : database )
+        {
+            final ArrayList<Field> fieldsForForm = rows.computeIfAbsent(row.formTypeName, s -> new ArrayList<>());
+            if ( row.varName != null )
+            {
+                fieldsForForm.add(new Field(row.varName, row.label, row.value));
+            }
+        }
+        final List<ExtDataForm> result = DAO.rowsToDataForms(rows);
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    private static class Row
+    {
+        final String formTypeName;
+        final String varName;
+        final String label;
+        final String value;
+
+        Row( final String formTypeName, final String varName, final String label, final String value )
+        {
+            this.formTypeName = formTypeName;
+            this.varName = varName;
+            this.label = label;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded tests that interleave loads, modifications and purges of the data of the same rooms, against an
+ * embedded HSQLDB database, and verify that the data that is cached by {@link DAO} converges to the state of the
+ * database.
+ *
+ * Besides a randomized stress test, this contains tests that reproduce specific interleavings deterministically, by
+ * pausing a thread directly before or after it executes a particular database statement.
+ *
+ * The size of the stress test can be increased with the system properties <tt>mucextinfo.stress.threads</tt>,
+ * <tt>mucextinfo.stress.operations</tt> (per thread) and <tt>mucextinfo.stress.seed</tt>.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DAOConcurrencyStressTest
+{
+    private static final String SERVICE_DOMAIN = "conference.example.org";
+
+    private static final int THREADS = Integer.getInteger("mucextinfo.stress.threads", 8);
+    private static final int OPERATIONS = Integer.getInteger("mucextinfo.stress.operations", 2000);
+    private static final long SEED = Long.getLong("mucextinfo.stress.seed", System.nanoTime());
+
+    private static final List<JID> ROOMS = Arrays.asList(new JID("room0", SERVICE_DOMAIN, null), new JID("room1", SERVICE_DOMAIN, null), new JID("room2", SERVICE_DOMAIN, null));
+    private static final JID SERVICE = new JID(null, SERVICE_DOMAIN, null);
+    private static final List<String> NODES = Arrays.asList(null, "node");
+    private static final List<String> FORMS = Arrays.asList("urn:example:stress:a", "urn:example:stress:b");
+    private static final List<String> VARS = Arrays.asList("var0", "var1");
+    private static final VisibilityRule RULE = new VisibilityRule(VisibilityRule.Type.domain, "example.org");
+
+    private PausingConnectionProvider provider;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        provider = new PausingConnectionProvider(EmbeddedDatabase.createHsqldbUrl("stress"));
+        provider.install();
+        DAO.connectionProvider = provider;
+        DAO.purgeCache();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        DAO.connectionProvider = null;
+        DAO.purgeCache();
+        provider.shutdown();
+    }
+
+    /**
+     * Runs a random mix of loads, modifications and purges of a few rooms on a number of threads, after which the data
+     * that is served (from the cache, where possible) must be equal to the data that is loaded from the database.
+     */
+    @Test
+    public void testCacheConvergesUnderConcurrentModification() throws Exception
+    {
+        // Setup test fixture.
+        final DiscoInfoProviderProxy proxy = new DiscoInfoProviderProxy(null, SERVICE_DOMAIN);
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        // Execute system under test.
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            final Random random = new Random(SEED + t);
+            futures.add(executor.submit(() -> {
+                start.await();
+                for ( int i = 0; i < OPERATIONS; i++ )
+                {
+                    performRandomOperation(random, proxy);
+                }
+                return null;
+            }));
+        }
+        for ( final Future<?> future : futures )
+        {
+            future.get(5, TimeUnit.MINUTES);
+        }
+
+        // Verify results.
+        assertConverged("seed " + SEED, proxy);
+    }
+
+    /**
+     * Verifies that a visibility rule that is added while the existence of rules is being determined (for another
+     * room) is not ignored.
+     */
+    @Test
+    public void testRuleAddedWhileCountingRules() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = ROOMS.get(0);
+        final Pause pause = provider.pauseAfter(sql -> sql.startsWith("SELECT COUNT(*) FROM mucextinfo_rule"));
+        final Future<Visibility> reader = executor.submit(() -> DAO.retrieveVisibilityForRoom(ROOMS.get(1)));
+        pause.awaitReached();
+
+        // Execute system under test.
+        DAO.addRule(room, FORMS.get(0), null, RULE);
+        pause.release();
+        reader.get(1, TimeUnit.MINUTES);
+
+        // Verify results.
+        assertFalse( DAO.retrieveVisibilityForRoom(room).isUnrestricted() );
+    }
+
+    /**
+     * Verifies that a label that is set while the existence of labels is being determined (for another room) is not
+     * ignored when the data of its room is (re)loaded.
+     */
+    @Test
+    public void testLabelSetWhileCountingLabels() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = ROOMS.get(0);
+        DAO.addField(room, FORMS.get(0), VARS.get(0), "Label", "value");
+        DAO.addField(ROOMS.get(1), FORMS.get(0), VARS.get(0), "Label", "value");
+        DAO.purgeCache();
+        final Pause pause = provider.pauseAfter(sql -> sql.startsWith("SELECT COUNT(*) FROM mucextinfo_label"));
+        final Future<List<ExtDataForm>> reader = executor.submit(() -> DAO.retrieveExtensionElementsForRoom(ROOMS.get(1)));
+        pause.awaitReached();
+
+        // Execute system under test.
+        DAO.setLabel(room, FORMS.get(0), VARS.get(0), "nl", "Etiket");
+        pause.release();
+        reader.get(1, TimeUnit.MINUTES);
+        DAO.purgeCache(room);
+
+        // Verify results.
+        final List<ExtDataForm> result = DAO.retrieveExtensionElementsForRoom(room);
+        assertNotNull( result );
+        assertEquals( "Etiket", result.get(0).getField(VARS.get(0)).getLabel("nl") );
+    }
+
+    /**
+     * Verifies that the cached data of a node of a room is not retained when data is copied to that room, if the node
+     * was created after the copy started, but before the existing data of the room was removed.
+     */
+    @Test
+    public void testNodeCreatedWhileCopying() throws Exception
+    {
+        // Setup test fixture.
+        final JID source = ROOMS.get(0);
+        final JID target = ROOMS.get(1);
+        DAO.addField(source, FORMS.get(0), VARS.get(0), "Label", "value");
+        final Pause pause = provider.pauseBefore(sql -> sql.startsWith("DELETE FROM mucextinfo WHERE room"));
+        final Future<Boolean> copier = executor.submit(() -> DAO.copyRoom(source, Collections.singletonList(target)));
+        pause.awaitReached();
+
+        // Execute system under test.
+        DAO.addForm(target, "node", FORMS.get(1));
+        assertNotNull( DAO.retrieveExtensionElementsForNode(target, "node") );
+        pause.release();
+        assertTrue( copier.get(1, TimeUnit.MINUTES) );
+
+        // Verify results.
+        assertConverged("copy", null);
+    }
+
+    /**
+     * Performs one randomly selected operation on a randomly selected room.
+     */
+    private static void performRandomOperation( final Random random, final DiscoInfoProviderProxy proxy ) throws Exception
+    {
+        final JID room = ROOMS.get(random.nextInt(ROOMS.size()));
+        final JID other = ROOMS.get(random.nextInt(ROOMS.size()));
+        final String node = NODES.get(random.nextInt(NODES.size()));
+        final String form = FORMS.get(random.nextInt(FORMS.size()));
+        final String var = VARS.get(random.nextInt(VARS.size()));
+        final int operation = random.nextInt(100);
+        try
+        {
+            if ( operation < 25 ) {
+                DAO.retrieveExtensionElementsForNode(room, node);
+            } else if ( operation < 30 ) {
+                DAO.retrieveExtensionElementsForRooms(ROOMS);
+            } else if ( operation < 35 ) {
+                DAO.retrieveVisibilityForRoom(room);
+            } else if ( operation < 40 ) {
+                proxy.getServiceForms();
+            } else if ( operation < 45 ) {
+                DAO.addForm(room, node, form);
+            } else if ( operation < 55 ) {
+                DAO.addField(room, node, form, var, "Label", "value " + random.nextInt(3));
+            } else if ( operation < 60 ) {
+                DAO.removeField(room, node, form, var);
+            } else if ( operation < 63 ) {
+                DAO.removeForm(room, node, form);
+            } else if ( operation < 66 ) {
+                DAO.setLabel(room, form, var, "nl", "Etiket " + random.nextInt(3));
+            } else if ( operation < 68 ) {
+                DAO.removeLabel(room, form, var, "nl");
+            } else if ( operation < 71 ) {
+                DAO.addRule(room, form, random.nextBoolean() ? null : var, RULE);
+            } else if ( operation < 73 ) {
+                DAO.removeRule(room, form, null, RULE);
+            } else if ( operation < 76 ) {
+                DAO.addField(SERVICE, form, var, "Label", "value " + random.nextInt(3));
+            } else if ( operation < 78 ) {
+                DAO.removeForm(SERVICE, form);
+            } else if ( operation < 81 ) {
+                DAO.copyRoom(room, Collections.singletonList(other));
+            } else if ( operation < 83 ) {
+                DAO.moveRoom(room, other);
+            } else if ( operation < 91 ) {
+                DAO.purgeCache(DAO.cacheKey(room, node));
+            } else if ( operation < 95 ) {
+                DAO.evictHeapCache();
+            } else {
+                DAO.purgeCache();
+            }
+        }
+        catch ( QuotaExceededException | SchemaViolationException e )
+        {
+            // Expected when a room accumulates values.
+        }
+    }
+
+    /**
+     * Asserts that the data that is served for every room, node and service equals the data in the database. The served
+     * data is recorded first. Then, all caches are purged, and the data is loaded again.
+     */
+    private static void assertConverged( final String description, final DiscoInfoProviderProxy proxy )
+    {
+        final Map<JID, List<ExtDataForm>> served = new HashMap<>();
+        final Map<JID, Set<Visibility.Assignment>> servedVisibility = new HashMap<>();
+        for ( final JID room : ROOMS )
+        {
+            for ( final String node : NODES )
+            {
+                served.put(DAO.cacheKey(room, node), DAO.retrieveExtensionElementsForNode(room, node));
+            }
+            servedVisibility.put(room, new HashSet<>(DAO.retrieveVisibilityForRoom(room).getAssignments()));
+        }
+        served.put(SERVICE, DAO.retrieveExtensionElementsForRoom(SERVICE));
+        final List<ExtDataForm> servedServiceForms = proxy == null ? null : proxy.getServiceForms();
+
+        DAO.purgeCache();
+
+        for ( final JID room : ROOMS )
+        {
+            for ( final String node : NODES )
+            {
+                final JID key = DAO.cacheKey(room, node);
+                assertEquals( "Cached data of '" + key + "' diverged from the database (" + description + ").", DAO.retrieveExtensionElementsForNode(room, node), served.get(key) );
+            }
+            assertEquals( "Cached visibility rules of '" + room + "' diverged from the database (" + description + ").", new HashSet<>(DAO.retrieveVisibilityForRoom(room).getAssignments()), servedVisibility.get(room) );
+        }
+        final List<ExtDataForm> serviceForms = DAO.retrieveExtensionElementsForRoom(SERVICE);
+        assertEquals( "Cached data of the service diverged from the database (" + description + ").", serviceForms, served.get(SERVICE) );
+        if ( proxy != null )
+        {
+            assertEquals( "Service forms that are kept by the proxy diverged from the database (" + description + ").", serviceForms == null ? Collections.emptyList() : serviceForms, servedServiceForms );
+        }
+    }
+
+
+    /**
+     * A point before or after the execution of a database statement at which one thread is held, until it is released.
+     */
+    private static class Pause
+    {
+        private final Predicate<String> statement;
+
+        private final boolean before;
+
+        private final CountDownLatch reached = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        Pause( final Predicate<String> statement, final boolean before )
+        {
+            this.statement = statement;
+            this.before = before;
+        }
+
+        void hold() throws InterruptedException
+        {
+            reached.countDown();
+            released.await();
+        }
+
+        void awaitReached() throws InterruptedException
+        {
+            assertTrue( "The statement was not executed.", reached.await(1, TimeUnit.MINUTES) );
+        }
+
+        void release()
+        {
+            released.countDown();
+        }
+    }
+
+    /**
+     * An embedded database of which the first thread that executes a statement that matches an armed {@link Pause} is
+     * held directly before or after the execution of that statement, until the pause is released.
+     */
+    private static class PausingConnectionProvider extends EmbeddedDatabase
+    {
+        private final AtomicReference<Pause> armed = new AtomicReference<>();
+
+        PausingConnectionProvider( final String url )
+        {
+            super(url);
+        }
+
+        Pause pauseBefore( final Predicate<String> statement )
+        {
+            final Pause pause = new Pause(statement, true);
+            armed.set(pause);
+            return pause;
+        }
+
+        Pause pauseAfter( final Predicate<String> statement )
+        {
+            final Pause pause = new Pause(statement, false);
+            armed.set(pause);
+            return pause;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException
+        {
+            final Connection connection = super.getConnection();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, ( proxy, method, args ) -> {
+                final Object result = invoke(connection, method, args);
+                if ( method.getName().equals("prepareStatement") )
+                {
+                    final String sql = (String) args[0];
+                    final PreparedStatement statement = (PreparedStatement) result;
+                    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, ( p, m, a ) -> {
+                        final Pause pause = m.getName().startsWith("execute") ? armed.get() : null;
+                        final boolean hold = pause != null && pause.statement.test(sql) && armed.compareAndSet(pause, null);
+                        if ( hold && pause.before )
+                        {
+                            pause.hold();
+                        }
+                        final Object r = invoke(statement, m, a);
+                        if ( hold && !pause.before )
+                        {
+                            pause.hold();
+                        }
+                        return r;
+                    });
+                }
+                return result;
+            });
+        }
+
+        private static Object invoke( final Object target, final java.lang.reflect.Method method, final Object[] args ) throws Throwable
+        {
+            try
+            {
+                return method.invoke(target, args);
+            }
+            catch ( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+        }
+    }
+}
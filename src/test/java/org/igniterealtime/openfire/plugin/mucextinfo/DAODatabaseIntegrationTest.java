@@ -0,0 +1,969 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.database.ConnectionProvider;
+import org.jivesoftware.openfire.disco.DiscoInfoProvider;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.xmpp.forms.DataForm;
+import org.xmpp.packet.JID;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests that run {@link DAO} end to end against embedded databases: HSQLDB, and H2 in the compatibility
+ * modes of the other databases for which this plugin ships scripts. For every database, the install script and the
+ * chain of upgrade scripts are verified, data is written and read back, and the amount of database statements and the
+ * duration of the load, bulk-load and batch-write paths are checked against a budget, so that performance regressions
+ * fail the build.
+ *
+ * Statement budgets are exact properties of the implementation. They include the statements that reserve sequence
+ * numbers for the change feed (see {@link #RESERVATION_STATEMENTS}). Duration budgets are deliberately generous, and
+ * can be scaled for slow build machines with the system property <tt>mucextinfo.it.latency.factor</tt> (eg:
+ * <tt>2.5</tt>). The throughput of bulk operations is reported when the system property <tt>mucextinfo.it.report</tt>
+ * is set to <tt>true</tt>.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+@RunWith(Parameterized.class)
+public class DAODatabaseIntegrationTest
+{
+    private static final String SERVICE_DOMAIN = "conference.example.org";
+
+    private static final double LATENCY_FACTOR = Double.parseDouble(System.getProperty("mucextinfo.it.latency.factor", "1.0"));
+
+    private static final boolean REPORT = Boolean.getBoolean("mucextinfo.it.report");
+
+    /**
+     * The amount of statements with which a modification reserves a range of change sequence numbers (an UPDATE and a
+     * SELECT of the counter). These are executed once per transaction, on the connection of that transaction.
+     */
+    private static final long RESERVATION_STATEMENTS = 2;
+
+    /**
+     * The databases against which the tests are executed, each with the name of its scripts and the type of its
+     * character columns.
+     */
+    enum Dialect
+    {
+        hsqldb("jdbc:hsqldb:mem:%s", "VARCHAR"),
+        mysql("jdbc:h2:mem:%s;MODE=MySQL;DB_CLOSE_DELAY=-1", "VARCHAR"),
+        postgresql("jdbc:h2:mem:%s;MODE=PostgreSQL;DB_CLOSE_DELAY=-1", "VARCHAR"),
+        oracle("jdbc:h2:mem:%s;MODE=Oracle;DB_CLOSE_DELAY=-1", "VARCHAR2"),
+        sqlserver("jdbc:h2:mem:%s;MODE=MSSQLServer;DB_CLOSE_DELAY=-1", "NVARCHAR"),
+        db2("jdbc:h2:mem:%s;MODE=DB2;DB_CLOSE_DELAY=-1", "VARCHAR");
+
+        final String urlPattern;
+
+        final String varchar;
+
+        Dialect( final String urlPattern, final String varchar )
+        {
+            this.urlPattern = urlPattern;
+            this.varchar = varchar;
+        }
+
+        Path getInstallScript()
+        {
+            return Paths.get("src", "main", "database", "mucextinfo_" + name() + ".sql");
+        }
+
+        Path getUpgradeScript( final int version )
+        {
+            return Paths.get("src", "main", "database", "upgrade", String.valueOf(version), "mucextinfo_" + name() + ".sql");
+        }
+
+        /**
+         * Adapts a script for execution by the embedded database that emulates this dialect. H2 treats the INTEGER type
+         * of Oracle as a 32-bit value, while Oracle defines it as NUMBER(38). DB2 requires a table to be reorganized after
+         * some alterations.
+         */
+        String translate( final String script )
+        {
+            switch ( this )
+            {
+                case oracle:
+                    return script.replaceAll("\\bINTEGER\\b", "NUMBER(38)");
+                case db2:
+                    // H2 does not need (nor provide) the administrative procedure that reorganizes a table after it is altered.
+                    return script.replaceAll("CALL SYSPROC\\.ADMIN_CMD\\('REORG TABLE \\w+'\\);", "");
+                default:
+                    return script;
+            }
+        }
+
+        /**
+         * The schema as it was before the first upgrade script (database version 0).
+         */
+        String getInitialSchema()
+        {
+            return "CREATE TABLE mucextinfo (room " + varchar + "(306) NOT NULL, formtypename " + varchar + "(255) NOT NULL, varname " + varchar + "(255) NULL, label " + varchar + "(255) NULL, varvalue " + varchar + "(1023) NULL);"
+                + "INSERT INTO ofVersion (name, version) VALUES ('mucextinfo', 0);";
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> data()
+    {
+        return Arrays.stream(Dialect.values()).map(dialect -> new Object[] { dialect }).collect(Collectors.toList());
+    }
+
+    private final Dialect dialect;
+
+    private final List<CountingConnectionProvider> databases = new ArrayList<>();
+
+    private CountingConnectionProvider provider;
+
+    public DAODatabaseIntegrationTest( final Dialect dialect )
+    {
+        this.dialect = dialect;
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+        Class.forName("org.h2.Driver");
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        provider = createDatabase();
+        provider.executeScript(dialect.translate(new String(Files.readAllBytes(dialect.getInstallScript()), StandardCharsets.UTF_8)));
+        DAO.connectionProvider = provider;
+        DAO.purgeCache();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        DAO.connectionProvider = null;
+        DAO.purgeCache();
+        for ( final CountingConnectionProvider database : databases )
+        {
+            database.shutdown();
+        }
+    }
+
+    /**
+     * Verifies that the install script results in the database version that is declared in plugin.xml.
+     */
+    @Test
+    public void testInstallScriptVersion() throws Exception
+    {
+        // Execute system under test.
+        final int result = queryVersion(provider);
+
+        // Verify results.
+        assertEquals( getDeclaredDatabaseVersion(), result );
+    }
+
+    /**
+     * Verifies that applying all upgrade scripts to the initial schema results in the same schema as the install
+     * script does.
+     */
+    @Test
+    public void testUpgradeScriptsMatchInstallScript() throws Exception
+    {
+        // Setup test fixture.
+        final CountingConnectionProvider upgraded = createDatabase();
+        upgraded.executeScript(dialect.getInitialSchema());
+
+        // Execute system under test.
+        final int declared = getDeclaredDatabaseVersion();
+        for ( int version = 1; version <= declared; version++ )
+        {
+            upgraded.executeScript(dialect.translate(new String(Files.readAllBytes(dialect.getUpgradeScript(version)), StandardCharsets.UTF_8)));
+            assertEquals( "Version after applying upgrade script " + version, version, queryVersion(upgraded) );
+        }
+
+        // Verify results.
+        assertFalse( "An upgrade script exists for a version beyond the declared version " + declared, Files.exists(dialect.getUpgradeScript(declared + 1)) );
+        assertEquals( describeSchema(provider), describeSchema(upgraded) );
+    }
+
+    /**
+     * Verifies that data forms, visibility rules, localized labels and changes are read back as they were written.
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("roundtrip", SERVICE_DOMAIN, null);
+        final VisibilityRule rule = new VisibilityRule(VisibilityRule.Type.affiliation, "member");
+
+        // Execute system under test.
+        DAO.addForm(room, "urn:example:empty");
+        DAO.addField(room, "urn:example:a", "color", "Colour", "red");
+        DAO.addField(room, "urn:example:a", "color", null, "blue");
+        DAO.addField(room, "urn:example:a", "size", "Size", "XL");
+        DAO.addField(room, "urn:example:a", "unused", "Unused", "x");
+        DAO.removeField(room, "urn:example:a", "unused");
+        DAO.addField(room, "urn:example:node", "urn:example:b", "topic", "Topic", "Scoped to a node");
+        DAO.setLabel(room, "urn:example:a", "color", "nl", "Kleur");
+        DAO.addRule(room, "urn:example:a", "size", rule);
+        DAO.purgeCache();
+
+        // Verify results.
+        final Map<String, ExtDataForm> forms = byName(DAO.retrieveExtensionElementsForRoom(room));
+        assertEquals( new HashSet<>(Arrays.asList("urn:example:empty", "urn:example:a")), forms.keySet() );
+        assertNull( forms.get("urn:example:a").getField("unused") );
+        assertEquals( Arrays.asList("red", "blue"), forms.get("urn:example:a").getField("color").getValues() );
+        assertEquals( "Colour", forms.get("urn:example:a").getField("color").getLabel() );
+        assertEquals( "Kleur", forms.get("urn:example:a").getField("color").getLabel("nl") );
+        assertEquals( Collections.singletonList("XL"), forms.get("urn:example:a").getField("size").getValues() );
+
+        final Map<String, ExtDataForm> nodeForms = byName(DAO.retrieveExtensionElementsForNode(room, "urn:example:node"));
+        assertEquals( Collections.singleton("urn:example:b"), nodeForms.keySet() );
+        assertEquals( Collections.singletonList("urn:example:node"), DAO.retrieveNodes(room) );
+
+        final List<Visibility.Assignment> assignments = DAO.retrieveVisibilityForRoom(room).getAssignments();
+        assertEquals( 1, assignments.size() );
+        assertEquals( "size", assignments.get(0).getVarName() );
+        assertEquals( rule, assignments.get(0).getRule() );
+
+        final List<Change> changes = DAO.retrieveChanges(0, 100);
+        assertEquals( Arrays.asList(Change.Type.addForm, Change.Type.addField, Change.Type.addField, Change.Type.addField, Change.Type.addField, Change.Type.removeField, Change.Type.addField, Change.Type.setLabel, Change.Type.addRule),
+                      changes.stream().map(Change::getType).collect(Collectors.toList()) );
+        assertEquals( "urn:example:node", changes.get(6).getNode() );
+        assertEquals( "nl", changes.get(7).getLanguage() );
+
+        // Removal of a form removes its rules and labels, and makes the preceding changes of the form redundant.
+        DAO.removeForm(room, "urn:example:a");
+        DAO.purgeCache();
+        assertEquals( Collections.singleton("urn:example:empty"), byName(DAO.retrieveExtensionElementsForRoom(room)).keySet() );
+        assertTrue( DAO.retrieveVisibilityForRoom(room).getAssignments().isEmpty() );
+        assertEquals( 1, DAO.compactChanges() );
+        assertEquals( Arrays.asList(Change.Type.addForm, Change.Type.addField, Change.Type.removeForm),
+                      DAO.retrieveChanges(0, 100).stream().map(Change::getType).collect(Collectors.toList()) );
+    }
+
+    /**
+     * Verifies that all data of a room is hidden when its visibility rules cannot be retrieved, and that this outcome is
+     * not cached: the rules are applied again as soon as they can be retrieved.
+     */
+    @Test
+    public void testVisibilityFailsClosed() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("restricted", SERVICE_DOMAIN, null);
+        DAO.addField(room, "urn:example:a", "secret", "Secret", "x");
+        DAO.addRule(room, "urn:example:a", "secret", new VisibilityRule(VisibilityRule.Type.affiliation, "admin"));
+        DAO.purgeCache();
+        provider.executeScript("ALTER TABLE mucextinfo_rule RENAME TO mucextinfo_rule_unavailable;");
+
+        // Execute system under test.
+        final Visibility failed = DAO.retrieveVisibilityForRoom(room);
+        provider.executeScript("ALTER TABLE mucextinfo_rule_unavailable RENAME TO mucextinfo_rule;");
+        final Visibility recovered = DAO.retrieveVisibilityForRoom(room);
+
+        // Verify results.
+        assertFalse( failed.isUnrestricted() );
+        final List<ExtDataForm> forms = DAO.retrieveExtensionElementsForRoom(room);
+        assertTrue( failed.filter(forms, new BitSet()).isEmpty() );
+        assertEquals( 1, recovered.getAssignments().size() );
+    }
+
+    /**
+     * Verifies that data forms are ordered by name, and that fields and values retain the order in which they were
+     * entered, so that data that is reloaded from the database serializes to exactly the same bytes as before, and
+     * to the same bytes as the data that was patched into the cache while it was being written.
+     */
+    @Test
+    public void testStableOrder() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("ordered", SERVICE_DOMAIN, null);
+        DAO.retrieveExtensionElementsForRoom(room);
+
+        // Execute system under test.
+        DAO.addField(room, "urn:example:z", "zulu", "Zulu", "3");
+        DAO.addField(room, "urn:example:z", "alpha", "Alpha", "2");
+        DAO.addField(room, "urn:example:z", "zulu", null, "1");
+        DAO.addField(room, "urn:example:z", "mike", "Mike", "b");
+        DAO.addField(room, "urn:example:z", "alpha", null, "10");
+        DAO.addForm(room, "urn:example:m");
+        DAO.addField(room, "urn:example:a", "second", "Second", "y");
+        DAO.addField(room, "urn:example:a", "first", "First", "x");
+        DAO.addField(room, "urn:example:m", "only", "Only", "value");
+        final byte[] cached = serialize(DAO.retrieveExtensionElementsForRoom(room));
+
+        DAO.purgeCache();
+        final List<ExtDataForm> loaded = DAO.retrieveExtensionElementsForRoom(room);
+        final byte[] first = serialize(loaded);
+        DAO.purgeCache();
+        final byte[] second = serialize(DAO.retrieveExtensionElementsForRoom(room));
+        DAO.purgeCache();
+        final byte[] bulk = serialize(DAO.retrieveExtensionElementsForRooms(Collections.singletonList(room)).get(room));
+
+        // Verify results.
+        assertEquals( Arrays.asList("urn:example:a", "urn:example:m", "urn:example:z"), loaded.stream().map(ExtDataForm::getFormTypeName).collect(Collectors.toList()) );
+        final ExtDataForm z = loaded.get(2);
+        assertEquals( Arrays.asList("zulu", "alpha", "mike"), z.getFields().stream().map(Field::getVarName).collect(Collectors.toList()) );
+        assertEquals( Arrays.asList("3", "1"), z.getField("zulu").getValues() );
+        assertEquals( Arrays.asList("2", "10"), z.getField("alpha").getValues() );
+        assertEquals( Arrays.asList("second", "first"), loaded.get(0).getFields().stream().map(Field::getVarName).collect(Collectors.toList()) );
+        assertArrayEquals( "Reloading data changed its serialized form.", first, second );
+        assertArrayEquals( "Bulk-loaded data serializes differently from data loaded per room.", first, bulk );
+        assertArrayEquals( "Cached data serializes differently from data loaded from the database.", first, cached );
+    }
+
+    /**
+     * Verifies that loading data for individual rooms uses one statement per room, that data that is loaded is served
+     * from the cache afterwards, and that loading stays within its duration budget.
+     */
+    @Test
+    public void testLoadBudget() throws Exception
+    {
+        // Setup test fixture.
+        final int rooms = 200;
+        populate(provider, rooms + 1, 2, 5);
+        final List<JID> roomJIDs = roomJIDs(rooms);
+        DAO.retrieveExtensionElementsForRoom(new JID("room" + rooms, SERVICE_DOMAIN, null)); // Determines that no labels exist.
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        final long startConnections = provider.getConnectionCount();
+        final long start = System.nanoTime();
+        for ( final JID room : roomJIDs )
+        {
+            final List<ExtDataForm> forms = DAO.retrieveExtensionElementsForRoom(room);
+            assertNotNull( forms );
+            assertEquals( 2, forms.size() );
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long coldStatements = provider.getStatementCount() - startStatements;
+        final long coldConnections = provider.getConnectionCount() - startConnections;
+
+        final long warmStart = provider.getStatementCount();
+        for ( final JID room : roomJIDs )
+        {
+            DAO.retrieveExtensionElementsForRoom(room);
+        }
+        final long warmStatements = provider.getStatementCount() - warmStart;
+
+        // Verify results.
+        assertEquals( "Statements needed to load " + rooms + " rooms", rooms, coldStatements );
+        assertEquals( "Connections needed to load " + rooms + " rooms", rooms, coldConnections );
+        assertEquals( "Statements needed to serve cached rooms", 0, warmStatements );
+        assertWithinBudget( "Loading " + rooms + " rooms", elapsed, 4000 );
+    }
+
+    /**
+     * Verifies that loading data for many rooms at once uses one statement per batch of rooms, and stays within its
+     * duration budget.
+     */
+    @Test
+    public void testBulkLoadBudget() throws Exception
+    {
+        // Setup test fixture.
+        final int rooms = 1200;
+        populate(provider, rooms + 1, 2, 5);
+        final List<JID> roomJIDs = new ArrayList<>(roomJIDs(rooms));
+        roomJIDs.add(new JID("empty", SERVICE_DOMAIN, null));
+        DAO.retrieveExtensionElementsForRoom(new JID("room" + rooms, SERVICE_DOMAIN, null)); // Determines that no labels exist.
+        final int batchSize = DAO.getEffectiveBatchSize();
+        final int batches = (roomJIDs.size() + batchSize - 1) / batchSize;
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        final long startConnections = provider.getConnectionCount();
+        final long start = System.nanoTime();
+        final Map<JID, List<ExtDataForm>> result = DAO.retrieveExtensionElementsForRooms(roomJIDs);
+        final long elapsed = System.nanoTime() - start;
+
+        // Verify results.
+        assertEquals( "Statements needed to load " + roomJIDs.size() + " rooms", batches, provider.getStatementCount() - startStatements );
+        assertEquals( "Connections needed to load " + roomJIDs.size() + " rooms", batches, provider.getConnectionCount() - startConnections );
+        assertEquals( roomJIDs.size(), result.size() );
+        assertNull( result.get(new JID("empty", SERVICE_DOMAIN, null)) );
+        assertEquals( 5, result.get(roomJIDs.get(rooms - 1)).get(0).getFields().size() );
+        assertTrue( DAO.isCached(roomJIDs.get(0)) );
+        assertWithinBudget( "Bulk-loading " + roomJIDs.size() + " rooms", elapsed, 4000 );
+    }
+
+    /**
+     * Verifies that a series of writes uses two statements per write (one for the data, one for the change feed) once
+     * the data of a room is cached, that the cache reflects the writes, and that writing stays within its duration
+     * budget. Compaction of the change feed is verified to use a fixed amount of statements, regardless of the amount
+     * of changes that it removes.
+     */
+    @Test
+    public void testBatchWriteBudget() throws Exception
+    {
+        // Setup test fixture.
+        final int rooms = 20;
+        final int writesPerRoom = 10;
+        final List<JID> roomJIDs = roomJIDs(rooms);
+        DAO.retrieveExtensionElementsForRooms(roomJIDs);
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        final long start = System.nanoTime();
+        for ( final JID room : roomJIDs )
+        {
+            for ( int i = 0; i < writesPerRoom; i++ )
+            {
+                DAO.addField(room, "urn:example:write", "var" + i, "Label " + i, "Value " + i);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long writeStatements = provider.getStatementCount() - startStatements;
+
+        final Map<JID, List<ExtDataForm>> cached = DAO.retrieveExtensionElementsForRooms(roomJIDs);
+        DAO.purgeCache();
+        final Map<JID, List<ExtDataForm>> stored = DAO.retrieveExtensionElementsForRooms(roomJIDs);
+
+        for ( final JID room : roomJIDs )
+        {
+            DAO.removeForm(room, "urn:example:write");
+        }
+        final long compactionStart = provider.getStatementCount();
+        final int compacted = DAO.compactChanges();
+        final long compactionStatements = provider.getStatementCount() - compactionStart;
+
+        // Verify results.
+        assertEquals( "Statements needed for " + (rooms * writesPerRoom) + " writes", (3 + RESERVATION_STATEMENTS) * rooms * writesPerRoom, writeStatements );
+        assertWithinBudget( "Writing " + (rooms * writesPerRoom) + " fields", elapsed, 4000 );
+        assertEquals( "Cached data differs from the database.", stored, cached );
+        assertEquals( rooms, compacted );
+        assertEquals( "Statements needed to compact changes", 3, compactionStatements );
+        assertEquals( rooms, DAO.retrieveChanges(0, Integer.MAX_VALUE).size() );
+    }
+
+    /**
+     * Verifies that copying a room replaces the data of the targets by the data forms (of all nodes), visibility rules
+     * and labels of the source, that moving a room transfers all of its data, that cached data is purged, and that both
+     * are recorded in the change feed.
+     */
+    @Test
+    public void testCopyAndMoveRoom() throws Exception
+    {
+        // Setup test fixture.
+        final JID template = new JID("template", SERVICE_DOMAIN, null);
+        final JID target = new JID("target", SERVICE_DOMAIN, null);
+        final JID other = new JID("other", SERVICE_DOMAIN, null);
+        final JID moved = new JID("moved", "muc.example.net", null);
+        final VisibilityRule rule = new VisibilityRule(VisibilityRule.Type.affiliation, "member");
+        DAO.addField(template, "urn:example:a", "color", "Colour", "red");
+        DAO.addField(template, "urn:example:a", "size", "Size", "XL");
+        DAO.addField(template, "urn:example:node", "urn:example:b", "topic", "Topic", "Scoped to a node");
+        DAO.setLabel(template, "urn:example:a", "color", "nl", "Kleur");
+        DAO.addRule(template, "urn:example:a", "size", rule);
+        DAO.addField(target, "urn:example:old", "stale", "Stale", "x");
+        assertNull( DAO.retrieveExtensionElementsForNode(other, "urn:example:node") ); // caches the absence of data.
+        final List<ExtDataForm> expected = DAO.retrieveExtensionElementsForRoom(template);
+        final long lastChange = DAO.retrieveChanges(0, Integer.MAX_VALUE).stream().mapToLong(Change::getSequence).max().orElse(0);
+
+        // Execute system under test.
+        final boolean copied = DAO.copyRoom(template, Arrays.asList(target, other, template));
+        final boolean movedResult = DAO.moveRoom(other, moved);
+
+        // Verify results.
+        assertTrue( copied );
+        assertTrue( movedResult );
+        assertEquals( expected, DAO.retrieveExtensionElementsForRoom(target) );
+        assertEquals( expected, DAO.retrieveExtensionElementsForRoom(moved) );
+        assertEquals( expected, DAO.retrieveExtensionElementsForRoom(template) );
+        assertNull( DAO.retrieveExtensionElementsForRoom(other) );
+        assertEquals( Collections.singletonList("urn:example:node"), DAO.retrieveNodes(moved) );
+        assertEquals( "Scoped to a node", DAO.retrieveExtensionElementsForNode(target, "urn:example:node").get(0).getField("topic").getValues().get(0) );
+        assertNull( DAO.retrieveExtensionElementsForNode(other, "urn:example:node") );
+        assertEquals( "Kleur", DAO.retrieveExtensionElementsForRoom(moved).get(0).getField("color").getLabel("nl") );
+        assertEquals( rule, DAO.retrieveVisibilityForRoom(target).getAssignments().get(0).getRule() );
+        assertEquals( rule, DAO.retrieveVisibilityForRoom(moved).getAssignments().get(0).getRule() );
+        assertTrue( DAO.retrieveVisibilityForRoom(other).getAssignments().isEmpty() );
+
+        DAO.purgeCache();
+        assertEquals( expected, DAO.retrieveExtensionElementsForRoom(target) );
+        assertNull( DAO.retrieveExtensionElementsForRoom(other) );
+
+        final List<Change> changes = DAO.retrieveChanges(lastChange, Integer.MAX_VALUE);
+        assertEquals( Arrays.asList(Change.Type.copyRoom, Change.Type.copyRoom, Change.Type.moveRoom), changes.stream().map(Change::getType).collect(Collectors.toList()) );
+        assertEquals( new HashSet<>(Arrays.asList(target, other)), new HashSet<>(Arrays.asList(changes.get(0).getRoom(), changes.get(1).getRoom())) );
+        assertEquals( template, changes.get(0).getSource() );
+        assertNull( changes.get(0).getFormTypeName() );
+        assertEquals( moved, changes.get(2).getRoom() );
+        assertEquals( other, changes.get(2).getSource() );
+
+        // The removal of a data form of a target does not make its copy obsolete.
+        DAO.removeForm(target, "urn:example:a");
+        DAO.compactChanges();
+        assertEquals( 4, DAO.retrieveChanges(lastChange, Integer.MAX_VALUE).size() );
+    }
+
+    /**
+     * Verifies that replacing the data forms of a room applies only the modifications that are needed, in a fixed
+     * amount of statements: unchanged fields are left alone, changed fields retain their localized labels, removed
+     * fields lose their visibility rules, and each modification is recorded in the change feed. Replacing the data
+     * forms by the same data forms again records no changes.
+     */
+    @Test
+    public void testReplaceForms() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("replaced", SERVICE_DOMAIN, null);
+        DAO.addField(room, "urn:example:a", "color", "Colour", "red");
+        DAO.addField(room, "urn:example:a", "size", "Size", "XL");
+        DAO.addField(room, "urn:example:a", "shape", "Shape", "round");
+        DAO.addField(room, "urn:example:b", "topic", "Topic", "x");
+        DAO.setLabel(room, "urn:example:a", "shape", "nl", "Vorm");
+        DAO.addRule(room, "urn:example:a", "size", new VisibilityRule(VisibilityRule.Type.affiliation, "member"));
+        DAO.retrieveExtensionElementsForRoom(room);
+        final long lastChange = DAO.retrieveChanges(0, Integer.MAX_VALUE).stream().mapToLong(Change::getSequence).max().orElse(0);
+        final List<ExtDataForm> desired = Arrays.asList(
+            ExtDataForm.builder("urn:example:a")
+                .addField(new Field("color", "Colour", "red"))
+                .addField(new Field("shape", "Shape", "square"))
+                .addField(new Field("weight", "Weight", "1", "2"))
+                .build(),
+            new ExtDataForm("urn:example:c"));
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        final boolean result = DAO.replaceForms(room, null, desired);
+        final long statements = provider.getStatementCount() - startStatements;
+        final boolean repeated = DAO.replaceForms(room, null, desired);
+
+        // Verify results.
+        assertTrue( result );
+        assertTrue( repeated );
+        assertEquals( "Statements needed to replace the data forms", 11 + RESERVATION_STATEMENTS, statements );
+        final List<ExtDataForm> forms = DAO.retrieveExtensionElementsForRoom(room);
+        assertEquals( Arrays.asList("urn:example:a", "urn:example:c"), forms.stream().map(ExtDataForm::getFormTypeName).collect(Collectors.toList()) );
+        assertEquals( Arrays.asList("color", "shape", "weight"), forms.get(0).getFields().stream().map(Field::getVarName).collect(Collectors.toList()) );
+        assertEquals( Collections.singletonList("square"), forms.get(0).getField("shape").getValues() );
+        assertEquals( Arrays.asList("1", "2"), forms.get(0).getField("weight").getValues() );
+        assertEquals( "Vorm", forms.get(0).getField("shape").getLabel("nl") );
+        assertTrue( forms.get(1).getFields().isEmpty() );
+        assertTrue( DAO.retrieveVisibilityForRoom(room).getAssignments().isEmpty() );
+
+        final List<Change> changes = DAO.retrieveChanges(lastChange, Integer.MAX_VALUE);
+        assertEquals( Arrays.asList(Change.Type.removeForm, Change.Type.removeField, Change.Type.clearField, Change.Type.addForm, Change.Type.addField, Change.Type.addField, Change.Type.addField),
+                      changes.stream().map(Change::getType).collect(Collectors.toList()) );
+        assertEquals( "urn:example:b", changes.get(0).getFormTypeName() );
+        assertEquals( "size", changes.get(1).getVarName() );
+        assertEquals( "shape", changes.get(2).getVarName() );
+    }
+
+    /**
+     * Verifies that sequence numbers of changes are reserved as consecutive ranges, and that a range that is reserved
+     * by a transaction that is rolled back is reserved again, rather than leaving a gap in the change feed.
+     */
+    @Test
+    public void testReserveChangeSequences() throws Exception
+    {
+        try ( final Connection con = provider.getConnection() )
+        {
+            con.setAutoCommit(false);
+
+            // Execute system under test.
+            final long first = DAO.reserveChangeSequences(con, 5);
+            con.commit();
+            final long second = DAO.reserveChangeSequences(con, 3);
+            con.rollback();
+            final long third = DAO.reserveChangeSequences(con, 1);
+            con.commit();
+
+            // Verify results.
+            assertEquals( 1, first );
+            assertEquals( 6, second );
+            assertEquals( 6, third );
+        }
+    }
+
+    /**
+     * Verifies that the positions of rows that are added after the data forms of a room were replaced follow the rows
+     * that were added by the replacement, and that the positions of the added rows are computed with one query.
+     */
+    @Test
+    public void testPositionsFollowReplacedForms() throws Exception
+    {
+        // Setup test fixture.
+        final JID room = new JID("room", SERVICE_DOMAIN, null);
+        DAO.addField(room, "urn:example:a", "first", null, "1");
+        final List<Field> fields = new ArrayList<>();
+        fields.add(new Field("first", null, "1"));
+        for ( int i = 0; i < 50; i++ )
+        {
+            fields.add(new Field("var" + i, null, String.valueOf(i)));
+        }
+        final List<ExtDataForm> desired = Collections.singletonList(ExtDataForm.builder("urn:example:a").addFields(fields).build());
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        DAO.replaceForms(room, null, desired);
+        final long statements = provider.getStatementCount() - startStatements;
+        DAO.addField(room, "urn:example:a", "last", null, "2");
+
+        // Verify results.
+        assertEquals( "Statements needed to add 50 fields", 5 + RESERVATION_STATEMENTS, statements );
+        DAO.purgeCache();
+        final List<Field> result = DAO.retrieveExtensionElementsForRoom(room).get(0).getFields();
+        assertEquals( 52, result.size() );
+        assertEquals( "first", result.get(0).getVarName() );
+        assertEquals( "var0", result.get(1).getVarName() );
+        assertEquals( "var49", result.get(50).getVarName() );
+        assertEquals( "last", result.get(51).getVarName() );
+    }
+
+    /**
+     * Verifies that a service discovery request that is addressed to the MUC service itself returns the data forms
+     * that are defined for the service once, rather than also merging them in as defaults of the service, and that
+     * these defaults are added to requests for a room, but not to requests for a node of a room.
+     */
+    @Test
+    public void testServiceQueryContainsDefaultsOnce() throws Exception
+    {
+        // Setup test fixture.
+        final JID service = new JID(null, SERVICE_DOMAIN, null);
+        DAO.addField(service, "urn:example:defaults", "color", "Colour", "red");
+        DAO.addField(service, "urn:example:defaults", "color", null, "blue");
+        DAO.addField(new JID("room", SERVICE_DOMAIN, null), "urn:example:node", "urn:example:b", "topic", "Topic", "x");
+        final DiscoInfoProvider delegate = (DiscoInfoProvider) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { DiscoInfoProvider.class },
+            (proxy, method, args) -> "getExtendedInfos".equals(method.getName()) ? new HashSet<DataForm>() : null);
+        final DiscoInfoProviderProxy discoInfoProvider = new DiscoInfoProviderProxy(delegate, SERVICE_DOMAIN);
+
+        // Execute system under test.
+        final Set<DataForm> serviceResult = discoInfoProvider.getExtendedInfos(null, null, null);
+        final Set<DataForm> roomResult = discoInfoProvider.getExtendedInfos("room", null, null);
+        final Set<DataForm> nodeResult = discoInfoProvider.getUnrestrictedExtendedInfos("room", "urn:example:node", null);
+
+        // Verify results.
+        assertEquals( 1, serviceResult.size() );
+        assertEquals( Arrays.asList("red", "blue"), serviceResult.iterator().next().getField("color").getValues() );
+        assertEquals( 1, roomResult.size() );
+        assertEquals( Arrays.asList("red", "blue"), roomResult.iterator().next().getField("color").getValues() );
+        assertEquals( 1, nodeResult.size() );
+        assertNull( nodeResult.iterator().next().getField("color") );
+    }
+
+    /**
+     * Verifies that copying a room to many rooms uses a fixed amount of statements per chunk of targets, and stays
+     * within its duration budget. The throughput, in rows per second, is reported on request (see {@link #REPORT}).
+     */
+    @Test
+    public void testCopyRoomBudget() throws Exception
+    {
+        // Setup test fixture.
+        final int targets = 10000;
+        final int forms = 3;
+        final int fields = 5;
+        final JID template = new JID("template", SERVICE_DOMAIN, null);
+        for ( int f = 0; f < forms; f++ )
+        {
+            for ( int i = 0; i < fields; i++ )
+            {
+                DAO.addField(template, "urn:example:template:" + f, "var" + i, "Label " + i, "Value " + i);
+            }
+        }
+        final List<JID> roomJIDs = roomJIDs(targets);
+        final int chunks = (targets + DAO.getEffectiveBatchSize() - 1) / DAO.getEffectiveBatchSize();
+
+        // Execute system under test.
+        final long startStatements = provider.getStatementCount();
+        final long startConnections = provider.getConnectionCount();
+        final long start = System.nanoTime();
+        assertTrue( DAO.copyRoom(template, roomJIDs) );
+        final long elapsed = System.nanoTime() - start;
+        final long statements = provider.getStatementCount() - startStatements;
+        final long connections = provider.getConnectionCount() - startConnections;
+
+        // Verify results.
+        final long rows = (long) targets * forms * fields;
+        if ( REPORT )
+        {
+            System.out.println(String.format("Copied %d rows to %d rooms on %s in %d ms (%.0f rows/s).", rows, targets, dialect, TimeUnit.NANOSECONDS.toMillis(elapsed), rows / (elapsed / 1e9)));
+        }
+        assertEquals( "Statements needed to copy a room to " + targets + " rooms", 6L * chunks + 1 + RESERVATION_STATEMENTS, statements );
+        assertEquals( 1, connections );
+        assertWithinBudget( "Copying a room to " + targets + " rooms", elapsed, 20000 );
+        DAO.purgeCache();
+        assertEquals( DAO.retrieveExtensionElementsForRoom(template), DAO.retrieveExtensionElementsForRoom(roomJIDs.get(targets - 1)) );
+    }
+
+    /**
+     * Verifies that data forms that are evicted from the on-heap cache are served from the off-heap cache without
+     * querying the database, and that modifications are applied to the data in the off-heap cache.
+     */
+    @Test
+    public void testOffHeapTier() throws Exception
+    {
+        // Setup test fixture.
+        final int rooms = 50;
+        populate(provider, rooms, 2, 3);
+        final List<JID> roomJIDs = roomJIDs(rooms);
+        OffHeapCache.ENABLED.setValue(true);
+        OffHeapCache.getInstance().configure();
+        try
+        {
+            final Map<JID, List<ExtDataForm>> loaded = DAO.retrieveExtensionElementsForRooms(roomJIDs);
+            final JID modified = roomJIDs.get(0);
+            DAO.evictHeapCache();
+            DAO.addField(modified, "urn:example:it:0", "added", "Added", "value");
+
+            // Execute system under test.
+            DAO.evictHeapCache();
+            final long startStatements = provider.getStatementCount();
+            final Map<JID, List<ExtDataForm>> bulk = DAO.retrieveExtensionElementsForRooms(roomJIDs);
+            DAO.evictHeapCache();
+            final List<ExtDataForm> single = DAO.retrieveExtensionElementsForRoom(roomJIDs.get(1));
+            final long statements = provider.getStatementCount() - startStatements;
+
+            // Verify results.
+            assertEquals( "Statements needed to load data that was evicted from the on-heap cache", 0, statements );
+            assertEquals( loaded.get(roomJIDs.get(1)), single );
+            assertEquals( "value", bulk.get(modified).get(0).getField("added").getValues().get(0) );
+            DAO.purgeCache();
+            assertEquals( "Data in the off-heap cache differs from the database.", DAO.retrieveExtensionElementsForRooms(roomJIDs), bulk );
+            assertEquals( rooms, OffHeapCache.getInstance().getSize() );
+        }
+        finally
+        {
+            OffHeapCache.ENABLED.setValue(false);
+            OffHeapCache.getInstance().close();
+        }
+    }
+
+    /**
+     * Verifies that the usage and row distribution reports are read from the read-only replica, and that these are read
+     * from the primary database when the replica fails.
+     */
+    @Test
+    public void testReportsAreReadFromReplica() throws Exception
+    {
+        // Setup test fixture.
+        populate(provider, 10, 2, 3);
+        final ReadReplica replica = ReadReplica.getInstance();
+        final CountingConnectionProvider copy = provider;
+        replica.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+            (proxy, method, args) -> "getConnection".equals(method.getName()) ? copy.getConnection() : null));
+        try
+        {
+            final long startReads = replica.getReplicaReadCount();
+            final long startFailures = replica.getFailureCount();
+
+            // Execute system under test.
+            final Map<JID, RoomUsage> usage = DAO.retrieveLargestRooms(5);
+            final TableStatistics statistics = DAO.retrieveTableStatistics(5);
+            replica.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class }, (proxy, method, args) -> {
+                throw new SQLException("Not connected to a database.");
+            }));
+            final TableStatistics fallback = DAO.retrieveTableStatistics(5);
+
+            // Verify results.
+            assertEquals( 2, replica.getReplicaReadCount() - startReads );
+            assertEquals( 1, replica.getFailureCount() - startFailures );
+            assertEquals( 5, usage.size() );
+            assertNotNull( statistics );
+            assertNotNull( fallback );
+            assertEquals( statistics.getRows(), fallback.getRows() );
+            assertEquals( 10, fallback.getRooms() );
+        }
+        finally
+        {
+            replica.setDataSource(null);
+        }
+    }
+
+    private CountingConnectionProvider createDatabase()
+    {
+        final String url = String.format(dialect.urlPattern, EmbeddedDatabase.createName("it-" + dialect));
+        final CountingConnectionProvider result = new CountingConnectionProvider(url);
+        databases.add(result);
+        result.executeScript("CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL)");
+        result.executeScript("CREATE TABLE ofID (idType INTEGER NOT NULL, id BIGINT NOT NULL)");
+        return result;
+    }
+
+
+    private static int queryVersion( final ConnectionProvider provider ) throws SQLException
+    {
+        try ( final Connection con = provider.getConnection();
+              final Statement stmt = con.createStatement();
+              final ResultSet rs = stmt.executeQuery("SELECT version FROM ofVersion WHERE name = 'mucextinfo'") )
+        {
+            assertTrue( "No version recorded.", rs.next() );
+            final int result = rs.getInt(1);
+            assertFalse( "More than one version recorded.", rs.next() );
+            return result;
+        }
+    }
+
+    private static int getDeclaredDatabaseVersion() throws Exception
+    {
+        final String pluginXml = new String(Files.readAllBytes(Paths.get("plugin.xml")), StandardCharsets.UTF_8);
+        final Matcher matcher = Pattern.compile("<databaseVersion>\\s*(\\d+)\\s*</databaseVersion>").matcher(pluginXml);
+        assertTrue( "plugin.xml does not declare a database version.", matcher.find() );
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    /**
+     * Describes the columns and indices of the tables of this plugin, in a form that can be compared.
+     */
+    private static SortedMap<String, SortedSet<String>> describeSchema( final ConnectionProvider provider ) throws SQLException
+    {
+        final SortedMap<String, SortedSet<String>> result = new TreeMap<>();
+        try ( final Connection con = provider.getConnection() )
+        {
+            final DatabaseMetaData metaData = con.getMetaData();
+            try ( final ResultSet rs = metaData.getColumns(null, null, "MUCEXTINFO%", null) )
+            {
+                while ( rs.next() )
+                {
+                    result.computeIfAbsent(rs.getString("TABLE_NAME").toUpperCase(), t -> new TreeSet<>())
+                        .add("column " + rs.getString("COLUMN_NAME").toUpperCase() + " " + rs.getString("TYPE_NAME") + "(" + rs.getInt("COLUMN_SIZE") + ") nullable=" + rs.getInt("NULLABLE"));
+                }
+            }
+            for ( final String table : new ArrayList<>(result.keySet()) )
+            {
+                try ( final ResultSet rs = metaData.getIndexInfo(null, null, table, false, false) )
+                {
+                    while ( rs.next() )
+                    {
+                        final String index = rs.getString("INDEX_NAME");
+                        if ( index != null && index.toUpperCase().startsWith("MUCEXTINFO") )
+                        {
+                            result.get(table).add("index " + index.toUpperCase() + " on " + rs.getString("COLUMN_NAME").toUpperCase());
+                        }
+                    }
+                }
+            }
+        }
+        assertFalse( "No tables found.", result.isEmpty() );
+        return result;
+    }
+
+    private static void populate( final ConnectionProvider provider, final int rooms, final int forms, final int fields ) throws SQLException
+    {
+        try ( final Connection con = provider.getConnection();
+              final PreparedStatement pstmt = con.prepareStatement("INSERT INTO mucextinfo (room, formtypename, varname, label, varvalue) VALUES (?, ?, ?, ?, ?)") )
+        {
+            for ( int r = 0; r < rooms; r++ )
+            {
+                for ( int f = 0; f < forms; f++ )
+                {
+                    for ( int i = 0; i < fields; i++ )
+                    {
+                        pstmt.setString(1, "room" + r + "@" + SERVICE_DOMAIN);
+                        pstmt.setString(2, "urn:example:it:" + f);
+                        pstmt.setString(3, "var" + i);
+                        pstmt.setString(4, "Label " + i);
+                        pstmt.setString(5, "Value " + i + " of room " + r);
+                        pstmt.addBatch();
+                    }
+                }
+                pstmt.executeBatch();
+            }
+        }
+    }
+
+    private static List<JID> roomJIDs( final int rooms )
+    {
+        final List<JID> result = new ArrayList<>(rooms);
+        for ( int r = 0; r < rooms; r++ )
+        {
+            result.add(new JID("room" + r, SERVICE_DOMAIN, null));
+        }
+        return result;
+    }
+
+    private static Map<String, ExtDataForm> byName( final List<ExtDataForm> forms )
+    {
+        assertNotNull( forms );
+        return forms.stream().collect(Collectors.toMap(ExtDataForm::getFormTypeName, form -> form));
+    }
+
+    private static byte[] serialize( final List<ExtDataForm> forms ) throws IOException
+    {
+        assertNotNull( forms );
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( final ObjectOutputStream out = new ObjectOutputStream(bytes) )
+        {
+            out.writeObject(new ArrayList<>(forms));
+        }
+        return bytes.toByteArray();
+    }
+
+    private void assertWithinBudget( final String description, final long elapsedNanos, final long budgetMillis )
+    {
+        final long budget = (long) (budgetMillis * LATENCY_FACTOR);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        assertTrue( description + " on " + dialect + " took " + elapsed + "ms, which exceeds the budget of " + budget + "ms.", elapsed <= budget );
+    }
+
+    /**
+     * An embedded database that also counts every statement that is prepared or created on its connections.
+     */
+    private static class CountingConnectionProvider extends EmbeddedDatabase
+    {
+        private final AtomicLong statementCount = new AtomicLong();
+
+        CountingConnectionProvider( final String url )
+        {
+            super(url);
+        }
+
+        long getStatementCount()
+        {
+            return statementCount.get();
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException
+        {
+            final Connection connection = super.getConnection();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, ( proxy, method, args ) -> {
+                if ( method.getName().equals("prepareStatement") || method.getName().equals("createStatement") )
+                {
+                    statementCount.incrementAndGet();
+                }
+                try
+                {
+                    return method.invoke(connection, args);
+                }
+                catch ( InvocationTargetException e )
+                {
+                    throw e.getCause();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.InitializationException;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link DAO#getGeneration(JID)}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DAOGenerationTest
+{
+    @BeforeClass
+    public static void beforeClass()
+    {
+        try {
+            // The DAO class references a cache, which needs to be constructed for the implementation-under-test to be
+            // initialized.
+            CacheFactory.initialize();
+        } catch ( InitializationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        DAO.GENERATIONS_MAX.setValue(DAO.GENERATIONS_MAX.getDefaultValue());
+    }
+
+    /**
+     * Verifies that discarding the cached data of a room leaves the cached data of other rooms valid, in the same and
+     * in other services.
+     */
+    @Test
+    public void testDiscardLeavesOtherRoomsValid()
+    {
+        // Setup test fixture.
+        final JID room = new JID("room", "conference.example.org", null);
+        final Map<JID, Long> others = new HashMap<>();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            final JID other = new JID("other" + i, i % 2 == 0 ? "conference.example.org" : "chat.example.org", null);
+            others.put(other, DAO.getGeneration(other));
+            final JID node = new JID("other" + i, "conference.example.org", "node");
+            others.put(node, DAO.getGeneration(node));
+        }
+
+        // Execute system under test.
+        DAO.discardCached(room);
+
+        // Verify results.
+        for ( final Map.Entry<JID, Long> entry : others.entrySet() )
+        {
+            assertEquals( "Generation of " + entry.getKey(), (long) entry.getValue(), DAO.getGeneration(entry.getKey()) );
+        }
+    }
+
+    /**
+     * Verifies that discarding the cached data of a room invalidates the cached data of the room and of its nodes.
+     */
+    @Test
+    public void testDiscardInvalidatesRoomAndNodes()
+    {
+        // Setup test fixture.
+        final JID room = new JID("room", "conference.example.org", null);
+        final JID node = new JID("room", "conference.example.org", "node");
+        final long roomBefore = DAO.getGeneration(room);
+        final long nodeBefore = DAO.getGeneration(node);
+
+        // Execute system under test.
+        DAO.discardCached(room);
+
+        // Verify results.
+        assertNotEquals( roomBefore, DAO.getGeneration(room) );
+        assertNotEquals( nodeBefore, DAO.getGeneration(node) );
+    }
+
+    /**
+     * Verifies that a room does not return to an earlier generation when more rooms are modified than are tracked
+     * individually, and that all other rooms are invalidated when that happens.
+     */
+    @Test
+    public void testGenerationsDoNotRepeatWhenTrackingOverflows()
+    {
+        // Setup test fixture.
+        DAO.GENERATIONS_MAX.setValue(10);
+        final JID room = new JID("room", "conference.example.org", null);
+        final JID untouched = new JID("untouched", "conference.example.org", null);
+        final long untouchedBefore = DAO.getGeneration(untouched);
+        final Set<Long> seen = new HashSet<>();
+        long current = DAO.getGeneration(room);
+        seen.add(current);
+
+        // Execute system under test.
+        for ( int i = 0; i < 100; i++ )
+        {
+            DAO.discardCached(room);
+            assertTrue( "Generation repeated: " + DAO.getGeneration(room), seen.add(DAO.getGeneration(room)) );
+            current = DAO.getGeneration(room);
+
+            DAO.discardCached(new JID("other" + i, "conference.example.org", null));
+            if ( DAO.getGeneration(room) != current )
+            {
+                assertTrue( "Generation repeated: " + DAO.getGeneration(room), seen.add(DAO.getGeneration(room)) );
+                current = DAO.getGeneration(room);
+            }
+        }
+
+        // Verify results.
+        assertNotEquals( untouchedBefore, DAO.getGeneration(untouched) );
+    }
+}
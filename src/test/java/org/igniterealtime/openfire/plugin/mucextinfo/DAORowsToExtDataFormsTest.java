@@ -22,7 +22,6 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -130,8 +129,8 @@ public class DAORowsToExtDataFormsTest
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
         assertEquals( "my label", result.get(0).getFields().get(0).getLabel() );
-        assertEquals( 1, result.get(0).getFields().get(0).getValues().length );
-        assertEquals( "my value", result.get(0).getFields().get(0).getValues()[0] );
+        assertEquals( 1, result.get(0).getFields().get(0).getValues().size() );
+        assertEquals( "my value", result.get(0).getFields().get(0).getValues().get(0) );
     }
 
     /**
@@ -157,8 +156,8 @@ public class DAORowsToExtDataFormsTest
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
         assertNull( result.get(0).getFields().get(0).getLabel() );
-        assertEquals( 1, result.get(0).getFields().get(0).getValues().length );
-        assertEquals( "my value", result.get(0).getFields().get(0).getValues()[0] );
+        assertEquals( 1, result.get(0).getFields().get(0).getValues().size() );
+        assertEquals( "my value", result.get(0).getFields().get(0).getValues().get(0) );
     }
 
     /**
@@ -184,7 +183,7 @@ public class DAORowsToExtDataFormsTest
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
         assertEquals( "label", result.get(0).getFields().get(0).getLabel() );
-        assertEquals( 0, result.get(0).getFields().get(0).getValues().length );
+        assertEquals( 0, result.get(0).getFields().get(0).getValues().size() );
     }
 
     /**
@@ -215,15 +214,15 @@ public class DAORowsToExtDataFormsTest
         assertNotNull(myVarField);
         assertEquals("myVar", myVarField.getVarName() );
         assertEquals("my label", myVarField.getLabel() );
-        assertEquals(1, myVarField.getValues().length );
-        assertEquals("my value", myVarField.getValues()[0] );
+        assertEquals(1, myVarField.getValues().size() );
+        assertEquals("my value", myVarField.getValues().get(0) );
 
         final Field var2Field = fields.stream().filter( field -> field.getVarName().equals("Var2")).findAny().orElse(null);
         assertNotNull(var2Field);
         assertEquals("Var2", var2Field.getVarName() );
         assertEquals("another label", var2Field.getLabel() );
-        assertEquals(1, var2Field.getValues().length );
-        assertEquals("another value", var2Field.getValues()[0] );
+        assertEquals(1, var2Field.getValues().size() );
+        assertEquals("another value", var2Field.getValues().get(0) );
     }
 
     /**
@@ -250,9 +249,9 @@ public class DAORowsToExtDataFormsTest
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
         assertEquals( "my label", result.get(0).getFields().get(0).getLabel() );
-        assertEquals( 2, result.get(0).getFields().get(0).getValues().length );
-        assertTrue( Arrays.asList(result.get(0).getFields().get(0).getValues()).contains("my value") );
-        assertTrue( Arrays.asList(result.get(0).getFields().get(0).getValues()).contains("my other value") );
+        assertEquals( 2, result.get(0).getFields().get(0).getValues().size() );
+        assertTrue( result.get(0).getFields().get(0).getValues().contains("my value") );
+        assertTrue( result.get(0).getFields().get(0).getValues().contains("my other value") );
     }
 
     /**
@@ -278,8 +277,8 @@ public class DAORowsToExtDataFormsTest
         assertEquals( "myForm", result.get(0).getFormTypeName() );
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
-        assertEquals( 1, result.get(0).getFields().get(0).getValues().length );
-        assertTrue( Arrays.asList(result.get(0).getFields().get(0).getValues()).contains("my other value") );
+        assertEquals( 1, result.get(0).getFields().get(0).getValues().size() );
+        assertTrue( result.get(0).getFields().get(0).getValues().contains("my other value") );
     }
 
     /**
@@ -308,15 +307,15 @@ public class DAORowsToExtDataFormsTest
         assertEquals( 1, result.get(0).getFields().size() );
         assertEquals( "myVar", result.get(0).getFields().get(0).getVarName() );
         assertEquals( "my label", result.get(0).getFields().get(0).getLabel() );
-        assertEquals( 1, result.get(0).getFields().get(0).getValues().length );
-        assertEquals( "my value", result.get(0).getFields().get(0).getValues()[0] );
+        assertEquals( 1, result.get(0).getFields().get(0).getValues().size() );
+        assertEquals( "my value", result.get(0).getFields().get(0).getValues().get(0) );
 
         assertEquals( "myOtherForm", result.get(1).getFormTypeName() );
         assertEquals( 1, result.get(1).getFields().size() );
         assertEquals( "barfoo", result.get(1).getFields().get(0).getVarName() );
         assertEquals( "foobar", result.get(1).getFields().get(0).getLabel() );
-        assertEquals( 1, result.get(1).getFields().get(0).getValues().length );
-        assertEquals( "test", result.get(1).getFields().get(0).getValues()[0] );
+        assertEquals( 1, result.get(1).getFields().get(0).getValues().size() );
+        assertEquals( "test", result.get(1).getFields().get(0).getValues().get(0) );
     }
 
     /**
@@ -349,18 +348,18 @@ public class DAORowsToExtDataFormsTest
         assertNotNull(myVarField);
         assertEquals("myVar", myVarField.getVarName() );
         assertEquals("my label", myVarField.getLabel() );
-        assertEquals(2, myVarField.getValues().length );
-        assertTrue( Arrays.asList(myVarField.getValues()).contains("my value") );
-        assertTrue( Arrays.asList(myVarField.getValues()).contains("my other value") );
+        assertEquals(2, myVarField.getValues().size() );
+        assertTrue( myVarField.getValues().contains("my value") );
+        assertTrue( myVarField.getValues().contains("my other value") );
 
-        assertEquals("my value", myVarField.getValues()[0] );
+        assertEquals("my value", myVarField.getValues().get(0) );
 
         final Field var2Field = fields.stream().filter( field -> field.getVarName().equals("Var2")).findAny().orElse(null);
         assertNotNull(var2Field);
         assertEquals("Var2", var2Field.getVarName() );
         assertEquals("another label", var2Field.getLabel() );
-        assertEquals(2, var2Field.getValues().length );
-        assertTrue( Arrays.asList(var2Field.getValues()).contains("another value") );
-        assertTrue( Arrays.asList(var2Field.getValues()).contains("second value") );
+        assertEquals(2, var2Field.getValues().size() );
+        assertTrue( var2Field.getValues().contains("another value") );
+        assertTrue( var2Field.getValues().contains("second value") );
     }
 }
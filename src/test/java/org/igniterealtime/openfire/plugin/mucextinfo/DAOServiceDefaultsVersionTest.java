@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.InitializationException;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link DAO#getServiceDefaultsVersion(String)}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DAOServiceDefaultsVersionTest
+{
+    @BeforeClass
+    public static void beforeClass()
+    {
+        try {
+            // The DAO class references a cache, which needs to be constructed for the implementation-under-test to be
+            // initialized.
+            CacheFactory.initialize();
+        } catch ( InitializationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Verifies that the version of the service-level data forms changes when the cache for the service is purged.
+     */
+    @Test
+    public void testVersionChangesOnServicePurge()
+    {
+        // Setup test fixture.
+        final long before = DAO.getServiceDefaultsVersion("conference.example.org");
+
+        // Execute system under test.
+        DAO.purgeCache(new JID(null, "conference.example.org", null));
+
+        // Verify results.
+        assertNotEquals( before, DAO.getServiceDefaultsVersion("conference.example.org") );
+    }
+
+    /**
+     * Verifies that the version of the service-level data forms does not change when the cache of one of the rooms of
+     * the service is purged, or when the cache for another service is purged.
+     */
+    @Test
+    public void testVersionUnchangedOnRoomPurge()
+    {
+        // Setup test fixture.
+        final long before = DAO.getServiceDefaultsVersion("conference.example.org");
+
+        // Execute system under test.
+        DAO.purgeCache(new JID("room", "conference.example.org", null));
+        DAO.purgeCache(new JID(null, "chat.example.org", null));
+
+        // Verify results.
+        assertEquals( before, DAO.getServiceDefaultsVersion("conference.example.org") );
+    }
+}
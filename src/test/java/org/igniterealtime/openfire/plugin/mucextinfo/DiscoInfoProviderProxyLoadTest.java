@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.dom4j.Element;
+import org.jivesoftware.database.ConnectionProvider;
+import org.jivesoftware.openfire.disco.DiscoInfoProvider;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.forms.DataForm;
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.JID;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * A load and soak test for {@link DiscoInfoProviderProxy#getExtendedInfos(String, String, JID)}, that runs without an
+ * Openfire server, using an embedded HSQLDB database and a stub delegate provider.
+ *
+ * Many threads request information for rooms that are selected from a configurable population, with a popularity that
+ * follows a Zipf distribution. At the same time, data forms are modified, like an administrator would. Throughput,
+ * latency percentiles, database queries per second and the allocation rate are reported periodically. After the run,
+ * the test verifies that no errors occurred and that the cache did not grow beyond the room population.
+ *
+ * This test is skipped unless the system property <tt>mucextinfo.load</tt> is set to <tt>true</tt>, eg:
+ * <tt>mvn test -Dtest=DiscoInfoProviderProxyLoadTest -Dmucextinfo.load=true -Dmucextinfo.load.duration=3600</tt>
+ *
+ * Other properties (all prefixed with <tt>mucextinfo.load.</tt>): <tt>threads</tt>, <tt>rooms</tt>, <tt>skew</tt>
+ * (Zipf exponent), <tt>duration</tt> and <tt>interval</tt> (both in seconds), <tt>mutations</tt> (per second),
+ * <tt>forms</tt> (per room) and <tt>fields</tt> (per form).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DiscoInfoProviderProxyLoadTest
+{
+    private static final String SERVICE_DOMAIN = "conference.example.org";
+
+    private static final String MUTABLE_FORM = "urn:example:load:mutable";
+
+    private static final int THREADS = Integer.getInteger("mucextinfo.load.threads", 8);
+    private static final int ROOMS = Integer.getInteger("mucextinfo.load.rooms", 10000);
+    private static final double SKEW = Double.parseDouble(System.getProperty("mucextinfo.load.skew", "1.0"));
+    private static final int DURATION = Integer.getInteger("mucextinfo.load.duration", 60);
+    private static final int INTERVAL = Integer.getInteger("mucextinfo.load.interval", 10);
+    private static final int MUTATIONS = Integer.getInteger("mucextinfo.load.mutations", 20);
+    private static final int FORMS = Integer.getInteger("mucextinfo.load.forms", 2);
+    private static final int FIELDS = Integer.getInteger("mucextinfo.load.fields", 5);
+
+    private static EmbeddedDatabase connectionProvider;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        Assume.assumeTrue( "Load test is disabled. Set system property 'mucextinfo.load' to 'true' to enable.", Boolean.getBoolean("mucextinfo.load") );
+        CacheFactory.initialize();
+
+        connectionProvider = new EmbeddedDatabase(EmbeddedDatabase.createHsqldbUrl("load"));
+        connectionProvider.install();
+        populate(connectionProvider);
+        DAO.connectionProvider = connectionProvider;
+        DAO.purgeCache();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception
+    {
+        if ( connectionProvider != null )
+        {
+            DAO.connectionProvider = null;
+            DAO.purgeCache();
+            connectionProvider.shutdown();
+        }
+    }
+
+    /**
+     * Drives the proxy under concurrent load for the configured duration.
+     */
+    @Test
+    public void testSoak() throws Exception
+    {
+        // Setup test fixture.
+        final DiscoInfoProviderProxy proxy = new DiscoInfoProviderProxy(new StubDiscoInfoProvider(), SERVICE_DOMAIN);
+        final double[] cdf = zipfCdf(ROOMS, SKEW);
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final long[] workerThreadIds = new long[THREADS];
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(DURATION);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        final List<Future<?>> futures = new ArrayList<>();
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            final int index = t;
+            futures.add(executor.submit(() -> {
+                workerThreadIds[index] = Thread.currentThread().getId();
+                started.countDown();
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final JID sender = new JID("user" + index, "example.org", "load");
+                while ( System.nanoTime() < end )
+                {
+                    final String room = "room" + sample(cdf, random);
+                    final long start = System.nanoTime();
+                    try
+                    {
+                        final Set<DataForm> result = proxy.getExtendedInfos(room, null, sender);
+                        if ( result == null || result.isEmpty() )
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        errors.incrementAndGet();
+                    }
+                    histogram.record(System.nanoTime() - start);
+                }
+            }));
+        }
+
+        // Administrative changes that run alongside the requests. These alternate between adding and removing a field,
+        // to keep the amount of data stable during long runs.
+        futures.add(executor.submit(() -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long pause = MUTATIONS > 0 ? TimeUnit.SECONDS.toNanos(1) / MUTATIONS : Long.MAX_VALUE;
+            while ( System.nanoTime() < end && MUTATIONS > 0 )
+            {
+                final JID room = new JID("room" + sample(cdf, random), SERVICE_DOMAIN, null);
+                if ( random.nextBoolean() )
+                {
+                    DAO.addField(room, MUTABLE_FORM, "mutable", "Mutable", String.valueOf(random.nextInt()));
+                }
+                else
+                {
+                    DAO.removeField(room, MUTABLE_FORM, "mutable");
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(pause, Math.max(0, end - System.nanoTime())));
+            }
+            return null;
+        }));
+
+        // Execute system under test.
+        started.await();
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long[] lastCounts = histogram.snapshot();
+        long lastConnections = connectionProvider.getConnectionCount();
+        long lastQueries = DAO.getRetrievalQueryCount();
+        long lastAllocated = allocatedBytes(threadMXBean, workerThreadIds);
+        long lastTime = System.nanoTime();
+        int maxCachedRooms = 0;
+        System.out.println("elapsed(s)  ops/s  p50(us)  p99(us)  p999(us)  db-connections/s  db-retrievals/s  alloc(MB/s)  cached-rooms  heap(MB)");
+        while ( System.nanoTime() < end )
+        {
+            TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.SECONDS.toNanos(INTERVAL), Math.max(1, end - System.nanoTime())));
+
+            final long now = System.nanoTime();
+            final double seconds = (now - lastTime) / 1_000_000_000.0;
+            final long[] counts = histogram.snapshot();
+            final long[] intervalCounts = new long[counts.length];
+            long operations = 0;
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                intervalCounts[i] = counts[i] - lastCounts[i];
+                operations += intervalCounts[i];
+            }
+            final long connections = connectionProvider.getConnectionCount();
+            final long queries = DAO.getRetrievalQueryCount();
+            final long allocated = allocatedBytes(threadMXBean, workerThreadIds);
+            final int cachedRooms = DAO.getCachedRoomCount();
+            maxCachedRooms = Math.max(maxCachedRooms, cachedRooms);
+            final Runtime runtime = Runtime.getRuntime();
+
+            System.out.println(String.format("%10.0f  %5.0f  %7.1f  %7.1f  %8.1f  %16.1f  %15.1f  %11.1f  %12d  %8d",
+                (now - (end - TimeUnit.SECONDS.toNanos(DURATION))) / 1_000_000_000.0,
+                operations / seconds,
+                LatencyHistogram.percentile(intervalCounts, 0.50) / 1000.0,
+                LatencyHistogram.percentile(intervalCounts, 0.99) / 1000.0,
+                LatencyHistogram.percentile(intervalCounts, 0.999) / 1000.0,
+                (connections - lastConnections) / seconds,
+                (queries - lastQueries) / seconds,
+                allocated < 0 ? Double.NaN : (allocated - lastAllocated) / seconds / (1024 * 1024),
+                cachedRooms,
+                (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+
+            lastCounts = counts;
+            lastConnections = connections;
+            lastQueries = queries;
+            lastAllocated = allocated;
+            lastTime = now;
+        }
+
+        executor.shutdown();
+        for ( final Future<?> future : futures )
+        {
+            future.get(1, TimeUnit.MINUTES);
+        }
+
+        // Verify results.
+        assertEquals( "Requests that failed or returned no data.", 0, errors.get() );
+        assertTrue( "The cache holds more entries (" + maxCachedRooms + ") than there are rooms (" + ROOMS + ").", maxCachedRooms <= ROOMS + 1 );
+    }
+
+    /**
+     * Entry point that allows the load test to be run outside of a test framework.
+     */
+    public static void main( final String[] args ) throws Exception
+    {
+        System.setProperty("mucextinfo.load", "true");
+        setUpClass();
+        try
+        {
+            new DiscoInfoProviderProxyLoadTest().testSoak();
+        }
+        finally
+        {
+            tearDownClass();
+        }
+    }
+
+    private static void populate( final ConnectionProvider provider ) throws SQLException
+    {
+        try ( final Connection con = provider.getConnection();
+              final PreparedStatement pstmt = con.prepareStatement("INSERT INTO mucextinfo (room, formtypename, varname, label, varvalue) VALUES (?, ?, ?, ?, ?)") )
+        {
+            for ( int r = 0; r < ROOMS; r++ )
+            {
+                for ( int f = 0; f < FORMS; f++ )
+                {
+                    for ( int i = 0; i < FIELDS; i++ )
+                    {
+                        pstmt.setString(1, "room" + r + "@" + SERVICE_DOMAIN);
+                        pstmt.setString(2, "urn:example:load:" + f);
+                        pstmt.setString(3, "var" + i);
+                        pstmt.setString(4, "Label " + i);
+                        pstmt.setString(5, "Value " + i + " of room " + r);
+                        pstmt.addBatch();
+                    }
+                }
+                pstmt.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Computes the cumulative distribution function of a Zipf distribution, in which rank 0 is the most popular.
+     */
+    static double[] zipfCdf( final int size, final double exponent )
+    {
+        final double[] result = new double[size];
+        double sum = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            result[i] = sum;
+        }
+        for ( int i = 0; i < size; i++ )
+        {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    static int sample( final double[] cdf, final Random random )
+    {
+        final int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(cdf.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    /**
+     * Returns the total amount of bytes allocated by the provided threads, or -1 if the JVM does not support this.
+     */
+    private static long allocatedBytes( final ThreadMXBean threadMXBean, final long[] threadIds )
+    {
+        if ( !(threadMXBean instanceof com.sun.management.ThreadMXBean) )
+        {
+            return -1;
+        }
+        long result = 0;
+        for ( final long allocated : ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadIds) )
+        {
+            result += Math.max(0, allocated);
+        }
+        return result;
+    }
+
+    /**
+     * A lock-free histogram of latencies, using buckets of which the width grows exponentially (with 16 sub-buckets per
+     * power of two, giving a precision of about 6%).
+     */
+    static class LatencyHistogram
+    {
+        private static final int SUB_BUCKETS = 16;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record( final long nanos )
+        {
+            counts.incrementAndGet(index(Math.max(1, nanos)));
+        }
+
+        long[] snapshot()
+        {
+            final long[] result = new long[counts.length()];
+            for ( int i = 0; i < result.length; i++ )
+            {
+                result[i] = counts.get(i);
+            }
+            return result;
+        }
+
+        static int index( final long value )
+        {
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if ( exponent < 4 )
+            {
+                return (int) value;
+            }
+            return exponent * SUB_BUCKETS + (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+        }
+
+        static long lowerBound( final int index )
+        {
+            final int exponent = index / SUB_BUCKETS;
+            if ( exponent < 4 )
+            {
+                return index;
+            }
+            return (1L << exponent) + ((long) (index % SUB_BUCKETS) << (exponent - 4));
+        }
+
+        static long percentile( final long[] counts, final double percentile )
+        {
+            long total = 0;
+            for ( final long count : counts )
+            {
+                total += count;
+            }
+            final long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                seen += counts[i];
+                if ( seen >= target && seen > 0 )
+                {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A delegate that returns a fixed room information form, like the one of the Openfire MUC implementation.
+     */
+    private static class StubDiscoInfoProvider implements DiscoInfoProvider
+    {
+        @Override
+        public Iterator<Element> getIdentities( final String name, final String node, final JID senderJID )
+        {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public Iterator<String> getFeatures( final String name, final String node, final JID senderJID )
+        {
+            return Collections.singletonList("http://jabber.org/protocol/muc").iterator();
+        }
+
+        @Override
+        public DataForm getExtendedInfo( final String name, final String node, final JID senderJID )
+        {
+            final DataForm dataForm = new DataForm(DataForm.Type.result);
+            dataForm.addField("FORM_TYPE", null, FormField.Type.hidden).addValue("http://jabber.org/protocol/muc#roominfo");
+            dataForm.addField("muc#roominfo_description", "Description", null).addValue("Room " + name);
+            return dataForm;
+        }
+
+        @Override
+        public Set<DataForm> getExtendedInfos( final String name, final String node, final JID senderJID )
+        {
+            return new HashSet<>(Collections.singleton(getExtendedInfo(name, node, senderJID)));
+        }
+
+        @Override
+        public boolean hasInfo( final String name, final String node, final JID senderJID )
+        {
+            return true;
+        }
+    }
+}
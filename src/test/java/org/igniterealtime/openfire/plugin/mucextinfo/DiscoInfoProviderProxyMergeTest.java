@@ -20,7 +20,9 @@ import org.xmpp.forms.DataForm;
 import org.xmpp.forms.FormField;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
@@ -81,8 +83,9 @@ public class DiscoInfoProviderProxyMergeTest
     {
         // Setup test fixture.
         final Set<DataForm> originals = null;
-        final ExtDataForm extension = new ExtDataForm( "testform" );
-        extension.getFields().add( new Field( "testvar", "testlabel", "testvalue") );
+        final ExtDataForm extension = ExtDataForm.builder( "testform" )
+            .addField( new Field( "testvar", "testlabel", "testvalue") )
+            .build();
 
         // Execute system under test.
         final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
@@ -118,8 +121,9 @@ public class DiscoInfoProviderProxyMergeTest
         dataForm.addField("origvar", "origlabel", null ).addValue( "origvalue");
         originals.add( dataForm );
 
-        final ExtDataForm extension = new ExtDataForm( "extform" );
-        extension.getFields().add( new Field( "extvar", "extlabel", "extvalue") );
+        final ExtDataForm extension = ExtDataForm.builder( "extform" )
+            .addField( new Field( "extvar", "extlabel", "extvalue") )
+            .build();
 
         // Execute system under test.
         final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
@@ -165,8 +169,9 @@ public class DiscoInfoProviderProxyMergeTest
         dataForm.addField("origvar", "origlabel", null ).addValue( "origvalue");
         originals.add( dataForm );
 
-        final ExtDataForm extension = new ExtDataForm( "origform" );
-        extension.getFields().add( new Field( "extvar", "extlabel", "extvalue") );
+        final ExtDataForm extension = ExtDataForm.builder( "origform" )
+            .addField( new Field( "extvar", "extlabel", "extvalue") )
+            .build();
 
         // Execute system under test.
         final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
@@ -207,8 +212,9 @@ public class DiscoInfoProviderProxyMergeTest
         dataForm.addField("origvar", "origlabel", null ).addValue( "origvalue");
         originals.add( dataForm );
 
-        final ExtDataForm extension = new ExtDataForm( "origform" );
-        extension.getFields().add( new Field( "origvar", "origlabel", "extvalue") );
+        final ExtDataForm extension = ExtDataForm.builder( "origform" )
+            .addField( new Field( "origvar", "origlabel", "extvalue") )
+            .build();
 
         // Execute system under test.
         final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
@@ -229,4 +235,73 @@ public class DiscoInfoProviderProxyMergeTest
             && formField.getValues().size() == 2
         ));
     }
+
+    /**
+     * Verifies that merging retains the order of the original data forms, and adds the fields and values of the
+     * extension in their order, after those of the original data form.
+     */
+    @Test
+    public void testMergeRetainsOrder()
+    {
+        // Setup test fixture.
+        final Set<DataForm> originals = new LinkedHashSet<>();
+        for ( final String formTypeName : Arrays.asList( "zulu", "alpha", "mike" ) )
+        {
+            final DataForm dataForm = new DataForm(DataForm.Type.result);
+            dataForm.addField("FORM_TYPE", null, FormField.Type.hidden ).addValue( formTypeName );
+            dataForm.addField("origvar", null, null ).addValue( "origvalue" );
+            originals.add( dataForm );
+        }
+
+        final ExtDataForm extension = ExtDataForm.builder( "alpha" )
+            .addField( new Field( "second", null, "b") )
+            .addField( new Field( "first", null, "a") )
+            .addField( new Field( "origvar", null, "extvalue") )
+            .build();
+
+        // Execute system under test.
+        final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
+
+        // Verify results.
+        final List<String> formTypeNames = new ArrayList<>();
+        results.forEach( df -> formTypeNames.add( df.getField( "FORM_TYPE" ).getFirstValue() ) );
+        assertEquals( Arrays.asList( "zulu", "alpha", "mike" ), formTypeNames );
+
+        final List<String> varNames = new ArrayList<>();
+        new ArrayList<>( results ).get( 1 ).getFields().forEach( formField -> varNames.add( formField.getVariable() ) );
+        assertEquals( Arrays.asList( "FORM_TYPE", "origvar", "second", "first" ), varNames );
+        assertEquals( Arrays.asList( "origvalue", "extvalue" ), new ArrayList<>( results ).get( 1 ).getField( "origvar" ).getValues() );
+    }
+
+    /**
+     * Verifies that the declared type of a field is included when a schema is registered for the data form.
+     */
+    @Test
+    public void testMergeAddsTypeOfSchema()
+    {
+        // Setup test fixture.
+        final Set<DataForm> originals = null;
+        FormSchemaRegistry.getInstance().register( FormSchema.builder( "typedform" )
+            .field( FormSchema.FieldSchema.builder( "flag", FormField.Type.boolean_type ).build() )
+            .build() );
+        final ExtDataForm extension = ExtDataForm.builder( "typedform" )
+            .addField( new Field( "flag", null, "1") )
+            .addField( new Field( "other", null, "value") )
+            .build();
+
+        try
+        {
+            // Execute system under test.
+            final Set<DataForm> results = DiscoInfoProviderProxy.merge( originals, extension );
+
+            // Verify results.
+            final DataForm result = results.iterator().next();
+            assertEquals( FormField.Type.boolean_type, result.getField( "flag" ).getType() );
+            assertNull( result.getField( "other" ).getType() );
+        }
+        finally
+        {
+            FormSchemaRegistry.getInstance().unregister( "typedform" );
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.InitializationException;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link DiscoInfoProviderProxy#selectPrefetchCandidates(RoomListing, JID, int, java.util.function.Predicate)}
+ * and {@link DAO#partition(List, int)}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class DiscoInfoProviderProxyPrefetchTest
+{
+    @BeforeClass
+    public static void beforeClass()
+    {
+        try {
+            // The DAO class references a cache. The unit tests in this implementation don't use the cache, but it'll
+            // need to be constructed for the implementation-under-test to be initialized.
+            CacheFactory.initialize();
+        } catch ( InitializationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Verifies that the requested room is selected, followed by the rooms that follow it in the listing.
+     */
+    @Test
+    public void testSelectsFollowingRooms()
+    {
+        // Setup test fixture.
+        final List<JID> listing = createListing(10);
+
+        // Execute system under test.
+        final List<JID> result = DiscoInfoProviderProxy.selectPrefetchCandidates(RoomListing.of(listing), listing.get(3), 4, jid -> false);
+
+        // Verify results.
+        assertEquals( 4, result.size() );
+        assertEquals( listing.subList(3, 7), result );
+    }
+
+    /**
+     * Verifies that rooms for which data is already cached are not selected.
+     */
+    @Test
+    public void testSkipsCachedRooms()
+    {
+        // Setup test fixture.
+        final List<JID> listing = createListing(10);
+        final Set<JID> cached = new HashSet<>();
+        cached.add(listing.get(4));
+
+        // Execute system under test.
+        final List<JID> result = DiscoInfoProviderProxy.selectPrefetchCandidates(RoomListing.of(listing), listing.get(3), 3, cached::contains);
+
+        // Verify results.
+        assertEquals( 3, result.size() );
+        assertEquals( listing.get(3), result.get(0) );
+        assertEquals( listing.get(5), result.get(1) );
+        assertEquals( listing.get(6), result.get(2) );
+    }
+
+    /**
+     * Verifies that only the requested room is selected when it does not appear in the listing.
+     */
+    @Test
+    public void testRoomNotInListing()
+    {
+        // Setup test fixture.
+        final List<JID> listing = createListing(10);
+        final JID room = new JID("unlisted", "conference.example.org", null);
+
+        // Execute system under test.
+        final List<JID> result = DiscoInfoProviderProxy.selectPrefetchCandidates(RoomListing.of(listing), room, 5, jid -> false);
+
+        // Verify results.
+        assertEquals( 1, result.size() );
+        assertEquals( room, result.get(0) );
+    }
+
+    /**
+     * Verifies that a list is split in chunks that do not exceed the requested size.
+     */
+    @Test
+    public void testPartition()
+    {
+        // Setup test fixture.
+        final List<JID> listing = createListing(1001);
+
+        // Execute system under test.
+        final List<List<JID>> result = DAO.partition(listing, 500);
+
+        // Verify results.
+        assertEquals( 3, result.size() );
+        assertEquals( 500, result.get(0).size() );
+        assertEquals( 500, result.get(1).size() );
+        assertEquals( 1, result.get(2).size() );
+    }
+
+    /**
+     * Simulates a client that queries every room of a 1,000-room directory in listing order, and counts the amount of
+     * database round trips that are needed with and without prefetching.
+     */
+    @Test
+    public void testDirectoryWalkRoundTrips()
+    {
+        // Setup test fixture.
+        final List<JID> listing = createListing(1000);
+
+        // Execute system under test.
+        final int withoutPrefetch = walk(listing, 1);
+        final int withPrefetch = walk(listing, 50);
+
+        // Verify results.
+        assertEquals( 1000, withoutPrefetch );
+        assertEquals( 20, withPrefetch );
+    }
+
+    private static int walk( final List<JID> listing, final int prefetchSize )
+    {
+        final RoomListing roomListing = RoomListing.of(listing);
+        final Set<JID> cached = new HashSet<>();
+        int roundTrips = 0;
+        for ( final JID room : listing )
+        {
+            if ( !cached.contains(room) )
+            {
+                final List<JID> candidates = DiscoInfoProviderProxy.selectPrefetchCandidates(roomListing, room, prefetchSize, cached::contains);
+                roundTrips += DAO.partition(candidates, 500).size();
+                cached.addAll(candidates);
+            }
+        }
+        return roundTrips;
+    }
+
+    private static List<JID> createListing( final int size )
+    {
+        final List<JID> result = new ArrayList<>();
+        for ( int i = 0; i < size; i++ )
+        {
+            result.add(new JID("room" + i, "conference.example.org", null));
+        }
+        return result;
+    }
+}
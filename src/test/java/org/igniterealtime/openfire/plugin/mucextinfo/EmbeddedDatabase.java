@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.database.ConnectionProvider;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides (unpooled) connections to an embedded database, for use by tests. Every connection that is handed out is
+ * counted, and the database can be marked as unavailable, after which no connections are handed out.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+class EmbeddedDatabase implements ConnectionProvider
+{
+    /**
+     * The install script of the HSQLDB database schema.
+     */
+    static final Path INSTALL_SCRIPT = Paths.get("src", "main", "database", "mucextinfo_hsqldb.sql");
+
+    /**
+     * The script that installs the HSQLDB database triggers that record modifications that are not made by DAO.
+     */
+    static final Path TRIGGERS_SCRIPT = Paths.get("src", "main", "database", "triggers", "mucextinfo_triggers_hsqldb.sql");
+
+    private static final AtomicLong databaseCounter = new AtomicLong();
+
+    private final String url;
+
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    private volatile boolean available = true;
+
+    EmbeddedDatabase( @Nonnull final String url )
+    {
+        this.url = url;
+    }
+
+    /**
+     * Creates a name for a database that is not used by any other database that is created by this JVM.
+     *
+     * @param prefix A description of the test that uses the database.
+     * @return A database name.
+     */
+    @Nonnull
+    static String createName( @Nonnull final String prefix )
+    {
+        return "mucextinfo-" + prefix + "-" + databaseCounter.incrementAndGet();
+    }
+
+    /**
+     * Returns the URL of an in-memory HSQLDB database that has a name that is not used by any other database.
+     *
+     * @param prefix A description of the test that uses the database.
+     * @return The URL of the database.
+     */
+    @Nonnull
+    static String createHsqldbUrl( @Nonnull final String prefix )
+    {
+        return "jdbc:hsqldb:mem:" + createName(prefix);
+    }
+
+    /**
+     * Creates the Openfire version table and the database schema of this plugin, using the HSQLDB install script.
+     *
+     * @throws IOException when the install script cannot be read.
+     */
+    void install() throws IOException
+    {
+        executeScript("CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL)");
+        executeScript(INSTALL_SCRIPT);
+    }
+
+    /**
+     * Executes all statements in a script file, using one connection.
+     *
+     * @param script The path of the script.
+     * @throws IOException when the script cannot be read.
+     */
+    void executeScript( @Nonnull final Path script ) throws IOException
+    {
+        executeScript(new String(Files.readAllBytes(script), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Executes all statements in a script, using one connection. Statements are separated by semicolons.
+     *
+     * @param script The statements to execute.
+     */
+    void executeScript( @Nonnull final String script )
+    {
+        try ( final Connection con = getConnection(); final Statement stmt = con.createStatement() )
+        {
+            for ( final String statement : script.split(";") )
+            {
+                if ( !statement.trim().isEmpty() )
+                {
+                    stmt.execute(statement);
+                }
+            }
+        }
+        catch ( SQLException e )
+        {
+            throw new IllegalStateException("Unable to execute script: " + script, e);
+        }
+    }
+
+    /**
+     * Shuts down the database, discarding an in-memory database. The database is marked as available first.
+     */
+    void shutdown()
+    {
+        available = true;
+        executeScript("SHUTDOWN");
+    }
+
+    /**
+     * Marks the database as (un)available. When unavailable, every attempt to obtain a connection fails.
+     *
+     * @param available false to make the database unavailable.
+     */
+    void setAvailable( final boolean available )
+    {
+        this.available = available;
+    }
+
+    /**
+     * Returns the amount of connections that have been handed out.
+     *
+     * @return a connection count.
+     */
+    long getConnectionCount()
+    {
+        return connectionCount.get();
+    }
+
+    @Override
+    public boolean isPooled()
+    {
+        return false;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        if ( !available )
+        {
+            throw new SQLException("The database is not available.");
+        }
+        connectionCount.incrementAndGet();
+        return DriverManager.getConnection(url, "SA", "");
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void restart() {}
+
+    @Override
+    public void destroy() {}
+}
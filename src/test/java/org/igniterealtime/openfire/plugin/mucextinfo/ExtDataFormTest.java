@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link ExtDataForm} and {@link Field}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ExtDataFormTest
+{
+    /**
+     * Verifies that the fields of a data form cannot be modified after it has been created.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFieldsAreUnmodifiable()
+    {
+        // Setup test fixture.
+        final ExtDataForm form = ExtDataForm.builder("test").addField(new Field("var", "label", "value")).build();
+
+        // Execute system under test.
+        form.getFields().add(new Field("other", null, "value"));
+    }
+
+    /**
+     * Verifies that the values of a field cannot be modified after it has been created, not even by modifying the array
+     * that was used to create the field.
+     */
+    @Test
+    public void testValuesAreUnmodifiable()
+    {
+        // Setup test fixture.
+        final String[] values = { "a", "b" };
+        final Field field = new Field("var", null, values);
+
+        // Execute system under test.
+        values[0] = "changed";
+
+        // Verify results.
+        assertEquals( Arrays.asList("a", "b"), field.getValues() );
+        try
+        {
+            field.getValues().set(0, "changed");
+            fail( "Values of a field should not be modifiable." );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Verifies that adding fields that share a variable name yields one field that holds all values (in order), using
+     * the first non-null label.
+     */
+    @Test
+    public void testBuilderMergesFieldsBySameVarName()
+    {
+        // Setup test fixture.
+        final ExtDataForm.Builder builder = ExtDataForm.builder("test")
+            .addField(new Field("var", null, "one"))
+            .addField(new Field("other", "Other", "x"))
+            .addField(new Field("var", "Label", "two", null));
+
+        // Execute system under test.
+        final ExtDataForm result = builder.build();
+
+        // Verify results.
+        assertEquals( 2, result.getFields().size() );
+        assertEquals( "var", result.getFields().get(0).getVarName() );
+        assertEquals( "Label", result.getField("var").getLabel() );
+        assertEquals( Arrays.asList("one", "two"), result.getField("var").getValues() );
+        assertNull( result.getField("nonexisting") );
+    }
+
+    /**
+     * Verifies that a data form survives a serialization round-trip unchanged.
+     */
+    @Test
+    public void testSerializationRoundTrip() throws Exception
+    {
+        // Setup test fixture.
+        final ArrayList<ExtDataForm> input = createForms(3, 4);
+        input.add(ExtDataForm.builder("empty").addField(new Field("novalues", null)).build());
+
+        // Execute system under test.
+        final Object result = deserialize(serialize(input));
+
+        // Verify results.
+        assertEquals( input, result );
+    }
+
+    /**
+     * Verifies that fields and data forms that are serialized on their own are deserialized as complete instances,
+     * including the labels of fields for specific languages.
+     */
+    @Test
+    public void testSerializationRoundTripOfSingleInstances() throws Exception
+    {
+        // Setup test fixture.
+        final Field field = new Field("color", "Colour", "red").withLocalizedLabel("nl", "Kleur");
+        final ExtDataForm form = ExtDataForm.builder("urn:example:a").addField(field).build();
+
+        // Execute system under test.
+        final Field fieldResult = (Field) deserialize(serialize(field));
+        final ExtDataForm formResult = (ExtDataForm) deserialize(serialize(form));
+
+        // Verify results.
+        assertEquals( field, fieldResult );
+        assertEquals( field.hashCode(), fieldResult.hashCode() );
+        assertEquals( "Kleur", fieldResult.getLabel("nl-BE") );
+        assertEquals( form, formResult );
+        assertEquals( form.hashCode(), formResult.hashCode() );
+        assertEquals( "Kleur", formResult.localize("nl").getField("color").getLabel() );
+    }
+
+    /**
+     * Verifies that the serialized form of data forms is smaller than the serialized form of an equivalent structure
+     * that uses default Java serialization (like earlier versions of these classes did).
+     */
+    @Test
+    public void testSerializedFormIsCompact() throws Exception
+    {
+        // Setup test fixture.
+        final ArrayList<ExtDataForm> forms = createForms(5, 10);
+        final ArrayList<LegacyForm> legacy = new ArrayList<>();
+        for ( final ExtDataForm form : forms )
+        {
+            final LegacyForm legacyForm = new LegacyForm(form.getFormTypeName());
+            for ( final Field field : form.getFields() )
+            {
+                legacyForm.fields.add(new LegacyField(field.getVarName(), field.getLabel(), field.getValues().toArray(new String[0])));
+            }
+            legacy.add(legacyForm);
+        }
+
+        // Execute system under test.
+        final int compactSize = serialize(forms).length;
+        final int legacySize = serialize(legacy).length;
+
+        // Verify results.
+        assertTrue( "Expected " + compactSize + " to be smaller than " + legacySize, compactSize < legacySize );
+    }
+
+    /**
+     * Verifies that many threads can concurrently read a shared instance, all observing the same content.
+     */
+    @Test
+    public void testConcurrentReaders() throws Exception
+    {
+        // Setup test fixture.
+        final ExtDataForm form = createForms(1, 50).get(0);
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Boolean>> futures = new ArrayList<>();
+
+        // Execute system under test.
+        try
+        {
+            for ( int t = 0; t < threads; t++ )
+            {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for ( int i = 0; i < 1000; i++ )
+                    {
+                        int index = 0;
+                        for ( final Field field : form.getFields() )
+                        {
+                            if ( form.getField(field.getVarName()) != field || !field.getValues().get(0).equals("value" + index) )
+                            {
+                                return false;
+                            }
+                            index++;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            start.countDown();
+
+            // Verify results.
+            for ( final Future<Boolean> future : futures )
+            {
+                assertTrue( future.get(30, TimeUnit.SECONDS) );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verifies that the estimated heap size of data forms grows with the amount of fields and values, so that a cache
+     * entry for a room with many fields weighs more than many entries for rooms without data forms.
+     */
+    @Test
+    public void testCachedSizeIsWeighedByContent() throws Exception
+    {
+        // Setup test fixture.
+        final ExtDataForm.Builder builder = ExtDataForm.builder("urn:example:large");
+        for ( int i = 0; i < 200; i++ )
+        {
+            builder.addField(new Field("var" + i, "Label " + i, "value" + i + "a", "value" + i + "b", "value" + i + "c"));
+        }
+        final CachedForms large = new CachedForms(0, CacheableOptional.of(new ArrayList<>(Collections.singletonList(builder.build()))));
+        final CachedForms small = new CachedForms(0, CacheableOptional.of(createForms(1, 1)));
+        final CachedForms empty = new CachedForms(0, CacheableOptional.of(null));
+
+        // Execute system under test.
+        final int largeSize = large.getCachedSize();
+        final int smallSize = small.getCachedSize();
+        final int emptySize = empty.getCachedSize();
+
+        // Verify results.
+        assertTrue( emptySize > 0 );
+        assertTrue( smallSize > emptySize );
+        assertTrue( "Expected " + largeSize + " to exceed 100 times " + emptySize, largeSize > 100 * emptySize );
+        assertTrue( new Field("var", "Label", "a", "b").getCachedSize() > new Field("var", "Label", "a").getCachedSize() );
+    }
+
+    private static ArrayList<ExtDataForm> createForms( final int formCount, final int fieldCount )
+    {
+        final ArrayList<ExtDataForm> result = new ArrayList<>();
+        for ( int f = 0; f < formCount; f++ )
+        {
+            final ExtDataForm.Builder builder = ExtDataForm.builder("urn:example:form:" + f);
+            for ( int i = 0; i < fieldCount; i++ )
+            {
+                builder.addField(new Field("var" + i, "Label " + i, "value" + i));
+            }
+            result.add(builder.build());
+        }
+        return result;
+    }
+
+    private static byte[] serialize( final Object object ) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( final ObjectOutputStream out = new ObjectOutputStream(bytes) )
+        {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize( final byte[] data ) throws IOException, ClassNotFoundException
+    {
+        try ( final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) )
+        {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Mimics the layout of data forms that used default Java serialization.
+     */
+    private static class LegacyForm implements Serializable
+    {
+        private final String formTypeName;
+        private final ArrayList<LegacyField> fields = new ArrayList<>();
+
+        LegacyForm( final String formTypeName )
+        {
+            this.formTypeName = formTypeName;
+        }
+    }
+
+    /**
+     * Mimics the layout of fields that used default Java serialization.
+     */
+    private static class LegacyField implements Serializable
+    {
+        private final String varName;
+        private final String label;
+        private final String[] values;
+
+        LegacyField( final String varName, final String label, final String[] values )
+        {
+            this.varName = varName;
+            this.label = label;
+            this.values = values;
+        }
+    }
+}
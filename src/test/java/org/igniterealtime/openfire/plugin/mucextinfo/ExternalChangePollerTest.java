@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.*;
+import org.xmpp.packet.JID;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link ExternalChangePoller} removes data from the cache that is modified in the database without using
+ * {@link DAO}, using the database triggers for HSQLDB.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ExternalChangePollerTest
+{
+    private static final JID ROOM_A = new JID("a@conference.example.org");
+    private static final JID ROOM_B = new JID("b@conference.example.org");
+
+    private EmbeddedDatabase provider;
+
+    private ExternalChangePoller poller;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        provider = new EmbeddedDatabase(EmbeddedDatabase.createHsqldbUrl("external"));
+        provider.install();
+        provider.executeScript(EmbeddedDatabase.TRIGGERS_SCRIPT);
+        DAO.connectionProvider = provider;
+        DAO.purgeCache();
+
+        DAO.addField(ROOM_A, "urn:example:a", "x", null, "1");
+        DAO.addField(ROOM_B, "urn:example:b", "y", null, "2");
+
+        // The first poll determines the position from which to start.
+        poller = new ExternalChangePoller();
+        assertEquals( 0, poller.poll() );
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ExternalChangePoller.BATCH_SIZE.setValue(ExternalChangePoller.BATCH_SIZE.getDefaultValue());
+        ExternalChangePoller.GAP_TIMEOUT.setValue(ExternalChangePoller.GAP_TIMEOUT.getDefaultValue());
+        DAO.connectionProvider = null;
+        DAO.purgeCache();
+        provider.shutdown();
+    }
+
+    /**
+     * Verifies that a poll without modifications does not affect the cache.
+     */
+    @Test
+    public void testNoModifications() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+
+        // Execute system under test.
+        final int result = poller.poll();
+
+        // Verify results.
+        assertEquals( 0, result );
+        assertTrue( DAO.isCached(ROOM_A) );
+    }
+
+    /**
+     * Verifies that data of a room that is modified directly in the database is removed from the cache, and that the
+     * data of other rooms is retained.
+     */
+    @Test
+    public void testModifiedRoomIsRemovedFromCache() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        DAO.retrieveExtensionElementsForNode(ROOM_A, "node");
+        DAO.retrieveExtensionElementsForRoom(ROOM_B);
+        provider.executeScript("INSERT INTO mucextinfo (room, formtypename, varname, varvalue, pos) VALUES ('" + ROOM_A + "', 'urn:example:a', 'z', '3', 100)");
+
+        // Execute system under test.
+        final int result = poller.poll();
+
+        // Verify results.
+        assertEquals( 1, result );
+        assertFalse( DAO.isCached(ROOM_A) );
+        assertFalse( DAO.isCached(DAO.cacheKey(ROOM_A, "node")) );
+        assertTrue( DAO.isCached(ROOM_B) );
+        assertNotNull( DAO.retrieveExtensionElementsForRoom(ROOM_A).get(0).getField("z") );
+    }
+
+    /**
+     * Verifies that modifications are read in batches.
+     */
+    @Test
+    public void testBatches() throws Exception
+    {
+        // Setup test fixture.
+        ExternalChangePoller.BATCH_SIZE.setValue(2);
+        for ( int i = 0; i < 5; i++ )
+        {
+            final JID room = new JID("room" + i + "@conference.example.org");
+            DAO.retrieveExtensionElementsForRoom(room);
+            provider.executeScript("INSERT INTO mucextinfo (room, formtypename) VALUES ('" + room + "', 'urn:example:a')");
+        }
+
+        // Execute system under test.
+        final int result = poller.poll();
+
+        // Verify results.
+        assertEquals( 5, result );
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertFalse( DAO.isCached(new JID("room" + i + "@conference.example.org")) );
+        }
+    }
+
+    /**
+     * Verifies that a modification that becomes visible after a modification with a higher sequence number (as happens
+     * when transactions are committed out of order) is processed.
+     */
+    @Test
+    public void testSkippedSequenceNumberIsProcessedLater() throws Exception
+    {
+        // Setup test fixture.
+        final long last = DAO.retrieveLastExternalChangeSequence();
+        provider.executeScript("INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (" + (last + 2) + ", 'mucextinfo', '" + ROOM_B + "')");
+        assertEquals( 1, poller.poll() );
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        provider.executeScript("INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (" + (last + 1) + ", 'mucextinfo', '" + ROOM_A + "')");
+
+        // Execute system under test.
+        final int result = poller.poll();
+
+        // Verify results.
+        assertEquals( 1, result );
+        assertFalse( DAO.isCached(ROOM_A) );
+        assertEquals( last + 2, poller.getProcessedSequence() );
+    }
+
+    /**
+     * Verifies that a skipped sequence number is still looked for when the row becomes visible two polls later, even
+     * when the configured timeout is shorter than the poll interval.
+     */
+    @Test
+    public void testSkippedSequenceNumberIsProcessedTwoPollsLater() throws Exception
+    {
+        // Setup test fixture.
+        ExternalChangePoller.GAP_TIMEOUT.setValue(Duration.ZERO);
+        final long last = DAO.retrieveLastExternalChangeSequence();
+        provider.executeScript("INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (" + (last + 2) + ", 'mucextinfo', '" + ROOM_B + "')");
+        assertEquals( 1, poller.poll() );
+        assertEquals( 0, poller.poll() );
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        provider.executeScript("INSERT INTO mucextinfo_dirty (seq, tablename, room) VALUES (" + (last + 1) + ", 'mucextinfo', '" + ROOM_A + "')");
+
+        // Execute system under test.
+        final int result = poller.poll();
+
+        // Verify results.
+        assertEquals( 1, result );
+        assertFalse( DAO.isCached(ROOM_A) );
+        assertEquals( last + 2, poller.getProcessedSequence() );
+    }
+
+    /**
+     * Verifies that an update of a row that does not change its room records that room once.
+     */
+    @Test
+    public void testUpdateRecordsRoomOnce() throws Exception
+    {
+        // Setup test fixture.
+        final long last = DAO.retrieveLastExternalChangeSequence();
+
+        // Execute system under test.
+        provider.executeScript("UPDATE mucextinfo SET varvalue = '3' WHERE room = '" + ROOM_A + "'");
+
+        // Verify results.
+        assertEquals( "Rows added to the mucextinfo_dirty table", 1, DAO.retrieveLastExternalChangeSequence() - last );
+        assertEquals( 1, poller.poll() );
+    }
+
+    /**
+     * Verifies that a visibility rule that is added directly in the database is applied, even when it was previously
+     * determined that no rules exist.
+     */
+    @Test
+    public void testRuleAddedInDatabaseIsApplied() throws Exception
+    {
+        // Setup test fixture.
+        assertTrue( DAO.retrieveVisibilityForRoom(ROOM_A).isUnrestricted() );
+        provider.executeScript("INSERT INTO mucextinfo_rule (room, formtypename, ruletype, rulevalue) VALUES ('" + ROOM_A + "', 'urn:example:a', 'domain', 'example.org')");
+
+        // Execute system under test.
+        poller.poll();
+
+        // Verify results.
+        assertFalse( DAO.retrieveVisibilityForRoom(ROOM_A).isUnrestricted() );
+    }
+
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link FormSchemaRegistry} validates data forms against the schemas that are registered.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class FormSchemaRegistryTest
+{
+    private static final JID ROOM = new JID("room", "conference.example.org", null);
+    private static final String FORM_TYPE = "urn:example:schema";
+
+    private FormSchemaRegistry registry;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        registry = new FormSchemaRegistry();
+        registry.register(FormSchema.builder(FORM_TYPE)
+            .closed(true)
+            .field(FormSchema.FieldSchema.builder("enabled", FormField.Type.boolean_type).build())
+            .field(FormSchema.FieldSchema.builder("size", FormField.Type.list_single).options("S", "M", "L").required().build())
+            .field(FormSchema.FieldSchema.builder("count", FormField.Type.text_single).pattern("\\d+").build())
+            .field(FormSchema.FieldSchema.builder("tags", FormField.Type.text_multi).maxValues(2).build())
+            .build());
+    }
+
+    /**
+     * Verifies that values are validated against the type, options and pattern of their field.
+     */
+    @Test
+    public void testValues() throws Exception
+    {
+        // Setup test fixture.
+        final FormValidator validator = registry.getValidator(FORM_TYPE);
+
+        // Execute system under test & verify results.
+        validator.validate(ROOM, new Field("enabled", null, "true"));
+        validator.validate(ROOM, new Field("size", null, "M"));
+        validator.validate(ROOM, new Field("count", null, "42"));
+        assertViolation(validator, new Field("enabled", null, "yes"));
+        assertViolation(validator, new Field("size", null, "XL"));
+        assertViolation(validator, new Field("count", null, "many"));
+    }
+
+    /**
+     * Verifies that a field cannot have more values than its cardinality allows.
+     */
+    @Test
+    public void testCardinality() throws Exception
+    {
+        // Setup test fixture.
+        final FormValidator validator = registry.getValidator(FORM_TYPE);
+
+        // Execute system under test & verify results.
+        validator.validate(ROOM, new Field("tags", null, "a", "b"));
+        assertViolation(validator, new Field("tags", null, "a", "b", "c"));
+        assertViolation(validator, new Field("enabled", null, "true", "false"));
+    }
+
+    /**
+     * Verifies that a closed schema rejects fields that are not declared, unless their name starts with 'x-'.
+     */
+    @Test
+    public void testClosedSchema() throws Exception
+    {
+        // Setup test fixture.
+        final FormValidator validator = registry.getValidator(FORM_TYPE);
+
+        // Execute system under test & verify results.
+        validator.validate(ROOM, new Field("x-custom", null, "anything"));
+        assertViolation(validator, new Field("sise", null, "M"));
+    }
+
+    /**
+     * Verifies that required fields are verified for complete data forms, and that data forms for which no schema is
+     * registered are not restricted.
+     */
+    @Test
+    public void testRequiredFields() throws Exception
+    {
+        // Setup test fixture.
+        final ExtDataForm complete = new ExtDataForm(FORM_TYPE, Arrays.asList(new Field("size", null, "S"), new Field("enabled", null, "1")));
+        final ExtDataForm incomplete = new ExtDataForm(FORM_TYPE, Collections.singletonList(new Field("enabled", null, "1")));
+        final ExtDataForm unknown = new ExtDataForm("urn:example:other", Collections.singletonList(new Field("anything", null, "goes")));
+
+        // Execute system under test.
+        registry.validate(ROOM, Arrays.asList(complete, unknown));
+        try
+        {
+            registry.validate(ROOM, Collections.singletonList(incomplete));
+            fail("A form that lacks a required field should be rejected.");
+        }
+        catch ( SchemaViolationException e )
+        {
+            // Verify results.
+            assertEquals( "size", e.getVarName() );
+        }
+    }
+
+    /**
+     * Verifies that a schema that is registered again replaces the previous one, and that the declared types of the
+     * built-in schema are available without parsing.
+     */
+    @Test
+    public void testRegistryChanges() throws Exception
+    {
+        // Execute system under test.
+        registry.register(FormSchema.builder(FORM_TYPE).build());
+        registry.register(FormSchemaRegistry.getRoomInfoSchema(false));
+
+        // Verify results.
+        assertNull( registry.getValidator(FORM_TYPE).getType("enabled") );
+        registry.getValidator(FORM_TYPE).validate(ROOM, new Field("enabled", null, "yes"));
+        assertEquals( FormField.Type.boolean_type, registry.getValidator(FormSchemaRegistry.ROOMINFO_FORM_TYPE).getType("muc#roominfo_subjectmod") );
+        assertEquals( 2, registry.getSchemas().size() );
+        registry.unregister(FORM_TYPE);
+        assertNull( registry.getValidator(FORM_TYPE) );
+    }
+
+    private static void assertViolation( final FormValidator validator, final Field field )
+    {
+        try
+        {
+            validator.validate(ROOM, field);
+            fail("Field should have been rejected: " + field);
+        }
+        catch ( SchemaViolationException e )
+        {
+            assertEquals( field.getVarName(), e.getVarName() );
+        }
+    }
+}
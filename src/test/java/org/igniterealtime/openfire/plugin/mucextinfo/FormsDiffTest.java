@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link FormsDiff} computes the modifications that are needed to replace data forms.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class FormsDiffTest
+{
+    private static final Field COLOR = new Field("color", "Colour", "red");
+    private static final Field SIZE = new Field("size", "Size", "XL");
+    private static final Field SHAPE = new Field("shape", "Shape", "round");
+
+    /**
+     * Verifies that no modifications are needed for data forms that are equal, even when the current data forms have
+     * localized labels.
+     */
+    @Test
+    public void testUnchanged() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> current = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR.withLocalizedLabel("nl", "Kleur"), SIZE)));
+        final List<ExtDataForm> desired = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SIZE)));
+
+        // Execute system under test.
+        final FormsDiff result = FormsDiff.compute(current, desired);
+
+        // Verify results.
+        assertTrue( result.isEmpty() );
+    }
+
+    /**
+     * Verifies that appending a field to a form adds only that field.
+     */
+    @Test
+    public void testAppendField() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> current = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SIZE)));
+        final List<ExtDataForm> desired = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SIZE, SHAPE)));
+
+        // Execute system under test.
+        final FormsDiff result = FormsDiff.compute(current, desired);
+
+        // Verify results.
+        assertEquals( Collections.singletonList("shape"), varNames(result.getAddedFields()) );
+        assertTrue( result.getClearedFields().isEmpty() );
+        assertTrue( result.getRemovedFields().isEmpty() );
+    }
+
+    /**
+     * Verifies that changing a field rewrites that field and the fields that follow it, which retains the order of the
+     * fields, and that fields that are no longer desired are removed.
+     */
+    @Test
+    public void testChangeFieldRewritesFollowingFields() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> current = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SIZE, SHAPE)));
+        final List<ExtDataForm> desired = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(new Field("color", "Colour", "blue"), SHAPE)));
+
+        // Execute system under test.
+        final FormsDiff result = FormsDiff.compute(current, desired);
+
+        // Verify results.
+        assertEquals( Collections.singletonList("size"), varNames(result.getRemovedFields()) );
+        assertEquals( Arrays.asList("color", "shape"), varNames(result.getClearedFields()) );
+        assertEquals( Arrays.asList("color", "shape"), varNames(result.getAddedFields()) );
+        assertEquals( Collections.singletonList("blue"), result.getAddedFields().get(0).getField().getValues() );
+    }
+
+    /**
+     * Verifies that moving a field rewrites the fields from the first one that is out of order.
+     */
+    @Test
+    public void testReorderFields() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> current = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SIZE, SHAPE)));
+        final List<ExtDataForm> desired = Collections.singletonList(new ExtDataForm("urn:example:a", Arrays.asList(COLOR, SHAPE, SIZE)));
+
+        // Execute system under test.
+        final FormsDiff result = FormsDiff.compute(current, desired);
+
+        // Verify results.
+        assertEquals( Collections.singletonList("size"), varNames(result.getClearedFields()) );
+        assertEquals( Collections.singletonList("size"), varNames(result.getAddedFields()) );
+    }
+
+    /**
+     * Verifies that forms are added and removed, and that a form that is to be retained without fields is added again
+     * after its fields are removed.
+     */
+    @Test
+    public void testAddAndRemoveForms() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> current = Arrays.asList(new ExtDataForm("urn:example:a", Collections.singletonList(COLOR)), new ExtDataForm("urn:example:b", Collections.singletonList(SIZE)));
+        final List<ExtDataForm> desired = Arrays.asList(new ExtDataForm("urn:example:a"), new ExtDataForm("urn:example:c"), new ExtDataForm("urn:example:d", Collections.singletonList(SHAPE)));
+
+        // Execute system under test.
+        final FormsDiff result = FormsDiff.compute(current, desired);
+
+        // Verify results.
+        assertEquals( Collections.singletonList("urn:example:b"), result.getRemovedForms() );
+        assertEquals( Collections.singletonList("color"), varNames(result.getRemovedFields()) );
+        assertEquals( Arrays.asList("urn:example:a", "urn:example:c"), result.getAddedForms() );
+        assertEquals( Collections.singletonList("shape"), varNames(result.getAddedFields()) );
+        assertEquals( "urn:example:d", result.getAddedFields().get(0).getFormTypeName() );
+    }
+
+    private static List<String> varNames( final List<FormsDiff.FieldChange> changes )
+    {
+        return changes.stream().map(change -> change.getField().getVarName()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the plain-text representation of data forms of {@link FormsText}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class FormsTextTest
+{
+    /**
+     * Verifies that data forms, including multi-valued fields, fields without a label or value, empty forms and text
+     * that needs escaping, are parsed back to the data forms that were formatted.
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> input = Arrays.asList(
+            new ExtDataForm("urn:example:a", Arrays.asList(new Field("color", "Colour", "red"), new Field("size", null, "S", "M"), new Field("empty", "Empty"))),
+            new ExtDataForm("urn:example:b"),
+            new ExtDataForm("urn:example:c", Collections.singletonList(new Field("motd", "A|B", "line 1\nline 2 \\ end"))));
+
+        // Execute system under test.
+        final List<ExtDataForm> result = FormsText.parse(FormsText.format(input));
+
+        // Verify results.
+        assertEquals( input, result );
+    }
+
+    /**
+     * Verifies that comments are ignored, and that a form that is defined twice, or a field that precedes any form, is
+     * rejected.
+     */
+    @Test
+    public void testParse() throws Exception
+    {
+        // Execute system under test.
+        final List<ExtDataForm> result = FormsText.parse("# comment\n\n[urn:example:a]\ncolor|Colour|red\n");
+
+        // Verify results.
+        assertEquals( Collections.singletonList(new ExtDataForm("urn:example:a", Collections.singletonList(new Field("color", "Colour", "red")))), result );
+        try
+        {
+            FormsText.parse("[urn:example:a]\n[urn:example:a]\n");
+            fail("A form that is defined twice should be rejected.");
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertTrue( e.getMessage().startsWith("Line 2") );
+        }
+        try
+        {
+            FormsText.parse("color|Colour|red\n");
+            fail("A field that precedes any form should be rejected.");
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertTrue( e.getMessage().startsWith("Line 1") );
+        }
+    }
+}
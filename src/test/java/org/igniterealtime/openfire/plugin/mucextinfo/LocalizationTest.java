@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the localization of labels, as implemented by {@link Localization}, {@link Field} and
+ * {@link ExtDataForm}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class LocalizationTest
+{
+    @After
+    public void tearDown()
+    {
+        Localization.end();
+        Localization.MAX_VARIANTS.setValue(Localization.MAX_VARIANTS.getDefaultValue());
+    }
+
+    /**
+     * Verifies that the label of a field is selected by exact language, then by primary language, and otherwise falls
+     * back to the default label.
+     */
+    @Test
+    public void testLabelFallback()
+    {
+        // Setup test fixture.
+        final Field field = Field.builder("color").label("Colour").localizedLabel("nl", "Kleur").localizedLabel("nl-BE", "Kleur (BE)").build();
+
+        // Execute system under test & verify results.
+        assertEquals( "Kleur (BE)", field.getLabel("nl-be") );
+        assertEquals( "Kleur", field.getLabel("nl-NL") );
+        assertEquals( "Kleur", field.getLabel("nl") );
+        assertEquals( "Colour", field.getLabel("de") );
+        assertEquals( "Colour", field.getLabel(null) );
+    }
+
+    /**
+     * Verifies that merging two fields retains the labels of both, where the labels of the field into which the other
+     * is merged take precedence.
+     */
+    @Test
+    public void testMergeRetainsLabels()
+    {
+        // Setup test fixture.
+        final Field first = Field.builder("color").label("Colour").addValue("red").localizedLabel("nl", "Kleur").build();
+        final Field second = Field.builder("color").addValue("blue").localizedLabel("nl", "Tint").localizedLabel("de", "Farbe").build();
+
+        // Execute system under test.
+        final Field result = first.withValuesOf(second);
+
+        // Verify results.
+        assertEquals( Arrays.asList("red", "blue"), result.getValues() );
+        assertEquals( "Kleur", result.getLabel("nl") );
+        assertEquals( "Farbe", result.getLabel("de") );
+    }
+
+    /**
+     * Verifies that localized labels survive serialization.
+     */
+    @Test
+    public void testSerializationRetainsLabels() throws Exception
+    {
+        // Setup test fixture.
+        final ExtDataForm input = new ExtDataForm("test", Collections.singletonList(Field.builder("color").label("Colour").addValue("red").localizedLabel("nl", "Kleur").build()));
+
+        // Execute system under test.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( final ObjectOutputStream out = new ObjectOutputStream(bytes) )
+        {
+            out.writeObject(input);
+        }
+        final ExtDataForm result;
+        try ( final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) )
+        {
+            result = (ExtDataForm) in.readObject();
+        }
+
+        // Verify results.
+        assertEquals( input, result );
+        assertEquals( "Kleur", result.getField("color").getLabel("nl") );
+    }
+
+    /**
+     * Verifies that a form without localized labels is not copied when it is localized.
+     */
+    @Test
+    public void testLocalizeWithoutLabelsReturnsSameInstance()
+    {
+        // Setup test fixture.
+        final ExtDataForm form = new ExtDataForm("test", Collections.singletonList(new Field("color", "Colour", "red")));
+
+        // Execute system under test & verify results.
+        assertSame( form, form.localize("nl") );
+        assertSame( form, form.localize(null) );
+    }
+
+    /**
+     * Verifies that a form is not copied for a language for which none of its fields have a label.
+     */
+    @Test
+    public void testLocalizeUnknownLanguageReturnsSameInstance()
+    {
+        // Setup test fixture.
+        final ExtDataForm form = new ExtDataForm("test", Collections.singletonList(Field.builder("color").label("Colour").localizedLabel("nl", "Kleur").build()));
+
+        // Execute system under test & verify results.
+        assertSame( form, form.localize("fr") );
+    }
+
+    /**
+     * Verifies that a localized variant of a form uses the localized labels, and is reused for subsequent requests.
+     */
+    @Test
+    public void testLocalizedVariantIsCached()
+    {
+        // Setup test fixture.
+        final ExtDataForm form = new ExtDataForm("test", Collections.singletonList(Field.builder("color").label("Colour").addValue("red").localizedLabel("nl", "Kleur").build()));
+
+        // Execute system under test.
+        final ExtDataForm first = form.localize("nl");
+        final ExtDataForm second = form.localize("nl");
+
+        // Verify results.
+        assertEquals( "Kleur", first.getField("color").getLabel() );
+        assertEquals( Collections.singletonList("red"), first.getField("color").getValues() );
+        assertSame( first, second );
+    }
+
+    /**
+     * Verifies that no more localized variants are cached than configured.
+     */
+    @Test
+    public void testLocalizedVariantsAreBounded()
+    {
+        // Setup test fixture.
+        Localization.MAX_VARIANTS.setValue(1);
+        final ExtDataForm form = new ExtDataForm("test", Collections.singletonList(Field.builder("color").label("Colour").localizedLabel("nl", "Kleur").localizedLabel("de", "Farbe").build()));
+        form.localize("nl");
+
+        // Execute system under test.
+        final ExtDataForm first = form.localize("de");
+        final ExtDataForm second = form.localize("de");
+
+        // Verify results.
+        assertEquals( "Farbe", first.getField("color").getLabel() );
+        assertEquals( first, second );
+        assertNotSame( first, second );
+        assertSame( form.localize("nl"), form.localize("nl") );
+    }
+
+    /**
+     * Verifies that the language of a request is only used for the sender and addressee of that request.
+     */
+    @Test
+    public void testRequestLanguageMatchesRequest()
+    {
+        // Setup test fixture.
+        final JID sender = new JID("john", "example.org", "phone");
+        final JID room = new JID("room", "conference.example.org", null);
+        Localization.begin(sender, room, "NL_be");
+
+        // Execute system under test & verify results.
+        assertEquals( "nl-be", Localization.getRequestLanguage(sender, room) );
+        assertNull( Localization.getRequestLanguage(new JID("jane", "example.org", "phone"), room) );
+        assertNull( Localization.getRequestLanguage(sender, new JID("other", "conference.example.org", null)) );
+
+        Localization.end();
+        assertNull( Localization.getRequestLanguage(sender, room) );
+    }
+
+    /**
+     * Verifies that setting and removing a label in cached data affects only the targeted field, and retains the order
+     * of fields.
+     */
+    @Test
+    public void testPatchSetLabel()
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> forms = Collections.singletonList(new ExtDataForm("test", Arrays.asList(new Field("a", "A", "1"), new Field("b", "B", "2"))));
+
+        // Execute system under test.
+        final List<ExtDataForm> added = DAO.patchSetLabel(forms, "test", "a", "nl", "Aa");
+        final List<ExtDataForm> removed = DAO.patchSetLabel(added, "test", "a", "nl", null);
+        final List<ExtDataForm> missing = DAO.patchSetLabel(forms, "test", "c", "nl", "Cc");
+
+        // Verify results.
+        assertEquals( "Aa", added.get(0).getField("a").getLabel("nl") );
+        assertEquals( "B", added.get(0).getField("b").getLabel("nl") );
+        assertEquals( "a", added.get(0).getFields().get(0).getVarName() );
+        assertEquals( forms, removed );
+        assertEquals( forms, missing );
+    }
+
+    /**
+     * Verifies that labels loaded from the database are only retained for fields that exist.
+     */
+    @Test
+    public void testLabelRowsForMissingFieldsAreIgnored()
+    {
+        // Setup test fixture.
+        final ArrayList<Field> rows = new ArrayList<>(Collections.singletonList(new Field("a", "A", "1")));
+
+        // Execute system under test.
+        DAO.addLabelRow(rows, "a", "nl", "Aa");
+        DAO.addLabelRow(rows, "b", "nl", "Bb");
+        DAO.addLabelRow(null, "a", "de", "Ah");
+
+        // Verify results.
+        final ExtDataForm result = new ExtDataForm("test", rows);
+        assertEquals( 1, result.getFields().size() );
+        assertEquals( "Aa", result.getField("a").getLabel("nl") );
+    }
+}
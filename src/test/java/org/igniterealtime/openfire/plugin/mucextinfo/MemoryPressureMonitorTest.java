@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link MemoryPressureMonitor} removes the cached data that was least recently used.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class MemoryPressureMonitorTest
+{
+    private static final JID COLD = new JID("cold", "a.example.org", null);
+    private static final JID WARM = new JID("warm", "b.example.org", null);
+    private static final JID HOT = new JID("hot", "a.example.org", null);
+
+    private MemoryPressureMonitor monitor;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        monitor = new MemoryPressureMonitor();
+        for ( final JID room : new JID[] { COLD, WARM, HOT } )
+        {
+            CachePartitions.getInstance().get(room).put(room, new CachedForms(0, CacheableOptional.of(null)));
+            Thread.sleep(2);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        CachePartitions.getInstance().stop();
+    }
+
+    /**
+     * Verifies that the entries that have not been accessed for the longest time are removed first, over all
+     * partitions, until the requested part of the cache has been removed.
+     */
+    @Test
+    public void testShedsLeastRecentlyUsed() throws Exception
+    {
+        // Setup test fixture.
+        CachePartitions.getInstance().get(COLD).get(COLD).markAccessed();
+        final long weight = CachePartitions.getInstance().getWeight();
+
+        // Execute system under test.
+        final long result = monitor.shed(0.5);
+
+        // Verify results.
+        assertTrue( CachePartitions.getInstance().get(COLD).containsKey(COLD) );
+        assertFalse( CachePartitions.getInstance().get(WARM).containsKey(WARM) );
+        assertFalse( CachePartitions.getInstance().get(HOT).containsKey(HOT) );
+        assertEquals( weight - result, CachePartitions.getInstance().getWeight() );
+        assertEquals( 1, monitor.getShedCount() );
+        assertEquals( 2, monitor.getShedEntries() );
+        assertEquals( result, monitor.getShedBytes() );
+    }
+
+    /**
+     * Verifies that of many entries, those that were accessed longest ago are removed, and those that were accessed most
+     * recently are retained.
+     */
+    @Test
+    public void testShedsOldestOfManyEntries() throws Exception
+    {
+        // Setup test fixture.
+        final List<JID> rooms = new ArrayList<>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            final JID room = new JID("room" + i, "c.example.org", null);
+            CachePartitions.getInstance().get(room).put(room, new CachedForms(0, CacheableOptional.of(null)));
+            rooms.add(room);
+            Thread.sleep(1);
+        }
+
+        // Execute system under test.
+        final long result = monitor.shed(0.5);
+
+        // Verify results.
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertFalse( CachePartitions.getInstance().get(rooms.get(i)).containsKey(rooms.get(i)) );
+            assertTrue( CachePartitions.getInstance().get(rooms.get(99 - i)).containsKey(rooms.get(99 - i)) );
+        }
+        assertTrue( result * 2 >= CachePartitions.getInstance().getWeight() + result );
+    }
+
+    /**
+     * Verifies that removing everything empties all partitions.
+     */
+    @Test
+    public void testShedAll() throws Exception
+    {
+        // Execute system under test.
+        monitor.shed(1.0);
+
+        // Verify results.
+        assertEquals( 0, CachePartitions.getInstance().size() );
+        assertEquals( 0, CachePartitions.getInstance().getWeight() );
+        assertEquals( 3, monitor.getShedEntries() );
+    }
+
+    /**
+     * Verifies that the collection usage threshold of a memory pool that was already set by something else is left
+     * alone, and that thresholds that were applied are reset when the monitor is stopped.
+     */
+    @Test
+    public void testRetainsThresholdsOfOthers() throws Exception
+    {
+        // Setup test fixture.
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            if ( pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0 && pool.getCollectionUsageThreshold() == 0 )
+            {
+                pools.add(pool);
+            }
+        }
+        Assume.assumeTrue( "This JVM has fewer than two heap memory pools that support a collection usage threshold.", pools.size() >= 2 );
+        final MemoryPoolMXBean taken = pools.get(0);
+        final MemoryPoolMXBean free = pools.get(1);
+        final long threshold = taken.getUsage().getMax() / 2;
+        taken.setCollectionUsageThreshold(threshold);
+        MemoryPressureMonitor.ENABLED.setValue(true);
+
+        try
+        {
+            // Execute system under test.
+            monitor.start();
+            final long takenWhileStarted = taken.getCollectionUsageThreshold();
+            final long freeWhileStarted = free.getCollectionUsageThreshold();
+            monitor.stop();
+
+            // Verify results.
+            assertEquals( threshold, takenWhileStarted );
+            assertNotEquals( 0, freeWhileStarted );
+            assertEquals( threshold, taken.getCollectionUsageThreshold() );
+            assertEquals( 0, free.getCollectionUsageThreshold() );
+        }
+        finally
+        {
+            MemoryPressureMonitor.ENABLED.setValue(MemoryPressureMonitor.ENABLED.getDefaultValue());
+            taken.setCollectionUsageThreshold(0);
+        }
+    }
+}
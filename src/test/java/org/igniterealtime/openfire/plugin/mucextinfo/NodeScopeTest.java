@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.InitializationException;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify how data forms are scoped to service discovery nodes, as implemented by {@link DAO} and
+ * {@link DiscoInfoProviderProxy}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class NodeScopeTest
+{
+    @BeforeClass
+    public static void beforeClass()
+    {
+        try {
+            // The DAO class references a cache, which needs to be constructed for the implementation-under-test to be
+            // initialized.
+            CacheFactory.initialize();
+        } catch ( InitializationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Verifies that data forms for requests without a node are cached under the address of the room itself.
+     */
+    @Test
+    public void testCacheKeyWithoutNodeIsRoom()
+    {
+        // Setup test fixture.
+        final JID room = new JID("room@conference.example.org");
+
+        // Execute system under test.
+        final JID result = DAO.cacheKey(room, null);
+
+        // Verify results.
+        assertSame( room, result );
+    }
+
+    /**
+     * Verifies that the cache keys of different nodes of a room are distinct from each other, and from that of the room.
+     */
+    @Test
+    public void testCacheKeysOfNodesAreDistinct()
+    {
+        // Setup test fixture.
+        final JID room = new JID("room@conference.example.org");
+
+        // Execute system under test.
+        final JID first = DAO.cacheKey(room, "http://jabber.org/protocol/commands");
+        final JID second = DAO.cacheKey(room, "urn:example:schedule");
+
+        // Verify results.
+        assertNotEquals( room, first );
+        assertNotEquals( first, second );
+        assertEquals( first, DAO.cacheKey(room, "http://jabber.org/protocol/commands") );
+        assertEquals( room, first.asBareJID() );
+    }
+
+    /**
+     * Verifies that purging the cached data of a node of the service does not invalidate the data forms of the service.
+     */
+    @Test
+    public void testPurgeOfNodeRetainsServiceDefaultsVersion()
+    {
+        // Setup test fixture.
+        final JID service = new JID(null, "nodes.example.org", null);
+        final long before = DAO.getServiceDefaultsVersion("nodes.example.org");
+
+        // Execute system under test.
+        DAO.purgeCache(DAO.cacheKey(service, "urn:example"));
+
+        // Verify results.
+        assertEquals( before, DAO.getServiceDefaultsVersion("nodes.example.org") );
+    }
+
+    /**
+     * Verifies that blank nodes are treated as the absence of a node.
+     */
+    @Test
+    public void testNormalizeNode()
+    {
+        // Execute system under test & verify results.
+        assertNull( DAO.normalizeNode(null) );
+        assertNull( DAO.normalizeNode("") );
+        assertNull( DAO.normalizeNode("  ") );
+        assertEquals( "urn:example", DAO.normalizeNode("urn:example") );
+    }
+
+    /**
+     * Verifies that entity capabilities nodes are recognized, and other nodes are not.
+     */
+    @Test
+    public void testIsCapsNode()
+    {
+        // Execute system under test & verify results.
+        assertTrue( DiscoInfoProviderProxy.isCapsNode("http://www.igniterealtime.org/projects/openfire/#QgayPKawpkPSDYmwT/WM94uAlu0=") );
+        assertTrue( DiscoInfoProviderProxy.isCapsNode("https://example.org#o4ivm0pR0k3DfAqQVK1vA3dUbJp1khDWDvDrCDkQU6c=") );
+        assertFalse( DiscoInfoProviderProxy.isCapsNode(null) );
+        assertFalse( DiscoInfoProviderProxy.isCapsNode("http://jabber.org/protocol/commands") );
+        assertFalse( DiscoInfoProviderProxy.isCapsNode("http://jabber.org/protocol/muc#rooms") );
+        assertFalse( DiscoInfoProviderProxy.isCapsNode("urn:example#not-a-hash-but-long-enough!") );
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.CacheableOptional;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * A benchmark that compares keeping the data forms of many rooms on the heap with keeping them in the
+ * {@link OffHeapCache}. For both, it reports the amount of heap that is used, the duration of a full garbage
+ * collection (which grows with the amount of objects that are alive) and the latency of lookups (which, for the
+ * off-heap cache, includes decoding the data forms).
+ *
+ * This test is skipped unless the system property <tt>mucextinfo.offheap.benchmark</tt> is set to <tt>true</tt>, eg:
+ * <tt>mvn test -Dtest=OffHeapCacheBenchmarkTest -Dmucextinfo.offheap.benchmark=true -DargLine=-Xmx4g</tt>
+ *
+ * Other properties (all prefixed with <tt>mucextinfo.offheap.benchmark.</tt>): <tt>rooms</tt>, <tt>lookups</tt>,
+ * <tt>forms</tt> (per room) and <tt>fields</tt> (per form).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class OffHeapCacheBenchmarkTest
+{
+    private static final String SERVICE_DOMAIN = "conference.example.org";
+
+    private static final int ROOMS = Integer.getInteger("mucextinfo.offheap.benchmark.rooms", 1000000);
+    private static final int LOOKUPS = Integer.getInteger("mucextinfo.offheap.benchmark.lookups", 1000000);
+    private static final int FORMS = Integer.getInteger("mucextinfo.offheap.benchmark.forms", 1);
+    private static final int FIELDS = Integer.getInteger("mucextinfo.offheap.benchmark.fields", 3);
+
+    @Before
+    public void setUp()
+    {
+        Assume.assumeTrue( "Benchmark is disabled. Set system property 'mucextinfo.offheap.benchmark' to 'true' to enable.", Boolean.getBoolean("mucextinfo.offheap.benchmark") );
+    }
+
+    @After
+    public void tearDown()
+    {
+        OffHeapCache.ENABLED.setValue(false);
+        OffHeapCache.CAPACITY.setValue(OffHeapCache.CAPACITY.getDefaultValue());
+        OffHeapCache.getInstance().close();
+    }
+
+    @Test
+    public void testCompareHeapAndOffHeap()
+    {
+        System.out.println("Benchmarking " + ROOMS + " rooms (" + FORMS + " forms of " + FIELDS + " fields each), " + LOOKUPS + " lookups.");
+        System.out.println("tier       heap(MB)  off-heap(MB)  full-gc(ms)  p50(us)  p99(us)  p999(us)");
+
+        // Execute system under test.
+        final long heapUsed = measureOnHeap();
+        final long offHeapUsed = measureOffHeap();
+
+        // Verify results.
+        final OffHeapCache cache = OffHeapCache.getInstance();
+        assertEquals( "Not all rooms fit in the off-heap cache.", ROOMS, cache.getSize() );
+        assertEquals( forms(ROOMS - 1), cache.get(room(ROOMS - 1)).getForms().get() );
+        assertTrue( "The off-heap cache should use less heap than keeping all rooms on the heap.", offHeapUsed < heapUsed );
+    }
+
+    /**
+     * Keeps every room as objects on the heap, and reports the cost of that.
+     *
+     * @return the amount of heap used to hold the data forms of all rooms.
+     */
+    private static long measureOnHeap()
+    {
+        final long baseline = usedHeap();
+        final Map<JID, CachedForms> heap = new HashMap<>();
+        for ( int r = 0; r < ROOMS; r++ )
+        {
+            heap.put(room(r), new CachedForms(0, CacheableOptional.of(forms(r))));
+        }
+        final long used = usedHeap() - baseline;
+        final long gc = fullGcMillis();
+        final long[] latencies = lookups(r -> heap.get(room(r)));
+        report("on-heap", used, 0, gc, latencies);
+        assertEquals( ROOMS, heap.size() );
+        return used;
+    }
+
+    /**
+     * Keeps every room in the off-heap cache, and reports the cost of that.
+     *
+     * @return the amount of heap used by the off-heap cache to hold the data forms of all rooms.
+     */
+    private static long measureOffHeap()
+    {
+        final long baseline = usedHeap();
+        OffHeapCache.ENABLED.setValue(true);
+        OffHeapCache.CAPACITY.setValue((int) Math.min(OffHeapCache.CAPACITY.getDefaultValue() * 64L, Math.max(OffHeapCache.CAPACITY.getDefaultValue(), ROOMS / 2048L)));
+        final OffHeapCache cache = OffHeapCache.getInstance();
+        cache.configure();
+        for ( int r = 0; r < ROOMS; r++ )
+        {
+            cache.put(room(r), new CachedForms(0, CacheableOptional.of(forms(r))));
+        }
+        final long used = usedHeap() - baseline;
+        final long gc = fullGcMillis();
+        final long[] latencies = lookups(r -> cache.get(room(r)));
+        report("off-heap", used, cache.getAllocatedBytes(), gc, latencies);
+        return used;
+    }
+
+    private static JID room( final int index )
+    {
+        return new JID("room" + index, SERVICE_DOMAIN, null);
+    }
+
+    private static ArrayList<ExtDataForm> forms( final int index )
+    {
+        final ArrayList<ExtDataForm> result = new ArrayList<>(FORMS);
+        for ( int f = 0; f < FORMS; f++ )
+        {
+            final List<Field> fields = new ArrayList<>(FIELDS);
+            for ( int i = 0; i < FIELDS; i++ )
+            {
+                fields.add(new Field("var" + i, "Label " + i, "Value " + i + " of room " + index));
+            }
+            result.add(new ExtDataForm("urn:example:benchmark:" + f, fields));
+        }
+        return result;
+    }
+
+    /**
+     * Looks up random rooms, and returns the latency of each lookup, in nanoseconds, sorted.
+     */
+    private static long[] lookups( final IntFunction<Object> lookup )
+    {
+        final long[] result = new long[LOOKUPS];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for ( int i = 0; i < LOOKUPS; i++ )
+        {
+            final int room = random.nextInt(ROOMS);
+            final long start = System.nanoTime();
+            final Object value = lookup.apply(room);
+            result[i] = System.nanoTime() - start;
+            assertNotNull( value );
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long usedHeap()
+    {
+        fullGcMillis();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Requests a full garbage collection, and returns the time that the collectors report to have spent on it.
+     */
+    private static long fullGcMillis()
+    {
+        final long before = gcMillis();
+        System.gc();
+        return gcMillis() - before;
+    }
+
+    private static long gcMillis()
+    {
+        long result = 0;
+        for ( final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            result += Math.max(0, bean.getCollectionTime());
+        }
+        return result;
+    }
+
+    private static void report( final String tier, final long heapBytes, final long offHeapBytes, final long gcMillis, final long[] latencies )
+    {
+        System.out.println(String.format("%-9s  %8d  %12d  %11d  %7.1f  %7.1f  %8.1f",
+            tier,
+            heapBytes / (1024 * 1024),
+            offHeapBytes / (1024 * 1024),
+            gcMillis,
+            latencies[latencies.length / 2] / 1000.0,
+            latencies[(int) (latencies.length * 0.99)] / 1000.0,
+            latencies[(int) (latencies.length * 0.999)] / 1000.0));
+    }
+}
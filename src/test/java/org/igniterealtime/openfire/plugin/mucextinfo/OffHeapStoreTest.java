@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link OffHeapStore} and of the encoding used by {@link OffHeapCache}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class OffHeapStoreTest
+{
+    /**
+     * Verifies that values are returned for the keys that they were stored for, and that replacing and removing values
+     * has the expected effect.
+     */
+    @Test
+    public void testPutGetReplaceRemove()
+    {
+        // Setup test fixture.
+        final OffHeapStore store = new OffHeapStore(4096, 4);
+
+        // Execute system under test.
+        store.put(bytes("a"), bytes("first"));
+        store.put(bytes("b"), bytes("second"));
+        store.put(bytes("a"), bytes("replaced"));
+        store.remove(bytes("b"));
+
+        // Verify results.
+        assertArrayEquals( bytes("replaced"), store.get(bytes("a")) );
+        assertNull( store.get(bytes("b")) );
+        assertFalse( store.containsKey(bytes("b")) );
+        assertNull( store.get(bytes("c")) );
+        assertEquals( 1, store.size() );
+    }
+
+    /**
+     * Verifies that many entries can be stored, which requires the index to grow, and that all of them can be found
+     * afterwards.
+     */
+    @Test
+    public void testIndexGrows()
+    {
+        // Setup test fixture.
+        final OffHeapStore store = new OffHeapStore(1024 * 1024, 2);
+        final int entries = 20000;
+
+        // Execute system under test.
+        for ( int i = 0; i < entries; i++ )
+        {
+            assertTrue( store.put(bytes("room" + i + "@conference.example.org"), bytes("value " + i)) );
+        }
+
+        // Verify results.
+        assertEquals( entries, store.size() );
+        for ( int i = 0; i < entries; i++ )
+        {
+            assertArrayEquals( bytes("value " + i), store.get(bytes("room" + i + "@conference.example.org")) );
+        }
+    }
+
+    /**
+     * Verifies that when all segments are full, the oldest entries are evicted, while the most recently written
+     * entries (including entries that replaced older ones) remain available.
+     */
+    @Test
+    public void testOldestSegmentIsEvicted()
+    {
+        // Setup test fixture.
+        final int segmentSize = 1024;
+        final OffHeapStore store = new OffHeapStore(segmentSize, 2);
+        final byte[] value = new byte[100];
+        store.put(bytes("kept"), value);
+
+        // Execute system under test.
+        for ( int i = 0; i < 30; i++ )
+        {
+            store.put(bytes("key" + i), value);
+            if ( i % 5 == 0 )
+            {
+                // Rewriting an entry moves it to the segment that is currently being filled.
+                store.put(bytes("kept"), value);
+            }
+        }
+
+        // Verify results.
+        assertNull( "The oldest entries should have been evicted.", store.get(bytes("key0")) );
+        assertNotNull( store.get(bytes("key29")) );
+        assertNotNull( store.get(bytes("kept")) );
+        assertTrue( store.size() <= 2 * segmentSize / (8 + 5 + value.length) );
+        assertEquals( 2L * segmentSize, store.getAllocatedBytes() );
+    }
+
+    /**
+     * Verifies that an entry that is larger than a segment is not stored, and that it removes any previous value for
+     * the same key (which would otherwise be stale).
+     */
+    @Test
+    public void testTooLargeEntryIsNotStored()
+    {
+        // Setup test fixture.
+        final OffHeapStore store = new OffHeapStore(256, 2);
+        store.put(bytes("a"), bytes("small"));
+
+        // Execute system under test.
+        final boolean result = store.put(bytes("a"), new byte[256]);
+
+        // Verify results.
+        assertFalse( result );
+        assertNull( store.get(bytes("a")) );
+    }
+
+    /**
+     * Verifies that clearing the store removes all entries, and that the store can be used afterwards.
+     */
+    @Test
+    public void testClear()
+    {
+        // Setup test fixture.
+        final OffHeapStore store = new OffHeapStore(4096, 2);
+        store.put(bytes("a"), bytes("1"));
+        store.put(bytes("b"), bytes("2"));
+
+        // Execute system under test.
+        store.clear();
+        store.put(bytes("c"), bytes("3"));
+
+        // Verify results.
+        assertNull( store.get(bytes("a")) );
+        assertNull( store.get(bytes("b")) );
+        assertArrayEquals( bytes("3"), store.get(bytes("c")) );
+        assertEquals( 1, store.size() );
+    }
+
+    /**
+     * Verifies that data forms, including their order, localized labels and generation, survive encoding and decoding,
+     * and that a room without data forms is decoded as such.
+     */
+    @Test
+    public void testEncodingRoundTrip() throws Exception
+    {
+        // Setup test fixture.
+        final ArrayList<ExtDataForm> forms = new ArrayList<>(Arrays.asList(
+            new ExtDataForm("urn:example:a", Arrays.asList(Field.builder("zulu").label("Zulu").addValue("2").addValue("1").localizedLabel("nl", "Zoeloe").build(), new Field("alpha", null, "x"))),
+            new ExtDataForm("urn:example:b")));
+
+        // Execute system under test.
+        final CachedForms result = OffHeapCache.decode(OffHeapCache.encode(42, forms));
+        final CachedForms empty = OffHeapCache.decode(OffHeapCache.encode(-1, null));
+
+        // Verify results.
+        assertEquals( 42, result.getGeneration() );
+        assertEquals( forms, result.getForms().get() );
+        assertEquals( "Zoeloe", result.getForms().get().get(0).getField("zulu").getLabel("nl") );
+        assertEquals( -1, empty.getGeneration() );
+        assertNull( empty.getForms().get() );
+    }
+
+    /**
+     * Verifies that the cache keys of a room and of a node of that room are distinct.
+     */
+    @Test
+    public void testKeysOfNodesAreDistinct()
+    {
+        // Setup test fixture.
+        final JID room = new JID("room", "conference.example.org", null);
+        final JID node = new JID("room", "conference.example.org", "urn:example:node", true);
+
+        // Execute system under test & verify results.
+        assertFalse( Arrays.equals(OffHeapCache.encodeKey(room), OffHeapCache.encodeKey(node)) );
+    }
+
+    private static byte[] bytes( final String value )
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the routing decisions of {@link ReadReplica}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class ReadReplicaTest
+{
+    private static final JID ROOM_A = new JID("a", "conference.example.org", null);
+    private static final JID ROOM_B = new JID("b", "conference.example.org", null);
+
+    /**
+     * Verifies that nothing is read from a replica when none is configured.
+     */
+    @Test
+    public void testNotEligibleWhenNotConfigured()
+    {
+        // Setup test fixture.
+        final ReadReplica replica = new ReadReplica();
+
+        // Execute system under test.
+        final boolean result = replica.isEligible(Collections.singleton(ROOM_A), 0);
+
+        // Verify results.
+        assertFalse( result );
+    }
+
+    /**
+     * Verifies that a room that was recently modified is read from the primary database, until the read-your-writes
+     * window has passed, while other rooms are read from the replica.
+     */
+    @Test
+    public void testReadYourWrites()
+    {
+        // Setup test fixture.
+        final ReadReplica replica = new ReadReplica();
+        replica.setDataSource(createDataSource());
+        final long now = 1_000_000L;
+        final long window = ReadReplica.READ_YOUR_WRITES_WINDOW.getValue().toNanos();
+
+        // Execute system under test.
+        replica.recordWrite(ROOM_A, now);
+
+        // Verify results.
+        assertFalse( replica.isEligible(Collections.singleton(ROOM_A), now + 1) );
+        assertFalse( replica.isEligible(Arrays.asList(ROOM_B, ROOM_A), now + 1) );
+        assertTrue( replica.isEligible(Collections.singleton(ROOM_B), now + 1) );
+        assertTrue( replica.isEligible(Collections.singleton(ROOM_A), now + window + 1) );
+    }
+
+    /**
+     * Verifies that after a failure, reads are performed on the primary database until the retry interval has passed,
+     * and that a successful read restores the replica.
+     */
+    @Test
+    public void testFallbackAfterFailure()
+    {
+        // Setup test fixture.
+        final ReadReplica replica = new ReadReplica();
+        replica.setDataSource(createDataSource());
+        final long now = 1_000_000L;
+        final long retry = ReadReplica.RETRY_INTERVAL.getValue().toNanos();
+
+        // Execute system under test.
+        replica.reportFailure(new SQLException("test"), now);
+
+        // Verify results.
+        assertFalse( replica.isEligible(Collections.singleton(ROOM_A), now + 1) );
+        assertTrue( replica.isEligible(Collections.singleton(ROOM_A), now + retry + 1) );
+        replica.reportSuccess();
+        assertTrue( replica.isEligible(Collections.singleton(ROOM_A), now + 1) );
+        assertEquals( 1, replica.getFailureCount() );
+        assertEquals( 1, replica.getReplicaReadCount() );
+    }
+
+    /**
+     * Verifies that passwords are removed from a JDBC URL before it is logged.
+     */
+    @Test
+    public void testMaskCredentials()
+    {
+        // Execute system under test.
+        final String query = ReadReplica.maskCredentials("jdbc:postgresql://replica/openfire?user=of&password=secret&ssl=true");
+        final String properties = ReadReplica.maskCredentials("jdbc:sqlserver://replica;databaseName=openfire;PWD=secret");
+
+        // Verify results.
+        assertEquals( "jdbc:postgresql://replica/openfire?user=of&password=***&ssl=true", query );
+        assertEquals( "jdbc:sqlserver://replica;databaseName=openfire;PWD=***", properties );
+    }
+
+    private static DataSource createDataSource()
+    {
+        return (DataSource) Proxy.newProxyInstance(ReadReplicaTest.class.getClassLoader(), new Class<?>[] { DataSource.class }, (proxy, method, args) -> {
+            throw new SQLException("Not connected to a database.");
+        });
+    }
+}
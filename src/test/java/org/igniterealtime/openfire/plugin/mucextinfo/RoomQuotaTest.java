@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link RoomQuota} and {@link RoomUsage}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class RoomQuotaTest
+{
+    private static final JID ROOM = new JID("room", "conference.example.org", null);
+
+    @After
+    public void tearDown()
+    {
+        RoomQuota.MAX_FORMS.setValue(RoomQuota.MAX_FORMS.getDefaultValue());
+        RoomQuota.MAX_FIELDS.setValue(RoomQuota.MAX_FIELDS.getDefaultValue());
+        RoomQuota.MAX_VALUES.setValue(RoomQuota.MAX_VALUES.getDefaultValue());
+        RoomQuota.MAX_BYTES.setValue(RoomQuota.MAX_BYTES.getDefaultValue());
+    }
+
+    /**
+     * Verifies that the size estimate of a data form equals the size of its XML representation.
+     */
+    @Test
+    public void testEstimateMatchesXml()
+    {
+        // Setup test fixture.
+        final ExtDataForm form = ExtDataForm.builder("urn:example")
+            .addField(new Field("plain", null, "a value"))
+            .addField(new Field("escaped", "Tom & \"Jerry\"", "<b>", "caf\u00e9 \u20ac \ud83d\ude00"))
+            .build();
+        final String xml = "<x xmlns=\"jabber:x:data\" type=\"result\">"
+            + "<field var=\"FORM_TYPE\" type=\"hidden\"><value>urn:example</value></field>"
+            + "<field var=\"plain\"><value>a value</value></field>"
+            + "<field var=\"escaped\" label=\"Tom &amp; &quot;Jerry&quot;\"><value>&lt;b&gt;</value><value>caf\u00e9 \u20ac \ud83d\ude00</value></field>"
+            + "</x>";
+
+        // Execute system under test.
+        final int result = form.getEstimatedSize();
+
+        // Verify results.
+        assertEquals( xml.getBytes(StandardCharsets.UTF_8).length, result );
+    }
+
+    /**
+     * Verifies that the usage of a room counts its forms, fields and values.
+     */
+    @Test
+    public void testUsageCountsFormsFieldsAndValues()
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> forms = Arrays.asList(
+            ExtDataForm.builder("a").addField(new Field("one", null, "1", "2")).addField(new Field("two", null)).build(),
+            new ExtDataForm("b"));
+
+        // Execute system under test.
+        final RoomUsage result = RoomUsage.of(forms);
+
+        // Verify results.
+        assertEquals( 2, result.getForms() );
+        assertEquals( 2, result.getFields() );
+        assertEquals( 2, result.getValues() );
+        assertEquals( forms.get(0).getEstimatedSize() + forms.get(1).getEstimatedSize(), result.getBytes() );
+    }
+
+    /**
+     * Verifies that a modification that causes a room to exceed a limit is rejected.
+     */
+    @Test
+    public void testExceedingLimitIsRejected()
+    {
+        // Setup test fixture.
+        RoomQuota.MAX_VALUES.setValue(2);
+        final List<ExtDataForm> before = Collections.singletonList(ExtDataForm.builder("a").addField(new Field("one", null, "1", "2")).build());
+        final List<ExtDataForm> after = DAO.patchAddField(before, "a", new Field("one", null, "3"));
+
+        // Execute system under test.
+        try
+        {
+            RoomQuota.check(ROOM, RoomUsage.of(before), RoomUsage.of(after));
+            fail("A quota exception was expected.");
+        }
+        catch ( QuotaExceededException e )
+        {
+            // Verify results.
+            assertEquals( ROOM, e.getRoom() );
+            assertEquals( 2, e.getLimit() );
+            assertEquals( 3, e.getRequested() );
+        }
+    }
+
+    /**
+     * Verifies that a room that already exceeds a limit can still be modified in ways that do not make it grow beyond
+     * that limit.
+     */
+    @Test
+    public void testNonGrowingQuantityIsNotChecked() throws Exception
+    {
+        // Setup test fixture.
+        RoomQuota.MAX_FORMS.setValue(1);
+        final List<ExtDataForm> before = Arrays.asList(new ExtDataForm("a"), new ExtDataForm("b"));
+        final List<ExtDataForm> after = DAO.patchAddField(before, "a", new Field("one", null, "1"));
+
+        // Execute system under test.
+        RoomQuota.check(ROOM, RoomUsage.of(before), RoomUsage.of(after));
+    }
+
+    /**
+     * Verifies that a limit of zero disables that limit.
+     */
+    @Test
+    public void testZeroDisablesLimit() throws Exception
+    {
+        // Setup test fixture.
+        RoomQuota.MAX_BYTES.setValue(0);
+        final List<ExtDataForm> after = Collections.singletonList(ExtDataForm.builder("a").addField(new Field("big", null, new String(new char[100_000]).replace('\0', 'x'))).build());
+
+        // Execute system under test.
+        RoomQuota.check(ROOM, RoomUsage.EMPTY, RoomUsage.of(after));
+    }
+}
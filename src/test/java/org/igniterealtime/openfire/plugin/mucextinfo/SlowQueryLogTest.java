@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link SlowQueryLog}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class SlowQueryLogTest
+{
+    @Before
+    public void setUp()
+    {
+        SlowQueryLog.clear();
+    }
+
+    @After
+    public void tearDown()
+    {
+        SlowQueryLog.THRESHOLD.setValue(SlowQueryLog.THRESHOLD.getDefaultValue());
+        SlowQueryLog.CAPACITY.setValue(SlowQueryLog.CAPACITY.getDefaultValue());
+        SlowQueryLog.clear();
+    }
+
+    /**
+     * Verifies that statements that are faster than the threshold are counted, but not kept.
+     */
+    @Test
+    public void testFastStatementIsNotKept()
+    {
+        // Setup test fixture.
+        SlowQueryLog.THRESHOLD.setValue(Duration.ofMillis(100));
+
+        // Execute system under test.
+        SlowQueryLog.recordElapsed("SELECT 1", "room@conference.example.org", 1, Duration.ofMillis(99).toNanos());
+
+        // Verify results.
+        assertEquals( 1, SlowQueryLog.getStatementCount() );
+        assertEquals( 0, SlowQueryLog.getSlowStatementCount() );
+        assertTrue( SlowQueryLog.getRecent().isEmpty() );
+    }
+
+    /**
+     * Verifies that statements that exceed the threshold are kept, with their room, row count and duration.
+     */
+    @Test
+    public void testSlowStatementIsKept()
+    {
+        // Setup test fixture.
+        SlowQueryLog.THRESHOLD.setValue(Duration.ofMillis(100));
+
+        // Execute system under test.
+        SlowQueryLog.recordElapsed("SELECT 1", "room@conference.example.org", 42, Duration.ofMillis(150).toNanos());
+
+        // Verify results.
+        assertEquals( 1, SlowQueryLog.getSlowStatementCount() );
+        final List<SlowQueryLog.Entry> result = SlowQueryLog.getRecent();
+        assertEquals( 1, result.size() );
+        assertEquals( "SELECT 1", result.get(0).getStatement() );
+        assertEquals( "room@conference.example.org", result.get(0).getRoom() );
+        assertEquals( 42, result.get(0).getRows() );
+        assertEquals( 150, result.get(0).getMillis() );
+    }
+
+    /**
+     * Verifies that no more slow statements are kept than configured, and that the most recent ones are retained.
+     */
+    @Test
+    public void testCapacityIsBounded()
+    {
+        // Setup test fixture.
+        SlowQueryLog.THRESHOLD.setValue(Duration.ZERO);
+        SlowQueryLog.CAPACITY.setValue(3);
+
+        // Execute system under test.
+        for ( int i = 0; i < 5; i++ )
+        {
+            SlowQueryLog.recordElapsed("SELECT " + i, null, i, 0);
+        }
+
+        // Verify results.
+        final List<SlowQueryLog.Entry> result = SlowQueryLog.getRecent();
+        assertEquals( 3, result.size() );
+        assertEquals( "SELECT 4", result.get(0).getStatement() );
+        assertEquals( "SELECT 2", result.get(2).getStatement() );
+        assertEquals( 5, SlowQueryLog.getSlowStatementCount() );
+    }
+}
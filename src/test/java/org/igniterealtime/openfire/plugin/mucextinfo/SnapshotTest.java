@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the data that is cached by {@link DAO} is written to, and restored from, a {@link Snapshot}, and that
+ * the snapshot is used when data can't be loaded from the database.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class SnapshotTest
+{
+    private static final JID ROOM_A = new JID("a@conference.example.org");
+    private static final JID ROOM_B = new JID("b@conference.example.org");
+    private static final JID ROOM_EMPTY = new JID("empty@conference.example.org");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedDatabase provider;
+
+    private Path file;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        CacheFactory.initialize();
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        provider = new EmbeddedDatabase(EmbeddedDatabase.createHsqldbUrl("snapshot"));
+        provider.install();
+        DAO.connectionProvider = provider;
+        DAO.purgeCache();
+        file = folder.getRoot().toPath().resolve("snapshot.bin");
+
+        DAO.addField(ROOM_A, "urn:example:a", "x", "Label", "1");
+        DAO.addField(ROOM_A, "urn:example:a", "x", "Label", "2");
+        DAO.addForm(ROOM_A, "node", "urn:example:node");
+        DAO.addField(ROOM_B, "urn:example:b", "y", null, "3");
+
+        DAO.purgeCache();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Snapshot.getInstance().close();
+        DAO.connectionProvider = null;
+        DAO.purgeCache();
+        provider.shutdown();
+    }
+
+    /**
+     * Verifies that data that was cached when a snapshot was written is cached again after the snapshot is loaded,
+     * without accessing the database.
+     */
+    @Test
+    public void testRestore() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> expectedA = DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        final List<ExtDataForm> expectedNode = DAO.retrieveExtensionElementsForNode(ROOM_A, "node");
+        final List<ExtDataForm> expectedB = DAO.retrieveExtensionElementsForRoom(ROOM_B);
+        assertNull( DAO.retrieveExtensionElementsForRoom(ROOM_EMPTY) );
+        assertTrue( Snapshot.getInstance().write(file) );
+        DAO.purgeCache();
+
+        // Execute system under test.
+        final boolean result = Snapshot.getInstance().load(file);
+
+        // Verify results.
+        assertTrue( result );
+        assertEquals( 4, Snapshot.getInstance().getRestoredCount() );
+        assertTrue( DAO.isCached(ROOM_A) );
+        assertTrue( DAO.isCached(ROOM_EMPTY) );
+        provider.setAvailable(false);
+        assertEquals( expectedA, DAO.retrieveExtensionElementsForRoom(ROOM_A) );
+        assertEquals( expectedNode, DAO.retrieveExtensionElementsForNode(ROOM_A, "node") );
+        assertEquals( expectedB, DAO.retrieveExtensionElementsForRoom(ROOM_B) );
+        assertNull( DAO.retrieveExtensionElementsForRoom(ROOM_EMPTY) );
+        assertEquals( 0, Snapshot.getInstance().getFallbackCount() );
+    }
+
+    /**
+     * Verifies that data of a room that was modified after a snapshot was written is not restored, including the data
+     * of the nodes of that room.
+     */
+    @Test
+    public void testModifiedRoomIsNotRestored() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        DAO.retrieveExtensionElementsForNode(ROOM_A, "node");
+        DAO.retrieveExtensionElementsForRoom(ROOM_B);
+        assertTrue( Snapshot.getInstance().write(file) );
+        DAO.addField(ROOM_A, "urn:example:a", "z", null, "4");
+        DAO.purgeCache();
+
+        // Execute system under test.
+        Snapshot.getInstance().load(file);
+
+        // Verify results.
+        assertFalse( DAO.isCached(ROOM_A) );
+        assertFalse( DAO.isCached(DAO.cacheKey(ROOM_A, "node")) );
+        assertTrue( DAO.isCached(ROOM_B) );
+        assertNotNull( DAO.retrieveExtensionElementsForRoom(ROOM_A).get(0).getField("z") );
+    }
+
+    /**
+     * Verifies that a snapshot that is not intact is not used.
+     */
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        assertTrue( Snapshot.getInstance().write(file) );
+        DAO.purgeCache();
+        final byte[] content = Files.readAllBytes(file);
+        content[content.length / 2] ^= 0x01;
+        Files.write(file, content);
+
+        // Execute system under test.
+        final boolean result = Snapshot.getInstance().load(file);
+
+        // Verify results.
+        assertFalse( result );
+        assertFalse( Snapshot.getInstance().isLoaded() );
+        assertFalse( DAO.isCached(ROOM_A) );
+    }
+
+    /**
+     * Verifies that when data can't be loaded from the database, the data of the snapshot is returned, and that the
+     * failure is not cached.
+     */
+    @Test
+    public void testFallbackWhenDatabaseFails() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> expectedA = DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        assertTrue( Snapshot.getInstance().write(file) );
+        assertTrue( Snapshot.getInstance().load(file) );
+        DAO.purgeCache();
+        provider.setAvailable(false);
+
+        // Execute system under test.
+        final List<ExtDataForm> resultA = DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        final List<ExtDataForm> resultB = DAO.retrieveExtensionElementsForRoom(ROOM_B);
+        final List<ExtDataForm> resultBatch = DAO.retrieveExtensionElementsForRooms(Arrays.asList(ROOM_A, ROOM_B)).get(ROOM_A);
+
+        // Verify results.
+        assertEquals( expectedA, resultA );
+        assertEquals( expectedA, resultBatch );
+        assertNull( resultB );
+        assertFalse( DAO.isCached(ROOM_A) );
+        assertFalse( DAO.isCached(ROOM_B) );
+        assertEquals( 2, Snapshot.getInstance().getFallbackCount() );
+        provider.setAvailable(true);
+        assertNotNull( DAO.retrieveExtensionElementsForRoom(ROOM_B) );
+    }
+
+    /**
+     * Verifies that the data of a room that is modified is no longer served from the snapshot.
+     */
+    @Test
+    public void testModificationInvalidatesFallback() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        assertTrue( Snapshot.getInstance().write(file) );
+        assertTrue( Snapshot.getInstance().load(file) );
+
+        // Execute system under test.
+        DAO.addField(ROOM_A, "urn:example:a", "z", null, "4");
+
+        // Verify results.
+        DAO.purgeCache();
+        provider.setAvailable(false);
+        assertNull( DAO.retrieveExtensionElementsForRoom(ROOM_A) );
+        assertEquals( 0, Snapshot.getInstance().getSize() );
+    }
+
+    /**
+     * Verifies that the snapshot file can be replaced while it is loaded, and that the data that was loaded from it
+     * remains available.
+     */
+    @Test
+    public void testFileCanBeReplacedWhileLoaded() throws Exception
+    {
+        // Setup test fixture.
+        final List<ExtDataForm> expectedA = DAO.retrieveExtensionElementsForRoom(ROOM_A);
+        assertTrue( Snapshot.getInstance().write(file) );
+        assertTrue( Snapshot.getInstance().load(file) );
+        DAO.purgeCache();
+
+        // Execute system under test.
+        final boolean rewritten = Snapshot.getInstance().write(file);
+        Files.write(file, new byte[0]);
+
+        // Verify results.
+        assertTrue( rewritten );
+        provider.setAvailable(false);
+        assertEquals( expectedA, DAO.retrieveExtensionElementsForRoom(ROOM_A) );
+    }
+
+    /**
+     * Verifies that a snapshot does not cover a change that is committed, but of which the modification has not yet
+     * been applied to the cached data.
+     */
+    @Test
+    public void testUnsettledChangeIsNotCovered() throws Exception
+    {
+        // Setup test fixture.
+        DAO.retrieveExtensionElementsForRoom(ROOM_B);
+        try ( final Connection con = provider.getConnection() )
+        {
+            // The modification is committed, but the cache still holds the data from before the modification.
+            provider.executeScript("INSERT INTO mucextinfo (room, formtypename, varname, varvalue, pos) VALUES ('" + ROOM_B + "', 'urn:example:b', 'z', '4', 10)");
+            final long sequence = DAO.reserveChangeSequences(con, 1);
+            provider.executeScript("INSERT INTO mucextinfo_change (seq, changed, changetype, room, formtypename) VALUES (" + sequence + ", " + System.currentTimeMillis() + ", 'addField', '" + ROOM_B + "', 'urn:example:b')");
+            assertTrue( Snapshot.getInstance().write(file) );
+        }
+        finally
+        {
+            DAO.settleChanges();
+        }
+        DAO.purgeCache();
+
+        // Execute system under test.
+        Snapshot.getInstance().load(file);
+
+        // Verify results.
+        assertFalse( DAO.isCached(ROOM_B) );
+        assertNotNull( DAO.retrieveExtensionElementsForRoom(ROOM_B).get(0).getField("z") );
+    }
+
+
+}
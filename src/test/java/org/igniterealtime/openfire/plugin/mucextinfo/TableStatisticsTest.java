@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link TableStatistics}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class TableStatisticsTest
+{
+    /**
+     * Verifies that each amount of rows is assigned to the bucket of which the bounds include that amount.
+     */
+    @Test
+    public void testBucketBounds()
+    {
+        // Setup test fixture.
+        final List<TableStatistics.Bucket> buckets = TableStatistics.builder(0).build().getDistribution();
+
+        // Execute system under test & verify results.
+        for ( final long rows : Arrays.asList(1L, 2L, 4L, 5L, 16L, 17L, 64L, 65L, 1000L, 4096L, 4097L, 1_000_000L) )
+        {
+            final TableStatistics.Bucket bucket = buckets.get(TableStatistics.bucketOf(rows));
+            assertTrue( rows + " in " + bucket, bucket.getLowerBound() <= rows );
+            assertTrue( rows + " in " + bucket, bucket.getUpperBound() < 0 || rows <= bucket.getUpperBound() );
+        }
+        assertEquals( -1, buckets.get(buckets.size() - 1).getUpperBound() );
+    }
+
+    /**
+     * Verifies the totals, distribution and largest rooms that are computed from the amount of rows per room.
+     */
+    @Test
+    public void testStatistics()
+    {
+        // Setup test fixture.
+        final TableStatistics.Builder builder = TableStatistics.builder(2);
+
+        // Execute system under test.
+        builder.add(new JID("a", "conference.example.org", null), 1);
+        builder.add(new JID("b", "conference.example.org", null), 3);
+        builder.add(new JID("c", "conference.example.org", null), 4);
+        builder.add(new JID("d", "conference.example.org", null), 500);
+        final TableStatistics result = builder.build();
+
+        // Verify results.
+        assertEquals( 508, result.getRows() );
+        assertEquals( 4, result.getRooms() );
+        assertEquals( 127.0, result.getAverage(), 0.001 );
+        assertEquals( 1, result.getDistribution().get(0).getRooms() );
+        assertEquals( 2, result.getDistribution().get(1).getRooms() );
+        assertEquals( 1, result.getDistribution().get(TableStatistics.bucketOf(500)).getRooms() );
+        assertEquals( Arrays.asList(new JID("d", "conference.example.org", null), new JID("c", "conference.example.org", null)), new ArrayList<>(result.getLargestRooms().keySet()) );
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.igniterealtime.openfire.plugin.mucextinfo;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link Visibility}.
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@gmail.com
+ */
+public class VisibilityTest
+{
+    /**
+     * Verifies that compiling an empty collection of rules results in an instance that does not restrict anything.
+     */
+    @Test
+    public void testNoRulesIsUnrestricted()
+    {
+        // Execute system under test.
+        final Visibility result = Visibility.compile(Collections.emptyList());
+
+        // Verify results.
+        assertTrue( result.isUnrestricted() );
+        final List<ExtDataForm> forms = createForms();
+        assertSame( forms, result.filter(forms, new BitSet()) );
+    }
+
+    /**
+     * Verifies that a form that has a rule is not visible to a sender that does not match the rule.
+     */
+    @Test
+    public void testFormHiddenFromNonMatchingSender()
+    {
+        // Setup test fixture.
+        final Visibility visibility = Visibility.compile(Collections.singletonList(new Visibility.Assignment("internal", null, new VisibilityRule(VisibilityRule.Type.domain, "example.org"))));
+        final SenderProfile sender = createSender(new JID("john", "example.com", null), EnumSet.noneOf(VisibilityRule.Affiliation.class));
+
+        // Execute system under test.
+        final List<ExtDataForm> result = visibility.filter(createForms(), visibility.classify(sender));
+
+        // Verify results.
+        assertNotNull( result );
+        assertEquals( 1, result.size() );
+        assertEquals( "public", result.get(0).getFormTypeName() );
+    }
+
+    /**
+     * Verifies that a form that has a rule is visible to a sender that matches the rule.
+     */
+    @Test
+    public void testFormVisibleToMatchingSender()
+    {
+        // Setup test fixture.
+        final Visibility visibility = Visibility.compile(Collections.singletonList(new Visibility.Assignment("internal", null, new VisibilityRule(VisibilityRule.Type.domain, "example.org"))));
+        final SenderProfile sender = createSender(new JID("john", "example.org", "phone"), EnumSet.noneOf(VisibilityRule.Affiliation.class));
+
+        // Execute system under test.
+        final List<ExtDataForm> result = visibility.filter(createForms(), visibility.classify(sender));
+
+        // Verify results.
+        assertNotNull( result );
+        assertEquals( 2, result.size() );
+    }
+
+    /**
+     * Verifies that a field that has a rule is removed from a form for senders that do not match the rule, while the
+     * other fields of the form remain.
+     */
+    @Test
+    public void testFieldHiddenFromNonMatchingSender()
+    {
+        // Setup test fixture.
+        final Visibility visibility = Visibility.compile(Collections.singletonList(new Visibility.Assignment("public", "secret", new VisibilityRule(VisibilityRule.Type.affiliation, "admin"))));
+        final SenderProfile member = createSender(new JID("john", "example.org", null), EnumSet.of(VisibilityRule.Affiliation.member));
+        final SenderProfile admin = createSender(new JID("jane", "example.org", null), EnumSet.of(VisibilityRule.Affiliation.admin, VisibilityRule.Affiliation.member));
+
+        // Execute system under test.
+        final List<ExtDataForm> memberResult = visibility.filter(createForms(), visibility.classify(member));
+        final List<ExtDataForm> adminResult = visibility.filter(createForms(), visibility.classify(admin));
+
+        // Verify results.
+        final ExtDataForm memberForm = memberResult.stream().filter(f -> f.getFormTypeName().equals("public")).findAny().orElse(null);
+        assertNotNull( memberForm );
+        assertEquals( 1, memberForm.getFields().size() );
+        assertEquals( "open", memberForm.getFields().get(0).getVarName() );
+
+        final ExtDataForm adminForm = adminResult.stream().filter(f -> f.getFormTypeName().equals("public")).findAny().orElse(null);
+        assertNotNull( adminForm );
+        assertEquals( 2, adminForm.getFields().size() );
+    }
+
+    /**
+     * Verifies that the instance that is used when rules cannot be retrieved hides all data forms from all senders.
+     */
+    @Test
+    public void testHiddenHidesAllForms()
+    {
+        // Setup test fixture.
+        final Visibility visibility = Visibility.HIDDEN;
+        final SenderProfile sender = createSender(new JID("jane", "example.org", null), EnumSet.allOf(VisibilityRule.Affiliation.class));
+
+        // Execute system under test.
+        final List<ExtDataForm> result = visibility.filter(createForms(), visibility.classify(sender));
+
+        // Verify results.
+        assertFalse( visibility.isUnrestricted() );
+        assertNotNull( result );
+        assertTrue( result.isEmpty() );
+    }
+
+    /**
+     * Verifies that senders that match the same rules are served the same (cached) result.
+     */
+    @Test
+    public void testViewIsReusedForSameVisibilityClass()
+    {
+        // Setup test fixture.
+        final Visibility visibility = Visibility.compile(Collections.singletonList(new Visibility.Assignment("internal", null, new VisibilityRule(VisibilityRule.Type.group, "staff"))));
+        final List<ExtDataForm> forms = createForms();
+        final SenderProfile first = createSender(new JID("john", "example.org", null), EnumSet.noneOf(VisibilityRule.Affiliation.class));
+        final SenderProfile second = createSender(new JID("jane", "example.com", null), EnumSet.of(VisibilityRule.Affiliation.owner));
+
+        // Execute system under test.
+        final List<ExtDataForm> firstResult = visibility.filter(forms, visibility.classify(first));
+        final List<ExtDataForm> secondResult = visibility.filter(forms, visibility.classify(second));
+
+        // Verify results.
+        assertSame( firstResult, secondResult );
+    }
+
+    /**
+     * Verifies that each distinct rule is evaluated once, even if it is assigned to more than one form or field.
+     */
+    @Test
+    public void testDistinctRulesAreEvaluatedOnce()
+    {
+        // Setup test fixture.
+        final VisibilityRule rule = new VisibilityRule(VisibilityRule.Type.group, "staff");
+        final Visibility visibility = Visibility.compile(Arrays.asList(
+            new Visibility.Assignment("internal", null, rule),
+            new Visibility.Assignment("public", "secret", rule)));
+        final int[] lookups = {0};
+        final SenderProfile sender = new SenderProfile(new JID("john", "example.org", null), Collections::emptySet, () -> { lookups[0]++; return Collections.singleton("staff"); });
+
+        // Execute system under test.
+        final BitSet result = visibility.classify(sender);
+
+        // Verify results.
+        assertEquals( 1, result.cardinality() );
+        assertEquals( 1, lookups[0] );
+    }
+
+    private static SenderProfile createSender( final JID address, final Set<VisibilityRule.Affiliation> affiliations )
+    {
+        return new SenderProfile(address, () -> affiliations, Collections::emptySet);
+    }
+
+    private static List<ExtDataForm> createForms()
+    {
+        final ExtDataForm publicForm = ExtDataForm.builder("public")
+            .addField(new Field("open", "Open", "value"))
+            .addField(new Field("secret", "Secret", "hidden value"))
+            .build();
+
+        final ExtDataForm internalForm = ExtDataForm.builder("internal")
+            .addField(new Field("metadata", "Metadata", "value"))
+            .build();
+
+        return Arrays.asList(publicForm, internalForm);
+    }
+}